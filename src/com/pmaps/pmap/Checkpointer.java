@@ -0,0 +1,130 @@
+package com.pmaps.pmap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.pmaps.pmap.filedriver.FileDriver;
+
+/**
+ * <p>
+ * Checkpoints a {@link PMap} in the background, every period. See
+ * {@link PMapOptions#setBackgroundCheckpoint(int, long)}.
+ * </p>
+ * <p>
+ * The checkpoint is fuzzy : the state kept in memory is persisted and the
+ * {@link WriteAheadLog} moved to its previous segment under the write lock of
+ * the map, which is then released. The files are forced while the writes go
+ * on, by chunks of {@link #FLUSH_CHUNK_SIZE} bytes when their driver supports
+ * it, at most maxBytesPerSecond : the writes never wait for a whole flush.
+ * Once they are forced, the previous segment of the log is dropped.
+ * </p>
+ * A failed checkpoint is done again at the next period.
+ *
+ * @author Bleu
+ *
+ */
+class Checkpointer implements AutoCloseable {
+
+	static final int FLUSH_CHUNK_SIZE = 1 << 20;
+
+	private final PMap<?, ?> pMap;
+	private final long periodNanos;
+	/**
+	 * 0 when unlimited.
+	 */
+	private final long maxBytesPerSecond;
+	private final Thread thread;
+
+	private volatile boolean running = true;
+	private volatile Exception lastFailure;
+
+	/**
+	 * Progress of the current flush, used by the checkpoint thread only.
+	 */
+	private long flushStartNanos;
+	private long flushedBytes;
+
+	Checkpointer(PMap<?, ?> pMap, int period, long maxBytesPerSecond) {
+		this.pMap = pMap;
+		this.periodNanos = TimeUnit.MILLISECONDS.toNanos(period);
+		this.maxBytesPerSecond = maxBytesPerSecond;
+		this.thread = new Thread(this::run, "PMap checkpoint");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run() {
+		while (running) {
+			LockSupport.parkNanos(this, periodNanos);
+			if (!running)
+				break;
+			flushStartNanos = System.nanoTime();
+			flushedBytes = 0;
+			try {
+				pMap.backgroundCheckpoint(this);
+				lastFailure = null;
+			} catch (IOException | RuntimeException e) {
+				lastFailure = e;
+			}
+		}
+	}
+
+	/**
+	 * Forces the writes done in the file of fileDriver, by chunks if
+	 * possible.
+	 *
+	 * @param fileDriver
+	 * @throws IOException
+	 */
+	void flush(FileDriver fileDriver) throws IOException {
+		final long length = fileDriver.length();
+		for (long position = 0; position < length; position += FLUSH_CHUNK_SIZE) {
+			if (!fileDriver.sync(position, FLUSH_CHUNK_SIZE))
+				break;
+			throttle(Math.min(FLUSH_CHUNK_SIZE, length - position));
+		}
+		// the whole file if not done by chunks, its length otherwise
+		fileDriver.sync();
+	}
+
+	/**
+	 * Waits for the flushed bytes to be under the rate. Stops waiting once
+	 * closed.
+	 */
+	private void throttle(long bytes) {
+		flushedBytes += bytes;
+		if (maxBytesPerSecond <= 0)
+			return;
+		final long minimumNanos = flushedBytes * TimeUnit.SECONDS.toNanos(1) / maxBytesPerSecond;
+		long waitNanos;
+		while (running && (waitNanos = minimumNanos - (System.nanoTime() - flushStartNanos)) > 0) {
+			LockSupport.parkNanos(this, waitNanos);
+		}
+	}
+
+	/**
+	 * Returns the failure of the last checkpoint, null if it succeeded.
+	 *
+	 * @return
+	 */
+	Exception getLastFailure() {
+		return lastFailure;
+	}
+
+	/**
+	 * Stops the checkpoint thread. A checkpoint in progress ends without
+	 * waiting for the rate.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -1,33 +1,57 @@
 package com.pmaps.pmap;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
 
 import com.pmaps.PMapException;
+import com.pmaps.pmap.filedriver.ChecksumFileDriver;
+import com.pmaps.pmap.filedriver.ChecksumFileDriver.DamagedRegion;
 import com.pmaps.pmap.filedriver.DataFileDriver;
 import com.pmaps.pmap.filedriver.FileDriver;
 import com.pmaps.pmap.filedriver.RandomAccessCachedFileDriver;
 import com.pmaps.pmap.filedriver.RandomAccessFileDriver;
+import com.pmaps.pmap.filedriver.SnapshotFileDriver;
 import com.pmaps.pmap.index.BTreeNode;
 import com.pmaps.pmap.index.BTreeNodeDriver;
 import com.pmaps.pmap.index.PairIterator;
+import com.pmaps.pmap.pair.BlobPair;
+import com.pmaps.pmap.pair.BlobPairFactory;
+import com.pmaps.pmap.pair.BlobStore;
+import com.pmaps.pmap.pair.InlinePairFactory;
 import com.pmaps.pmap.pair.Pair;
 import com.pmaps.pmap.pair.PairDriver;
 import com.pmaps.pmap.pair.PairFactory;
 import com.pmaps.pmap.pair.PartPairFactory;
 import com.pmaps.pmap.pair.PlainPairFactory;
+import com.pmaps.pmap.pair.PairDriver.PairLookup;
 import com.pmaps.pmap.pair.PairDriver.PairTuple;
+import com.pmaps.pmap.serializer.DictionarySerializer;
+import com.pmaps.pmap.serializer.DictionaryTrainer;
 import com.pmaps.pmap.serializer.ISerializer;
 import com.pmaps.pmap.serializer.JavaSerializer;
 import com.pmaps.pmap.set.EntrySet;
@@ -42,12 +66,17 @@ import com.pmaps.pmap.set.ValueSet;
  * 
  * </p>
  * <p>
- * Implementation is not thread safe. Any multi-threaded access to this file
- * will have impact on data and may damage the underlying data file.
+ * Access is thread safe. Two levels of locks are taken :
  * <ul>
- * <li>Concurrent read : done</li>
- * <li>TODO Concurrent write</li>
+ * <li>the structure lock : read locked by gets and by the writes on a known
+ * key hash, write locked by the writes which change the tree (new key hash,
+ * removal) and by the maintenance operations.</li>
+ * <li>a stripe lock, chosen by the key hash : read locked by gets, write
+ * locked by the writes on a known key hash. Writes on hashes of different
+ * stripes run at the same time; gets only wait for the writes of their
+ * stripe.</li>
  * </ul>
+ * Allocations in the files are serialized by the {@link PairDriver}.
  * </p>
  * 
  * Keys and Values have to implement the {@link Serializable} interface. Keys
@@ -74,25 +103,97 @@ public class PMap<K, V> implements Map<K, V> {
 	public static final long POSITION_TOP_NODE = 0;
 	public static final int POSITION_SIZE = 8;
 	public static final long POSITION_FREE_NODE = 12;
-	public static final long POSITION_FREE_PAIR_HEADER = 20;
+	public static final long POSITION_FREE_SPACE = 20;
+	/**
+	 * No more used : free space is tracked from {@link #POSITION_FREE_SPACE}.
+	 */
 	public static final long POSITION_FREE_PAIR_DATA = 28;
 	public static final long POSITION_FREE_LONG_VALUE = 36;
 	public static final long POSITION_PMAP_SIGNATURE = 44;
-	public static final long POSITION_START_DATA = 52;
+	public static final long POSITION_DICTIONARY = 52;
+	public static final long POSITION_START_DATA = 60;
 
 	public static final long PMAP_SIGNATURE = 123456789l;
+	/**
+	 * Signature of a map opened and not closed yet. Found when the map is
+	 * opened, the map has not been closed : the writes logged since the last
+	 * checkpoint are replayed.
+	 */
+	public static final long PMAP_OPEN_SIGNATURE = PMAP_SIGNATURE + 1;
 	public static final long EOF_POSITION = -1;
+	/**
+	 * Size written in the header while the size is only known in memory :
+	 * the pairs are counted again when the map is opened.
+	 */
+	public static final int UNKNOWN_SIZE = -1;
+
+	/**
+	 * Number of stripe locks, a power of 2.
+	 */
+	private static final int STRIPE_COUNT = 256;
+	/**
+	 * Below, {@link #putAll(Map)} serializes the pairs in the calling thread.
+	 */
+	private static final int PARALLEL_PUT_ALL_THRESHOLD = 256;
+	/**
+	 * Number of logged writes applied at once when the log is replayed.
+	 */
+	private static final int REPLAY_BATCH_SIZE = 10000;
 
-	private final FileDriver indexFileDriver;
-	private final FileDriver pairFileDriver;
+	/**
+	 * The index and pair files are read by the snapshots, see
+	 * {@link #openSnapshot()}.
+	 */
+	private final SnapshotFileDriver indexFileDriver;
+	private final SnapshotFileDriver pairFileDriver;
+	/**
+	 * Large values, if enabled. See {@link PMapOptions#setBlobThreshold(int)}.
+	 */
+	private final BlobStore blobStore;
+	/**
+	 * Null if disabled. See {@link PMapOptions#setWriteAheadLog(WriteAheadLog.SyncMode, int)}.
+	 */
+	private final WriteAheadLog writeAheadLog;
+	/**
+	 * Null if disabled. See {@link PMapOptions#setBackgroundCheckpoint(int, long)}.
+	 */
+	private final Checkpointer checkpointer;
+	/**
+	 * One checkpoint at a time : the background ones force the files out of
+	 * the structure lock.
+	 */
+	private final ReentrantLock checkpointLock = new ReentrantLock();
 
 	private final BTreeNodeDriver<K, V> nodeDriver;
 	private final PairDriver<K, V> pairDriver;
-	private final ISerializer serializer;
+	private final DictionarySerializer serializer;
 
-	private int size;
+	/**
+	 * Written in the header by {@link #checkpoint()} only.
+	 */
+	private final AtomicLong size = new AtomicLong();
+	/**
+	 * Set by the first change of the size after a checkpoint, which writes
+	 * {@link #UNKNOWN_SIZE} in the header.
+	 */
+	private final AtomicBoolean sizeDirty = new AtomicBoolean();
+	/**
+	 * Incremented by each write : invalidates the {@link ValueHandle}s.
+	 */
+	private final AtomicInteger modificationCount = new AtomicInteger();
 
-	private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+	/**
+	 * The structure lock. Gets first try an optimistic read of the tree, see
+	 * {@link #get(Object)}.
+	 */
+	private final StampedLock structureLock = new StampedLock();
+	/**
+	 * The locks are not reentrant : the functions of the updates must not
+	 * take them, see {@link #update(Object, UnaryOperator, boolean)}.
+	 */
+	private final ReentryGuard reentryGuard = new ReentryGuard();
+	private final ReadWriteLock readWriteLock = reentryGuard.guard(structureLock.asReadWriteLock());
+	private final ReadWriteLock[] stripeLocks = newStripeLocks();
 	private final WeakHashMap<PairIterator<K, V>, Void> weakIterratorMap = new WeakHashMap<>();
 
 	/**
@@ -127,15 +228,20 @@ public class PMap<K, V> implements Map<K, V> {
 			file.createNewFile();
 			init(file);
 		}
-		this.indexFileDriver = new RandomAccessFileDriver(file);
+		this.indexFileDriver = new SnapshotFileDriver(new RandomAccessFileDriver(file));
 		this.pairFileDriver = indexFileDriver;
 		boolean correct = checkFileSignature(indexFileDriver);
 		if (!correct)
 			throw new PMapException("Header signature has not been found. The file may be corrupted");
-		initSize();
 		nodeDriver = new BTreeNodeDriver<>(this, getIndexFileDriver());
 		pairDriver = new PairDriver<>(this, getPairFileDriver(), new PlainPairFactory());
-		this.serializer = serializer;
+		this.blobStore = null;
+		this.writeAheadLog = null;
+		this.checkpointer = null;
+		this.serializer = new DictionarySerializer(serializer);
+		loadDictionaries();
+		initSize();
+		markOpen();
 	}
 	
 	
@@ -168,6 +274,27 @@ public class PMap<K, V> implements Map<K, V> {
 	 */
 	public PMap(String mapName, File baseDirectory, ISerializer serializer, boolean cacheIndex, boolean appendData)
 			throws PMapException, IOException {
+		this(mapName, baseDirectory, new PMapOptions().setSerializer(serializer).setCacheIndex(cacheIndex).setAppendData(appendData));
+	}
+
+	public PMap(String mapName, File baseDirectory, ISerializer serializer, boolean cacheIndex, boolean appendData, int maxDataFileSize,
+			int maxNumberOfDataFile) throws PMapException, IOException {
+		this(mapName, baseDirectory, new PMapOptions().setSerializer(serializer).setCacheIndex(cacheIndex).setAppendData(appendData)
+				.setDataFiles(maxDataFileSize, maxNumberOfDataFile));
+	}
+
+	/**
+	 * Creates a PMap instance based on an index file and one or more data
+	 * files, as described by the options. See
+	 * {@link #PMap(String, File, ISerializer, boolean, boolean)}.
+	 * 
+	 * @param mapName
+	 * @param baseDirectory
+	 * @param options
+	 * @throws PMapException
+	 * @throws IOException
+	 */
+	public PMap(String mapName, File baseDirectory, PMapOptions options) throws PMapException, IOException {
 		// Some checks
 		if (!baseDirectory.isDirectory())
 			throw new PMapException(baseDirectory.getAbsolutePath() + " is not a directory");
@@ -175,47 +302,124 @@ public class PMap<K, V> implements Map<K, V> {
 		if (!indexFile.exists()) {
 			indexFile.createNewFile();
 			init(indexFile);
+			// written without the checksums
+			Files.deleteIfExists(checksumFile(indexFile).toPath());
 		}
 
 		// set the file driver instances
-		this.indexFileDriver = cacheIndex ? new RandomAccessCachedFileDriver(indexFile) : new RandomAccessFileDriver(indexFile);
-		File dataFile = new File(baseDirectory, mapName + ".data");
-		this.pairFileDriver = new RandomAccessFileDriver(dataFile);
+		this.indexFileDriver = new SnapshotFileDriver(withChecksums(openIndexFileDriver(indexFile, options), indexFile, options));
+		final File pairFile = new File(baseDirectory, mapName + ".data");
+		this.pairFileDriver = new SnapshotFileDriver(withChecksums(openPairFileDriver(mapName, baseDirectory, options), pairFile, options));
 
 		// init the files and data.
 		boolean correct = checkFileSignature(indexFileDriver);
 		if (!correct)
 			throw new PMapException("Header signature has not been found. The file may be corrupted");
-		initSize();
 		nodeDriver = new BTreeNodeDriver<>(this, indexFileDriver);
-		pairDriver = new PairDriver<>(this, pairFileDriver, appendData ? new PlainPairFactory() : new PartPairFactory());
-		this.serializer = serializer;
+		nodeDriver.setShadowPaging(options.isShadowPaging());
+		PairFactory pairFactory = options.isAppendData() ? new PlainPairFactory() : new PartPairFactory();
+		if (options.getInlineThreshold() > 0)
+			pairFactory = new InlinePairFactory(pairFactory, options.getInlineThreshold());
+		if (options.getBlobThreshold() > 0) {
+			final File blobFile = new File(baseDirectory, mapName + ".blob");
+			this.blobStore = new BlobStore(withChecksums(new RandomAccessFileDriver(blobFile), blobFile, options));
+			// the log refers to the streamed blobs
+			blobStore.setDeferFrees(options.getWalSyncMode() != null);
+			pairFactory = new BlobPairFactory(pairFactory, blobStore, options.getBlobThreshold());
+		} else {
+			this.blobStore = null;
+		}
+		pairDriver = new PairDriver<>(this, pairFileDriver, pairFactory);
+		pairDriver.setShadowPaging(options.isShadowPaging());
+		this.serializer = new DictionarySerializer(options.getSerializer());
+		final boolean closed = isClosed(indexFileDriver);
+		loadDictionaries();
+		final boolean sizeRead = readSize();
+
+		// keys and values are logged without the compression dictionaries
+		final WriteAheadLog writeAheadLog = options.getWalSyncMode() == null ? null
+				: new WriteAheadLog(new File(baseDirectory, mapName + ".wal"), options.getSerializer(), options.getWalSyncMode(),
+						options.getWalSyncPeriod(), sizeRead ? size.get() : WriteAheadLog.UNKNOWN_SIZE);
+		// replayed before the log is set : the replayed writes are not logged
+		// again
+		final long replayedCount = writeAheadLog == null || closed ? 0 : replay(writeAheadLog);
+		if (writeAheadLog != null && !closed && writeAheadLog.getReplayedSize() != WriteAheadLog.UNKNOWN_SIZE) {
+			// the writes which reached the files before the crash are not
+			// counted twice
+			size.set(writeAheadLog.getReplayedSize());
+			sizeDirty.set(true);
+			persistSize();
+		} else if (!sizeRead || replayedCount > 0) {
+			countSize();
+		}
+		this.writeAheadLog = writeAheadLog;
+		markOpen();
+		if (replayedCount > 0)
+			checkpoint();
+		this.checkpointer = options.getCheckpointPeriod() == 0 ? null
+				: new Checkpointer(this, options.getCheckpointPeriod(), options.getCheckpointMaxBytesPerSecond());
+	}
 
+	private static FileDriver openIndexFileDriver(File indexFile, PMapOptions options) throws IOException {
+		return options.isCacheIndex() ? new RandomAccessCachedFileDriver(indexFile) : new RandomAccessFileDriver(indexFile);
 	}
 
-	public PMap(String mapName, File baseDirectory, ISerializer serializer, boolean cacheIndex, boolean appendData, int maxDataFileSize,
-			int maxNumberOfDataFile) throws PMapException, IOException {
-		// Some checks
-		if (!baseDirectory.isDirectory())
-			throw new PMapException(baseDirectory.getAbsolutePath() + " is not a directory");
-		File indexFile = new File(baseDirectory, mapName + ".idx");
-		if (!indexFile.exists()) {
-			indexFile.createNewFile();
-			init(indexFile);
-		}
-		// set the file driver instances
-		this.indexFileDriver = cacheIndex ? new RandomAccessCachedFileDriver(indexFile) : new RandomAccessFileDriver(indexFile);
-		this.pairFileDriver = new DataFileDriver(mapName, baseDirectory, maxDataFileSize, maxNumberOfDataFile);
+	private static FileDriver openPairFileDriver(String mapName, File baseDirectory, PMapOptions options) throws IOException {
+		if (options.getMaxNumberOfDataFile() > 0)
+			return new DataFileDriver(mapName, baseDirectory, options.getMaxDataFileSize(), options.getMaxNumberOfDataFile());
+		return new RandomAccessFileDriver(new File(baseDirectory, mapName + ".data"));
+	}
 
-		// init the files and data.
-		boolean correct = checkFileSignature(indexFileDriver);
-		if (!correct)
-			throw new PMapException("Header signature has not been found. The file may be corrupted");
-		initSize();
-		nodeDriver = new BTreeNodeDriver<>(this, indexFileDriver);
-		pairDriver = new PairDriver<>(this, pairFileDriver, appendData ? new PlainPairFactory() : new PartPairFactory());
-		this.serializer = serializer;
+	private static File checksumFile(File file) {
+		return new File(file.getPath() + ".crc");
+	}
+
+	/**
+	 * Decorates fileDriver with the checksums of file, if enabled. See
+	 * {@link PMapOptions#setChecksums(boolean)}.
+	 */
+	private static FileDriver withChecksums(FileDriver fileDriver, File file, PMapOptions options) throws IOException {
+		return options.isChecksums() ? new ChecksumFileDriver(fileDriver, checksumFile(file)) : fileDriver;
+	}
 
+	/**
+	 * Checks the whole files of a closed map against their checksums, see
+	 * {@link PMapOptions#setChecksums(boolean)}. The map must not be open.
+	 * 
+	 * @param mapName
+	 * @param baseDirectory
+	 * @param options
+	 *            the options the map is opened with
+	 * @return the damaged regions of each file by file name, empty if none
+	 * @throws IOException
+	 *             if the checksums are missing or the map was not closed
+	 */
+	public static Map<String, List<DamagedRegion>> scan(String mapName, File baseDirectory, PMapOptions options) throws IOException {
+		final Map<String, List<DamagedRegion>> damagedRegions = new LinkedHashMap<>();
+		final File indexFile = new File(baseDirectory, mapName + ".idx");
+		final FileDriver indexFileDriver = openIndexFileDriver(indexFile, options);
+		try {
+			damagedRegions.put(indexFile.getName(), ChecksumFileDriver.scan(indexFileDriver, checksumFile(indexFile)));
+		} finally {
+			indexFileDriver.close();
+		}
+		final File pairFile = new File(baseDirectory, mapName + ".data");
+		final FileDriver pairFileDriver = openPairFileDriver(mapName, baseDirectory, options);
+		try {
+			damagedRegions.put(pairFile.getName(), ChecksumFileDriver.scan(pairFileDriver, checksumFile(pairFile)));
+		} finally {
+			pairFileDriver.close();
+		}
+		final File blobFile = new File(baseDirectory, mapName + ".blob");
+		if (options.getBlobThreshold() > 0 && blobFile.exists()) {
+			final FileDriver blobFileDriver = new RandomAccessFileDriver(blobFile);
+			try {
+				damagedRegions.put(blobFile.getName(), ChecksumFileDriver.scan(blobFileDriver, checksumFile(blobFile)));
+			} finally {
+				blobFileDriver.close();
+			}
+		}
+		return damagedRegions;
 	}
 
 	/**
@@ -229,16 +433,21 @@ public class PMap<K, V> implements Map<K, V> {
 	 */
 	protected PMap(ISerializer serializer, FileDriver indexFileDriver, FileDriver pairFileDriver, PairFactory pairFactory)
 			throws IOException {
-		this.serializer = serializer;
-		this.indexFileDriver = indexFileDriver;
-		this.pairFileDriver = pairFileDriver;
-		this.nodeDriver = new BTreeNodeDriver<>(this, indexFileDriver);
-		this.pairDriver = new PairDriver<>(this, pairFileDriver, pairFactory);
-
-		boolean correct = checkFileSignature(indexFileDriver);
+		this.serializer = new DictionarySerializer(serializer);
+		this.indexFileDriver = new SnapshotFileDriver(indexFileDriver);
+		this.pairFileDriver = pairFileDriver == indexFileDriver ? this.indexFileDriver : new SnapshotFileDriver(pairFileDriver);
+		this.blobStore = pairFactory instanceof BlobPairFactory ? ((BlobPairFactory) pairFactory).getBlobStore() : null;
+		this.writeAheadLog = null;
+		this.checkpointer = null;
+		this.nodeDriver = new BTreeNodeDriver<>(this, this.indexFileDriver);
+		this.pairDriver = new PairDriver<>(this, this.pairFileDriver, pairFactory);
+
+		boolean correct = checkFileSignature(this.indexFileDriver);
 		if (!correct)
 			throw new PMapException("Header signature has not been found. The file may be corrupted");
+		loadDictionaries();
 		initSize();
+		markOpen();
 	}
 
 	/**
@@ -265,22 +474,37 @@ public class PMap<K, V> implements Map<K, V> {
 	 * @throws IOException
 	 */
 	private void initFile(FileDriver fileDriver) throws IOException {
+		initHeader(fileDriver, PMAP_SIGNATURE);
+		size.set(0);
+		sizeDirty.set(false);
+	}
+
+	/**
+	 * Truncates the file and writes an empty header. Shared with the other
+	 * structures based on the index format, which use their own signature.
+	 * 
+	 * @param fileDriver
+	 * @param signature
+	 * @throws IOException
+	 */
+	public static void initHeader(FileDriver fileDriver, long signature) throws IOException {
 
-		synchronized (fileDriver.getAccessLock()) {
+		fileDriver.getAccessLock().lock();
+		try {
 			// set the length of the file to be null
 			fileDriver.setLength(0);
 
 			// write in the first 8 bytes the position of the top BTreeNode.
 			fileDriver.setLong(POSITION_TOP_NODE, EOF_POSITION);
-			// 4 next bytes : the size of the map.
+			// 4 next bytes : the size of the map, unsigned, or UNKNOWN_SIZE.
 			fileDriver.setInt(POSITION_SIZE, 0);
-			size = 0;
 
 			// 8 next bytes : the first free position for a node :
 			fileDriver.setLong(POSITION_FREE_NODE, EOF_POSITION);
 
-			// 8 next bytes : the first free pair position.
-			fileDriver.setLong(POSITION_FREE_PAIR_HEADER, EOF_POSITION);
+			// 8 next bytes : the position of the persisted free space map in
+			// the pair file.
+			fileDriver.setLong(POSITION_FREE_SPACE, EOF_POSITION);
 
 			// 8 next bytes : the first free pair position.
 			fileDriver.setLong(POSITION_FREE_PAIR_DATA, EOF_POSITION);
@@ -290,8 +514,14 @@ public class PMap<K, V> implements Map<K, V> {
 			fileDriver.setLong(POSITION_FREE_LONG_VALUE, POSITION_START_DATA);
 
 			// 8 next bytes : the pmap signature :
-			fileDriver.setLong(POSITION_PMAP_SIGNATURE, PMAP_SIGNATURE);
+			fileDriver.setLong(POSITION_PMAP_SIGNATURE, signature);
 
+			// 8 next bytes : the position of the last compression dictionary
+			// in the pair file.
+			fileDriver.setLong(POSITION_DICTIONARY, EOF_POSITION);
+
+		} finally {
+			fileDriver.getAccessLock().unlock();
 		}
 
 	}
@@ -305,55 +535,369 @@ public class PMap<K, V> implements Map<K, V> {
 	 */
 	private boolean checkFileSignature(FileDriver fileDriver) throws IOException {
 		long signature = fileDriver.getLong(POSITION_PMAP_SIGNATURE);
-		return signature == PMAP_SIGNATURE;
+		return signature == PMAP_SIGNATURE || signature == PMAP_OPEN_SIGNATURE;
+	}
+
+	/**
+	 * Returns false if the map was not closed after it was last opened.
+	 * 
+	 * @param fileDriver
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean isClosed(FileDriver fileDriver) throws IOException {
+		return fileDriver.getLong(POSITION_PMAP_SIGNATURE) == PMAP_SIGNATURE;
+	}
+
+	/**
+	 * Writes {@link #PMAP_OPEN_SIGNATURE}, until {@link #close()}. Forced
+	 * with the {@link WriteAheadLog} : the crash of the process is known
+	 * when the map is opened again.
+	 * 
+	 * @throws IOException
+	 */
+	private void markOpen() throws IOException {
+		getIndexFileDriver().setLong(POSITION_PMAP_SIGNATURE, PMAP_OPEN_SIGNATURE);
+		if (writeAheadLog != null)
+			getIndexFileDriver().sync();
+	}
+
+	/**
+	 * Applies the writes logged since the last checkpoint, by batches.
+	 * 
+	 * @param log
+	 * @return the number of writes replayed
+	 * @throws IOException
+	 */
+	private long replay(WriteAheadLog log) throws IOException {
+		final WriteBatch<K, V> batch = writeBatch();
+		final long replayedCount;
+		try {
+			replayedCount = log.replay(new WriteAheadLog.Replayer() {
+
+				@SuppressWarnings("unchecked")
+				@Override
+				public void put(Object key, Object value) {
+					batch.put((K) key, (V) value);
+					applyIfFull();
+				}
+
+				@SuppressWarnings("unchecked")
+				@Override
+				public void remove(Object key) {
+					batch.remove((K) key);
+					applyIfFull();
+				}
+
+				@SuppressWarnings("unchecked")
+				@Override
+				public void putBlob(Object key, long blobPointer) throws IOException {
+					if (blobStore == null)
+						throw new PMapException("The write ahead log refers to a blob but the blob store is disabled");
+					// in the order of the records
+					batch.apply();
+					// copied : the blob may be freed by the next records
+					try (InputStream in = blobStore.open(blobPointer)) {
+						putStream((K) key, in, blobStore.length(blobPointer));
+					}
+				}
+
+				@Override
+				public void clear() {
+					batch.clear();
+					PMap.this.clear();
+				}
+
+				private void applyIfFull() {
+					if (batch.size() >= REPLAY_BATCH_SIZE)
+						batch.apply();
+				}
+			});
+		} catch (ClassNotFoundException e) {
+			throw new PMapException("Unable to read the write ahead log", e);
+		}
+		batch.apply();
+		return replayedCount;
 	}
 
 	/**
 	 * Read the size of this map from the file and set the #size variable with
-	 * the read value.
+	 * the read value. If the map was not closed since its size changed, the
+	 * pairs are counted.
 	 * 
 	 * @throws IOException
 	 */
 	private void initSize() throws IOException {
-		synchronized (getIndexFileDriver().getAccessLock()) {
-			size = getIndexFileDriver().getInt(POSITION_SIZE);
+		if (!readSize())
+			countSize();
+	}
+
+	/**
+	 * Sets the #size variable with the size read from the file, if known.
+	 * 
+	 * @return false if the size is {@link #UNKNOWN_SIZE} in the file
+	 * @throws IOException
+	 */
+	private boolean readSize() throws IOException {
+		final int persistedSize = getIndexFileDriver().getInt(POSITION_SIZE);
+		if (persistedSize == UNKNOWN_SIZE)
+			return false;
+		size.set(Integer.toUnsignedLong(persistedSize));
+		return true;
+	}
+
+	/**
+	 * Sets the #size variable with the number of pairs.
+	 * 
+	 * @throws IOException
+	 */
+	private void countSize() throws IOException {
+		long count = 0;
+		// an emptied map has no tree to iterate
+		if (getNodeDriver().getCommittedTopIndexPosition() != EOF_POSITION) {
+			try (PairIterator<K, V> pairIterator = new PairIterator<>(this)) {
+				while (pairIterator.hasNext()) {
+					pairIterator.next();
+					count++;
+				}
+			}
+		}
+		size.set(count);
+		sizeDirty.set(true);
+		persistSize();
+	}
+
+	/**
+	 * Writes the size in the header if it has changed since the last
+	 * checkpoint. Must be called under the write lock.
+	 * 
+	 * @throws IOException
+	 */
+	private void persistSize() throws IOException {
+		if (!sizeDirty.get())
+			return;
+		final long currentSize = size.get();
+		// larger sizes are counted again when the map is opened
+		getIndexFileDriver().setInt(POSITION_SIZE, currentSize < 0xFFFFFFFFL ? (int) currentSize : UNKNOWN_SIZE);
+		sizeDirty.set(false);
+	}
+
+	/**
+	 * Adds delta to the size : writers of different stripes may change it at
+	 * the same time. Only the first change after a checkpoint writes in the
+	 * file.
+	 * 
+	 * @param delta
+	 * @throws IOException
+	 */
+	private void addToSize(long delta) throws IOException {
+		if (!sizeDirty.get() && sizeDirty.compareAndSet(false, true))
+			getIndexFileDriver().setInt(POSITION_SIZE, UNKNOWN_SIZE);
+		size.addAndGet(delta);
+	}
+
+	private ReadWriteLock[] newStripeLocks() {
+		final ReadWriteLock[] stripeLocks = new ReadWriteLock[STRIPE_COUNT];
+		for (int i = 0; i < stripeLocks.length; i++) {
+			stripeLocks[i] = reentryGuard.guard(new StampedLock().asReadWriteLock());
 		}
+		return stripeLocks;
+	}
 
+	/**
+	 * Returns the lock of the stripe of hashCode. Must be taken under the
+	 * structure lock.
+	 * 
+	 * @param hashCode
+	 * @return
+	 */
+	protected ReadWriteLock getStripeLock(int hashCode) {
+		return stripeLocks[(hashCode ^ hashCode >>> 16) & (STRIPE_COUNT - 1)];
 	}
 
 	/**
-	 * Insert the size into the file. It's necessary for persistence;
+	 * Reads the compression dictionaries stored in the pair file, from the
+	 * last one (the current one) to the first one.
+	 * 
+	 * Dictionary structure : <code>
+	 * [dictionaryLength:int | dictionaryId:int | previousDictionaryPointer:long | dictionary:byte[]]
+	 * </code>
 	 * 
-	 * @param newSize
 	 * @throws IOException
 	 */
-	private void setSize(int newSize) throws IOException {
-		synchronized (getIndexFileDriver().getAccessLock()) {
-			size = newSize;
-			getIndexFileDriver().setInt(POSITION_SIZE, newSize);
+	private void loadDictionaries() throws IOException {
+		long dictionaryPointer;
+		getIndexFileDriver().getAccessLock().lock();
+		try {
+			dictionaryPointer = getIndexFileDriver().getLong(POSITION_DICTIONARY);
+		} finally {
+			getIndexFileDriver().getAccessLock().unlock();
+		}
+		boolean current = true;
+		while (dictionaryPointer != EOF_POSITION) {
+			getPairFileDriver().getAccessLock().lock();
+			try {
+				getPairFileDriver().seek(dictionaryPointer);
+				final byte[] dictionary = new byte[getPairFileDriver().readInt()];
+				final int dictionaryId = getPairFileDriver().readInt();
+				dictionaryPointer = getPairFileDriver().getLong();
+				getPairFileDriver().read(dictionary);
+				serializer.registerDictionary(dictionaryId, dictionary, current);
+			} finally {
+				getPairFileDriver().getAccessLock().unlock();
+			}
+			current = false;
+		}
+	}
 
+	/**
+	 * Appends the dictionary at the end of the pair file and registers it as
+	 * the current one. See {@link #loadDictionaries()}.
+	 * 
+	 * @param dictionaryId
+	 * @param dictionary
+	 * @throws IOException
+	 */
+	private void storeDictionary(int dictionaryId, byte[] dictionary) throws IOException {
+		final long previousDictionaryPointer;
+		getIndexFileDriver().getAccessLock().lock();
+		try {
+			previousDictionaryPointer = getIndexFileDriver().getLong(POSITION_DICTIONARY);
+		} finally {
+			getIndexFileDriver().getAccessLock().unlock();
+		}
+		final long dictionaryPointer;
+		getPairFileDriver().getAccessLock().lock();
+		try {
+			dictionaryPointer = getPairFileDriver().length();
+			getPairFileDriver().seek(dictionaryPointer);
+			getPairFileDriver().writeInt(dictionary.length);
+			getPairFileDriver().writeInt(dictionaryId);
+			getPairFileDriver().writeLong(previousDictionaryPointer);
+			getPairFileDriver().write(dictionary);
+		} finally {
+			getPairFileDriver().getAccessLock().unlock();
+		}
+		getIndexFileDriver().getAccessLock().lock();
+		try {
+			getIndexFileDriver().setLong(POSITION_DICTIONARY, dictionaryPointer);
+		} finally {
+			getIndexFileDriver().getAccessLock().unlock();
 		}
+		serializer.registerDictionary(dictionaryId, dictionary, true);
+	}
+
+	/**
+	 * <p>
+	 * Samples up to sampleSize pairs of this map, trains a compression
+	 * dictionary out of them and stores it in the map. Pairs written
+	 * afterwards are compressed against this dictionary, which makes small
+	 * records shrink too. Pairs already written are left as they are.
+	 * </p>
+	 * <p>
+	 * Training again replaces the current dictionary; previous ones are kept
+	 * to read the pairs compressed with them.
+	 * </p>
+	 * 
+	 * @param sampleSize
+	 * @return false if the sampled pairs did not share enough content to build
+	 *         a dictionary.
+	 */
+	public boolean trainDictionary(int sampleSize) {
+		if (serializer.getCurrentDictionaryId() >= DictionarySerializer.MAX_DICTIONARY_ID)
+			throw new PMapException("Too many dictionaries have been trained");
+		if (isEmpty())
+			return false;
 
+		try {
+			// one pair every step is sampled
+			final int step = Math.max(1, size() / Math.max(1, sampleSize));
+			final List<byte[]> samples = new ArrayList<>();
+			try (PairIterator<K, V> pairIterator = new PairIterator<>(this)) {
+				for (int i = 0; pairIterator.hasNext() && samples.size() < sampleSize; i++) {
+					final Pair<K, V> pair = pairIterator.next();
+					if (i % step == 0)
+						samples.add(serializer.getSerializer().serialize(pair.getKey(), pair.getValue()));
+				}
+			}
+
+			final byte[] dictionary = DictionaryTrainer.train(samples, DictionaryTrainer.MAX_DICTIONARY_SIZE);
+			if (dictionary.length == 0)
+				return false;
+
+			final Lock writeLock = readWriteLock.writeLock();
+			writeLock.lockInterruptibly();
+			try {
+				// allocated under the lock : concurrent trainings get
+				// distinct ids
+				final int dictionaryId = serializer.getCurrentDictionaryId() + 1;
+				if (dictionaryId > DictionarySerializer.MAX_DICTIONARY_ID)
+					throw new PMapException("Too many dictionaries have been trained");
+				storeDictionary(dictionaryId, dictionary);
+			} finally {
+				writeLock.unlock();
+			}
+			return true;
+		} catch (IOException | ClassNotFoundException e) {
+			throw new PMapException("Unable to train the dictionary", e);
+		} catch (InterruptedException ie) {
+			throw new PMapException("Dictionary training interrupted", ie);
+		}
 	}
 
 	protected void finalize() throws Throwable {
 		close();
 	}
 
+	/**
+	 * Releases the snapshots of the ongoing iterators, which then throw a
+	 * {@link java.util.ConcurrentModificationException}.
+	 */
 	protected void revokeOngoingIterators() {
-		for (PairIterator<K, V> pairIterator : weakIterratorMap.keySet()) {
-			pairIterator.onConncurrentModification();
+		synchronized (weakIterratorMap) {
+			for (PairIterator<K, V> pairIterator : weakIterratorMap.keySet()) {
+				pairIterator.onConncurrentModification();
+			}
 		}
 	}
 
 	public void registerOngoingIterator(PairIterator<K, V> iterator) {
-		weakIterratorMap.put(iterator, null);
+		synchronized (weakIterratorMap) {
+			weakIterratorMap.put(iterator, null);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Opens a point-in-time view of the map, see {@link PMapSnapshot}. The
+	 * writers are only held while the snapshot is opened.
+	 * </p>
+	 * The snapshot has to be closed : it keeps the pages written since its
+	 * opening.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public PMapSnapshot openSnapshot() throws IOException {
+		final Lock writeLock = readWriteLock.writeLock();
+		writeLock.lock();
+		try {
+			final SnapshotFileDriver.View indexView = indexFileDriver.openView();
+			final SnapshotFileDriver.View pairView = pairFileDriver == indexFileDriver ? null : pairFileDriver.openView();
+			return new PMapSnapshot(indexView, pairView, blobStore);
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
 	public Lock getReadLock() {
 		return readWriteLock.readLock();
 	}
 
+	protected int getModificationCount() {
+		return modificationCount.get();
+	}
+
 	public FileDriver getIndexFileDriver() {
 		return indexFileDriver;
 	}
@@ -374,53 +918,310 @@ public class PMap<K, V> implements Map<K, V> {
 		return serializer;
 	}
 
-	public void close() throws IOException {
-		getIndexFileDriver().close();
-		getPairFileDriver().close();
-
+	/**
+	 * Returns the store of the large values or null if it is not enabled.
+	 * 
+	 * @return
+	 */
+	public BlobStore getBlobStore() {
+		return blobStore;
 	}
 
 	/**
-	 * Invokes {@link #init()} method. All underlying files used for the storage
-	 * are truncated and reinitialized. All data are deleted.
+	 * Persists the state kept in memory (size of the map, free space of the
+	 * pair file) so that it is found again when the map is reopened. With the
+	 * {@link WriteAheadLog}, the files are then forced to the storage device
+	 * and the log emptied. With shadow paging, the files are forced first and
+	 * the space of the unlinked pairs released.
+	 * 
+	 * @throws IOException
 	 */
-	@Override
-	public void clear() {
+	public void checkpoint() throws IOException {
+		checkpointLock.lock();
 		try {
-			initFile(getIndexFileDriver());
-			if (getIndexFileDriver() != getPairFileDriver())
-				getPairFileDriver().setLength(0);
-		} catch (IOException e) {
-			throw new PMapException("Unable to clear the persisted file", e);
+			final Lock writeLock = readWriteLock.writeLock();
+			writeLock.lock();
+			try {
+				if (getNodeDriver().isShadowPaging()) {
+					// the pairs unlinked by the writes which did not change
+					// the tree are freed once their unlinks are forced
+					syncPairFiles();
+					getIndexFileDriver().sync();
+					getPairDriver().releaseFreePairPositions();
+				}
+				persistState();
+				if (writeAheadLog != null) {
+					syncPairFiles();
+					getIndexFileDriver().sync();
+					writeAheadLog.truncate(size.get());
+					if (blobStore != null) {
+						blobStore.sealFreedBlobs();
+						if (blobStore.releaseSealedBlobs()) {
+							blobStore.checkpoint();
+							blobStore.sync();
+						}
+					}
+				}
+			} finally {
+				writeLock.unlock();
+			}
+		} finally {
+			checkpointLock.unlock();
 		}
-
 	}
 
-	@Override
-	public V get(Object key) {
-
-		final int hashCode = key.hashCode();
-
-		final Lock readLock = readWriteLock.readLock();
-		try {
-			readLock.lockInterruptibly();
+	/**
+	 * Fuzzy checkpoint run by the {@link Checkpointer} : the writes are held
+	 * only while the state kept in memory is persisted and the log rotated.
+	 * The files are then forced by the checkpointer while the writes go on,
+	 * and the previous segment of the log dropped.
+	 * 
+	 * @param checkpointer
+	 * @throws IOException
+	 */
+	void backgroundCheckpoint(Checkpointer checkpointer) throws IOException {
+		checkpointLock.lock();
+		try {
+			final Lock writeLock = readWriteLock.writeLock();
+			writeLock.lock();
 			try {
-				BTreeNode<K, V> index = getNodeDriver().goToIndex(hashCode);
+				persistState();
+				if (writeAheadLog == null)
+					return;
+				writeAheadLog.rotate(size.get());
+				if (blobStore != null)
+					blobStore.sealFreedBlobs();
+			} finally {
+				writeLock.unlock();
+			}
+			// the writes logged in the new segment may reach the files
+			// meanwhile : they are replayed again after a crash
+			if (blobStore != null)
+				blobStore.sync();
+			if (getPairFileDriver() != getIndexFileDriver())
+				checkpointer.flush(getPairFileDriver());
+			checkpointer.flush(getIndexFileDriver());
+			writeAheadLog.dropPrevious();
+			if (blobStore != null)
+				blobStore.releaseSealedBlobs();
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
 
-				if (index == null)
-					return null;
+	/**
+	 * Returns the failure of the last background checkpoint, null if it
+	 * succeeded or if they are disabled.
+	 * 
+	 * @return
+	 */
+	public Exception getBackgroundCheckpointFailure() {
+		return checkpointer == null ? null : checkpointer.getLastFailure();
+	}
+
+	private void persistState() throws IOException {
+		persistSize();
+		getPairDriver().getPairFactory().checkpoint();
+		if (blobStore != null)
+			blobStore.checkpoint();
+	}
+
+	public void close() throws IOException {
+		// releases the blobs retained by the snapshots
+		revokeOngoingIterators();
+		if (checkpointer != null)
+			checkpointer.close();
+		checkpoint();
+		if (writeAheadLog != null)
+			writeAheadLog.close();
+		getIndexFileDriver().setLong(POSITION_PMAP_SIGNATURE, PMAP_SIGNATURE);
+		if (writeAheadLog != null)
+			getIndexFileDriver().sync();
+		getIndexFileDriver().close();
+		getPairFileDriver().close();
+		if (blobStore != null)
+			blobStore.close();
+
+	}
+
+	/**
+	 * Invokes {@link #init()} method. All underlying files used for the storage
+	 * are truncated and reinitialized. All data are deleted.
+	 */
+	@Override
+	public void clear() {
+		final Lock writeLock = readWriteLock.writeLock();
+		writeLock.lock();
+		try {
+			modificationCount.incrementAndGet();
+			if (writeAheadLog != null)
+				writeAheadLog.logClear();
+			// the snapshots would keep the whole files
+			revokeOngoingIterators();
+			initFile(getIndexFileDriver());
+			getIndexFileDriver().setLong(POSITION_PMAP_SIGNATURE, PMAP_OPEN_SIGNATURE);
+			if (getIndexFileDriver() != getPairFileDriver())
+				getPairFileDriver().setLength(0);
+			serializer.clearDictionaries();
+			getPairDriver().clearFreePairPositions();
+			if (blobStore != null)
+				blobStore.clear();
+		} catch (IOException e) {
+			throw new PMapException("Unable to clear the persisted file", e);
+		} finally {
+			writeLock.unlock();
+		}
+		commitLog();
+	}
+
+	/**
+	 * Appends the put to the {@link WriteAheadLog}, if enabled. Must be called
+	 * under the write lock of the stripe of the key, before the files are
+	 * written : the records of a key are in the order of its writes, and the
+	 * size is never changed by a write which is not logged.
+	 * 
+	 * @param sizeDelta
+	 *            1 if key is absent, 0 otherwise
+	 */
+	private void logPut(K key, V value, int sizeDelta) throws IOException {
+		if (writeAheadLog != null)
+			writeAheadLog.logPut(key, value, sizeDelta);
+	}
 
-				Enumeration<Pair<K, V>> pairEnum = index.getPairEnumeration(hashCode);
+	/**
+	 * Appends the removal of a key which is present. See
+	 * {@link #logPut(Object, Object, int)}.
+	 */
+	private void logRemove(Object key) throws IOException {
+		if (writeAheadLog != null)
+			writeAheadLog.logRemove(key);
+	}
+
+	/**
+	 * Publishes the changes of the tree with shadow paging, see
+	 * {@link PMapOptions#setShadowPaging(boolean)} : the pair files are forced
+	 * first, the index then. The space of the pairs unlinked meanwhile is
+	 * then released. Must be called under the write lock, also when the write
+	 * failed : what was written is kept, as without shadow paging.
+	 */
+	private void commitIndex() throws IOException {
+		if (!getNodeDriver().isUncommitted())
+			return;
+		syncPairFiles();
+		getNodeDriver().commit();
+		getPairDriver().releaseFreePairPositions();
+	}
 
-				while (pairEnum.hasMoreElements()) {
-					Pair<K, V> pair = pairEnum.nextElement();
+	private void syncPairFiles() throws IOException {
+		if (blobStore != null)
+			blobStore.sync();
+		if (getPairFileDriver() != getIndexFileDriver())
+			getPairFileDriver().sync();
+	}
+
+	/**
+	 * Waits for the logged writes to be forced, as required by the
+	 * {@link WriteAheadLog.SyncMode}. Called once the locks are released.
+	 */
+	private void commitLog() {
+		if (writeAheadLog == null)
+			return;
+		try {
+			writeAheadLog.commit();
+		} catch (IOException e) {
+			throw new PMapException("Unable to force the write ahead log", e);
+		}
+	}
+
+	/**
+	 * <p>
+	 * The tree is first read optimistically, without any lock : the lookup is
+	 * validated against the stamp of the structure lock. Then the chain of the
+	 * key hash is read under the read lock of its stripe. If the structure
+	 * has changed meanwhile, the get is done again under the locks.
+	 * </p>
+	 * Writes on other stripes do not delay gets.
+	 */
+	@Override
+	public V get(Object key) {
+
+		final int hashCode = key.hashCode();
+
+		final long stamp = structureLock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				final long indexPosition = getNodeDriver().findEntryPosition(hashCode, structureLock, stamp);
+				if (indexPosition == EOF_POSITION) {
+					if (structureLock.validate(stamp))
+						return null;
+				} else {
+					final Lock stripeLock = getStripeLock(hashCode).readLock();
+					stripeLock.lockInterruptibly();
 					try {
-						if (pair.getKey().equals(key))
-							return pair.getValue();
-					} catch (IOException | ClassNotFoundException e) {
-						throw new PMapException("Unable to read data.", e);
+						// read again : the writers of the stripe are now
+						// excluded
+						final long pairPointer = getNodeDriver().readNextPairPointer(indexPosition, hashCode);
+						if (structureLock.validate(stamp)) {
+							final V value = findValue(pairPointer, key);
+							if (structureLock.validate(stamp))
+								return value;
+						}
+					} finally {
+						stripeLock.unlock();
 					}
 				}
+			} catch (IOException | ClassNotFoundException | RuntimeException e) {
+				if (structureLock.validate(stamp))
+					throw e instanceof RuntimeException ? (RuntimeException) e : new PMapException("Unable to read data.", e);
+				// the files have changed under the read : done again under
+				// the locks
+			} catch (InterruptedException ie) {
+				throw new PMapException("Reading data interrupted", ie);
+			}
+		}
+		return getLocked(key, hashCode);
+	}
+
+	/**
+	 * Returns the value of key in the chain starting at pairPointer.
+	 */
+	private V findValue(long pairPointer, Object key) throws IOException, ClassNotFoundException {
+		while (pairPointer != EOF_POSITION) {
+			final Pair<K, V> pair = getPairDriver().getPairFactory().newPairForReading(this, pairPointer);
+			if (pair.getKey().equals(key))
+				return pair.getValue();
+			pairPointer = pair.getNextPairPointer();
+		}
+		return null;
+	}
+
+	private V getLocked(Object key, int hashCode) {
+		final Lock readLock = readWriteLock.readLock();
+		try {
+			readLock.lockInterruptibly();
+			final Lock stripeLock = getStripeLock(hashCode).readLock();
+			try {
+				stripeLock.lockInterruptibly();
+				try {
+					BTreeNode<K, V> index = getNodeDriver().goToIndex(hashCode);
+
+					if (index == null)
+						return null;
+
+					Enumeration<Pair<K, V>> pairEnum = index.getPairEnumeration(hashCode);
+
+					while (pairEnum.hasMoreElements()) {
+						Pair<K, V> pair = pairEnum.nextElement();
+						try {
+							if (pair.getKey().equals(key))
+								return pair.getValue();
+						} catch (IOException | ClassNotFoundException e) {
+							throw new PMapException("Unable to read data.", e);
+						}
+					}
+				} finally {
+					stripeLock.unlock();
+				}
 			} finally {
 				readLock.unlock();
 			}
@@ -431,9 +1232,55 @@ public class PMap<K, V> implements Map<K, V> {
 		return null;
 	}
 
+	/**
+	 * <p>
+	 * Looks key up and returns a handle on its value, or null if key is not in
+	 * this map. Only the keys of the pairs are decoded : the value is decoded
+	 * by {@link ValueHandle#getValue()}, when it is asked for.
+	 * </p>
+	 * The handle is valid until the next write on this map.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public ValueHandle<K, V> getHandle(Object key) {
+		final int hashCode = key.hashCode();
+		final Lock readLock = readWriteLock.readLock();
+		try {
+			readLock.lockInterruptibly();
+			final Lock stripeLock = getStripeLock(hashCode).readLock();
+			try {
+				stripeLock.lockInterruptibly();
+				try {
+					BTreeNode<K, V> index = getNodeDriver().goToIndex(hashCode);
+					if (index == null)
+						return null;
+
+					final PairFactory pairFactory = getPairDriver().getPairFactory();
+					long pairPointer = index.getNextPairPointer(hashCode);
+					while (pairPointer != EOF_POSITION) {
+						final Pair<K, V> pair = pairFactory.newPairForKeyReading(this, pairPointer);
+						if (pair.getKey().equals(key))
+							return new ValueHandle<>(this, pair.getKey(), pairPointer, pair.getDataLength(), modificationCount.get());
+						pairPointer = pair.getNextPairPointer();
+					}
+				} finally {
+					stripeLock.unlock();
+				}
+			} finally {
+				readLock.unlock();
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			throw new PMapException("Unable to read data.", e);
+		} catch (InterruptedException ie) {
+			throw new PMapException("Reading data interrupted", ie);
+		}
+		return null;
+	}
+
 	@Override
 	public boolean isEmpty() {
-		return size == 0;
+		return size.get() == 0;
 	}
 
 	/**
@@ -441,109 +1288,632 @@ public class PMap<K, V> implements Map<K, V> {
 	 */
 	@Override
 	public V put(K key, V value) {
+		final V previous = putLocked(key, value);
+		commitLog();
+		return previous;
+	}
+
+	private V putLocked(K key, V value) {
 		int hashCode = key.hashCode();
 		try {
 
+			final Lock readLock = readWriteLock.readLock();
+			readLock.lockInterruptibly();
+			try {
+				final Lock stripeLock = getStripeLock(hashCode).writeLock();
+				stripeLock.lockInterruptibly();
+				try {
+					// read again under the stripe lock : the node of a known
+					// hash does not move while the structure is read locked
+					BTreeNode<K, V> current = getNodeDriver().goToIndex(hashCode);
+					if (current != null)
+						return putPair(current, hashCode, key, value);
+				} finally {
+					stripeLock.unlock();
+				}
+			} finally {
+				readLock.unlock();
+			}
+
+			// a new hash changes the tree
 			Lock writeLock = readWriteLock.writeLock();
 			writeLock.lockInterruptibly();
+			// optimistic gets only hold the stripe lock while they read the
+			// chain
+			final Lock stripeLock = getStripeLock(hashCode).writeLock();
+			stripeLock.lock();
 			try {
-				// look for the tree path :
-				LinkedList<Long> treePathPositions = getNodeDriver().findEntryPositions(hashCode);
+				return putPair(goToOrRegisterIndex(hashCode), hashCode, key, value);
+			} finally {
+				try {
+					commitIndex();
+				} finally {
+					stripeLock.unlock();
+					writeLock.unlock();
+				}
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			throw new PMapException("Unable to write data", e);
+		} catch (InterruptedException ie) {
+			throw new PMapException("Write interrupted", ie);
+		}
 
-				BTreeNode<K, V> current = null;
-				long lastNodePosition = treePathPositions.pollLast();
-				if (lastNodePosition == EOF_POSITION) {
+	}
+
+	/**
+	 * Must be called under the write lock of the stripe of hashCode or the
+	 * write lock of the structure.
+	 */
+	private V putPair(BTreeNode<K, V> current, int hashCode, K key, V value) throws IOException, ClassNotFoundException {
+		modificationCount.incrementAndGet();
+		final PairLookup<K, V> lookup = getPairDriver().findPair(current, hashCode, key);
+		logPut(key, value, lookup.targetPair == null ? 1 : 0);
+		Pair<K, V> oldPair = getPairDriver().setPair(current, hashCode, lookup, key, value);
 
-					// new entry must be registered
-					current = getNodeDriver().registerNewEntry(treePathPositions, hashCode, EOF_POSITION, null, null);
+		if (oldPair != null)
+			return oldPair.getValue();
 
-				} else {
-					// entry exits ... we insert the value!
-					current = new BTreeNode<>(this, lastNodePosition);
-				}
+		// we increment the size by one :
+		addToSize(1);
+		return null;
+	}
+
+	/**
+	 * Returns the node of hashCode, registered first if needed. Must be called
+	 * under the write lock.
+	 * 
+	 * @param hashCode
+	 * @return
+	 * @throws IOException
+	 */
+	private BTreeNode<K, V> goToOrRegisterIndex(int hashCode) throws IOException {
+		// look for the tree path :
+		LinkedList<Long> treePathPositions = getNodeDriver().findEntryPositions(hashCode);
+
+		long lastNodePosition = treePathPositions.pollLast();
+		if (lastNodePosition == EOF_POSITION) {
+			// new entry must be registered
+			return getNodeDriver().registerNewEntry(treePathPositions, hashCode, EOF_POSITION, null, null);
+		}
+		// entry exits ... we insert the value!
+		return new BTreeNode<>(this, lastNodePosition);
+	}
 
-				// look for the pair value :
-				// TODO Synchronize the access on the pairFileDriver lock !!!
-				Pair<K, V> oldPair = getPairDriver().addPair(current, hashCode, key, value);
+	/**
+	 * <p>
+	 * Puts the length bytes of in as a byte array value, copied by chunks to
+	 * the blob store : the value is never held in memory. Needs the blob store,
+	 * see {@link PMapOptions#setBlobThreshold(int)}.
+	 * </p>
+	 * <p>
+	 * The value is not copied in the {@link WriteAheadLog} : its blob is forced,
+	 * and the logged record refers to it.
+	 * </p>
+	 * The stream is not closed.
+	 * 
+	 * @param key
+	 * @param in
+	 * @param length
+	 * @throws PMapException
+	 *             if the blob store is disabled
+	 */
+	public void putStream(K key, InputStream in, long length) {
+		if (blobStore == null)
+			throw new PMapException("Streamed values need the blob store");
+		putStreamLocked(key, in, length);
+		commitLog();
+	}
 
-				if (oldPair != null)
-					return oldPair.getValue();
-				else {
-					// we increment the size by one :
-					setSize(size() + 1);
+	private void putStreamLocked(K key, InputStream in, long length) {
+		try {
+			final int hashCode = key.hashCode();
+			final Lock readLock = readWriteLock.readLock();
+			readLock.lockInterruptibly();
+			try {
+				final Lock stripeLock = getStripeLock(hashCode).writeLock();
+				stripeLock.lockInterruptibly();
+				try {
+					BTreeNode<K, V> current = getNodeDriver().goToIndex(hashCode);
+					if (current != null) {
+						putStreamPair(current, hashCode, key, in, length);
+						return;
+					}
+				} finally {
+					stripeLock.unlock();
 				}
-				revokeOngoingIterators();
 			} finally {
-				writeLock.unlock();
+				readLock.unlock();
+			}
+
+			Lock writeLock = readWriteLock.writeLock();
+			writeLock.lockInterruptibly();
+			final Lock stripeLock = getStripeLock(hashCode).writeLock();
+			stripeLock.lock();
+			try {
+				putStreamPair(goToOrRegisterIndex(hashCode), hashCode, key, in, length);
+			} finally {
+				try {
+					commitIndex();
+				} finally {
+					stripeLock.unlock();
+					writeLock.unlock();
+				}
 			}
 		} catch (IOException | ClassNotFoundException e) {
 			throw new PMapException("Unable to write data", e);
 		} catch (InterruptedException ie) {
 			throw new PMapException("Write interrupted", ie);
 		}
-		return null;
+	}
 
+	/**
+	 * See {@link #putPair(BTreeNode, int, Object, Object)}.
+	 */
+	private void putStreamPair(BTreeNode<K, V> current, int hashCode, K key, InputStream in, long length) throws IOException, ClassNotFoundException {
+		modificationCount.incrementAndGet();
+		final PairLookup<K, V> lookup = getPairDriver().findPair(current, hashCode, key);
+		// logged once the stream is written : a failed stream leaves the old
+		// value
+		final BlobPair<K, V> newPair = getPairDriver().prepareStreamPair(key, in, length);
+		if (writeAheadLog != null) {
+			blobStore.sync();
+			writeAheadLog.logBlobPut(key, newPair.getBlobReference().getBlobPointer(), lookup.targetPair == null ? 1 : 0);
+		}
+		if (getPairDriver().setPreparedPair(current, hashCode, lookup, newPair) == null)
+			addToSize(1);
 	}
 
+	/**
+	 * <p>
+	 * Opens the content of the byte array value of key. Values of the blob
+	 * store are streamed from the file, the others are read in memory. Other
+	 * values are rejected : their stored form is not meant to be read as it
+	 * is.
+	 * </p>
+	 * <p>
+	 * A value streamed from the blob store must be read before it is replaced
+	 * or removed.
+	 * </p>
+	 * 
+	 * @param key
+	 * @return the stream or null if key is not in this map
+	 * @throws PMapException
+	 *             if the value is not a byte array
+	 */
+	public InputStream openValue(Object key) {
+		final int hashCode = key.hashCode();
+		final Lock readLock = readWriteLock.readLock();
+		try {
+			readLock.lockInterruptibly();
+			final Lock stripeLock = getStripeLock(hashCode).readLock();
+			try {
+				stripeLock.lockInterruptibly();
+				try {
+					BTreeNode<K, V> index = getNodeDriver().goToIndex(hashCode);
+					if (index == null)
+						return null;
+
+					Enumeration<Pair<K, V>> pairEnum = index.getPairEnumeration(hashCode);
+					while (pairEnum.hasMoreElements()) {
+						Pair<K, V> pair = pairEnum.nextElement();
+						if (!pair.getKey().equals(key))
+							continue;
+						if (pair instanceof BlobPair && ((BlobPair<K, V>) pair).getBlobReference().isRaw())
+							return ((BlobPair<K, V>) pair).openValue();
+						final V value = pair.getValue();
+						if (!(value instanceof byte[]))
+							throw new PMapException("The value of " + key + " is not a byte array");
+						return new ByteArrayInputStream((byte[]) value);
+					}
+				} finally {
+					stripeLock.unlock();
+				}
+			} finally {
+				readLock.unlock();
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			throw new PMapException("Unable to read data.", e);
+		} catch (InterruptedException ie) {
+			throw new PMapException("Reading data interrupted", ie);
+		}
+		return null;
+	}
+
+	/**
+	 * <p>
+	 * Sorts the entries by key hash and serializes their pairs out of the
+	 * lock, in parallel for large maps : the sorted entries are split in
+	 * disjoint hash ranges, serialized by the common fork join pool.
+	 * </p>
+	 * The pairs are then written like a {@link WriteBatch}, under one
+	 * acquisition of the write lock, in hash order : the nodes of neighbour
+	 * hashes are written one after the other, and the new pairs appended
+	 * in the same order.
+	 */
 	@Override
 	public void putAll(Map<? extends K, ? extends V> map) {
+		if (map.isEmpty())
+			return;
+		final List<WriteBatch.Mutation<K, V>> mutations = new ArrayList<>(map.size());
 		for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
-			put(entry.getKey(), entry.getValue());
+			mutations.add(new WriteBatch.Mutation<>(entry.getKey(), entry.getValue(), false, null));
 		}
+		mutations.sort(WriteBatch.HASH_ORDER);
 
+		final Stream<WriteBatch.Mutation<K, V>> stream = mutations.size() < PARALLEL_PUT_ALL_THRESHOLD ? mutations.stream()
+				: mutations.parallelStream();
+		stream.forEach(mutation -> {
+			try {
+				mutation.pair = getPairDriver().preparePair(mutation.key, mutation.value);
+			} catch (IOException e) {
+				throw new PMapException("Unable to serialize data", e);
+			}
+		});
+		applyBatch(mutations);
 	}
 
 	/**
 	 * Done : implement index cleanup if no values are present ... Index node is
 	 * removed if empty. <b> But this leaves the index unbalanced !</b> Must be
 	 * synchronized
+	 * 
+	 * As the node of the key hash is removed with its last pair, removals take
+	 * the write lock of the structure.
 	 */
 	@Override
 	public V remove(Object key) {
+		final V previous = removeLocked(key);
+		commitLog();
+		return previous;
+	}
+
+	private V removeLocked(Object key) {
 		final int hashCode = key.hashCode();
 		try {
 
 			final Lock writeLock = readWriteLock.writeLock();
 			writeLock.lockInterruptibly();
+			// optimistic gets only hold the stripe lock while they read the
+			// chain
+			final Lock stripeLock = getStripeLock(hashCode).writeLock();
+			stripeLock.lock();
 			try {
-				LinkedList<Long> treePathPositions = getNodeDriver().findEntryPositions(hashCode);
-				final long indexPosition = treePathPositions.getLast();
-
-				if (indexPosition == EOF_POSITION) {
-					// no entry found
+				modificationCount.incrementAndGet();
+				final Pair<K, V> oldPair = removePair(hashCode, key);
+				if (oldPair == null)
 					return null;
+
+				addToSize(-1);
+				return oldPair.getValue();
+
+			} finally {
+				try {
+					commitIndex();
+				} finally {
+					stripeLock.unlock();
+					writeLock.unlock();
 				}
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			throw new PMapException("Unable to remove data.", e);
+		} catch (InterruptedException ie) {
+			throw new PMapException("Remove interrupted", ie);
+		}
 
-				BTreeNode<K, V> current = new BTreeNode<K, V>(this, indexPosition);
+	}
 
-				PairTuple<K, V> oldPairTuple = pairDriver.removePair(current, hashCode, key);
+	/**
+	 * Logs and unlinks the pair of key, and its node once pair less. Must be
+	 * called under the write lock.
+	 * 
+	 * @return the removed pair or null
+	 */
+	private Pair<K, V> removePair(int hashCode, Object key) throws IOException, ClassNotFoundException {
+		LinkedList<Long> treePathPositions = getNodeDriver().findEntryPositions(hashCode);
+		final long indexPosition = treePathPositions.getLast();
 
-				if (oldPairTuple == null)
-					return null;
-				if (oldPairTuple.pairLessNode) {
-					// hash entry doesn't reference any values anymore. --> it
-					// should be removed
-					getNodeDriver().removeHashEntry(treePathPositions, hashCode);
+		if (indexPosition == EOF_POSITION) {
+			// no entry found
+			return null;
+		}
+
+		BTreeNode<K, V> current = new BTreeNode<K, V>(this, indexPosition);
+
+		final PairLookup<K, V> lookup = pairDriver.findPair(current, hashCode, key);
+		if (lookup.targetPair == null)
+			return null;
+		logRemove(key);
+		PairTuple<K, V> oldPairTuple = pairDriver.unlinkPair(current, hashCode, lookup);
+
+		if (oldPairTuple.pairLessNode) {
+			// hash entry doesn't reference any values anymore. --> it
+			// should be removed
+			getNodeDriver().removeHashEntry(treePathPositions, hashCode);
+		}
+		return oldPairTuple.pair;
+	}
+
+	/**
+	 * Atomic : see {@link #update(Object, UnaryOperator, boolean)}.
+	 */
+	@Override
+	public V putIfAbsent(K key, V value) {
+		return update(key, oldValue -> oldValue != null ? oldValue : value, true);
+	}
+
+	/**
+	 * Atomic : see {@link #update(Object, UnaryOperator, boolean)}.
+	 */
+	@Override
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		return update(key, oldValue -> remappingFunction.apply(key, oldValue), false);
+	}
+
+	/**
+	 * Atomic : see {@link #update(Object, UnaryOperator, boolean)}.
+	 */
+	@Override
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+		return update(key, oldValue -> oldValue != null ? oldValue : mappingFunction.apply(key), false);
+	}
+
+	/**
+	 * Atomic : see {@link #update(Object, UnaryOperator, boolean)}.
+	 */
+	@Override
+	public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		return update(key, oldValue -> oldValue == null ? null : remappingFunction.apply(key, oldValue), false);
+	}
+
+	/**
+	 * Atomic : see {@link #update(Object, UnaryOperator, boolean)}.
+	 */
+	@Override
+	public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+		if (value == null)
+			throw new NullPointerException();
+		return update(key, oldValue -> oldValue == null ? value : remappingFunction.apply(oldValue, value), false);
+	}
+
+	/**
+	 * <p>
+	 * Replaces the value of key by the one returned by updateFunction given
+	 * the current value, null if absent. A null result removes key. When the
+	 * current value itself is returned, nothing is written.
+	 * </p>
+	 * <p>
+	 * When the node of the key hash exists, done as a put under the read lock
+	 * and the write lock of the stripe : the chain of the key hash is walked
+	 * once and the pair written once. No other write of the key can come in
+	 * between the read and the write. A new node, or the removal of the last
+	 * pair of a node, changes the tree : the write lock is then taken, and the
+	 * result is kept if nothing was written meanwhile. Otherwise the function
+	 * is applied again, under the write lock.
+	 * </p>
+	 * The function runs under the locks : it must not use this map. Taking a
+	 * lock of this map from the function throws an
+	 * {@link IllegalStateException} instead of waiting for itself.
+	 * 
+	 * @param key
+	 * @param updateFunction
+	 * @param returnPrevious
+	 * @return the previous value if returnPrevious, the new value otherwise
+	 */
+	private V update(K key, UnaryOperator<V> updateFunction, boolean returnPrevious) {
+		final V result = updateLocked(key, updateFunction, returnPrevious);
+		commitLog();
+		return result;
+	}
+
+	private V updateLocked(K key, UnaryOperator<V> updateFunction, boolean returnPrevious) {
+		final int hashCode = key.hashCode();
+		try {
+
+			V newValue;
+			final int readModificationCount;
+			final Lock readLock = readWriteLock.readLock();
+			readLock.lockInterruptibly();
+			try {
+				final Lock stripeLock = getStripeLock(hashCode).writeLock();
+				stripeLock.lockInterruptibly();
+				try {
+					final BTreeNode<K, V> current = getNodeDriver().goToIndex(hashCode);
+					PairLookup<K, V> lookup = new PairLookup<>(null, null);
+					V oldValue = null;
+					if (current != null) {
+						lookup = getPairDriver().findPair(current, hashCode, key);
+						// decoded before its space is reused
+						if (lookup.targetPair != null)
+							oldValue = lookup.targetPair.getValue();
+					}
+
+					newValue = reentryGuard.apply(updateFunction, oldValue);
+					if (newValue == oldValue)
+						return returnPrevious ? oldValue : newValue;
+					// the node of the key hash is left in the tree
+					if (current != null && (newValue != null || !isLastPair(lookup))) {
+						modificationCount.incrementAndGet();
+						if (newValue == null) {
+							logRemove(key);
+							getPairDriver().unlinkPair(current, hashCode, lookup);
+							addToSize(-1);
+						} else {
+							logPut(key, newValue, lookup.targetPair == null ? 1 : 0);
+							if (getPairDriver().setPair(current, hashCode, lookup, key, newValue) == null)
+								addToSize(1);
+						}
+						return returnPrevious ? oldValue : newValue;
+					}
+					readModificationCount = modificationCount.get();
+				} finally {
+					stripeLock.unlock();
+				}
+			} finally {
+				readLock.unlock();
+			}
+
+			// the tree changes
+			final Lock writeLock = readWriteLock.writeLock();
+			writeLock.lockInterruptibly();
+			// optimistic gets only hold the stripe lock while they read the
+			// chain
+			final Lock stripeLock = getStripeLock(hashCode).writeLock();
+			stripeLock.lock();
+			try {
+				final LinkedList<Long> treePathPositions = getNodeDriver().findEntryPositions(hashCode);
+				final long indexPosition = treePathPositions.pollLast();
+
+				BTreeNode<K, V> current = null;
+				PairLookup<K, V> lookup = new PairLookup<>(null, null);
+				V oldValue = null;
+				if (indexPosition != EOF_POSITION) {
+					current = new BTreeNode<>(this, indexPosition);
+					lookup = getPairDriver().findPair(current, hashCode, key);
+					// decoded before its space is reused
+					if (lookup.targetPair != null)
+						oldValue = lookup.targetPair.getValue();
 				}
 
-				setSize(size() - 1);
-				revokeOngoingIterators();
-				return oldPairTuple.pair.getValue();
+				// written meanwhile : the value read may have changed
+				if (modificationCount.get() != readModificationCount)
+					newValue = reentryGuard.apply(updateFunction, oldValue);
+				if (newValue != oldValue) {
+					modificationCount.incrementAndGet();
+					if (newValue == null) {
+						logRemove(key);
+						final PairTuple<K, V> oldPairTuple = getPairDriver().unlinkPair(current, hashCode, lookup);
+						if (oldPairTuple.pairLessNode) {
+							treePathPositions.add(indexPosition);
+							getNodeDriver().removeHashEntry(treePathPositions, hashCode);
+						}
+						addToSize(-1);
+					} else {
+						logPut(key, newValue, lookup.targetPair == null ? 1 : 0);
+						if (current == null)
+							current = getNodeDriver().registerNewEntry(treePathPositions, hashCode, EOF_POSITION, null, null);
+						if (getPairDriver().setPair(current, hashCode, lookup, key, newValue) == null)
+							addToSize(1);
+					}
+				}
+				return returnPrevious ? oldValue : newValue;
 
 			} finally {
-				writeLock.unlock();
+				try {
+					commitIndex();
+				} finally {
+					stripeLock.unlock();
+					writeLock.unlock();
+				}
 			}
 		} catch (IOException | ClassNotFoundException e) {
-			throw new PMapException("Unable to remove data.", e);
+			throw new PMapException("Unable to write data", e);
 		} catch (InterruptedException ie) {
-			throw new PMapException("Remove interrupted", ie);
+			throw new PMapException("Write interrupted", ie);
 		}
+	}
+
+	/**
+	 * Returns true if the pair found is the only one of its key hash : its
+	 * removal removes the node of the key hash.
+	 */
+	private static boolean isLastPair(PairLookup<?, ?> lookup) {
+		return lookup.targetPair != null && lookup.previousPair == null && lookup.targetPair.getNextPairPointer() == EOF_POSITION;
+	}
 
+	/**
+	 * Returns a new batch of puts and removes, applied at once by
+	 * {@link WriteBatch#apply()}.
+	 * 
+	 * @return
+	 */
+	public WriteBatch<K, V> writeBatch() {
+		return new WriteBatch<>(this);
+	}
+
+	/**
+	 * Applies mutations sorted by key hash, under one acquisition of the write
+	 * lock. The node of a key hash is looked up once for its puts, and the
+	 * size is written once. The futures of the mutations are not completed
+	 * here : their callbacks must not run under the lock.
+	 */
+	void applyBatch(List<WriteBatch.Mutation<K, V>> mutations) {
+		try {
+			final Lock writeLock = readWriteLock.writeLock();
+			writeLock.lockInterruptibly();
+			int sizeDelta = 0;
+			try {
+				modificationCount.incrementAndGet();
+				int i = 0;
+				while (i < mutations.size()) {
+					final int hashCode = mutations.get(i).hashCode;
+					final Lock stripeLock = getStripeLock(hashCode).writeLock();
+					stripeLock.lock();
+					try {
+						BTreeNode<K, V> current = null;
+						for (; i < mutations.size() && mutations.get(i).hashCode == hashCode; i++) {
+							final WriteBatch.Mutation<K, V> mutation = mutations.get(i);
+							final Pair<K, V> oldPair;
+							if (mutation.remove) {
+								oldPair = removePair(hashCode, mutation.key);
+								if (oldPair != null)
+									sizeDelta--;
+								// the node may have been removed with its
+								// last pair
+								current = null;
+							} else {
+								if (current == null)
+									current = goToOrRegisterIndex(hashCode);
+								final PairLookup<K, V> lookup = getPairDriver().findPair(current, hashCode, mutation.key);
+								logPut(mutation.key, mutation.value, lookup.targetPair == null ? 1 : 0);
+								if (mutation.pair != null)
+									oldPair = getPairDriver().setPreparedPair(current, hashCode, lookup, mutation.pair);
+								else
+									oldPair = getPairDriver().setPair(current, hashCode, lookup, mutation.key, mutation.value);
+								if (oldPair == null)
+									sizeDelta++;
+							}
+							// decoded before its space is reused
+							if (oldPair != null && mutation.future != null)
+								mutation.previous = oldPair.getValue();
+						}
+					} finally {
+						stripeLock.unlock();
+					}
+				}
+			} finally {
+				try {
+					if (sizeDelta != 0)
+						addToSize(sizeDelta);
+					commitIndex();
+				} finally {
+					writeLock.unlock();
+				}
+			}
+			// one force for the whole batch
+			commitLog();
+		} catch (IOException | ClassNotFoundException e) {
+			throw new PMapException("Unable to write data", e);
+		} catch (InterruptedException ie) {
+			throw new PMapException("Write interrupted", ie);
+		}
 	}
 
+	/**
+	 * Returns the number of pairs, or {@link Integer#MAX_VALUE} if there are
+	 * more. See {@link #mappingCount()}.
+	 */
 	@Override
 	public int size() {
-		return size;
+		return (int) Math.min(size.get(), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the number of pairs, not bounded by the int range.
+	 * 
+	 * @return
+	 */
+	public long mappingCount() {
+		return size.get();
 	}
 
 	@Override
@@ -577,8 +1947,7 @@ public class PMap<K, V> implements Map<K, V> {
 	 */
 	@Override
 	public boolean containsValue(Object value) {
-		try {
-			PairIterator<K, V> pairIterator = new PairIterator<>(this);
+		try (PairIterator<K, V> pairIterator = new PairIterator<>(this)) {
 			while (pairIterator.hasNext()) {
 				Pair<K, V> pair = pairIterator.next();
 				if (pair.getValue().equals(value))
@@ -592,10 +1961,11 @@ public class PMap<K, V> implements Map<K, V> {
 	}
 
 	public long fileSize() throws IOException {
+		final long blobSize = blobStore == null ? 0 : blobStore.length();
 		if (indexFileDriver == pairFileDriver)
-			return indexFileDriver.length();
+			return indexFileDriver.length() + blobSize;
 		else
-			return indexFileDriver.length() + pairFileDriver.length();
+			return indexFileDriver.length() + pairFileDriver.length() + blobSize;
 	}
 
 }
@@ -0,0 +1,249 @@
+package com.pmaps.pmap;
+
+import java.nio.MappedByteBuffer;
+
+import com.pmaps.pmap.pair.InlinePair;
+import com.pmaps.pmap.serializer.ISerializer;
+import com.pmaps.pmap.serializer.JavaSerializer;
+
+/**
+ * <p>
+ * Options of a {@link PMap} stored in an index file and one or more data
+ * files. See {@link PMap#PMap(String, java.io.File, PMapOptions)}.
+ * </p>
+ * <p>
+ * Setters return this instance so that they can be chained.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+public class PMapOptions {
+
+	private ISerializer serializer = new JavaSerializer();
+	private boolean cacheIndex = true;
+	private boolean appendData = true;
+	private int maxDataFileSize;
+	private int maxNumberOfDataFile;
+	private int inlineThreshold;
+	private int blobThreshold;
+	private WriteAheadLog.SyncMode walSyncMode;
+	private int walSyncPeriod;
+	private int checkpointPeriod;
+	private long checkpointMaxBytesPerSecond;
+	private boolean shadowPaging;
+	private boolean checksums;
+
+	public ISerializer getSerializer() {
+		return serializer;
+	}
+
+	/**
+	 * Conversion between keys and values and byte arrays.
+	 * {@link JavaSerializer} by default.
+	 *
+	 * @param serializer
+	 * @return
+	 */
+	public PMapOptions setSerializer(ISerializer serializer) {
+		this.serializer = serializer;
+		return this;
+	}
+
+	public boolean isCacheIndex() {
+		return cacheIndex;
+	}
+
+	/**
+	 * When true, the index file is accessed through {@link MappedByteBuffer}s.
+	 * True by default.
+	 *
+	 * @param cacheIndex
+	 * @return
+	 */
+	public PMapOptions setCacheIndex(boolean cacheIndex) {
+		this.cacheIndex = cacheIndex;
+		return this;
+	}
+
+	public boolean isAppendData() {
+		return appendData;
+	}
+
+	/**
+	 * When true, pairs are only appended to the data file. Otherwise the space
+	 * of the removed pairs is reused. True by default.
+	 *
+	 * @param appendData
+	 * @return
+	 */
+	public PMapOptions setAppendData(boolean appendData) {
+		this.appendData = appendData;
+		return this;
+	}
+
+	public int getMaxDataFileSize() {
+		return maxDataFileSize;
+	}
+
+	public int getMaxNumberOfDataFile() {
+		return maxNumberOfDataFile;
+	}
+
+	/**
+	 * Splits the data in up to maxNumberOfDataFile files of maxDataFileSize
+	 * bytes. By default, data is stored in a single file.
+	 *
+	 * @param maxDataFileSize
+	 * @param maxNumberOfDataFile
+	 * @return
+	 */
+	public PMapOptions setDataFiles(int maxDataFileSize, int maxNumberOfDataFile) {
+		this.maxDataFileSize = maxDataFileSize;
+		this.maxNumberOfDataFile = maxNumberOfDataFile;
+		return this;
+	}
+
+	public int getInlineThreshold() {
+		return inlineThreshold;
+	}
+
+	/**
+	 * <p>
+	 * Pairs of boxed primitives and short strings encoded in at most
+	 * inlineThreshold bytes (16 is enough for an Integer key and a Long value)
+	 * are stored in the index file : reading them does not access the data
+	 * file. 0, the default, disables it. At most
+	 * {@link InlinePair#MAX_DATA_LENGTH}.
+	 * </p>
+	 * <p>
+	 * It only saves the access to the data file : the pair is not stored in
+	 * its node but in a slot of the size of a node, taken from the free nodes.
+	 * A read still costs the node and then the slot, and each inline pair
+	 * takes the room of a node in the index file. The number of reads only
+	 * drops when the index is cached, see {@link #setCacheIndex(boolean)}.
+	 * </p>
+	 *
+	 * @param inlineThreshold
+	 * @return
+	 */
+	public PMapOptions setInlineThreshold(int inlineThreshold) {
+		if (inlineThreshold < 0 || inlineThreshold > InlinePair.MAX_DATA_LENGTH)
+			throw new IllegalArgumentException("Inline threshold must be in [0," + InlinePair.MAX_DATA_LENGTH + "]");
+		this.inlineThreshold = inlineThreshold;
+		return this;
+	}
+
+	public int getBlobThreshold() {
+		return blobThreshold;
+	}
+
+	/**
+	 * Values of the pairs bigger than blobThreshold bytes are stored in the
+	 * file mapName.blob and streamed from there : the pair only keeps a
+	 * reference. 0, the default, disables it.
+	 *
+	 * @param blobThreshold
+	 * @return
+	 */
+	public PMapOptions setBlobThreshold(int blobThreshold) {
+		if (blobThreshold < 0)
+			throw new IllegalArgumentException("Blob threshold must be positive");
+		this.blobThreshold = blobThreshold;
+		return this;
+	}
+
+	public WriteAheadLog.SyncMode getWalSyncMode() {
+		return walSyncMode;
+	}
+
+	public int getWalSyncPeriod() {
+		return walSyncPeriod;
+	}
+
+	/**
+	 * Logs the writes in the file mapName.wal, see {@link WriteAheadLog}.
+	 * syncPeriod is the number of milliseconds between two forces of the log
+	 * in the {@link WriteAheadLog.SyncMode#PERIODIC} mode, ignored otherwise.
+	 * null, the default, disables the log.
+	 *
+	 * @param syncMode
+	 * @param syncPeriod
+	 * @return
+	 */
+	public PMapOptions setWriteAheadLog(WriteAheadLog.SyncMode syncMode, int syncPeriod) {
+		if (syncMode == WriteAheadLog.SyncMode.PERIODIC && syncPeriod <= 0)
+			throw new IllegalArgumentException("The sync period must be positive");
+		this.walSyncMode = syncMode;
+		this.walSyncPeriod = syncPeriod;
+		return this;
+	}
+
+	public int getCheckpointPeriod() {
+		return checkpointPeriod;
+	}
+
+	public long getCheckpointMaxBytesPerSecond() {
+		return checkpointMaxBytesPerSecond;
+	}
+
+	/**
+	 * Checkpoints the map in the background every period milliseconds, see
+	 * {@link Checkpointer}. The files are forced at most maxBytesPerSecond, 0
+	 * for no limit. Without the {@link WriteAheadLog}, the checkpoints only
+	 * persist the state kept in memory. 0, the default, disables them.
+	 *
+	 * @param period
+	 * @param maxBytesPerSecond
+	 * @return
+	 */
+	public PMapOptions setBackgroundCheckpoint(int period, long maxBytesPerSecond) {
+		if (period < 0 || maxBytesPerSecond < 0)
+			throw new IllegalArgumentException("The checkpoint period and rate must be positive");
+		this.checkpointPeriod = period;
+		this.checkpointMaxBytesPerSecond = maxBytesPerSecond;
+		return this;
+	}
+
+	public boolean isShadowPaging() {
+		return shadowPaging;
+	}
+
+	/**
+	 * Commits the changes of the index by shadow paging, see
+	 * {@link com.pmaps.pmap.index.BTreeNodeDriver#setShadowPaging(boolean)}.
+	 * Each write changing the tree forces the files before the root is
+	 * switched, and the root after : a {@link WriteBatch} is committed once.
+	 * The pairs are never rewritten in place, and the space of a replaced or
+	 * removed pair is only reused after the next commit or
+	 * {@link PMap#checkpoint()}. False by default.
+	 *
+	 * @param shadowPaging
+	 * @return
+	 */
+	public PMapOptions setShadowPaging(boolean shadowPaging) {
+		this.shadowPaging = shadowPaging;
+		return this;
+	}
+
+	public boolean isChecksums() {
+		return checksums;
+	}
+
+	/**
+	 * Checksums the pages of the index, pair and blob files, see
+	 * {@link com.pmaps.pmap.filedriver.ChecksumFileDriver}. A damaged page is
+	 * reported when first accessed, by a
+	 * {@link com.pmaps.pmap.filedriver.CorruptedFileException}, and the whole
+	 * files are checked by {@link PMap#scan(String, java.io.File, PMapOptions)}.
+	 * False by default.
+	 *
+	 * @param checksums
+	 * @return
+	 */
+	public PMapOptions setChecksums(boolean checksums) {
+		this.checksums = checksums;
+		return this;
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.pmaps.pmap;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.pmaps.PMapException;
+import com.pmaps.pmap.filedriver.SnapshotFileDriver;
+import com.pmaps.pmap.pair.BlobStore;
+
+/**
+ * <p>
+ * Point-in-time view of a {@link PMap}, opened by {@link PMap#openSnapshot()}.
+ * Between {@link #enter()} and {@link #exit()}, the reads of the current
+ * thread see the files of the map as they were when the snapshot was opened,
+ * while the writers go on.
+ * </p>
+ * <p>
+ * Until the snapshot is closed, the pages of the index and data files written
+ * since its opening are kept in memory, and the freed blobs are not reused.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+public class PMapSnapshot implements AutoCloseable {
+
+	private final SnapshotFileDriver.View indexView;
+	/**
+	 * Null when the pairs are stored in the index file.
+	 */
+	private final SnapshotFileDriver.View pairView;
+	private final BlobStore blobStore;
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	PMapSnapshot(SnapshotFileDriver.View indexView, SnapshotFileDriver.View pairView, BlobStore blobStore) {
+		this.indexView = indexView;
+		this.pairView = pairView;
+		this.blobStore = blobStore;
+		if (blobStore != null)
+			blobStore.retainFreedBlobs();
+	}
+
+	public void enter() {
+		indexView.enter();
+		if (pairView != null)
+			pairView.enter();
+	}
+
+	public void exit() {
+		indexView.exit();
+		if (pairView != null)
+			pairView.exit();
+	}
+
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Returns the number of bytes kept in memory for this snapshot.
+	 *
+	 * @return
+	 */
+	public long getSavedByteSize() {
+		return indexView.getSavedByteSize() + (pairView == null ? 0 : pairView.getSavedByteSize());
+	}
+
+	@Override
+	public void close() {
+		if (!closed.compareAndSet(false, true))
+			return;
+		indexView.close();
+		if (pairView != null)
+			pairView.close();
+		if (blobStore != null) {
+			try {
+				blobStore.releaseFreedBlobs();
+			} catch (IOException e) {
+				throw new PMapException("Unable to free the blobs", e);
+			}
+		}
+	}
+
+}
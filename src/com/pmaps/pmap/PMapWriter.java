@@ -0,0 +1,153 @@
+package com.pmaps.pmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import com.pmaps.PMapException;
+
+/**
+ * <p>
+ * Single writer of a {@link PMap}. Puts and removes are submitted to a
+ * lock-free queue by any number of threads, and applied by one writer thread
+ * : the submitters never wait for a lock. The writer drains the queue by
+ * batches of at most maxBatchSize mutations, each applied as a
+ * {@link WriteBatch}.
+ * </p>
+ * <p>
+ * The future of a mutation is completed with the previous value once the
+ * mutation is written, or exceptionally if its batch failed. A failed batch
+ * may have been partly applied.
+ * </p>
+ * The mutations of a key are applied in the order they were submitted. The
+ * map can still be read, and written directly, while the writer runs.
+ *
+ * @author Bleu
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class PMapWriter<K, V> implements AutoCloseable {
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+	private final PMap<K, V> pMap;
+	private final int maxBatchSize;
+	private final Queue<WriteBatch.Mutation<K, V>> queue = new ConcurrentLinkedQueue<>();
+	private final Thread writerThread;
+
+	private volatile boolean running = true;
+
+	public PMapWriter(PMap<K, V> pMap) {
+		this(pMap, DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	public PMapWriter(PMap<K, V> pMap, int maxBatchSize) {
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("Batches hold at least one mutation");
+		this.pMap = pMap;
+		this.maxBatchSize = maxBatchSize;
+		this.writerThread = new Thread(this::run, "PMapWriter");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Submits a put.
+	 *
+	 * @param key
+	 * @param value
+	 * @return the future previous value, null if the key was absent
+	 */
+	public CompletableFuture<V> putAsync(K key, V value) {
+		return submit(key, value, false);
+	}
+
+	/**
+	 * Submits a removal.
+	 *
+	 * @param key
+	 * @return the future removed value, null if the key was absent
+	 */
+	public CompletableFuture<V> removeAsync(K key) {
+		return submit(key, null, true);
+	}
+
+	private CompletableFuture<V> submit(K key, V value, boolean remove) {
+		final CompletableFuture<V> future = new CompletableFuture<>();
+		final WriteBatch.Mutation<K, V> mutation = new WriteBatch.Mutation<>(key, value, remove, future);
+		queue.offer(mutation);
+		// checked once queued : a mutation queued before close is either
+		// written or failed by close
+		if (!running && queue.remove(mutation))
+			throw new IllegalStateException("The writer is closed");
+		LockSupport.unpark(writerThread);
+		return future;
+	}
+
+	/**
+	 * Returns the number of mutations waiting to be written.
+	 *
+	 * @return
+	 */
+	public int getPendingCount() {
+		return queue.size();
+	}
+
+	private void run() {
+		final List<WriteBatch.Mutation<K, V>> batch = new ArrayList<>(maxBatchSize);
+		while (running || !queue.isEmpty()) {
+			WriteBatch.Mutation<K, V> mutation;
+			while (batch.size() < maxBatchSize && (mutation = queue.poll()) != null) {
+				batch.add(mutation);
+			}
+			if (batch.isEmpty()) {
+				// woken by the next submission or by close
+				LockSupport.park(this);
+				continue;
+			}
+
+			batch.sort(WriteBatch.HASH_ORDER);
+			try {
+				pMap.applyBatch(batch);
+				// completed out of the lock : the callbacks may use the map
+				for (WriteBatch.Mutation<K, V> applied : batch) {
+					applied.future.complete(applied.previous);
+				}
+			} catch (RuntimeException e) {
+				for (WriteBatch.Mutation<K, V> failed : batch) {
+					failed.future.completeExceptionally(e);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Writes the mutations already submitted and stops the writer thread. If
+	 * interrupted while waiting, the writer thread still writes them.
+	 *
+	 * @throws PMapException
+	 *             if interrupted while waiting for the writer thread
+	 */
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(writerThread);
+		try {
+			writerThread.join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new PMapException("Closing the writer interrupted", ie);
+		}
+		// submitted while the writer was stopping
+		WriteBatch.Mutation<K, V> mutation;
+		while ((mutation = queue.poll()) != null) {
+			mutation.future.completeExceptionally(new IllegalStateException("The writer is closed"));
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.pmaps.pmap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * <p>
+ * Detects a thread using a {@link PMap} from the function of one of its
+ * updates : the function runs under the locks of the map, which are not
+ * reentrant, and the thread would wait for itself.
+ * </p>
+ * The locks of the map are wrapped by {@link #guard(ReadWriteLock)} : taking
+ * one of them from a function throws an {@link IllegalStateException}. While
+ * no function runs, the check costs one volatile read.
+ *
+ * @author Bleu
+ *
+ */
+class ReentryGuard {
+
+	private final AtomicInteger runningCount = new AtomicInteger();
+	private final ThreadLocal<Boolean> running = new ThreadLocal<>();
+
+	/**
+	 * Applies function to value, flagged as running in the current thread.
+	 */
+	<V> V apply(UnaryOperator<V> function, V value) {
+		running.set(Boolean.TRUE);
+		runningCount.incrementAndGet();
+		try {
+			return function.apply(value);
+		} finally {
+			runningCount.decrementAndGet();
+			running.remove();
+		}
+	}
+
+	void check() {
+		if (runningCount.get() > 0 && running.get() != null)
+			throw new IllegalStateException("The function of an update must not use its map");
+	}
+
+	ReadWriteLock guard(ReadWriteLock readWriteLock) {
+		final Lock readLock = new GuardedLock(readWriteLock.readLock());
+		final Lock writeLock = new GuardedLock(readWriteLock.writeLock());
+		return new ReadWriteLock() {
+
+			@Override
+			public Lock readLock() {
+				return readLock;
+			}
+
+			@Override
+			public Lock writeLock() {
+				return writeLock;
+			}
+		};
+	}
+
+	private class GuardedLock implements Lock {
+
+		private final Lock lock;
+
+		GuardedLock(Lock lock) {
+			this.lock = lock;
+		}
+
+		@Override
+		public void lock() {
+			check();
+			lock.lock();
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			check();
+			lock.lockInterruptibly();
+		}
+
+		@Override
+		public boolean tryLock() {
+			check();
+			return lock.tryLock();
+		}
+
+		@Override
+		public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+			check();
+			return lock.tryLock(time, unit);
+		}
+
+		@Override
+		public void unlock() {
+			lock.unlock();
+		}
+
+		@Override
+		public Condition newCondition() {
+			return lock.newCondition();
+		}
+	}
+
+}
@@ -0,0 +1,340 @@
+package com.pmaps.pmap;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import com.pmaps.PMapException;
+
+/**
+ * <p>
+ * Map partitioned by key hash over independent {@link PMap}s. Each shard has
+ * its own files and locks : writes on different shards never wait for each
+ * other. The shards may be spread over several directories, on different
+ * disks.
+ * </p>
+ * <p>
+ * {@link #putAll(Map)} writes the shards in parallel, each with one
+ * {@link WriteBatch}. The spliterator of {@link #entrySet()} splits by shard :
+ * <code>entrySet().parallelStream()</code> reads the shards in parallel.
+ * </p>
+ * The shard of a key depends on the number of shards : a map must always be
+ * opened with the same number of shards. The number is stored in the file
+ * mapName.shards beside the first shard and checked when the map is opened.
+ *
+ * @author Bleu
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ShardedPMap<K, V> extends AbstractMap<K, V> {
+
+	public static final long SHARDS_SIGNATURE = 192837465l;
+
+	private final List<PMap<K, V>> shards;
+	private final EntrySet entrySet = new EntrySet();
+
+	public ShardedPMap(String mapName, File baseDirectory, int shardCount) throws IOException {
+		this(mapName, new File[] { baseDirectory }, shardCount, new PMapOptions());
+	}
+
+	/**
+	 * Opens the shards mapName-i, i in [0, shardCount), with the given
+	 * options. Shard i is stored in baseDirectories[i %
+	 * baseDirectories.length].
+	 *
+	 * @param mapName
+	 * @param baseDirectories
+	 * @param shardCount
+	 * @param options
+	 * @throws IOException
+	 */
+	public ShardedPMap(String mapName, File[] baseDirectories, int shardCount, PMapOptions options) throws IOException {
+		if (shardCount < 1)
+			throw new IllegalArgumentException("At least one shard is needed");
+		if (baseDirectories.length == 0)
+			throw new IllegalArgumentException("At least one directory is needed");
+		final File shardsFile = new File(baseDirectories[0], mapName + ".shards");
+		if (shardsFile.exists()) {
+			final int storedShardCount = readShardCount(shardsFile);
+			if (storedShardCount != shardCount)
+				throw new PMapException("The map " + mapName + " has " + storedShardCount + " shards, not " + shardCount);
+		} else {
+			// a map written before the count was stored : a shard beyond the
+			// count has been written by a map of more shards
+			final File nextShardDirectory = baseDirectories[shardCount % baseDirectories.length];
+			if (new File(nextShardDirectory, getShardName(mapName, shardCount) + ".idx").exists())
+				throw new PMapException("The map " + mapName + " has more than " + shardCount + " shards");
+		}
+
+		final List<PMap<K, V>> shards = new ArrayList<>(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			shards.add(new PMap<>(getShardName(mapName, i), baseDirectories[i % baseDirectories.length], options));
+		}
+		this.shards = Collections.unmodifiableList(shards);
+
+		if (!shardsFile.exists())
+			writeShardCount(shardsFile, shardCount);
+	}
+
+	private static String getShardName(String mapName, int shard) {
+		return mapName + "-" + shard;
+	}
+
+	/**
+	 * File structure : <code>[signature:long | shardCount:int]</code>
+	 */
+	private static int readShardCount(File shardsFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(shardsFile))) {
+			final long signature = in.readLong();
+			final int shardCount = in.readInt();
+			if (signature != SHARDS_SIGNATURE || shardCount < 1)
+				throw new IOException("Shards file " + shardsFile.getPath() + " is corrupted");
+			return shardCount;
+		} catch (EOFException e) {
+			throw new IOException("Shards file " + shardsFile.getPath() + " is corrupted", e);
+		}
+	}
+
+	private static void writeShardCount(File shardsFile, int shardCount) throws IOException {
+		try (FileOutputStream out = new FileOutputStream(shardsFile)) {
+			final DataOutputStream dataOut = new DataOutputStream(out);
+			dataOut.writeLong(SHARDS_SIGNATURE);
+			dataOut.writeInt(shardCount);
+			dataOut.flush();
+			out.getFD().sync();
+		}
+	}
+
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	public PMap<K, V> getShard(int shard) {
+		return shards.get(shard);
+	}
+
+	/**
+	 * Returns the shard of key. The hash is mixed : the keys of a shard still
+	 * spread over the stripe locks of its map.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public int getShardIndex(Object key) {
+		final long mixed = (key.hashCode() * 0x9E3779B9L) & 0xFFFFFFFFL;
+		return (int) ((mixed * shards.size()) >>> 32);
+	}
+
+	private PMap<K, V> shardOf(Object key) {
+		return shards.get(getShardIndex(key));
+	}
+
+	@Override
+	public V get(Object key) {
+		return shardOf(key).get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return shardOf(key).containsKey(key);
+	}
+
+	@Override
+	public V put(K key, V value) {
+		return shardOf(key).put(key, value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		return shardOf(key).remove(key);
+	}
+
+	/**
+	 * Sums the sizes of the shards, up to {@link Integer#MAX_VALUE}. Not
+	 * atomic while the shards are written.
+	 */
+	@Override
+	public int size() {
+		return (int) Math.min(mappingCount(), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Sums the sizes of the shards, not bounded by the int range.
+	 * 
+	 * @return
+	 */
+	public long mappingCount() {
+		long mappingCount = 0;
+		for (PMap<K, V> shard : shards) {
+			mappingCount += shard.mappingCount();
+		}
+		return mappingCount;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (PMap<K, V> shard : shards) {
+			if (!shard.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Splits the entries by shard and applies one {@link WriteBatch} per
+	 * shard, in parallel.
+	 */
+	@Override
+	public void putAll(Map<? extends K, ? extends V> map) {
+		final List<WriteBatch<K, V>> batches = new ArrayList<>(shards.size());
+		for (PMap<K, V> shard : shards) {
+			batches.add(shard.writeBatch());
+		}
+		for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+			batches.get(getShardIndex(entry.getKey())).put(entry.getKey(), entry.getValue());
+		}
+		IntStream.range(0, shards.size()).parallel().forEach(shard -> batches.get(shard).apply());
+	}
+
+	@Override
+	public void clear() {
+		for (PMap<K, V> shard : shards) {
+			shard.clear();
+		}
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return entrySet;
+	}
+
+	public void checkpoint() throws IOException {
+		for (PMap<K, V> shard : shards) {
+			shard.checkpoint();
+		}
+	}
+
+	public long fileSize() throws IOException {
+		long fileSize = 0;
+		for (PMap<K, V> shard : shards) {
+			fileSize += shard.fileSize();
+		}
+		return fileSize;
+	}
+
+	/**
+	 * Closes all the shards, even if one fails.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		IOException closeException = null;
+		for (PMap<K, V> shard : shards) {
+			try {
+				shard.close();
+			} catch (IOException e) {
+				if (closeException == null)
+					closeException = e;
+				else
+					closeException.addSuppressed(e);
+			}
+		}
+		if (closeException != null)
+			throw closeException;
+	}
+
+	/**
+	 * Entries of the shards, one shard after the other.
+	 */
+	private class EntrySet extends AbstractSet<Entry<K, V>> {
+
+		@Override
+		public Iterator<Entry<K, V>> iterator() {
+			return Spliterators.iterator(spliterator());
+		}
+
+		@Override
+		public Spliterator<Entry<K, V>> spliterator() {
+			return new ShardSpliterator(0, shards.size());
+		}
+
+		@Override
+		public int size() {
+			return ShardedPMap.this.size();
+		}
+
+		@Override
+		public void clear() {
+			ShardedPMap.this.clear();
+		}
+	}
+
+	/**
+	 * Iterates the shards of [shard, endShard). Split by halving the range.
+	 */
+	private class ShardSpliterator implements Spliterator<Entry<K, V>> {
+
+		private int shard;
+		private int endShard;
+		private Iterator<Entry<K, V>> iterator;
+
+		ShardSpliterator(int shard, int endShard) {
+			this.shard = shard;
+			this.endShard = endShard;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Entry<K, V>> action) {
+			while (iterator == null || !iterator.hasNext()) {
+				if (shard >= endShard)
+					return false;
+				iterator = shards.get(shard++).entrySet().iterator();
+			}
+			action.accept(iterator.next());
+			return true;
+		}
+
+		@Override
+		public Spliterator<Entry<K, V>> trySplit() {
+			// the shard being iterated stays here
+			final int middle = (shard + endShard) >>> 1;
+			if (middle <= shard)
+				return null;
+			final ShardSpliterator split = new ShardSpliterator(middle, endShard);
+			endShard = middle;
+			return split;
+		}
+
+		@Override
+		public long estimateSize() {
+			long estimate = 0;
+			for (int i = shard; i < endShard; i++) {
+				estimate += shards.get(i).mappingCount();
+			}
+			return estimate;
+		}
+
+		@Override
+		public int characteristics() {
+			return DISTINCT | NONNULL;
+		}
+	}
+
+}
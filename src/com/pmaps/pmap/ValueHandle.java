@@ -0,0 +1,100 @@
+package com.pmaps.pmap;
+
+import java.io.IOException;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.locks.Lock;
+
+import com.pmaps.PMapException;
+
+/**
+ * <p>
+ * Reference to the value of a key, returned by {@link PMap#getHandle(Object)}.
+ * Only the key has been decoded by the lookup : the value is read and decoded
+ * by {@link #getValue()}, if ever.
+ * </p>
+ * <p>
+ * The handle is valid until the next write on its map. Afterwards the pair may
+ * have been moved or its space reused : {@link #getValue()} throws a
+ * {@link ConcurrentModificationException}.
+ * </p>
+ *
+ * @author Bleu
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ValueHandle<K, V> {
+
+	private final PMap<K, V> pMap;
+	private final K key;
+	private final long pairPointer;
+	private final int dataLength;
+	private final int modificationCount;
+
+	ValueHandle(PMap<K, V> pMap, K key, long pairPointer, int dataLength, int modificationCount) {
+		this.pMap = pMap;
+		this.key = key;
+		this.pairPointer = pairPointer;
+		this.dataLength = dataLength;
+		this.modificationCount = modificationCount;
+	}
+
+	public K getKey() {
+		return key;
+	}
+
+	public long getPairPointer() {
+		return pairPointer;
+	}
+
+	/**
+	 * Returns the length of the serialized key and value. For a value of the
+	 * blob store, the length of the key and the blob reference.
+	 *
+	 * @return
+	 */
+	public int getDataLength() {
+		return dataLength;
+	}
+
+	/**
+	 * Returns false once the map has been written.
+	 *
+	 * @return
+	 */
+	public boolean isValid() {
+		return modificationCount == pMap.getModificationCount();
+	}
+
+	/**
+	 * Reads and decodes the value.
+	 *
+	 * @return
+	 * @throws ConcurrentModificationException
+	 *             if the map has been written since the handle was created
+	 */
+	public V getValue() {
+		final Lock readLock = pMap.getReadLock();
+		try {
+			readLock.lockInterruptibly();
+			final Lock stripeLock = pMap.getStripeLock(key.hashCode()).readLock();
+			try {
+				stripeLock.lockInterruptibly();
+				try {
+					if (!isValid())
+						throw new ConcurrentModificationException("The map has been written since the handle was created");
+					return pMap.getPairDriver().getPairFactory().newPairForReading(pMap, pairPointer).getValue();
+				} finally {
+					stripeLock.unlock();
+				}
+			} finally {
+				readLock.unlock();
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			throw new PMapException("Unable to read data.", e);
+		} catch (InterruptedException ie) {
+			throw new PMapException("Reading data interrupted", ie);
+		}
+	}
+
+}
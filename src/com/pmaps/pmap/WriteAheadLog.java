@@ -0,0 +1,615 @@
+package com.pmaps.pmap;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+import com.pmaps.PMapException;
+import com.pmaps.pmap.filedriver.UninterruptibleFileChannel;
+import com.pmaps.pmap.serializer.ISerializer;
+
+/**
+ * <p>
+ * Sequential log of the writes of a {@link PMap}, stored in the file
+ * mapName.wal beside its index and data files. See
+ * {@link PMapOptions#setWriteAheadLog(SyncMode, int)}.
+ * </p>
+ * <p>
+ * Each put, remove and clear is appended to the log before the files of the
+ * map are written. The files of the map are only forced to the storage device
+ * by {@link PMap#checkpoint()}, which then empties the log : a write costs one
+ * sequential append, the random writes of the tree and the pairs are left to
+ * the system until the checkpoint. When the log itself is forced depends on
+ * the {@link SyncMode}.
+ * </p>
+ * File structure : <code>
+ * [signature:long | baseLsn:long | baseSize:long | (length:int | crc:int | type:byte | sizeDelta:byte | data) *]
+ * </code>
+ * <p>
+ * The log sequence number (LSN) of a record is its offset in all the records
+ * written since the log was created. baseLsn is the LSN of the first record
+ * kept, the previous ones were emptied by a checkpoint : the LSN of the last
+ * checkpoint. The crc covers the type, the size delta and the data : a record
+ * partly written by a crash is detected.
+ * </p>
+ * <p>
+ * baseSize is the size of the map at baseLsn, or {@link #UNKNOWN_SIZE}, and
+ * sizeDelta what the record changed in the size when it was written : the
+ * size at the end of the log is known without counting the pairs, whatever
+ * the writes which reached the files of the map before the crash.
+ * </p>
+ * <p>
+ * A value streamed to the blob store is not copied in the log : its blob is
+ * forced first, and the record refers to it. The blobs freed while a record
+ * may still refer to them are only reused once the record is emptied.
+ * </p>
+ * <p>
+ * A background checkpoint, see {@link Checkpointer}, forces the files of the
+ * map while the writes go on : it first moves the log to mapName.wal.prev by
+ * {@link #rotate(long)}, and the records written meanwhile go to a new
+ * mapName.wal. The previous segment is dropped once the files are forced.
+ * </p>
+ * <p>
+ * After a crash, the records kept are replayed by {@link #replay(Replayer)}
+ * when the map is opened, the previous segment first. Replaying them again is
+ * harmless : each key ends with the value of its last record.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+public class WriteAheadLog implements Closeable {
+
+	public enum SyncMode {
+		/**
+		 * The log is written but never forced : the writes survive a crash of
+		 * the process, not of the system.
+		 */
+		NONE,
+		/**
+		 * Each write returns once the log is forced. The writes waiting at the
+		 * same time share one force.
+		 */
+		GROUP,
+		/**
+		 * The log is forced every sync period by a background thread : only
+		 * the writes of the last period may be lost.
+		 */
+		PERIODIC
+	}
+
+	/**
+	 * Receives the records of the log, see {@link WriteAheadLog#replay(Replayer)}.
+	 */
+	public interface Replayer {
+
+		void put(Object key, Object value) throws IOException;
+
+		void remove(Object key) throws IOException;
+
+		/**
+		 * Puts the content of the blob as the value of key.
+		 */
+		void putBlob(Object key, long blobPointer) throws IOException;
+
+		void clear() throws IOException;
+	}
+
+	public static final long WAL_SIGNATURE = 987654322l;
+	public static final long UNKNOWN_SIZE = -1;
+
+	static final int HEADER_BYTE_SIZE = 24;
+	static final int RECORD_HEADER_BYTE_SIZE = 10;
+
+	static final byte PUT = 1;
+	static final byte REMOVE = 2;
+	static final byte CLEAR = 3;
+	static final byte BLOB = 4;
+
+	private static final byte[] NO_DATA = new byte[0];
+
+	private final File file;
+	private final File previousFile;
+	/**
+	 * Changed by {@link #rotate(long)}, under the append lock and the sync role.
+	 * An interrupted writer does not close it for the others.
+	 */
+	private volatile UninterruptibleFileChannel channel;
+	private final ISerializer serializer;
+	private final SyncMode syncMode;
+	private final long syncPeriodNanos;
+	private final Thread syncThread;
+
+	/**
+	 * Guards the end of the log.
+	 */
+	private final ReentrantLock appendLock = new ReentrantLock();
+	private long baseLsn;
+	private long baseSize;
+	/**
+	 * Size of the map at the end of the records replayed.
+	 */
+	private long replayedSize = UNKNOWN_SIZE;
+	/**
+	 * LSN following the last record written.
+	 */
+	private volatile long endLsn;
+
+	/**
+	 * Guards syncedLsn and the sync role : one thread forces the log, the
+	 * others wait for it.
+	 */
+	private final ReentrantLock syncLock = new ReentrantLock();
+	private final Condition syncDone = syncLock.newCondition();
+	private long syncedLsn;
+	private boolean syncing;
+
+	/**
+	 * Failure of the background thread, thrown by the next commit.
+	 */
+	private volatile IOException syncFailure;
+	private volatile boolean running = true;
+
+	/**
+	 * Opens the log of file, created if needed.
+	 *
+	 * @param file
+	 * @param serializer
+	 *            serializes the keys and values of the records
+	 * @param syncMode
+	 * @param syncPeriod
+	 *            milliseconds between two forces in the
+	 *            {@link SyncMode#PERIODIC} mode
+	 * @param size
+	 *            size of the map, written in a new log, or
+	 *            {@link #UNKNOWN_SIZE}
+	 * @throws IOException
+	 */
+	public WriteAheadLog(File file, ISerializer serializer, SyncMode syncMode, int syncPeriod, long size) throws IOException {
+		if (syncMode == SyncMode.PERIODIC && syncPeriod <= 0)
+			throw new IllegalArgumentException("The sync period must be positive");
+		this.file = file;
+		this.previousFile = new File(file.getPath() + ".prev");
+		this.serializer = serializer;
+		this.syncMode = syncMode;
+		this.syncPeriodNanos = TimeUnit.MILLISECONDS.toNanos(syncPeriod);
+
+		open();
+		if (channel.size() < HEADER_BYTE_SIZE) {
+			channel.truncate(0);
+			// follows the previous segment, if the crash came in the middle of
+			// a rotation
+			// a rotation : its size is not known, the previous segment tells it
+			baseLsn = previousFile.exists() ? readHeader(previousFile).getLong(8) + previousFile.length() - HEADER_BYTE_SIZE : 0;
+			baseSize = previousFile.exists() ? UNKNOWN_SIZE : size;
+			writeHeader();
+		} else {
+			final ByteBuffer header = readHeader(file);
+			baseLsn = header.getLong(8);
+			baseSize = header.getLong(16);
+		}
+		endLsn = baseLsn + channel.size() - HEADER_BYTE_SIZE;
+		syncedLsn = endLsn;
+
+		if (syncMode == SyncMode.PERIODIC) {
+			syncThread = new Thread(this::runSync, "WriteAheadLog sync");
+			syncThread.setDaemon(true);
+			syncThread.start();
+		} else {
+			syncThread = null;
+		}
+	}
+
+	private void open() throws IOException {
+		channel = new UninterruptibleFileChannel(file, "rw");
+	}
+
+	private static ByteBuffer readHeader(File segment) throws IOException {
+		try (RandomAccessFile segmentFile = new RandomAccessFile(segment, "r")) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTE_SIZE);
+			if (segmentFile.length() >= HEADER_BYTE_SIZE)
+				segmentFile.readFully(header.array());
+			if (header.getLong(0) != WAL_SIGNATURE)
+				throw new PMapException("Header signature has not been found. " + segment + " is not a write ahead log");
+			return header;
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTE_SIZE);
+		header.putLong(0, WAL_SIGNATURE);
+		header.putLong(8, baseLsn);
+		header.putLong(16, baseSize);
+		channel.writeFully(header, 0);
+	}
+
+	public SyncMode getSyncMode() {
+		return syncMode;
+	}
+
+	/**
+	 * Returns the LSN of the first record kept.
+	 *
+	 * @return
+	 */
+	public long getBaseLsn() {
+		return baseLsn;
+	}
+
+	/**
+	 * Returns the LSN following the last record written.
+	 *
+	 * @return
+	 */
+	public long getEndLsn() {
+		return endLsn;
+	}
+
+	/**
+	 * Returns the size of the map at the end of the records replayed, or
+	 * {@link #UNKNOWN_SIZE} if the log was started without it.
+	 *
+	 * @return
+	 */
+	public long getReplayedSize() {
+		return replayedSize;
+	}
+
+	/**
+	 * Appends the put of key and value.
+	 *
+	 * @param key
+	 * @param value
+	 * @param sizeDelta
+	 *            1 if key was absent, 0 otherwise
+	 * @return the LSN of the record
+	 * @throws IOException
+	 */
+	public long logPut(Object key, Object value, int sizeDelta) throws IOException {
+		return append(PUT, sizeDelta, serializer.serialize(key, value));
+	}
+
+	/**
+	 * Appends the put of the blob as the value of key. The blob must have
+	 * been forced.
+	 *
+	 * @param key
+	 * @param blobPointer
+	 * @param sizeDelta
+	 *            1 if key was absent, 0 otherwise
+	 * @return the LSN of the record
+	 * @throws IOException
+	 */
+	public long logBlobPut(Object key, long blobPointer, int sizeDelta) throws IOException {
+		final byte[] keyData = serializer.serialize(key);
+		return append(BLOB, sizeDelta, ByteBuffer.allocate(8 + keyData.length).putLong(blobPointer).put(keyData).array());
+	}
+
+	/**
+	 * Appends the removal of key, which was present.
+	 *
+	 * @param key
+	 * @return the LSN of the record
+	 * @throws IOException
+	 */
+	public long logRemove(Object key) throws IOException {
+		return append(REMOVE, -1, serializer.serialize(key));
+	}
+
+	/**
+	 * Appends the clearing of the map.
+	 *
+	 * @return the LSN of the record
+	 * @throws IOException
+	 */
+	public long logClear() throws IOException {
+		return append(CLEAR, 0, NO_DATA);
+	}
+
+	private long append(byte type, int sizeDelta, byte[] data) throws IOException {
+		// built out of the lock
+		final CRC32C crc = new CRC32C();
+		crc.update(type);
+		crc.update(sizeDelta);
+		crc.update(data);
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTE_SIZE + data.length);
+		record.putInt(data.length).putInt((int) crc.getValue()).put(type).put((byte) sizeDelta).put(data).flip();
+
+		appendLock.lock();
+		try {
+			final long lsn = endLsn;
+			channel.writeFully(record, HEADER_BYTE_SIZE + lsn - baseLsn);
+			endLsn = lsn + record.limit();
+			return lsn;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * In the {@link SyncMode#GROUP} mode, returns once the records written so
+	 * far are forced. Must be called out of the locks of the map : the writes
+	 * of other threads may then join the same force.
+	 *
+	 * @throws IOException
+	 *             if the log could not be forced, or the last force of the
+	 *             background thread failed
+	 */
+	public void commit() throws IOException {
+		final IOException failure = syncFailure;
+		if (failure != null) {
+			syncFailure = null;
+			throw failure;
+		}
+		if (syncMode == SyncMode.GROUP)
+			sync(endLsn);
+	}
+
+	/**
+	 * Forces the log up to lsn, at least. If another thread is forcing it,
+	 * waits for it first.
+	 *
+	 * @param lsn
+	 * @throws IOException
+	 */
+	public void sync(long lsn) throws IOException {
+		syncLock.lock();
+		try {
+			while (syncing && syncedLsn < lsn) {
+				syncDone.awaitUninterruptibly();
+			}
+			if (syncedLsn >= lsn)
+				return;
+			syncing = true;
+		} finally {
+			syncLock.unlock();
+		}
+		long forcedLsn = Long.MIN_VALUE;
+		try {
+			// everything written before the force is forced
+			final long endLsn = this.endLsn;
+			channel.force(false);
+			forcedLsn = endLsn;
+		} finally {
+			releaseSync(forcedLsn);
+		}
+	}
+
+	/**
+	 * Takes the sync role, once the thread forcing the log is done.
+	 */
+	private void acquireSync() {
+		syncLock.lock();
+		try {
+			while (syncing) {
+				syncDone.awaitUninterruptibly();
+			}
+			syncing = true;
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	private void releaseSync(long forcedLsn) {
+		syncLock.lock();
+		try {
+			syncing = false;
+			syncedLsn = Math.max(syncedLsn, forcedLsn);
+			syncDone.signalAll();
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Empties the log, previous segment included. Must be called once the
+	 * files of the map are forced, with no write going on.
+	 *
+	 * @param size
+	 *            the size of the map
+	 * @throws IOException
+	 */
+	public void truncate(long size) throws IOException {
+		acquireSync();
+		appendLock.lock();
+		try {
+			// emptied before the base moves : a crash in between leaves an
+			// empty log
+			channel.truncate(HEADER_BYTE_SIZE);
+			baseLsn = endLsn;
+			baseSize = size;
+			writeHeader();
+			channel.force(true);
+			Files.deleteIfExists(previousFile.toPath());
+		} finally {
+			appendLock.unlock();
+			releaseSync(baseLsn);
+		}
+	}
+
+	/**
+	 * Moves the records written so far to the previous segment, forced, and
+	 * starts a new segment. Called by a background checkpoint once the state
+	 * of the map is persisted, with no write going on. If a failed checkpoint
+	 * left the previous segment, the records stay in the current one : they
+	 * are replayed again after a crash, which is harmless. An empty log is
+	 * kept as it is.
+	 *
+	 * @param size
+	 *            the size of the map
+	 * @return the LSN of the checkpoint : the base of the new segment
+	 * @throws IOException
+	 */
+	public long rotate(long size) throws IOException {
+		if (previousFile.exists() || endLsn == baseLsn)
+			return baseLsn;
+		acquireSync();
+		appendLock.lock();
+		try {
+			channel.force(true);
+			channel.close();
+			Files.move(file.toPath(), previousFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			baseLsn = endLsn;
+			baseSize = size;
+			open();
+			writeHeader();
+			channel.force(true);
+			return baseLsn;
+		} finally {
+			appendLock.unlock();
+			releaseSync(baseLsn);
+		}
+	}
+
+	/**
+	 * Deletes the previous segment, once the files of the map are forced.
+	 *
+	 * @throws IOException
+	 */
+	public void dropPrevious() throws IOException {
+		Files.deleteIfExists(previousFile.toPath());
+	}
+
+	/**
+	 * Passes the records kept to replayer, in the order they were written. The
+	 * log ends at the first record partly written or damaged : the records
+	 * after it are dropped. See {@link #getReplayedSize()}.
+	 *
+	 * @param replayer
+	 * @return the number of records replayed
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public long replay(Replayer replayer) throws IOException, ClassNotFoundException {
+		appendLock.lock();
+		try {
+			long count = 0;
+			if (previousFile.exists()) {
+				replayedSize = readHeader(previousFile).getLong(16);
+				try (RandomAccessFile previous = new RandomAccessFile(previousFile, "r")) {
+					count += replaySegment(previous.getChannel(), replayer, false);
+				}
+			} else {
+				replayedSize = baseSize;
+			}
+			return count + replaySegment(channel.getChannel(), replayer, true);
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Replays the records of segment. The current segment is cut after its
+	 * last valid record.
+	 */
+	private long replaySegment(FileChannel segment, Replayer replayer, boolean current) throws IOException, ClassNotFoundException {
+		long position = HEADER_BYTE_SIZE;
+		long count = 0;
+		final long size = segment.size();
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(segment.position(position)), 1 << 16));
+		final CRC32C crc = new CRC32C();
+		while (position + RECORD_HEADER_BYTE_SIZE <= size) {
+			final int length = in.readInt();
+			final int recordCrc = in.readInt();
+			final byte type = in.readByte();
+			final byte sizeDelta = in.readByte();
+			if (length < 0 || position + RECORD_HEADER_BYTE_SIZE + length > size)
+				break;
+			final byte[] data = new byte[length];
+			try {
+				in.readFully(data);
+			} catch (EOFException e) {
+				break;
+			}
+			crc.reset();
+			crc.update(type);
+			crc.update(sizeDelta);
+			crc.update(data);
+			if ((int) crc.getValue() != recordCrc)
+				break;
+
+			switch (type) {
+			case PUT:
+				final Object[] pair = serializer.unserialize(2, data);
+				replayer.put(pair[0], pair[1]);
+				break;
+			case REMOVE:
+				replayer.remove(serializer.unserialize(1, data)[0]);
+				break;
+			case BLOB:
+				replayer.putBlob(serializer.unserialize(1, data, 8, length - 8)[0], ByteBuffer.wrap(data).getLong());
+				break;
+			case CLEAR:
+				replayer.clear();
+				if (replayedSize != UNKNOWN_SIZE)
+					replayedSize = 0;
+				break;
+			default:
+				throw new PMapException("Unknown record type " + type + " at " + position + " in the write ahead log");
+			}
+			if (replayedSize != UNKNOWN_SIZE)
+				replayedSize += sizeDelta;
+			position += RECORD_HEADER_BYTE_SIZE + length;
+			count++;
+		}
+
+		if (current) {
+			if (position < size) {
+				// the next records are appended after the last valid one
+				channel.truncate(position);
+				channel.force(true);
+			}
+			endLsn = baseLsn + position - HEADER_BYTE_SIZE;
+		}
+		return count;
+	}
+
+	private void runSync() {
+		while (running) {
+			LockSupport.parkNanos(this, syncPeriodNanos);
+			try {
+				sync(endLsn);
+			} catch (IOException e) {
+				syncFailure = e;
+			}
+		}
+	}
+
+	/**
+	 * Stops the background thread and forces the log, except in the
+	 * {@link SyncMode#NONE} mode.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		if (syncThread != null) {
+			LockSupport.unpark(syncThread);
+			try {
+				syncThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			if (syncMode != SyncMode.NONE)
+				sync(endLsn);
+		} finally {
+			channel.close();
+		}
+	}
+
+}
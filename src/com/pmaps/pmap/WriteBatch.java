@@ -0,0 +1,108 @@
+package com.pmaps.pmap;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.pmaps.pmap.pair.Pair;
+
+/**
+ * <p>
+ * Puts and removes collected to be applied at once on a {@link PMap}, see
+ * {@link PMap#writeBatch()}. Nothing is written before {@link #apply()}.
+ * </p>
+ * <p>
+ * The mutations are applied under a single acquisition of the structure
+ * lock, sorted by key hash : the mutations of a key hash share the same index
+ * descent, and the size of the map is written once. The mutations of a key
+ * are applied in the order they were added.
+ * </p>
+ * A batch is not thread safe. It is emptied by {@link #apply()} and may be
+ * reused. A batch which failed may have been partly applied.
+ *
+ * @author Bleu
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class WriteBatch<K, V> {
+
+	/**
+	 * Stable : the mutations of a key hash stay in their order.
+	 */
+	static final Comparator<Mutation<?, ?>> HASH_ORDER = Comparator.comparingInt(mutation -> mutation.hashCode);
+
+	private final PMap<K, V> pMap;
+	private final List<Mutation<K, V>> mutations = new ArrayList<>();
+
+	WriteBatch(PMap<K, V> pMap) {
+		this.pMap = pMap;
+	}
+
+	public WriteBatch<K, V> put(K key, V value) {
+		mutations.add(new Mutation<>(key, value, false, null));
+		return this;
+	}
+
+	public WriteBatch<K, V> remove(K key) {
+		mutations.add(new Mutation<>(key, null, true, null));
+		return this;
+	}
+
+	/**
+	 * Returns the number of mutations collected.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return mutations.size();
+	}
+
+	public void clear() {
+		mutations.clear();
+	}
+
+	/**
+	 * Writes the mutations in the map and empties this batch.
+	 */
+	public void apply() {
+		if (mutations.isEmpty())
+			return;
+		mutations.sort(HASH_ORDER);
+		try {
+			pMap.applyBatch(mutations);
+		} finally {
+			mutations.clear();
+		}
+	}
+
+	static class Mutation<K, V> {
+
+		final K key;
+		final V value;
+		final boolean remove;
+		final int hashCode;
+		/**
+		 * Completed with the previous value once applied. When null, the
+		 * previous value is not decoded.
+		 */
+		final CompletableFuture<V> future;
+		/**
+		 * The pair of a put serialized out of the lock, see
+		 * {@link PMap#putAll(java.util.Map)}. When null, it is built under the
+		 * lock.
+		 */
+		Pair<K, V> pair;
+		V previous;
+
+		Mutation(K key, V value, boolean remove, CompletableFuture<V> future) {
+			this.key = key;
+			this.value = value;
+			this.remove = remove;
+			this.hashCode = key.hashCode();
+			this.future = future;
+		}
+	}
+
+}
@@ -0,0 +1,497 @@
+package com.pmaps.pmap.filedriver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * <p>
+ * Decorates a {@link FileDriver} with a CRC32C checksum per page of
+ * {@link #PAGE_SIZE} bytes, kept in a separate checksum file :
+ * </p>
+ *
+ * <pre>
+ * [signature:long | clean:int | pageSize:int | length:long | pageCount:int | crc:int *]
+ * </pre>
+ * <p>
+ * The checksums are written by {@link #close()}, for the pages written since
+ * the file was opened, and marked clean. A page is verified the first time
+ * it is read or written : once all the pages in use are verified, the reads
+ * are passed as they are. A damaged page throws a
+ * {@link CorruptedFileException}, each time it is accessed.
+ * </p>
+ * <p>
+ * The checksum file is marked unclean while the file is open : after a
+ * crash, the checksums are discarded and written again at the next close.
+ * See {@link #scan(FileDriver, File)} to check a whole file.
+ * </p>
+ * Relative accesses are expected to follow a {@link #seek(long)}, under the
+ * access lock.
+ *
+ * @author Bleu
+ *
+ */
+public class ChecksumFileDriver implements FileDriver {
+
+	public static final int PAGE_SIZE = 4096;
+
+	static final long CHECKSUM_SIGNATURE = 192837465L;
+	static final int HEADER_BYTE_SIZE = 28;
+
+	private final FileDriver fileDriver;
+	private final File checksumFile;
+
+	/**
+	 * Guards the checksums and the page sets.
+	 */
+	private final ReentrantLock tableLock = new ReentrantLock();
+	/**
+	 * The checksums written by the last close, of the file of checkedLength
+	 * bytes. Empty if they were discarded.
+	 */
+	private int[] checksums;
+	private final long checkedLength;
+	private final BitSet unverifiedPages = new BitSet();
+	private final BitSet writtenPages = new BitSet();
+	/**
+	 * Read without the table lock : 0 once all the pages are verified.
+	 */
+	private volatile int unverifiedCount;
+
+	/**
+	 * Position of the relative accesses, guarded by the access lock.
+	 */
+	private long position;
+
+	public ChecksumFileDriver(FileDriver fileDriver, File checksumFile) throws IOException {
+		this.fileDriver = fileDriver;
+		this.checksumFile = checksumFile;
+		final Table table = readTable(checksumFile);
+		if (table != null && table.clean && table.length == fileDriver.length()) {
+			checksums = table.checksums;
+			checkedLength = table.length;
+			unverifiedPages.set(0, checksums.length);
+			unverifiedCount = checksums.length;
+		} else {
+			// all the pages are checksummed at close
+			checksums = new int[0];
+			checkedLength = 0;
+		}
+		// a crash leaves the checksums unclean
+		writeTable(checksumFile, false, checkedLength, checksums);
+	}
+
+	/**
+	 * Returns the decorated driver.
+	 *
+	 * @return
+	 */
+	public FileDriver getFileDriver() {
+		return fileDriver;
+	}
+
+	private static int pageCount(long length) {
+		return (int) ((length + PAGE_SIZE - 1) / PAGE_SIZE);
+	}
+
+	private static int checksum(FileDriver fileDriver, int page, long length) throws IOException {
+		final long pageStart = (long) page * PAGE_SIZE;
+		final byte[] bytes = new byte[(int) Math.min(PAGE_SIZE, length - pageStart)];
+		fileDriver.get(pageStart, bytes);
+		final CRC32C crc = new CRC32C();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Verifies the pages of [index, index + length) not verified yet. Reading
+	 * them may move the file pointer of the decorated driver.
+	 * 
+	 * @return true if a page was read
+	 */
+	private boolean beforeRead(long index, long length) throws IOException {
+		if (unverifiedCount == 0 || length <= 0)
+			return false;
+		tableLock.lock();
+		try {
+			boolean read = false;
+			final long end = index + length;
+			for (int page = unverifiedPages.nextSetBit((int) (index / PAGE_SIZE)); page >= 0
+					&& (long) page * PAGE_SIZE < end; page = unverifiedPages.nextSetBit(page + 1)) {
+				if (checksum(fileDriver, page, checkedLength) != checksums[page])
+					throw new CorruptedFileException("Checksum mismatch in " + checksumFile.getName(), (long) page * PAGE_SIZE,
+							Math.min(PAGE_SIZE, checkedLength - (long) page * PAGE_SIZE));
+				unverifiedPages.clear(page);
+				unverifiedCount--;
+				read = true;
+			}
+			return read;
+		} finally {
+			tableLock.unlock();
+		}
+	}
+
+	/**
+	 * Verifies the pages of [index, index + length) before they are written,
+	 * and registers them to be checksummed at close.
+	 * 
+	 * @return true if a page was read
+	 */
+	private boolean beforeWrite(long index, long length) throws IOException {
+		if (length <= 0)
+			return false;
+		tableLock.lock();
+		try {
+			// a damaged page is not checksummed again
+			final boolean read = beforeRead(index, length);
+			writtenPages.set((int) (index / PAGE_SIZE), (int) ((index + length - 1) / PAGE_SIZE) + 1);
+			return read;
+		} finally {
+			tableLock.unlock();
+		}
+	}
+
+	@Override
+	public Lock getAccessLock() {
+		return fileDriver.getAccessLock();
+	}
+
+	@Override
+	public long length() throws IOException {
+		return fileDriver.length();
+	}
+
+	@Override
+	public void setLength(long newLength) throws IOException {
+		tableLock.lock();
+		try {
+			final long length = fileDriver.length();
+			if (newLength > length) {
+				beforeWrite(length, newLength - length);
+			} else if (newLength < length) {
+				// the pages beyond are dropped, the last one is cut
+				final int pageCount = pageCount(newLength);
+				final int lastPage = (int) (newLength / PAGE_SIZE);
+				final int dropped = unverifiedPages.get(lastPage, Math.max(lastPage, unverifiedPages.length())).cardinality();
+				unverifiedPages.clear(lastPage, Math.max(lastPage, unverifiedPages.length()));
+				unverifiedCount -= dropped;
+				writtenPages.clear(pageCount, Math.max(pageCount, writtenPages.length()));
+				if (pageCount > lastPage)
+					writtenPages.set(lastPage);
+				checksums = Arrays.copyOf(checksums, Math.min(checksums.length, lastPage));
+			}
+			fileDriver.setLength(newLength);
+		} finally {
+			tableLock.unlock();
+		}
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		this.position = position;
+		fileDriver.seek(position);
+	}
+
+	@Override
+	public int getInt() throws IOException {
+		if (beforeRead(position, 4))
+			fileDriver.seek(position);
+		position += 4;
+		return fileDriver.getInt();
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		return getInt();
+	}
+
+	@Override
+	public void setInt(int i) throws IOException {
+		if (beforeWrite(position, 4))
+			fileDriver.seek(position);
+		position += 4;
+		fileDriver.setInt(i);
+	}
+
+	@Override
+	public void writeInt(int i) throws IOException {
+		setInt(i);
+	}
+
+	@Override
+	public int getInt(long index) throws IOException {
+		beforeRead(index, 4);
+		return fileDriver.getInt(index);
+	}
+
+	@Override
+	public void setInt(long index, int i) throws IOException {
+		beforeWrite(index, 4);
+		fileDriver.setInt(index, i);
+	}
+
+	@Override
+	public long getLong() throws IOException {
+		if (beforeRead(position, 8))
+			fileDriver.seek(position);
+		position += 8;
+		return fileDriver.getLong();
+	}
+
+	@Override
+	public long getLong(long index) throws IOException {
+		beforeRead(index, 8);
+		return fileDriver.getLong(index);
+	}
+
+	@Override
+	public void setLong(long index, long l) throws IOException {
+		beforeWrite(index, 8);
+		fileDriver.setLong(index, l);
+	}
+
+	@Override
+	public void setLong(long l) throws IOException {
+		if (beforeWrite(position, 8))
+			fileDriver.seek(position);
+		position += 8;
+		fileDriver.setLong(l);
+	}
+
+	@Override
+	public void writeLong(long l) throws IOException {
+		setLong(l);
+	}
+
+	@Override
+	public void get(byte[] b) throws IOException {
+		if (beforeRead(position, b.length))
+			fileDriver.seek(position);
+		position += b.length;
+		fileDriver.get(b);
+	}
+
+	@Override
+	public void get(long index, byte[] b) throws IOException {
+		beforeRead(index, b.length);
+		fileDriver.get(index, b);
+	}
+
+	@Override
+	public void set(long index, byte[] b) throws IOException {
+		beforeWrite(index, b.length);
+		fileDriver.set(index, b);
+	}
+
+	@Override
+	public void set(byte[] b) throws IOException {
+		if (beforeWrite(position, b.length))
+			fileDriver.seek(position);
+		position += b.length;
+		fileDriver.set(b);
+	}
+
+	@Override
+	public void read(byte[] b) throws IOException {
+		if (beforeRead(position, b.length))
+			fileDriver.seek(position);
+		position += b.length;
+		fileDriver.read(b);
+	}
+
+	@Override
+	public void read(byte[] b, int off, int len) throws IOException {
+		if (beforeRead(position, len))
+			fileDriver.seek(position);
+		position += len;
+		fileDriver.read(b, off, len);
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		if (beforeWrite(position, b.length))
+			fileDriver.seek(position);
+		position += b.length;
+		fileDriver.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (beforeWrite(position, len))
+			fileDriver.seek(position);
+		position += len;
+		fileDriver.write(b, off, len);
+	}
+
+	@Override
+	public void sync() throws IOException {
+		fileDriver.sync();
+	}
+
+	@Override
+	public boolean sync(long position, long length) throws IOException {
+		return fileDriver.sync(position, length);
+	}
+
+	/**
+	 * Checksums the pages written since the file was opened, and the pages
+	 * which had none, then closes the file and writes the clean checksums. The
+	 * damaged pages never accessed keep their checksum.
+	 */
+	@Override
+	public void close() throws IOException {
+		tableLock.lock();
+		try {
+			final long length = fileDriver.length();
+			final int pageCount = pageCount(length);
+			final int[] closedChecksums = Arrays.copyOf(checksums, pageCount);
+			for (int page = writtenPages.nextSetBit(0); page >= 0 && page < pageCount; page = writtenPages.nextSetBit(page + 1)) {
+				closedChecksums[page] = checksum(fileDriver, page, length);
+			}
+			for (int page = checksums.length; page < pageCount; page++) {
+				if (!writtenPages.get(page))
+					closedChecksums[page] = checksum(fileDriver, page, length);
+			}
+			fileDriver.close();
+			writeTable(checksumFile, true, length, closedChecksums);
+		} finally {
+			tableLock.unlock();
+		}
+	}
+
+	/**
+	 * Checks every page of the file against the checksums written by its last
+	 * close, without changing anything. The damaged pages are reported as
+	 * regions, contiguous ones merged, as well as the bytes added or removed
+	 * since.
+	 *
+	 * @param fileDriver
+	 * @param checksumFile
+	 * @return the damaged regions, empty if none
+	 * @throws IOException
+	 *             if the checksums are missing or were not written by a close
+	 */
+	public static List<DamagedRegion> scan(FileDriver fileDriver, File checksumFile) throws IOException {
+		final Table table = readTable(checksumFile);
+		if (table == null || !table.clean)
+			throw new IOException("The checksums of " + checksumFile.getName() + " are missing or were not written by a close");
+		final List<DamagedRegion> damagedRegions = new ArrayList<>();
+		final long length = fileDriver.length();
+		final long checkedLength = Math.min(length, table.length);
+		for (int page = 0; page < pageCount(checkedLength); page++) {
+			final long pageStart = (long) page * PAGE_SIZE;
+			final long pageLength = Math.min(PAGE_SIZE, table.length - pageStart);
+			// a page cut by a shorter file is within the missing bytes
+			if (pageStart + pageLength <= length && checksum(fileDriver, page, table.length) != table.checksums[page])
+				addDamagedRegion(damagedRegions, pageStart, Math.min(pageLength, checkedLength - pageStart));
+		}
+		if (length != table.length)
+			addDamagedRegion(damagedRegions, checkedLength, Math.abs(length - table.length));
+		return damagedRegions;
+	}
+
+	private static void addDamagedRegion(List<DamagedRegion> damagedRegions, long position, long length) {
+		if (!damagedRegions.isEmpty()) {
+			final DamagedRegion last = damagedRegions.get(damagedRegions.size() - 1);
+			if (last.position + last.length == position) {
+				damagedRegions.set(damagedRegions.size() - 1, new DamagedRegion(last.position, last.length + length));
+				return;
+			}
+		}
+		damagedRegions.add(new DamagedRegion(position, length));
+	}
+
+	/**
+	 * Returns the checksums of checksumFile, or null if it does not exist or
+	 * is not a checksum file of this page size.
+	 */
+	private static Table readTable(File checksumFile) throws IOException {
+		if (!checksumFile.exists() || checksumFile.length() < HEADER_BYTE_SIZE)
+			return null;
+		try (RandomAccessFile raf = new RandomAccessFile(checksumFile, "r")) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTE_SIZE);
+			raf.getChannel().read(header, 0);
+			header.flip();
+			if (header.getLong() != CHECKSUM_SIGNATURE)
+				return null;
+			final boolean clean = header.getInt() != 0;
+			if (header.getInt() != PAGE_SIZE)
+				return null;
+			final long length = header.getLong();
+			final int pageCount = header.getInt();
+			if (checksumFile.length() < HEADER_BYTE_SIZE + 4L * pageCount)
+				return null;
+			final ByteBuffer buffer = ByteBuffer.allocate(4 * pageCount);
+			raf.getChannel().read(buffer, HEADER_BYTE_SIZE);
+			buffer.flip();
+			final int[] checksums = new int[pageCount];
+			buffer.asIntBuffer().get(checksums);
+			return new Table(clean, length, checksums);
+		}
+	}
+
+	private static void writeTable(File checksumFile, boolean clean, long length, int[] checksums) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTE_SIZE + 4 * checksums.length);
+		buffer.putLong(CHECKSUM_SIGNATURE).putInt(clean ? 1 : 0).putInt(PAGE_SIZE).putLong(length).putInt(checksums.length);
+		buffer.asIntBuffer().put(checksums);
+		buffer.rewind();
+		try (RandomAccessFile raf = new RandomAccessFile(checksumFile, "rw")) {
+			final FileChannel channel = raf.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, buffer.position());
+			}
+			channel.truncate(HEADER_BYTE_SIZE + 4L * checksums.length);
+			channel.force(true);
+		}
+	}
+
+	private static class Table {
+
+		final boolean clean;
+		final long length;
+		final int[] checksums;
+
+		Table(boolean clean, long length, int[] checksums) {
+			this.clean = clean;
+			this.length = length;
+			this.checksums = checksums;
+		}
+	}
+
+	/**
+	 * Bytes of a file found damaged by {@link ChecksumFileDriver#scan(FileDriver, File)}.
+	 */
+	public static class DamagedRegion {
+
+		private final long position;
+		private final long length;
+
+		public DamagedRegion(long position, long length) {
+			this.position = position;
+			this.length = length;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		@Override
+		public String toString() {
+			return length + " bytes at " + position;
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+package com.pmaps.pmap.filedriver;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the bytes of a file are found damaged : see
+ * {@link ChecksumFileDriver}.
+ *
+ * @author Bleu
+ *
+ */
+public class CorruptedFileException extends IOException {
+
+	private static final long serialVersionUID = 3316385462180943615L;
+
+	private final long position;
+	private final long length;
+
+	public CorruptedFileException(String message, long position, long length) {
+		this(message, position, length, null);
+	}
+
+	public CorruptedFileException(String message, long position, long length, Throwable cause) {
+		super(message + " : " + length + " bytes at " + position, cause);
+		this.position = position;
+		this.length = length;
+	}
+
+	/**
+	 * Returns the position of the damaged bytes in the file.
+	 *
+	 * @return
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+}
@@ -2,6 +2,8 @@ package com.pmaps.pmap.filedriver;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class maps a list of files with according to (ie baseName + dot +
@@ -13,15 +15,15 @@ import java.io.IOException;
 public class DataFileDriver implements FileDriver {
 
 	protected final RandomAccessXFile raxf;
-	protected final Object accessLock;
+	protected final ReentrantLock accessLock;
 	
 	
 	public DataFileDriver(String baseName, File baseDirectory, int maxDataFileSize, int maxNumberOfDataFile) throws IOException {
-		accessLock = new Object();
+		accessLock = new ReentrantLock();
 		raxf = new RandomAccessXFile(baseName, baseDirectory, maxDataFileSize, maxNumberOfDataFile);
 	}
 
-	public Object getAccessLock() {
+	public Lock getAccessLock() {
 		return accessLock;
 	}
 
@@ -49,14 +51,24 @@ public class DataFileDriver implements FileDriver {
 
 	@Override
 	public int getInt(long index) throws IOException {
-		raxf.seek(index);
-		return raxf.readInt();
+		accessLock.lock();
+		try {
+			raxf.seek(index);
+			return raxf.readInt();
+		} finally {
+			accessLock.unlock();
+		}
 	}
 
 	@Override
 	public void setInt(long index, int i) throws IOException {
-		raxf.seek(index);
-		raxf.writeInt(i);
+		accessLock.lock();
+		try {
+			raxf.seek(index);
+			raxf.writeInt(i);
+		} finally {
+			accessLock.unlock();
+		}
 		
 	}
 
@@ -67,14 +79,24 @@ public class DataFileDriver implements FileDriver {
 
 	@Override
 	public long getLong(long index) throws IOException {
-		raxf.seek(index);
-		return raxf.readLong();
+		accessLock.lock();
+		try {
+			raxf.seek(index);
+			return raxf.readLong();
+		} finally {
+			accessLock.unlock();
+		}
 	}
 
 	@Override
 	public void setLong(long index, long l) throws IOException {
-		raxf.seek(index);
-		raxf.writeLong(l);
+		accessLock.lock();
+		try {
+			raxf.seek(index);
+			raxf.writeLong(l);
+		} finally {
+			accessLock.unlock();
+		}
 	}
 
 	@Override
@@ -85,7 +107,12 @@ public class DataFileDriver implements FileDriver {
 
 	@Override
 	public void setLength(long newLength) throws IOException {
-		raxf.setLength(newLength);
+		accessLock.lock();
+		try {
+			raxf.setLength(newLength);
+		} finally {
+			accessLock.unlock();
+		}
 		
 	}
 
@@ -103,7 +130,12 @@ public class DataFileDriver implements FileDriver {
 
 	@Override
 	public long length() throws IOException {
-		return raxf.length();
+		accessLock.lock();
+		try {
+			return raxf.length();
+		} finally {
+			accessLock.unlock();
+		}
 	}
 
 	@Override
@@ -120,13 +152,24 @@ public class DataFileDriver implements FileDriver {
 
 	@Override
 	public void get(long index, byte[] b) throws IOException {
-		raxf.seek(index);
-		raxf.read(b);
+		accessLock.lock();
+		try {
+			raxf.seek(index);
+			raxf.read(b);
+		} finally {
+			accessLock.unlock();
+		}
 	}
 
 	@Override
 	public void set(long index, byte[] b) throws IOException {
-		raxf.seek(index);raxf.write(b);
+		accessLock.lock();
+		try {
+			raxf.seek(index);
+			raxf.write(b);
+		} finally {
+			accessLock.unlock();
+		}
 		
 	}
 
@@ -142,6 +185,28 @@ public class DataFileDriver implements FileDriver {
 		
 	}
 
+	@Override
+	public void read(byte[] b, int off, int len) throws IOException {
+		raxf.readFully(b, off, len);
+
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		raxf.write(b, off, len);
+
+	}
+
+	@Override
+	public void sync() throws IOException {
+		accessLock.lock();
+		try {
+			raxf.sync();
+		} finally {
+			accessLock.unlock();
+		}
+	}
+
 	@Override
 	public void close() throws IOException {
 		raxf.close();
@@ -1,10 +1,19 @@
 package com.pmaps.pmap.filedriver;
 
 import java.io.IOException;
+import java.util.concurrent.locks.Lock;
 
 public interface FileDriver {
 
-	Object getAccessLock();
+	/**
+	 * Lock to hold around a seek and the relative accesses which follow it.
+	 * Accesses given their position, as well as {@link #length()} and
+	 * {@link #setLength(long)}, need not hold it : they take it by themselves
+	 * when they have to.
+	 * 
+	 * @return
+	 */
+	Lock getAccessLock();
 
 	/**
 	 * Returns the sum of the file's lengths of all the files represented by this {@link FileDriver}.
@@ -41,6 +50,14 @@ public interface FileDriver {
 
 	void get(byte[] b) throws IOException;
 
+	/**
+	 * Reads b.length bytes at index. Implementations may read without the
+	 * access lock, at the same time as other accesses.
+	 * 
+	 * @param index
+	 * @param b
+	 * @throws IOException
+	 */
 	void get(long index, byte[] b) throws IOException;
 
 	void set(long index, byte[] b) throws IOException;
@@ -49,8 +66,40 @@ public interface FileDriver {
 
 	void read(byte[] b) throws IOException;
 
+	/**
+	 * Reads exactly len bytes at the current position into b, starting at
+	 * off.
+	 */
+	void read(byte[] b, int off, int len) throws IOException;
+
 	void write(byte[] b) throws IOException;
 
+	/**
+	 * Writes len bytes of b, starting at off, at the current position.
+	 */
+	void write(byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Forces the writes done so far to the storage device.
+	 * 
+	 * @throws IOException
+	 */
+	void sync() throws IOException;
+
+	/**
+	 * Forces the writes done so far in the length bytes from position.
+	 * Drivers which can only force whole files, by {@link #sync()}, force
+	 * nothing and return false.
+	 * 
+	 * @param position
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	default boolean sync(long position, long length) throws IOException {
+		return false;
+	}
+
 	void close() throws IOException;
 
 }
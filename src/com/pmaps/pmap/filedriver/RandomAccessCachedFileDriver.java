@@ -5,10 +5,11 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.pmaps.pmap.PMap;
 import com.pmaps.pmap.index.BTreeNode;
@@ -22,7 +23,6 @@ public class RandomAccessCachedFileDriver implements FileDriver {
 	 * makes byte buffers of 1Mb roughly
 	 */
 	private final static int NUMBER_OF_INDEX_NODE_PER_CACHEDBYTEBUFFER = 21800;
-	private final static int INDEX_NODE_MAP_UNIT_SIZE = NUMBER_OF_INDEX_NODE_PER_CACHEDBYTEBUFFER * BTreeNode.BYTE_SIZE;
 
 	private class ByteBufferOffset {
 		private final ByteBuffer byteBuffer;
@@ -36,22 +36,45 @@ public class RandomAccessCachedFileDriver implements FileDriver {
 		
 	}
 
+	/**
+	 * Nodes never overlap two buffers.
+	 */
+	private final int indexNodeMapUnitSize;
+
 	private final RandomAccessFile raf;
-	private final Object accessLock;
-	private final FileChannel fileChannel;
+	private final ReentrantLock accessLock;
+	/**
+	 * Maps and forces the file : an interrupt does not close it.
+	 */
+	private final UninterruptibleFileChannel fileChannel;
 	// private final ByteBuffer cachedByteBuffer;
+	/**
+	 * Grown under the access lock, read without it.
+	 */
 	private final List<ByteBufferOffset> cachedByteBufferList;
 
 	private ByteBufferOffset currentByteBufferOffset;
 
 	public RandomAccessCachedFileDriver(File file) throws IOException {
+		this(file, BTreeNode.BYTE_SIZE);
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @param nodeByteSize
+	 *            size of the nodes stored from {@link PMap#POSITION_START_DATA}
+	 * @throws IOException
+	 */
+	public RandomAccessCachedFileDriver(File file, int nodeByteSize) throws IOException {
 		if (!file.exists()) {
 
 		}
+		indexNodeMapUnitSize = NUMBER_OF_INDEX_NODE_PER_CACHEDBYTEBUFFER * nodeByteSize;
 		raf = new RandomAccessFile(file, "rw");
-		accessLock = new Object();
-		fileChannel = raf.getChannel();
-		cachedByteBufferList = new ArrayList<>();
+		accessLock = new ReentrantLock();
+		fileChannel = new UninterruptibleFileChannel(file, "rw");
+		cachedByteBufferList = new CopyOnWriteArrayList<>();
 		final MappedByteBuffer headerByteBuffer = fileChannel.map(MapMode.READ_WRITE, 0, POSITION_INDEX_START);
 		final ByteBufferOffset headerBBO = new ByteBufferOffset(headerByteBuffer, 0);
 		cachedByteBufferList.add(headerBBO);
@@ -64,18 +87,17 @@ public class RandomAccessCachedFileDriver implements FileDriver {
 	private ByteBufferOffset getCachedByteBuffer(long position) throws IOException {
 		// get the index of the cached byte buffer store in the
 		// cachedByteBufferList
-		int byteBufferListIndex = 0;
+		final int byteBufferListIndex = getByteBufferListIndex(position);
 		
 		if (position >= POSITION_INDEX_START) {
-			byteBufferListIndex = (int) ((position - POSITION_INDEX_START) / INDEX_NODE_MAP_UNIT_SIZE) + 1;
-			// offset = (byteBufferListIndex -1) * INDEX_NODE_MAP_UNIT_SIZE +
+			// offset = (byteBufferListIndex -1) * indexNodeMapUnitSize +
 			// POSITION_INDEX_START;
 			if (byteBufferListIndex >= cachedByteBufferList.size()) {
 				// creates new buffers
 				for (int i = cachedByteBufferList.size(); i <= byteBufferListIndex; i++) {
 
-					long bufferPosition = (i - 1) * INDEX_NODE_MAP_UNIT_SIZE + POSITION_INDEX_START;
-					final MappedByteBuffer map = fileChannel.map(MapMode.READ_WRITE, bufferPosition, INDEX_NODE_MAP_UNIT_SIZE);
+					long bufferPosition = (i - 1) * indexNodeMapUnitSize + POSITION_INDEX_START;
+					final MappedByteBuffer map = fileChannel.map(MapMode.READ_WRITE, bufferPosition, indexNodeMapUnitSize);
 					cachedByteBufferList.add(new ByteBufferOffset(map,bufferPosition) );
 				}
 			}
@@ -85,12 +107,18 @@ public class RandomAccessCachedFileDriver implements FileDriver {
 		return cachedByteBufferList.get(byteBufferListIndex);
 	}
 
+	private int getByteBufferListIndex(long position) {
+		if (position < POSITION_INDEX_START)
+			return 0;
+		return (int) ((position - POSITION_INDEX_START) / indexNodeMapUnitSize) + 1;
+	}
+
 	private ByteBufferOffset getCurrentByteBuffer() {
 		return currentByteBufferOffset;
 	}
 
 	@Override
-	public Object getAccessLock() {
+	public Lock getAccessLock() {
 		return accessLock;
 	}
 
@@ -136,15 +164,24 @@ public class RandomAccessCachedFileDriver implements FileDriver {
 
 	@Override
 	public int getInt(long index) throws IOException {
-		final ByteBufferOffset bbo = getCachedByteBuffer(index);
-		return bbo.byteBuffer.getInt((int) (index- bbo.arrayOffset()));
+		accessLock.lock();
+		try {
+			final ByteBufferOffset bbo = getCachedByteBuffer(index);
+			return bbo.byteBuffer.getInt((int) (index- bbo.arrayOffset()));
+		} finally {
+			accessLock.unlock();
+		}
 	}
 
 	@Override
 	public void setInt(long index, int i) throws IOException {
-		final ByteBufferOffset bbo = getCachedByteBuffer(index);
-		bbo.byteBuffer.putInt((int) (index- bbo.arrayOffset()), i);
-
+		accessLock.lock();
+		try {
+			final ByteBufferOffset bbo = getCachedByteBuffer(index);
+			bbo.byteBuffer.putInt((int) (index- bbo.arrayOffset()), i);
+		} finally {
+			accessLock.unlock();
+		}
 	}
 
 	@Override
@@ -154,15 +191,24 @@ public class RandomAccessCachedFileDriver implements FileDriver {
 
 	@Override
 	public long getLong(long index) throws IOException {
-		final ByteBufferOffset bbo = getCachedByteBuffer(index);
-		return bbo.byteBuffer.getLong((int) (index - bbo.arrayOffset()));
+		accessLock.lock();
+		try {
+			final ByteBufferOffset bbo = getCachedByteBuffer(index);
+			return bbo.byteBuffer.getLong((int) (index - bbo.arrayOffset()));
+		} finally {
+			accessLock.unlock();
+		}
 	}
 
 	@Override
 	public void setLong(long index, long l) throws IOException {
-		final ByteBufferOffset bbo = getCachedByteBuffer(index);		
-		bbo.byteBuffer.putLong((int) (index-bbo.arrayOffset()), l);
-
+		accessLock.lock();
+		try {
+			final ByteBufferOffset bbo = getCachedByteBuffer(index);
+			bbo.byteBuffer.putLong((int) (index-bbo.arrayOffset()), l);
+		} finally {
+			accessLock.unlock();
+		}
 	}
 
 	@Override
@@ -183,20 +229,47 @@ public class RandomAccessCachedFileDriver implements FileDriver {
 
 	}
 
+	/**
+	 * Unlike the other accesses, the bytes may overlap several buffers.
+	 */
 	@Override
 	public void get(long index, byte[] b) throws IOException {
-		final ByteBufferOffset bbo = getCachedByteBuffer(index);				
-		bbo.byteBuffer.position((int) (index -bbo.arrayOffset()));
-		bbo.byteBuffer.get(b);
-
+		int off = 0;
+		while (off < b.length) {
+			final long position = index + off;
+			final int byteBufferListIndex = getByteBufferListIndex(position);
+			final ByteBufferOffset bbo;
+			if (byteBufferListIndex < cachedByteBufferList.size()) {
+				// absolute reads of a mapped buffer : the access lock is not
+				// needed
+				bbo = cachedByteBufferList.get(byteBufferListIndex);
+			} else {
+				accessLock.lock();
+				try {
+					bbo = getCachedByteBuffer(position);
+				} finally {
+					accessLock.unlock();
+				}
+			}
+			final int offset = (int) (position - bbo.arrayOffset());
+			final int n = Math.min(b.length - off, bbo.byteBuffer.capacity() - offset);
+			for (int i = 0; i < n; i++) {
+				b[off + i] = bbo.byteBuffer.get(offset + i);
+			}
+			off += n;
+		}
 	}
 
 	@Override
 	public void set(long index, byte[] b) throws IOException {
-		final ByteBufferOffset bbo = getCachedByteBuffer(index);				
-		bbo.byteBuffer.position((int) (index -bbo.arrayOffset()));
-		bbo.byteBuffer.put(b);
-
+		accessLock.lock();
+		try {
+			final ByteBufferOffset bbo = getCachedByteBuffer(index);
+			bbo.byteBuffer.position((int) (index -bbo.arrayOffset()));
+			bbo.byteBuffer.put(b);
+		} finally {
+			accessLock.unlock();
+		}
 	}
 
 	@Override
@@ -217,6 +290,43 @@ public class RandomAccessCachedFileDriver implements FileDriver {
 
 	}
 
+	@Override
+	public void read(byte[] b, int off, int len) throws IOException {
+		getCurrentByteBuffer().byteBuffer.get(b, off, len);
+
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		getCurrentByteBuffer().byteBuffer.put(b, off, len);
+
+	}
+
+	@Override
+	public void sync() throws IOException {
+		for (ByteBufferOffset byteBufferOffset : cachedByteBufferList) {
+			((MappedByteBuffer) byteBufferOffset.byteBuffer).force();
+		}
+		fileChannel.force(true);
+	}
+
+	/**
+	 * Forces the dirty pages of the buffers in the range.
+	 */
+	@Override
+	public boolean sync(long position, long length) throws IOException {
+		final long end = position + length;
+		for (ByteBufferOffset byteBufferOffset : cachedByteBufferList) {
+			final long bufferEnd = byteBufferOffset.offset + byteBufferOffset.byteBuffer.capacity();
+			if (byteBufferOffset.offset >= end || bufferEnd <= position)
+				continue;
+			final long from = Math.max(position, byteBufferOffset.offset);
+			final long to = Math.min(end, bufferEnd);
+			((MappedByteBuffer) byteBufferOffset.byteBuffer).force((int) (from - byteBufferOffset.offset), (int) (to - from));
+		}
+		return true;
+	}
+
 	@Override
 	public void close() throws IOException {
 		fileChannel.close();
@@ -1,25 +1,45 @@
 package com.pmaps.pmap.filedriver;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class RandomAccessFileDriver implements FileDriver {
 
+	private static final int MAX_WRAPPED_LENGTH = 256;
+
 	protected final RandomAccessFile raf;
-	protected final Object accessLock;
+	protected final ReentrantLock accessLock;
+	/**
+	 * Positioned reads and writes, which do not move the file pointer : they
+	 * do not take the access lock. Its own channel : an interrupt closing it
+	 * does not close raf.
+	 */
+	private final UninterruptibleFileChannel channel;
+	/**
+	 * Positioned int and long accesses of the current thread.
+	 */
+	private final ThreadLocal<ByteBuffer> primitiveBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(Long.BYTES));
+	/**
+	 * The last small array read or written at a position by the current
+	 * thread, wrapped : the callers reuse their node buffers.
+	 */
+	private final ThreadLocal<ByteBuffer> wrappedBuffers = new ThreadLocal<>();
 	
-	public RandomAccessFileDriver(File file ) throws FileNotFoundException {
+	public RandomAccessFileDriver(File file ) throws IOException {
 		this(file, "rw");
 	}
 
-	public RandomAccessFileDriver(File file, String mode) throws FileNotFoundException {
+	public RandomAccessFileDriver(File file, String mode) throws IOException {
 		raf = new RandomAccessFile(file, mode);
-		this.accessLock = new Object();
+		this.accessLock = new ReentrantLock();
+		this.channel = new UninterruptibleFileChannel(file, mode);
 	}
 
-	public Object getAccessLock() {
+	public Lock getAccessLock() {
 		return accessLock;
 	}
 
@@ -47,15 +67,14 @@ public class RandomAccessFileDriver implements FileDriver {
 
 	@Override
 	public int getInt(long index) throws IOException {
-		raf.seek(index);
-		return raf.readInt();
+		final ByteBuffer buffer = primitiveBuffer(Integer.BYTES);
+		channel.readFully(buffer, index);
+		return buffer.getInt(0);
 	}
 
 	@Override
 	public void setInt(long index, int i) throws IOException {
-		raf.seek(index);
-		raf.writeInt(i);
-		
+		channel.writeFully(primitiveBuffer(Integer.BYTES).putInt(0, i), index);
 	}
 
 	@Override
@@ -65,14 +84,20 @@ public class RandomAccessFileDriver implements FileDriver {
 
 	@Override
 	public long getLong(long index) throws IOException {
-		raf.seek(index);
-		return raf.readLong();
+		final ByteBuffer buffer = primitiveBuffer(Long.BYTES);
+		channel.readFully(buffer, index);
+		return buffer.getLong(0);
 	}
 
 	@Override
 	public void setLong(long index, long l) throws IOException {
-		raf.seek(index);
-		raf.writeLong(l);
+		channel.writeFully(primitiveBuffer(Long.BYTES).putLong(0, l), index);
+	}
+
+	private ByteBuffer primitiveBuffer(int length) {
+		final ByteBuffer buffer = primitiveBuffers.get();
+		buffer.clear().limit(length);
+		return buffer;
 	}
 
 	@Override
@@ -83,7 +108,12 @@ public class RandomAccessFileDriver implements FileDriver {
 
 	@Override
 	public void setLength(long newLength) throws IOException {
-		raf.setLength(newLength);
+		accessLock.lock();
+		try {
+			raf.setLength(newLength);
+		} finally {
+			accessLock.unlock();
+		}
 		
 	}
 
@@ -101,7 +131,12 @@ public class RandomAccessFileDriver implements FileDriver {
 
 	@Override
 	public long length() throws IOException {
-		return raf.length();
+		accessLock.lock();
+		try {
+			return raf.length();
+		} finally {
+			accessLock.unlock();
+		}
 	}
 
 	@Override
@@ -118,14 +153,23 @@ public class RandomAccessFileDriver implements FileDriver {
 
 	@Override
 	public void get(long index, byte[] b) throws IOException {
-		raf.seek(index);
-		raf.read(b);
+		channel.readFully(wrap(b), index);
 	}
 
 	@Override
 	public void set(long index, byte[] b) throws IOException {
-		raf.seek(index);raf.write(b);
-		
+		channel.writeFully(wrap(b), index);
+	}
+
+	private ByteBuffer wrap(byte[] b) {
+		if (b.length > MAX_WRAPPED_LENGTH)
+			return ByteBuffer.wrap(b);
+		ByteBuffer buffer = wrappedBuffers.get();
+		if (buffer == null || buffer.array() != b) {
+			buffer = ByteBuffer.wrap(b);
+			wrappedBuffers.set(buffer);
+		}
+		return buffer.clear();
 	}
 
 	@Override
@@ -140,8 +184,26 @@ public class RandomAccessFileDriver implements FileDriver {
 		
 	}
 
+	@Override
+	public void read(byte[] b, int off, int len) throws IOException {
+		raf.readFully(b, off, len);
+
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		raf.write(b, off, len);
+
+	}
+
+	@Override
+	public void sync() throws IOException {
+		channel.force(true);
+	}
+
 	@Override
 	public void close() throws IOException {
+		channel.close();
 		raf.close();
 		
 	}
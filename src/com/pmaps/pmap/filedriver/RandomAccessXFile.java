@@ -231,6 +231,17 @@ public class RandomAccessXFile implements Closeable, DataInput, DataOutput, Auto
 		}
 	}
 
+	/**
+	 * Forces the writes done so far in all the files to the storage device.
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		for (RandomAccessFileOffset rafo : randomAccessFileMap.values()) {
+			rafo.randomAccessFile.getChannel().force(true);
+		}
+	}
+
 	//
 	// Some "reading/writing Java data types" methods stolen from
 	// DataInputStream and DataOutputStream.
@@ -0,0 +1,378 @@
+package com.pmaps.pmap.filedriver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * <p>
+ * Decorates a {@link FileDriver} with point-in-time views of the file. While a
+ * {@link View} is open, the first write to each page of the file saves the
+ * page as it was when the view was opened. The reads of a thread which has
+ * entered the view return the saved pages, and the file for the pages not
+ * written since.
+ * </p>
+ * <p>
+ * A view must be opened while the file is not written. Relative accesses are
+ * expected to follow a {@link #seek(long)}, under the access lock.
+ * </p>
+ * Without open view, the accesses are passed as they are.
+ *
+ * @author Bleu
+ *
+ */
+public class SnapshotFileDriver implements FileDriver {
+
+	public static final int PAGE_SIZE = 4096;
+
+	private final FileDriver fileDriver;
+	private final List<View> views = new CopyOnWriteArrayList<>();
+	private final ThreadLocal<View> currentView = new ThreadLocal<>();
+
+	/**
+	 * Position of the relative accesses, guarded by the access lock.
+	 */
+	private long position;
+
+	public SnapshotFileDriver(FileDriver fileDriver) {
+		this.fileDriver = fileDriver;
+	}
+
+	/**
+	 * Returns the decorated driver.
+	 *
+	 * @return
+	 */
+	public FileDriver getFileDriver() {
+		return fileDriver;
+	}
+
+	/**
+	 * Opens a view of the file as it is now.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public View openView() throws IOException {
+		final View view = new View(fileDriver.length());
+		views.add(view);
+		return view;
+	}
+
+	private View getCurrentView() {
+		return views.isEmpty() ? null : currentView.get();
+	}
+
+	/**
+	 * Saves the pages of [index, index + length) for the open views, before
+	 * they are written.
+	 */
+	private void beforeWrite(long index, long length) throws IOException {
+		for (View view : views) {
+			view.save(index, length);
+		}
+	}
+
+	/**
+	 * Saves the pages at the current position before a relative write. Reading
+	 * them may move the file pointer of the decorated driver.
+	 */
+	private void beforeRelativeWrite(long length) throws IOException {
+		if (views.isEmpty())
+			return;
+		beforeWrite(position, length);
+		fileDriver.seek(position);
+	}
+
+	private ByteBuffer readRelative(View view, int length) throws IOException {
+		final byte[] b = new byte[length];
+		view.read(position, b, 0, length);
+		position += length;
+		return ByteBuffer.wrap(b);
+	}
+
+	@Override
+	public Lock getAccessLock() {
+		return fileDriver.getAccessLock();
+	}
+
+	@Override
+	public long length() throws IOException {
+		final View view = getCurrentView();
+		return view == null ? fileDriver.length() : view.length;
+	}
+
+	@Override
+	public void setLength(long newLength) throws IOException {
+		if (!views.isEmpty()) {
+			final long length = fileDriver.length();
+			if (newLength < length)
+				beforeWrite(newLength, length - newLength);
+		}
+		fileDriver.setLength(newLength);
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		this.position = position;
+		fileDriver.seek(position);
+	}
+
+	@Override
+	public int getInt() throws IOException {
+		final View view = getCurrentView();
+		if (view != null)
+			return readRelative(view, 4).getInt();
+		position += 4;
+		return fileDriver.getInt();
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		return getInt();
+	}
+
+	@Override
+	public void setInt(int i) throws IOException {
+		beforeRelativeWrite(4);
+		position += 4;
+		fileDriver.setInt(i);
+	}
+
+	@Override
+	public void writeInt(int i) throws IOException {
+		setInt(i);
+	}
+
+	@Override
+	public int getInt(long index) throws IOException {
+		final View view = getCurrentView();
+		if (view == null)
+			return fileDriver.getInt(index);
+		final byte[] b = new byte[4];
+		view.read(index, b, 0, 4);
+		return ByteBuffer.wrap(b).getInt();
+	}
+
+	@Override
+	public void setInt(long index, int i) throws IOException {
+		if (!views.isEmpty())
+			beforeWrite(index, 4);
+		fileDriver.setInt(index, i);
+	}
+
+	@Override
+	public long getLong() throws IOException {
+		final View view = getCurrentView();
+		if (view != null)
+			return readRelative(view, 8).getLong();
+		position += 8;
+		return fileDriver.getLong();
+	}
+
+	@Override
+	public long getLong(long index) throws IOException {
+		final View view = getCurrentView();
+		if (view == null)
+			return fileDriver.getLong(index);
+		final byte[] b = new byte[8];
+		view.read(index, b, 0, 8);
+		return ByteBuffer.wrap(b).getLong();
+	}
+
+	@Override
+	public void setLong(long index, long l) throws IOException {
+		if (!views.isEmpty())
+			beforeWrite(index, 8);
+		fileDriver.setLong(index, l);
+	}
+
+	@Override
+	public void setLong(long l) throws IOException {
+		beforeRelativeWrite(8);
+		position += 8;
+		fileDriver.setLong(l);
+	}
+
+	@Override
+	public void writeLong(long l) throws IOException {
+		setLong(l);
+	}
+
+	@Override
+	public void get(byte[] b) throws IOException {
+		final View view = getCurrentView();
+		if (view != null)
+			view.read(position, b, 0, b.length);
+		else
+			fileDriver.get(b);
+		position += b.length;
+	}
+
+	@Override
+	public void get(long index, byte[] b) throws IOException {
+		final View view = getCurrentView();
+		if (view == null)
+			fileDriver.get(index, b);
+		else
+			view.read(index, b, 0, b.length);
+	}
+
+	@Override
+	public void set(long index, byte[] b) throws IOException {
+		if (!views.isEmpty())
+			beforeWrite(index, b.length);
+		fileDriver.set(index, b);
+	}
+
+	@Override
+	public void set(byte[] b) throws IOException {
+		beforeRelativeWrite(b.length);
+		position += b.length;
+		fileDriver.set(b);
+	}
+
+	@Override
+	public void read(byte[] b) throws IOException {
+		final View view = getCurrentView();
+		if (view != null)
+			view.read(position, b, 0, b.length);
+		else
+			fileDriver.read(b);
+		position += b.length;
+	}
+
+	@Override
+	public void read(byte[] b, int off, int len) throws IOException {
+		final View view = getCurrentView();
+		if (view != null)
+			view.read(position, b, off, len);
+		else
+			fileDriver.read(b, off, len);
+		position += len;
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		beforeRelativeWrite(b.length);
+		position += b.length;
+		fileDriver.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		beforeRelativeWrite(len);
+		position += len;
+		fileDriver.write(b, off, len);
+	}
+
+	@Override
+	public void sync() throws IOException {
+		fileDriver.sync();
+	}
+
+	@Override
+	public boolean sync(long position, long length) throws IOException {
+		return fileDriver.sync(position, length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		views.clear();
+		fileDriver.close();
+	}
+
+	/**
+	 * The file as it was when the view was opened. The saved pages are kept
+	 * in memory until the view is closed.
+	 */
+	public class View {
+
+		private final long length;
+		private final Map<Long, byte[]> savedPages = new ConcurrentHashMap<>();
+
+		private View(long length) {
+			this.length = length;
+		}
+
+		/**
+		 * The reads of the current thread are done in this view, until
+		 * {@link #exit()}.
+		 */
+		public void enter() {
+			currentView.set(this);
+		}
+
+		public void exit() {
+			currentView.remove();
+		}
+
+		/**
+		 * Stops saving pages and releases the saved ones.
+		 */
+		public void close() {
+			views.remove(this);
+			savedPages.clear();
+		}
+
+		/**
+		 * Returns the number of bytes saved for this view.
+		 *
+		 * @return
+		 */
+		public long getSavedByteSize() {
+			long savedByteSize = 0;
+			for (byte[] page : savedPages.values()) {
+				savedByteSize += page.length;
+			}
+			return savedByteSize;
+		}
+
+		private void save(long index, long len) throws IOException {
+			final long end = Math.min(index + len, length);
+			for (long page = index / PAGE_SIZE; page * PAGE_SIZE < end; page++) {
+				if (savedPages.containsKey(page))
+					continue;
+				final long pageStart = page * PAGE_SIZE;
+				final byte[] savedPage = new byte[(int) Math.min(PAGE_SIZE, length - pageStart)];
+				fileDriver.get(pageStart, savedPage);
+				// saved before written : a page written by a concurrent
+				// writer has already been saved by it
+				savedPages.putIfAbsent(page, savedPage);
+			}
+		}
+
+		private void read(long index, byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				final long page = index / PAGE_SIZE;
+				final int pageOffset = (int) (index % PAGE_SIZE);
+				int n = Math.min(len, PAGE_SIZE - pageOffset);
+				if (index < length)
+					n = (int) Math.min(n, length - index);
+
+				// nothing is saved beyond the length of the view
+				byte[] savedPage = index < length ? savedPages.get(page) : null;
+				if (savedPage == null) {
+					final byte[] current = new byte[n];
+					fileDriver.get(index, current);
+					// the page is saved before it is written : checked again
+					// once read
+					savedPage = index < length ? savedPages.get(page) : null;
+					if (savedPage == null)
+						System.arraycopy(current, 0, b, off, n);
+				}
+				if (savedPage != null)
+					System.arraycopy(savedPage, pageOffset, b, off, n);
+
+				index += n;
+				off += n;
+				len -= n;
+			}
+		}
+	}
+
+}
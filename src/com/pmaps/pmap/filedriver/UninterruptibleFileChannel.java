@@ -0,0 +1,216 @@
+package com.pmaps.pmap.filedriver;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Positioned I/O on a file, which an interrupt does not break. A
+ * {@link FileChannel} is closed when a thread blocked in one of its
+ * operations is interrupted, and then fails for every thread : here the
+ * channel is opened again and the operation done again.
+ * </p>
+ * <p>
+ * An interrupted thread completes its operation with its interrupt flag
+ * cleared, and the flag is set back once done : a node, a pair or a log
+ * record is never left half written because a task was cancelled.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+public class UninterruptibleFileChannel implements AutoCloseable {
+
+	private final Path path;
+	private final OpenOption[] options;
+	/**
+	 * Replaced under the reopen lock, read without it.
+	 */
+	private volatile FileChannel channel;
+	private final ReentrantLock reopenLock = new ReentrantLock();
+	private volatile boolean closed;
+
+	/**
+	 * @param file
+	 * @param mode
+	 *            "r", "rw", "rws" or "rwd", as for a
+	 *            {@link java.io.RandomAccessFile}
+	 * @throws IOException
+	 */
+	public UninterruptibleFileChannel(File file, String mode) throws IOException {
+		this.path = file.toPath();
+		this.options = openOptions(mode);
+		this.channel = FileChannel.open(path, options);
+	}
+
+	private static OpenOption[] openOptions(String mode) {
+		switch (mode) {
+		case "r":
+			return new OpenOption[] { StandardOpenOption.READ };
+		case "rw":
+			return new OpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE };
+		case "rws":
+			return new OpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.SYNC };
+		case "rwd":
+			return new OpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.DSYNC };
+		default:
+			throw new IllegalArgumentException("Illegal mode \"" + mode + "\"");
+		}
+	}
+
+	/**
+	 * Returns the current channel, for reads done once while nothing else
+	 * uses the file.
+	 *
+	 * @return
+	 */
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Reads the remaining bytes of buffer, from position in the file.
+	 *
+	 * @param buffer
+	 * @param position
+	 * @throws IOException
+	 *             {@link EOFException} if the file ends before.
+	 */
+	public void readFully(ByteBuffer buffer, long position) throws IOException {
+		final long start = position - buffer.position();
+		// a flag set before would close the channel at once
+		boolean interrupted = Thread.interrupted();
+		try {
+			while (buffer.hasRemaining()) {
+				final FileChannel current = channel;
+				try {
+					if (current.read(buffer, start + buffer.position()) < 0)
+						throw new EOFException();
+				} catch (ClosedChannelException e) {
+					interrupted |= reopen(current, e);
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes the remaining bytes of buffer, from position in the file.
+	 *
+	 * @param buffer
+	 * @param position
+	 * @throws IOException
+	 */
+	public void writeFully(ByteBuffer buffer, long position) throws IOException {
+		final long start = position - buffer.position();
+		// a flag set before would close the channel at once
+		boolean interrupted = Thread.interrupted();
+		try {
+			while (buffer.hasRemaining()) {
+				final FileChannel current = channel;
+				try {
+					current.write(buffer, start + buffer.position());
+				} catch (ClosedChannelException e) {
+					interrupted |= reopen(current, e);
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	public void force(boolean metaData) throws IOException {
+		run(current -> {
+			current.force(metaData);
+			return null;
+		});
+	}
+
+	public long size() throws IOException {
+		return run(FileChannel::size);
+	}
+
+	public void truncate(long size) throws IOException {
+		run(current -> current.truncate(size));
+	}
+
+	/**
+	 * The buffer stays valid once the channel is opened again.
+	 */
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		return run(current -> current.map(mode, position, size));
+	}
+
+	@Override
+	public void close() throws IOException {
+		reopenLock.lock();
+		try {
+			closed = true;
+			channel.close();
+		} finally {
+			reopenLock.unlock();
+		}
+	}
+
+	private interface Operation<T> {
+		T run(FileChannel channel) throws IOException;
+	}
+
+	private <T> T run(Operation<T> operation) throws IOException {
+		// a flag set before would close the channel at once
+		boolean interrupted = Thread.interrupted();
+		try {
+			while (true) {
+				final FileChannel current = channel;
+				try {
+					return operation.run(current);
+				} catch (ClosedChannelException e) {
+					interrupted |= reopen(current, e);
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Opens the channel again if closedChannel is still the current one,
+	 * unless this channel was closed.
+	 *
+	 * @return true if the current thread was interrupted : its flag is
+	 *         cleared, it would close the new channel at once.
+	 */
+	private boolean reopen(FileChannel closedChannel, ClosedChannelException e) throws IOException {
+		final boolean interrupted = Thread.interrupted();
+		reopenLock.lock();
+		try {
+			if (closed) {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+				throw e;
+			}
+			if (channel == closedChannel)
+				channel = FileChannel.open(path, options);
+		} finally {
+			reopenLock.unlock();
+		}
+		return interrupted;
+	}
+
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.Enumeration;
 
+import com.pmaps.PMapException;
 import com.pmaps.pmap.PMap;
 import com.pmaps.pmap.filedriver.FileDriver;
 import com.pmaps.pmap.pair.Pair;
@@ -21,6 +22,9 @@ import com.pmaps.pmap.pair.PlainPair;
  * [beforeTreePointer:long | keyHash1:int | nextPair1Pointer:long | centerTreePointer:long | keyHash2:int | nextPair2Pointer:long | afterTreePointer:long]
  * </code>
  * 
+ * Indexes with long keys (see {@link BTreeNodeDriver#isLongKeys()}) store
+ * keyHash1 and keyHash2 as longs.
+ * 
  * @author Bleu
  * 
  * @param <Kp>
@@ -29,16 +33,17 @@ import com.pmaps.pmap.pair.PlainPair;
 public class BTreeNode<K, V> {
 
 	public final static int BYTE_SIZE = 8 + 4 + 8 + 8 + 4 + 8 + 8; // 48
+	public final static int LONG_KEY_BYTE_SIZE = 8 + 8 + 8 + 8 + 8 + 8 + 8; // 56
 
-	private final PMap<K, V> pMap;
+	private final BTreeNodeDriver<K, V> nodeDriver;
 
 	final long position;
 
 	long beforeTreePointer;
-	int keyHash1;
+	long keyHash1;
 	long nextPair1Pointer;
 	long centerTreePointer;
-	int keyHash2;
+	long keyHash2;
 	long nextPair2Pointer;
 	long afterTreePointer;
 
@@ -52,23 +57,39 @@ public class BTreeNode<K, V> {
 	 * @throws IOException
 	 */
 	public BTreeNode(PMap<K, V> pMap, long position) throws IOException {
+		this(pMap.getNodeDriver(), position);
+	}
+
+	/**
+	 * <p>
+	 * <b>Read constructor.</b>
+	 * </p>
+	 * 
+	 * @param nodeDriver
+	 * @param position
+	 * @throws IOException
+	 */
+	public BTreeNode(BTreeNodeDriver<K, V> nodeDriver, long position) throws IOException {
 
-		this.pMap = pMap;
-		final FileDriver fileDriver = pMap.getIndexFileDriver();
-		synchronized (fileDriver.getAccessLock()) {
+		this.nodeDriver = nodeDriver;
+		final FileDriver fileDriver = nodeDriver.getIndexFileDriver();
+		fileDriver.getAccessLock().lock();
+		try {
 			fileDriver.seek(position);
 
 			this.position = position;
 
 			beforeTreePointer = fileDriver.getLong();
-			keyHash1 = fileDriver.readInt();
+			keyHash1 = nodeDriver.readKey(fileDriver);
 			nextPair1Pointer = fileDriver.getLong();
 
 			centerTreePointer = fileDriver.getLong();
 
-			keyHash2 = fileDriver.readInt();
+			keyHash2 = nodeDriver.readKey(fileDriver);
 			nextPair2Pointer = fileDriver.getLong();
 			afterTreePointer = fileDriver.getLong();
+		} finally {
+			fileDriver.getAccessLock().unlock();
 		}
 
 	}
@@ -81,12 +102,12 @@ public class BTreeNode<K, V> {
 	 * Call {@link #write(RandomAccessFile)} to write this {@link BTreeNode} to
 	 * the raf.
 	 * 
-	 * @param pMap
+	 * @param nodeDriver
 	 * @param keyHash
 	 * @param position
 	 */
-	public BTreeNode(PMap<K, V> pMap, int keyHash, long position) {
-		this.pMap = pMap;
+	public BTreeNode(BTreeNodeDriver<K, V> nodeDriver, long keyHash, long position) {
+		this.nodeDriver = nodeDriver;
 
 		this.position = position;
 
@@ -95,36 +116,62 @@ public class BTreeNode<K, V> {
 		beforeTreePointer = nextPair1Pointer = centerTreePointer = nextPair2Pointer = afterTreePointer = PMap.EOF_POSITION;
 	}
 
-	public Enumeration<Pair<K, V>> getPairEnumeration(final int keyHash) {
-		long nextPairPointer;
+	public Enumeration<Pair<K, V>> getPairEnumeration(final long keyHash) {
+		return new PairEnumeration<K, V>(nodeDriver.getPMap(), getNextPairPointer(keyHash));
+	}
 
+	/**
+	 * Returns the pointer registered with keyHash, or
+	 * {@link PMap#EOF_POSITION} if keyHash is not in this node. Indexes
+	 * without pairs store their values there.
+	 * 
+	 * @param keyHash
+	 * @return
+	 */
+	public long getNextPairPointer(final long keyHash) {
 		if (keyHash == keyHash1)
-			nextPairPointer = nextPair1Pointer;
+			return nextPair1Pointer;
 		else if (keyHash == keyHash2)
-			nextPairPointer = nextPair2Pointer;
+			return nextPair2Pointer;
 		else
-			nextPairPointer = PMap.EOF_POSITION;
-
-		return new PairEnumeration<K, V>(pMap, nextPairPointer);
-
+			return PMap.EOF_POSITION;
 	}
 
 	public void write(FileDriver fileDriver) throws IOException {
 
-		synchronized (fileDriver.getAccessLock()) {
+		fileDriver.getAccessLock().lock();
+		try {
 			fileDriver.seek(this.position);
 
 			fileDriver.writeLong(beforeTreePointer);
-			fileDriver.writeInt(keyHash1);
+			nodeDriver.writeKey(fileDriver, keyHash1);
 			fileDriver.writeLong(nextPair1Pointer);
 			fileDriver.writeLong(centerTreePointer);
-			fileDriver.writeInt(keyHash2);
+			nodeDriver.writeKey(fileDriver, keyHash2);
 			fileDriver.writeLong(nextPair2Pointer);
 			fileDriver.writeLong(afterTreePointer);
+		} finally {
+			fileDriver.getAccessLock().unlock();
 		}
 
 	}
 
+	/**
+	 * Writes only the pointer registered with keyHash : the other fields of
+	 * the node may be changed at the same time for the other key hash.
+	 * 
+	 * @param fileDriver
+	 * @param keyHash
+	 * @throws IOException
+	 */
+	public void writeNextPairPointer(FileDriver fileDriver, long keyHash) throws IOException {
+		final int keyByteSize = nodeDriver.isLongKeys() ? 8 : 4;
+		if (keyHash == keyHash1)
+			fileDriver.setLong(position + 8 + keyByteSize, nextPair1Pointer);
+		else if (keyHash == keyHash2)
+			fileDriver.setLong(position + 8 + keyByteSize + 8 + 8 + keyByteSize, nextPair2Pointer);
+	}
+
 	/**
 	 * When registering a new node, this node given in parameter has to be a one
 	 * value node and only the keyHash1 is taken into account.
@@ -143,7 +190,43 @@ public class BTreeNode<K, V> {
 
 	}
 
-	public void setNextPairPointer(int keyHash, long pairPointer) {
+	/**
+	 * Returns a copy of this node to be written at position.
+	 * 
+	 * @param position
+	 * @return
+	 */
+	BTreeNode<K, V> copyTo(long position) {
+		final BTreeNode<K, V> copy = new BTreeNode<>(nodeDriver, keyHash1, position);
+		copy.beforeTreePointer = beforeTreePointer;
+		copy.nextPair1Pointer = nextPair1Pointer;
+		copy.centerTreePointer = centerTreePointer;
+		copy.keyHash2 = keyHash2;
+		copy.nextPair2Pointer = nextPair2Pointer;
+		copy.afterTreePointer = afterTreePointer;
+		return copy;
+	}
+
+	/**
+	 * Makes the tree pointer to the child node at oldPosition point to
+	 * newPosition.
+	 * 
+	 * @param oldPosition
+	 * @param newPosition
+	 */
+	void replaceTreePointer(long oldPosition, long newPosition) {
+		if (beforeTreePointer == oldPosition)
+			beforeTreePointer = newPosition;
+		else if (centerTreePointer == oldPosition)
+			centerTreePointer = newPosition;
+		else if (afterTreePointer == oldPosition)
+			afterTreePointer = newPosition;
+		else
+			// should never be thrown!
+			throw new PMapException("bad index format");
+	}
+
+	public void setNextPairPointer(long keyHash, long pairPointer) {
 		if (keyHash == keyHash1)
 			nextPair1Pointer = pairPointer;
 		else if (keyHash == keyHash2)
@@ -3,16 +3,31 @@ package com.pmaps.pmap.index;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
 
 import com.pmaps.PMapException;
 import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.filedriver.CorruptedFileException;
 import com.pmaps.pmap.filedriver.FileDriver;
 
 /**
  * This class manages all the read access to the underlying file using the file
  * driver.
  * 
+ * An index may also be used without any {@link PMap} : the keys are then
+ * stored as they are, possibly as longs, and the pair pointers of the nodes
+ * are free for the caller. See {@link #BTreeNodeDriver(FileDriver, boolean)}.
+ * 
+ * With shadow paging, see {@link #setShadowPaging(boolean)}, the changes of
+ * the tree structure are copy on write and published by {@link #commit()}.
+ * 
  * 
  * @author Bleu
  * 
@@ -24,26 +39,211 @@ public class BTreeNodeDriver<K, V> {
 
 	private final PMap<K, V> pMap;
 	private final FileDriver indexFileDriver;
+	private final boolean longKeys;
+	private final int nodeByteSize;
+	/**
+	 * Nodes read by {@link #findEntryPosition(long, StampedLock, long)}.
+	 */
+	private final ThreadLocal<ByteBuffer> nodeBuffers;
+
+	/*
+	 * Shadow paging state, changed by the writer holding the structure lock
+	 * only.
+	 */
+	private boolean shadowPaging;
+	/**
+	 * True once the tree was changed since the last {@link #commit()} :
+	 * {@link #workingTopNodePosition} is then the root of the changed tree.
+	 */
+	private boolean uncommitted;
+	private long workingTopNodePosition;
+	/**
+	 * Nodes written since the last commit, not referenced by the committed
+	 * tree : they are written in place.
+	 */
+	private final Set<Long> shadowNodePositions = new HashSet<>();
+	/**
+	 * Nodes of the committed tree replaced or removed since the last commit,
+	 * freed once it is no more referenced.
+	 */
+	private final List<Long> pendingFreeNodePositions = new ArrayList<>();
 
 	public BTreeNodeDriver(PMap<K, V> pMap, FileDriver indexFileDriver) {
+		this(pMap, indexFileDriver, false);
+	}
+
+	/**
+	 * Index driver without pairs.
+	 * 
+	 * @param indexFileDriver
+	 * @param longKeys
+	 *            true to index long keys, false for int keys.
+	 */
+	public BTreeNodeDriver(FileDriver indexFileDriver, boolean longKeys) {
+		this(null, indexFileDriver, longKeys);
+	}
+
+	private BTreeNodeDriver(PMap<K, V> pMap, FileDriver indexFileDriver, boolean longKeys) {
 		this.pMap = pMap;
 		this.indexFileDriver = indexFileDriver;
-
+		this.longKeys = longKeys;
+		this.nodeByteSize = longKeys ? BTreeNode.LONG_KEY_BYTE_SIZE : BTreeNode.BYTE_SIZE;
+		this.nodeBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(nodeByteSize));
 	}
 
 	protected FileDriver getIndexFileDriver() {
 		return indexFileDriver;
 	}
 
-	public BTreeNode<K, V> goToIndex(int hashCode) {
+	PMap<K, V> getPMap() {
+		return pMap;
+	}
+
+	public boolean isLongKeys() {
+		return longKeys;
+	}
+
+	public int getNodeByteSize() {
+		return nodeByteSize;
+	}
+
+	public boolean isShadowPaging() {
+		return shadowPaging;
+	}
+
+	/**
+	 * <p>
+	 * Enables the shadow paging of the tree. A node of the committed tree is
+	 * never changed by {@link #registerNewEntry} or {@link #removeHashEntry} :
+	 * it is copied to a free position, as are its parents up to the root, and
+	 * the copies are changed. The new root is kept in memory, and only
+	 * written at {@link PMap#POSITION_TOP_NODE} by {@link #commit()}, after
+	 * the index file is forced : a crash leaves the tree as it was at the
+	 * last commit, and the lock free lookups keep reading the committed tree.
+	 * The replaced nodes are freed by the commit.
+	 * </p>
+	 * The pair pointers of the existing nodes are still written in place : a
+	 * single long, written at once.
+	 * 
+	 * @param shadowPaging
+	 */
+	public void setShadowPaging(boolean shadowPaging) {
+		this.shadowPaging = shadowPaging;
+	}
+
+	/**
+	 * Returns true if the tree was changed since the last commit.
+	 * 
+	 * @return
+	 */
+	public boolean isUncommitted() {
+		return uncommitted;
+	}
+
+	/**
+	 * Publishes the tree changed since the last commit : forces the index
+	 * file, then writes the new root position and forces it, and frees the
+	 * replaced nodes.
+	 * The files the tree points to must be forced first. Does nothing
+	 * without changes or without shadow paging.
+	 * 
+	 * @throws IOException
+	 */
+	public void commit() throws IOException {
+		if (!uncommitted)
+			return;
+		indexFileDriver.sync();
+		writeTopNodePosition(workingTopNodePosition);
+		// the replaced nodes are reused once the new root is on the device
+		indexFileDriver.sync();
+		uncommitted = false;
+		shadowNodePositions.clear();
+		for (long position : pendingFreeNodePositions) {
+			linkFreeNodePosition(position);
+		}
+		pendingFreeNodePositions.clear();
+	}
+
+	/**
+	 * Copies the nodes of treePathPositions which are in the committed tree,
+	 * from the root : each copy is linked to its parent copy. The positions
+	 * are replaced by the ones of the copies.
+	 */
+	private void shadowPath(LinkedList<Long> treePathPositions) throws IOException {
+		BTreeNode<K, V> parent = null;
+		for (ListIterator<Long> iterator = treePathPositions.listIterator(); iterator.hasNext();) {
+			final long position = iterator.next();
+			if (position == PMap.EOF_POSITION)
+				break;
+			BTreeNode<K, V> node = new BTreeNode<>(this, position);
+			if (!shadowNodePositions.contains(position)) {
+				node = shadow(parent, node);
+				iterator.set(node.position);
+			}
+			parent = node;
+		}
+	}
+
+	/**
+	 * Copies the nodes of nodeList which are in the committed tree. The first
+	 * node is a child of parent, which is already a copy, and each next node
+	 * a child of the previous one.
+	 */
+	private void shadowNodes(BTreeNode<K, V> parent, LinkedList<BTreeNode<K, V>> nodeList) throws IOException {
+		for (ListIterator<BTreeNode<K, V>> iterator = nodeList.listIterator(); iterator.hasNext();) {
+			BTreeNode<K, V> node = iterator.next();
+			if (!shadowNodePositions.contains(node.position)) {
+				node = shadow(parent, node);
+				iterator.set(node);
+			}
+			parent = node;
+		}
+	}
 
-		LinkedList<Long> positions;
+	/**
+	 * Writes a copy of node at a free position and links it to parent, or
+	 * makes it the working root if parent is null. node is freed at the next
+	 * commit.
+	 */
+	private BTreeNode<K, V> shadow(BTreeNode<K, V> parent, BTreeNode<K, V> node) throws IOException {
+		final BTreeNode<K, V> copy = node.copyTo(pollFreeNodePosition());
+		copy.write(indexFileDriver);
+		if (parent == null) {
+			setTopNodePosition(copy.position);
+		} else {
+			parent.replaceTreePointer(node.position, copy.position);
+			parent.write(indexFileDriver);
+		}
+		pendingFreeNodePositions.add(node.position);
+		return copy;
+	}
+
+	long readKey(FileDriver fileDriver) throws IOException {
+		return longKeys ? fileDriver.getLong() : fileDriver.readInt();
+	}
+
+	void writeKey(FileDriver fileDriver, long key) throws IOException {
+		if (longKeys)
+			fileDriver.writeLong(key);
+		else
+			fileDriver.writeInt((int) key);
+	}
+
+	/**
+	 * Returns the node of hashCode or null. Only this node is built : the
+	 * path to it is not kept, see {@link #findEntryPositions(long)}.
+	 * 
+	 * @param hashCode
+	 * @return
+	 */
+	public BTreeNode<K, V> goToIndex(long hashCode) {
 		try {
-			positions = findEntryPositions(hashCode);
-			long lastIndexPosition = positions.getLast();
-			if (lastIndexPosition != PMap.EOF_POSITION) {
-				BTreeNode<K, V> index = new BTreeNode<K, V>(pMap, lastIndexPosition);
-				return index;
+			long p = getTopIndexPosition();
+			while (p != PMap.EOF_POSITION) {
+				final long next = findNextEntryPosition(p, hashCode);
+				if (next == p)
+					return new BTreeNode<K, V>(this, p);
+				p = next;
 			}
 		} catch (IOException e) {
 			throw new PMapException("Index lookup error.", e);
@@ -63,7 +263,7 @@ public class BTreeNodeDriver<K, V> {
 	 * @return
 	 * @throws IOException
 	 */
-	public LinkedList<Long> findEntryPositions(int hashKey) throws IOException {
+	public LinkedList<Long> findEntryPositions(long hashKey) throws IOException {
 		long p = getTopIndexPosition();
 		LinkedList<Long> nodePosition = new LinkedList<Long>();
 
@@ -91,6 +291,78 @@ public class BTreeNodeDriver<K, V> {
 		}
 	}
 
+	/**
+	 * <p>
+	 * Lock free variant of {@link #findEntryPositions(long)} : each node is
+	 * read at once with {@link FileDriver#get(long, byte[])}, without the
+	 * access lock of the file.
+	 * </p>
+	 * <p>
+	 * The tree may be changed meanwhile. stamp is validated before following
+	 * each pointer and the lookup stops as soon as it is no longer valid : the
+	 * result is only meaningful if the caller validates it the same way.
+	 * </p>
+	 * 
+	 * @param hashKey
+	 * @param structureLock
+	 * @param stamp
+	 *            an optimistic read stamp of structureLock
+	 * @return the position of the node of hashKey or
+	 *         {@link PMap#EOF_POSITION}
+	 * @throws IOException
+	 */
+	public long findEntryPosition(long hashKey, StampedLock structureLock, long stamp) throws IOException {
+		final ByteBuffer node = nodeBuffers.get();
+		final int keyByteSize = longKeys ? 8 : 4;
+
+		indexFileDriver.get(PMap.POSITION_TOP_NODE, node.array());
+		long p = node.getLong(0);
+		while (p != PMap.EOF_POSITION && structureLock.validate(stamp)) {
+			indexFileDriver.get(p, node.array());
+			final long hashKey1 = readKey(node, 8);
+			if (hashKey1 == hashKey)
+				return p;
+			if (hashKey < hashKey1) {
+				p = node.getLong(0);
+				continue;
+			}
+			final long hashKey2 = readKey(node, 8 + keyByteSize + 8 + 8);
+			if (hashKey < hashKey2 || hashKey2 == hashKey1)
+				p = node.getLong(8 + keyByteSize + 8);
+			else if (hashKey2 == hashKey)
+				return p;
+			else
+				p = node.getLong(8 + keyByteSize + 8 + 8 + keyByteSize + 8);
+		}
+		return PMap.EOF_POSITION;
+	}
+
+	/**
+	 * Reads the pair pointer registered with hashKey in the node at position,
+	 * without the access lock of the file. Returns {@link PMap#EOF_POSITION}
+	 * if hashKey is not in this node.
+	 * 
+	 * @param position
+	 * @param hashKey
+	 * @return
+	 * @throws IOException
+	 */
+	public long readNextPairPointer(long position, long hashKey) throws IOException {
+		final ByteBuffer node = nodeBuffers.get();
+		final int keyByteSize = longKeys ? 8 : 4;
+
+		indexFileDriver.get(position, node.array());
+		if (readKey(node, 8) == hashKey)
+			return node.getLong(8 + keyByteSize);
+		if (readKey(node, 8 + keyByteSize + 8 + 8) == hashKey)
+			return node.getLong(8 + keyByteSize + 8 + 8 + keyByteSize);
+		return PMap.EOF_POSITION;
+	}
+
+	private long readKey(ByteBuffer node, int index) {
+		return longKeys ? node.getLong(index) : node.getInt(index);
+	}
+
 	/**
 	 * XXX This method duplicates the {@link BTreeNode} read constructor but
 	 * optimizes the read in order not to perform all read operations, but only
@@ -106,12 +378,13 @@ public class BTreeNodeDriver<K, V> {
 	 *         return the node has been found.
 	 * @throws IOException
 	 */
-	protected long findNextEntryPosition(long position, int hashKey) throws IOException {
-		synchronized (indexFileDriver.getAccessLock()) {
+	protected long findNextEntryPosition(long position, long hashKey) throws IOException {
+		indexFileDriver.getAccessLock().lock();
+		try {
 			getIndexFileDriver().seek(position);
 			try {
 				long beforePointer = getIndexFileDriver().getLong();
-				int hashKey1 = getIndexFileDriver().readInt();
+				long hashKey1 = readKey(getIndexFileDriver());
 				if (hashKey1 == hashKey)
 					return position;
 				else if (hashKey < hashKey1)
@@ -119,7 +392,7 @@ public class BTreeNodeDriver<K, V> {
 
 				getIndexFileDriver().getLong(); // skip nextPair1Pointer
 				long centerPointer = getIndexFileDriver().getLong();
-				int hashKey2 = getIndexFileDriver().readInt();
+				long hashKey2 = readKey(getIndexFileDriver());
 
 				if (hashKey < hashKey2 || hashKey2 == hashKey1)
 					return centerPointer;
@@ -136,25 +409,41 @@ public class BTreeNodeDriver<K, V> {
 				return afterPointer;
 
 			} catch (EOFException eofe) {
-				// TODO should raise the error
-				eofe.printStackTrace();
-				System.err.println("Bad file format ! File is corrupted at " + position);
-				return PMap.EOF_POSITION;
+				throw new CorruptedFileException("Node beyond the end of the index", position, nodeByteSize, eofe);
 			}
+		} finally {
+			indexFileDriver.getAccessLock().unlock();
 		}
 	}
 
 	/**
-	 * Look at the {@link PMap#initFile}
+	 * Look at the {@link PMap#initFile}. With shadow paging, the root of the
+	 * tree changed since the last commit : must be called under the structure
+	 * lock. See {@link #getCommittedTopIndexPosition()}.
 	 * 
 	 * @return
 	 * @throws IOException
 	 */
 	public long getTopIndexPosition() throws IOException {
-		synchronized (indexFileDriver.getAccessLock()) {
+		if (uncommitted)
+			return workingTopNodePosition;
+		return getCommittedTopIndexPosition();
+	}
+
+	/**
+	 * Returns the root of the tree as written in the file.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public long getCommittedTopIndexPosition() throws IOException {
+		indexFileDriver.getAccessLock().lock();
+		try {
 			getIndexFileDriver().seek(PMap.POSITION_TOP_NODE);
 			long p = getIndexFileDriver().getLong();
 			return p;
+		} finally {
+			indexFileDriver.getAccessLock().unlock();
 		}
 	}
 
@@ -174,13 +463,21 @@ public class BTreeNodeDriver<K, V> {
 	 * @return
 	 * @throws IOException
 	 */
-	public BTreeNode<K, V> registerNewEntry(LinkedList<Long> treePathPositions, int keyHash, long pairPointer, BTreeNode<K, V> previousLeft,
+	public BTreeNode<K, V> registerNewEntry(LinkedList<Long> treePathPositions, long keyHash, long pairPointer, BTreeNode<K, V> previousLeft,
+			BTreeNode<K, V> previousRight) throws IOException {
+		if (shadowPaging)
+			shadowPath(treePathPositions);
+		return insertEntry(treePathPositions, keyHash, pairPointer, previousLeft, previousRight);
+	}
+
+	private BTreeNode<K, V> insertEntry(LinkedList<Long> treePathPositions, long keyHash, long pairPointer, BTreeNode<K, V> previousLeft,
 			BTreeNode<K, V> previousRight) throws IOException {
 
 		// if no node are registered :
 		if (treePathPositions.size() == 0) {
 			// create a new node that will be the root node :
-			BTreeNode<K, V> current = new BTreeNode<>(pMap, keyHash, pollFreeNodePosition());
+			BTreeNode<K, V> current = new BTreeNode<>(this, keyHash, pollFreeNodePosition());
+			current.nextPair1Pointer = pairPointer;
 
 			current.write(getIndexFileDriver());
 			// we register the root node in the file !
@@ -190,7 +487,7 @@ public class BTreeNodeDriver<K, V> {
 
 		}
 
-		BTreeNode<K, V> current = new BTreeNode<>(pMap, treePathPositions.pollLast());
+		BTreeNode<K, V> current = new BTreeNode<>(this, treePathPositions.pollLast());
 
 		if (current.keyHash1 == current.keyHash2) {
 			/*
@@ -227,17 +524,20 @@ public class BTreeNodeDriver<K, V> {
 			 * nodes !
 			 */
 			BTreeNode<K, V> currentLeft, currentRight;
-			synchronized (indexFileDriver.getAccessLock()) {
+			indexFileDriver.getAccessLock().lock();
+			try {
 				final long currentLeftPosition = this.pollFreeNodePosition();
 				final long currentRightPosition = this.pollFreeNodePosition();
-				currentLeft = new BTreeNode<>(pMap, 0, currentLeftPosition);
-				currentRight = new BTreeNode<>(pMap, 0, currentRightPosition);
+				currentLeft = new BTreeNode<>(this, 0, currentLeftPosition);
+				currentRight = new BTreeNode<>(this, 0, currentRightPosition);
 
+			} finally {
+				indexFileDriver.getAccessLock().unlock();
 			}
 			// 1- find the hash to forward, the left hash and the right one
 			// !
 
-			int hashToForward;
+			long hashToForward;
 			long pairPointerToForward;
 			BTreeNode<K, V> resultNode;
 
@@ -303,16 +603,19 @@ public class BTreeNodeDriver<K, V> {
 			// 3 - forward the process to the upper node !
 			if (treePathPositions.size() > 0) {
 				// call this method if treePathPositions is not empty ...
-				BTreeNode<K, V> upperResultNode = registerNewEntry(treePathPositions, hashToForward, pairPointerToForward, currentLeft, currentRight);
+				BTreeNode<K, V> upperResultNode = insertEntry(treePathPositions, hashToForward, pairPointerToForward, currentLeft, currentRight);
 
 				return resultNode == null ? upperResultNode : resultNode;
 			} else {
 				// in this case current is the root node : let's create a
 				// new root
-				synchronized (indexFileDriver.getAccessLock()) {
-					BTreeNode<K, V> rootNode = new BTreeNode<>(pMap, hashToForward, getIndexFileDriver().length());
+				indexFileDriver.getAccessLock().lock();
+				try {
+					BTreeNode<K, V> rootNode = new BTreeNode<>(this, hashToForward, getIndexFileDriver().length());
 					// reserve the space !
-					getIndexFileDriver().setLength(getIndexFileDriver().length() + BTreeNode.BYTE_SIZE);
+					getIndexFileDriver().setLength(getIndexFileDriver().length() + nodeByteSize);
+					if (shadowPaging)
+						shadowNodePositions.add(rootNode.position);
 
 					rootNode.beforeTreePointer = currentLeft.position;
 					rootNode.centerTreePointer = currentRight.position;
@@ -322,6 +625,8 @@ public class BTreeNodeDriver<K, V> {
 					setTopNodePosition(rootNode.position);
 
 					return resultNode == null ? rootNode : resultNode;
+				} finally {
+					indexFileDriver.getAccessLock().unlock();
 				}
 			}
 
@@ -334,13 +639,14 @@ public class BTreeNodeDriver<K, V> {
 	 * @return
 	 * @throws IOException
 	 */
-	protected long pollFreeNodePosition() throws IOException {
-		synchronized (indexFileDriver.getAccessLock()) {
+	public long pollFreeNodePosition() throws IOException {
+		indexFileDriver.getAccessLock().lock();
+		try {
 			long freeNodePosition = indexFileDriver.getLong(PMap.POSITION_FREE_NODE);
 			if (freeNodePosition == PMap.EOF_POSITION) {
 				freeNodePosition = indexFileDriver.length();
 				// reserve the space for the btree node :
-				indexFileDriver.setLength(freeNodePosition + BTreeNode.BYTE_SIZE);
+				indexFileDriver.setLength(freeNodePosition + nodeByteSize);
 			} else {
 				/*
 				 * freeNodePosition is inside the file --> update the new
@@ -350,7 +656,11 @@ public class BTreeNodeDriver<K, V> {
 				final long newFreePositon = indexFileDriver.getLong(freeNodePosition);
 				indexFileDriver.setLong(PMap.POSITION_FREE_NODE, newFreePositon);
 			}
+			if (shadowPaging)
+				shadowNodePositions.add(freeNodePosition);
 			return freeNodePosition;
+		} finally {
+			indexFileDriver.getAccessLock().unlock();
 		}
 
 	}
@@ -360,17 +670,28 @@ public class BTreeNodeDriver<K, V> {
 	 * method should be called so that the space in the file could be reused.
 	 * See also {@link #pollFreeNodePosition()}
 	 * 
-	 * Once called the node data is changed.
+	 * Once called the node data is changed. With shadow paging, a node of the
+	 * committed tree is only freed by the next {@link #commit()}.
 	 * 
 	 * @param position
 	 * @throws IOException
 	 */
-	protected void registerFreeNodePosition(long position) throws IOException {
-		synchronized (indexFileDriver.getAccessLock()) {
+	public void registerFreeNodePosition(long position) throws IOException {
+		if (shadowPaging && !shadowNodePositions.remove(position))
+			pendingFreeNodePositions.add(position);
+		else
+			linkFreeNodePosition(position);
+	}
+
+	private void linkFreeNodePosition(long position) throws IOException {
+		indexFileDriver.getAccessLock().lock();
+		try {
 			long oldFreeNodePosition = indexFileDriver.getLong(PMap.POSITION_FREE_NODE);
 			indexFileDriver.setLong(PMap.POSITION_FREE_NODE, position);
 			indexFileDriver.setLong(position, oldFreeNodePosition);
 
+		} finally {
+			indexFileDriver.getAccessLock().unlock();
 		}
 	}
 
@@ -383,8 +704,10 @@ public class BTreeNodeDriver<K, V> {
 	 * @param hashCode
 	 * @throws IOException
 	 */
-	public void removeHashEntry(LinkedList<Long> treePathPositions, int hashCode) throws IOException {
-		BTreeNode<K, V> current = new BTreeNode<>(pMap, treePathPositions.pollLast());
+	public void removeHashEntry(LinkedList<Long> treePathPositions, long hashCode) throws IOException {
+		if (shadowPaging)
+			shadowPath(treePathPositions);
+		BTreeNode<K, V> current = new BTreeNode<>(this, treePathPositions.pollLast());
 
 		// 1 - Look for the upper left node.
 		LinkedList<BTreeNode<K, V>> nodeList = new LinkedList<BTreeNode<K, V>>();
@@ -392,9 +715,11 @@ public class BTreeNodeDriver<K, V> {
 
 		BTreeNode<K, V> upperLeft = null;
 		if (upperLeftPosition != PMap.EOF_POSITION) {
-			upperLeft = new BTreeNode<K, V>(pMap, upperLeftPosition);
+			upperLeft = new BTreeNode<K, V>(this, upperLeftPosition);
 			nodeList.add(upperLeft);
 			retrievePathToTheUpperLeftIndex(nodeList);
+			if (shadowPaging)
+				shadowNodes(current, nodeList);
 		}
 
 		// 2 - upper left is identified.
@@ -423,7 +748,7 @@ public class BTreeNodeDriver<K, V> {
 					 * The previous node of current must be updated in order to
 					 * suppress its link to current :
 					 */
-					BTreeNode<K, V> previous = new BTreeNode<K, V>(pMap, treePathPositions.getLast());
+					BTreeNode<K, V> previous = new BTreeNode<K, V>(this, treePathPositions.getLast());
 					long pointerToForward = current.centerTreePointer;
 					if (hashCode < previous.keyHash1)
 						previous.beforeTreePointer = pointerToForward;
@@ -448,7 +773,7 @@ public class BTreeNodeDriver<K, V> {
 		else {
 			// 2.3 upperleft exists --> hash value has to be replaced with
 			// upper left value
-			int upperLeftKey = upperLeft.keyHash1 < upperLeft.keyHash2 ? upperLeft.keyHash2 : upperLeft.keyHash1;
+			long upperLeftKey = upperLeft.keyHash1 < upperLeft.keyHash2 ? upperLeft.keyHash2 : upperLeft.keyHash1;
 			long upperLeftPairPointer = upperLeft.keyHash1 < upperLeft.keyHash2 ? upperLeft.nextPair2Pointer : upperLeft.nextPair1Pointer;
 
 			if (current.keyHash1 == hashCode) {
@@ -510,12 +835,12 @@ public class BTreeNodeDriver<K, V> {
 
 		if (upperLeftPosition != PMap.EOF_POSITION) {
 
-			nodeList.add(new BTreeNode<K, V>(pMap, upperLeftPosition));
+			nodeList.add(new BTreeNode<K, V>(this, upperLeftPosition));
 			retrievePathToTheUpperLeftIndex(nodeList);
 		}
 	}
 
-	protected void eraseByShiftingHash(BTreeNode<K, V> node, int hashCode) {
+	protected void eraseByShiftingHash(BTreeNode<K, V> node, long hashCode) {
 		if (node.keyHash1 == hashCode) {
 			// we shift the values
 			node.keyHash1 = node.keyHash2;
@@ -536,9 +861,21 @@ public class BTreeNodeDriver<K, V> {
 	}
 
 	protected void setTopNodePosition(long p) throws IOException {
-		synchronized (indexFileDriver.getAccessLock()) {
+		if (shadowPaging) {
+			workingTopNodePosition = p;
+			uncommitted = true;
+		} else {
+			writeTopNodePosition(p);
+		}
+	}
+
+	private void writeTopNodePosition(long p) throws IOException {
+		indexFileDriver.getAccessLock().lock();
+		try {
 			indexFileDriver.seek(PMap.POSITION_TOP_NODE);
 			indexFileDriver.writeLong(p);
+		} finally {
+			indexFileDriver.getAccessLock().unlock();
 		}
 
 	}
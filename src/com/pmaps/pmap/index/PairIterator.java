@@ -1,30 +1,40 @@
 package com.pmaps.pmap.index;
 
 import java.io.IOException;
+import java.lang.ref.Cleaner;
 import java.util.ConcurrentModificationException;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
-import java.util.concurrent.locks.Lock;
 
-import com.pmaps.PMapException;
 import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.PMapSnapshot;
 import com.pmaps.pmap.pair.Pair;
 
 /**
  * TODO : Pair iterator should be re-factored to map the structure needed and
  * returned by the method {@link #entrySet()} : Set<Entry<K,V>>.
- * 
+ * <p>
+ * The pairs are read in a {@link PMapSnapshot} opened with the iterator : the
+ * iteration sees the map as it was then, whatever the writes since, and does
+ * not hold the writers. The snapshot is closed once the last pair has been
+ * returned, by {@link #close()} or when the iterator is garbage collected.
+ * Only {@link PMap#clear()} and {@link PMap#close()} make the iterator throw
+ * a {@link ConcurrentModificationException}.
+ * </p>
  * 
  * @author Bleu
  * 
  * @param <Kp>
  * @param <Vp>
  */
-public class PairIterator<K, V> implements Iterator<Pair<K, V>> {
+public class PairIterator<K, V> implements Iterator<Pair<K, V>>, AutoCloseable {
+
+	private static final Cleaner CLEANER = Cleaner.create();
 
 	private final PMap<K, V> pMap;
+	private final PMapSnapshot snapshot;
 
 	private final LinkedList<BTreeNodePosition<K, V>> currentBTreeNodePositionBranch;
 
@@ -36,20 +46,28 @@ public class PairIterator<K, V> implements Iterator<Pair<K, V>> {
 	public PairIterator(PMap<K, V> pMap) throws IOException {
 
 		this.pMap = pMap;
+		this.snapshot = pMap.openSnapshot();
+		// the action must not reference the iterator
+		CLEANER.register(this, snapshot::close);
 
 		this.pMap.registerOngoingIterator(this);
 
-		long topIndexPosition = pMap.getNodeDriver().getTopIndexPosition();
-		BTreeNode<K, V> topNode = new BTreeNode<>(pMap, topIndexPosition);
-		currentBTreeNodePositionBranch = new LinkedList<>();
-		currentBTreeNodePositionBranch.add(new BTreeNodePosition<K, V>(topNode));
-
-		currentPairEnumeration = getNextPairEnumeration(currentBTreeNodePositionBranch);
-		if (currentBTreeNodePositionBranch.size() > 0) {
-			currentBTreeNodePositionBranch.getLast().switcher = currentBTreeNodePositionBranch.getLast().switcher.next();
-			nextPairEnumeration = getNextPairEnumeration(currentBTreeNodePositionBranch);
-		} else
-			nextPairEnumeration = null;
+		snapshot.enter();
+		try {
+			long topIndexPosition = pMap.getNodeDriver().getCommittedTopIndexPosition();
+			BTreeNode<K, V> topNode = new BTreeNode<>(pMap, topIndexPosition);
+			currentBTreeNodePositionBranch = new LinkedList<>();
+			currentBTreeNodePositionBranch.add(new BTreeNodePosition<K, V>(topNode));
+
+			currentPairEnumeration = getNextPairEnumeration(currentBTreeNodePositionBranch);
+			if (currentBTreeNodePositionBranch.size() > 0) {
+				currentBTreeNodePositionBranch.getLast().switcher = currentBTreeNodePositionBranch.getLast().switcher.next();
+				nextPairEnumeration = getNextPairEnumeration(currentBTreeNodePositionBranch);
+			} else
+				nextPairEnumeration = null;
+		} finally {
+			snapshot.exit();
+		}
 	}
 
 	/**
@@ -138,6 +156,7 @@ public class PairIterator<K, V> implements Iterator<Pair<K, V>> {
 
 	public void onConncurrentModification() {
 		concurrentModification = true;
+		snapshot.close();
 	}
 
 	protected boolean isInConcurrentState() {
@@ -149,8 +168,11 @@ public class PairIterator<K, V> implements Iterator<Pair<K, V>> {
 	@Override
 	public boolean hasNext() {
 
-		return (currentPairEnumeration != null && currentPairEnumeration.hasMoreElements())
+		final boolean hasNext = (currentPairEnumeration != null && currentPairEnumeration.hasMoreElements())
 				|| (nextPairEnumeration != null && nextPairEnumeration.hasMoreElements());
+		if (!hasNext)
+			close();
+		return hasNext;
 	}
 
 	@Override
@@ -159,40 +181,47 @@ public class PairIterator<K, V> implements Iterator<Pair<K, V>> {
 		if (currentPairEnumeration == null)
 			throw new NoSuchElementException();
 
-		try {
-			Lock readLock = pMap.getReadLock();
-			readLock.lockInterruptibly();
-
-			try {
-
-				isInConcurrentState();
+		isInConcurrentState();
 
+		// no lock : the snapshot is not written
+		snapshot.enter();
+		try {
+			while (true) {
+				if (currentPairEnumeration.hasMoreElements()) {
+					final Pair<K, V> pair = currentPairEnumeration.nextElement();
+					// the snapshot may have been released while the pair was
+					// read
+					isInConcurrentState();
+					return pair;
+				}
+				if (nextPairEnumeration == null)
+					break;
+				currentPairEnumeration = nextPairEnumeration;
+				currentBTreeNodePositionBranch.getLast().switcher = currentBTreeNodePositionBranch.getLast().switcher.next();
 				try {
-
-					return currentPairEnumeration.nextElement();
-				} catch (NoSuchElementException nsee) {
-					if (nextPairEnumeration != null) {
-						currentPairEnumeration = nextPairEnumeration;
-						currentBTreeNodePositionBranch.getLast().switcher = currentBTreeNodePositionBranch.getLast().switcher.next();
-						try {
-							nextPairEnumeration = getNextPairEnumeration(currentBTreeNodePositionBranch);
-						} catch (IOException e) {
-							throw new NoSuchElementException(e.getMessage());
-						}
-						return next();
-					}
+					nextPairEnumeration = getNextPairEnumeration(currentBTreeNodePositionBranch);
+				} catch (IOException e) {
+					throw new NoSuchElementException(e.getMessage());
 				}
-			} finally {
-				readLock.unlock();
 			}
-		} catch (InterruptedException e) {
-			throw new PMapException("Interruption while running and iterration", e);
+		} finally {
+			snapshot.exit();
 		}
 
+		close();
 		throw new NoSuchElementException();
 
 	}
 
+	/**
+	 * Releases the snapshot of the iteration. Done by itself once the last
+	 * pair has been returned.
+	 */
+	@Override
+	public void close() {
+		snapshot.close();
+	}
+
 	@Override
 	public void remove() {
 		throw new UnsupportedOperationException("Not yet implemented");
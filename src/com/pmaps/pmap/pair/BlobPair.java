@@ -0,0 +1,129 @@
+package com.pmaps.pmap.pair;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.filedriver.FileDriver;
+
+/**
+ * <p>
+ * A pair which value is in the {@link BlobStore}. The decorated pair holds the
+ * key and a {@link BlobReference}; the value is read from the blob each time
+ * {@link #getValue()} is called, straight from the stream.
+ * </p>
+ * <p>
+ * Byte arrays are stored as they are : {@link #openValue()} streams their
+ * content. Other values are stored serialized.
+ * </p>
+ *
+ * @author Bleu
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class BlobPair<K, V> implements Pair<K, V> {
+
+	private final PMap<K, V> pMap;
+	private final BlobStore blobStore;
+	private final Pair<K, V> pair;
+	private final BlobReference blobReference;
+
+	private boolean loaded;
+	private V value;
+
+	protected BlobPair(PMap<K, V> pMap, BlobStore blobStore, Pair<K, V> pair, BlobReference blobReference) {
+		this.pMap = pMap;
+		this.blobStore = blobStore;
+		this.pair = pair;
+		this.blobReference = blobReference;
+	}
+
+	/**
+	 * Returns the decorated pair.
+	 *
+	 * @return
+	 */
+	protected Pair<K, V> getPair() {
+		return pair;
+	}
+
+	public BlobReference getBlobReference() {
+		return blobReference;
+	}
+
+	/**
+	 * Opens the content of the byte array value or the serialized value.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream openValue() throws IOException {
+		return blobStore.open(blobReference.getBlobPointer());
+	}
+
+	/**
+	 * Reads the value and keeps it : it is still returned by
+	 * {@link #getValue()} once the blob has been freed.
+	 * 
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public void loadValue() throws IOException, ClassNotFoundException {
+		value = getValue();
+		loaded = true;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V getValue() throws IOException, ClassNotFoundException {
+		if (loaded)
+			return value;
+		try (InputStream in = openValue()) {
+			if (blobReference.isRaw())
+				return (V) in.readAllBytes();
+			return (V) pMap.getSerializer().unserializeFrom(1, in)[0];
+		}
+	}
+
+	@Override
+	public K getKey() throws IOException, ClassNotFoundException {
+		return pair.getKey();
+	}
+
+	@Override
+	public void write(FileDriver fileDriver) throws IOException {
+		pair.write(fileDriver);
+	}
+
+	@Override
+	public long getPairPointer() {
+		return pair.getPairPointer();
+	}
+
+	@Override
+	public void setPairPointer(long pairPointer) {
+		pair.setPairPointer(pairPointer);
+	}
+
+	@Override
+	public long getNextPairPointer() {
+		return pair.getNextPairPointer();
+	}
+
+	@Override
+	public void setNextPairPointer(long nextPairPointer) {
+		pair.setNextPairPointer(nextPairPointer);
+	}
+
+	@Override
+	public void writeNextPairPointer(FileDriver fileDriver) throws IOException {
+		pair.writeNextPairPointer(fileDriver);
+	}
+
+	@Override
+	public int getDataLength() throws IOException {
+		return pair.getDataLength();
+	}
+
+}
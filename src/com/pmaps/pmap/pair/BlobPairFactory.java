@@ -0,0 +1,175 @@
+package com.pmaps.pmap.pair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.filedriver.FileDriver;
+
+/**
+ * <p>
+ * Decorates a {@link PairFactory} : when a pair takes more than blobThreshold
+ * bytes, its value is streamed to the {@link BlobStore} and the decorated
+ * factory stores the key with a {@link BlobReference}. Such pairs are read as
+ * {@link BlobPair}s.
+ * </p>
+ * <p>
+ * Byte arrays longer than blobThreshold are written as they are, without
+ * serialization.
+ * </p>
+ * <p>
+ * Blob values are serialized with
+ * {@link com.pmaps.pmap.serializer.ISerializer#serializeTo(java.io.OutputStream, Object...)}
+ * so that they can be read back from the stream. The serialized value is
+ * buffered : its length has to be known to take a free extent of the blob
+ * file.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+public class BlobPairFactory implements PairFactory {
+
+	private final PairFactory pairFactory;
+	private final BlobStore blobStore;
+	private final int blobThreshold;
+
+	/**
+	 *
+	 * @param pairFactory
+	 *            factory of all the pairs
+	 * @param blobStore
+	 * @param blobThreshold
+	 *            pairs bigger than this number of bytes have their value in
+	 *            the blob store
+	 */
+	public BlobPairFactory(PairFactory pairFactory, BlobStore blobStore, int blobThreshold) {
+		if (blobThreshold <= 0)
+			throw new IllegalArgumentException("Blob threshold must be positive");
+		this.pairFactory = pairFactory;
+		this.blobStore = blobStore;
+		this.blobThreshold = blobThreshold;
+	}
+
+	public BlobStore getBlobStore() {
+		return blobStore;
+	}
+
+	@Override
+	public <K, V> Pair<K, V> newPairForReading(PMap<K, V> pMap, long pairPointer) throws IOException {
+		final Pair<K, V> pair = pairFactory.newPairForReading(pMap, pairPointer);
+		final Object value;
+		try {
+			value = pair.getValue();
+		} catch (ClassNotFoundException e) {
+			// not a blob reference
+			return pair;
+		}
+		if (value instanceof BlobReference)
+			return new BlobPair<>(pMap, blobStore, pair, (BlobReference) value);
+		return pair;
+	}
+
+	/**
+	 * The blob reference is part of the value : it is not decoded.
+	 */
+	@Override
+	public <K, V> Pair<K, V> newPairForKeyReading(PMap<K, V> pMap, long pairPointer) throws IOException {
+		return pairFactory.newPairForKeyReading(pMap, pairPointer);
+	}
+
+	@Override
+	public <K, V> Pair<K, V> newPairForWriting(PMap<K, V> pMap, long pairPointer, K key, V value) throws IOException {
+		if (value instanceof byte[] && ((byte[]) value).length > blobThreshold) {
+			final byte[] b = (byte[]) value;
+			return newBlobPair(pMap, pairPointer, key, new BlobReference(blobStore.write(b, 0, b.length), true));
+		}
+
+		final Pair<K, V> pair = pairFactory.newPairForWriting(pMap, pairPointer, key, value);
+		if (value == null || pair.getDataLength() <= blobThreshold)
+			return pair;
+
+		final BlobBuffer buffer = new BlobBuffer(pair.getDataLength());
+		pMap.getSerializer().serializeTo(buffer, value);
+		return newBlobPair(pMap, pairPointer, key, new BlobReference(buffer.writeTo(blobStore), false));
+	}
+
+	/**
+	 * Creates a pair which value is a byte array made of the length bytes of
+	 * in. The bytes are copied by chunks to the blob store.
+	 *
+	 * @param pMap
+	 * @param pairPointer
+	 * @param key
+	 * @param in
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	public <K, V> BlobPair<K, V> newPairForWriting(PMap<K, V> pMap, long pairPointer, K key, InputStream in, long length) throws IOException {
+		return newBlobPair(pMap, pairPointer, key, new BlobReference(blobStore.write(in, length), true));
+	}
+
+	@SuppressWarnings("unchecked")
+	private <K, V> BlobPair<K, V> newBlobPair(PMap<K, V> pMap, long pairPointer, K key, BlobReference blobReference) throws IOException {
+		final Pair<K, V> referencePair = pairFactory.newPairForWriting(pMap, pairPointer, key, (V) blobReference);
+		return new BlobPair<>(pMap, blobStore, referencePair, blobReference);
+	}
+
+	@Override
+	public <K, V> void registerFreePairPosition(Pair<K, V> removedPair) throws IOException {
+		if (removedPair instanceof BlobPair)
+			blobStore.free(((BlobPair<K, V>) removedPair).getBlobReference().getBlobPointer());
+		pairFactory.registerFreePairPosition(unwrap(removedPair));
+	}
+
+	@Override
+	public <K, V> void poolFreePairPosition(Pair<K, V> newPair) throws IOException {
+		pairFactory.poolFreePairPosition(unwrap(newPair));
+	}
+
+	/**
+	 * The blob of oldPair, if any, is freed when the pair is rewritten.
+	 */
+	@Override
+	public <K, V> boolean updatePair(FileDriver pairFileDriver, Pair<K, V> oldPair, Pair<K, V> newPair) throws IOException {
+		if (!pairFactory.updatePair(pairFileDriver, unwrap(oldPair), unwrap(newPair)))
+			return false;
+		if (oldPair instanceof BlobPair)
+			blobStore.free(((BlobPair<K, V>) oldPair).getBlobReference().getBlobPointer());
+		return true;
+	}
+
+	@Override
+	public void clearFreePairPositions() {
+		pairFactory.clearFreePairPositions();
+	}
+
+	/**
+	 * The blob store is checkpointed by its map.
+	 */
+	@Override
+	public void checkpoint() throws IOException {
+		pairFactory.checkpoint();
+	}
+
+	/**
+	 * Gives its array to the blob store without copy.
+	 */
+	private static class BlobBuffer extends ByteArrayOutputStream {
+
+		BlobBuffer(int size) {
+			super(size);
+		}
+
+		long writeTo(BlobStore blobStore) throws IOException {
+			return blobStore.write(buf, 0, count);
+		}
+	}
+
+	private static <K, V> Pair<K, V> unwrap(Pair<K, V> pair) {
+		return pair instanceof BlobPair ? ((BlobPair<K, V>) pair).getPair() : pair;
+	}
+
+}
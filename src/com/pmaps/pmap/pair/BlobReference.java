@@ -0,0 +1,41 @@
+package com.pmaps.pmap.pair;
+
+import java.io.Serializable;
+
+/**
+ * Stored in a pair in place of a value too big for the pair file : locates the
+ * serialized value in the {@link BlobStore}.
+ *
+ * @author Bleu
+ *
+ */
+public final class BlobReference implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long blobPointer;
+	/**
+	 * True when the blob is the content of a byte array, false when it is a
+	 * serialized value.
+	 */
+	private final boolean raw;
+
+	BlobReference(long blobPointer, boolean raw) {
+		this.blobPointer = blobPointer;
+		this.raw = raw;
+	}
+
+	public long getBlobPointer() {
+		return blobPointer;
+	}
+
+	public boolean isRaw() {
+		return raw;
+	}
+
+	@Override
+	public String toString() {
+		return "BlobReference [blobPointer=" + blobPointer + ", raw=" + raw + "]";
+	}
+
+}
@@ -0,0 +1,425 @@
+package com.pmaps.pmap.pair;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.filedriver.FileDriver;
+
+/**
+ * <p>
+ * File of large values. A blob is written once, in a single extent, and read
+ * through an {@link InputStream} : it is never loaded in memory as a whole.
+ * </p>
+ * <p>
+ * Free space is tracked by a {@link FreeSpaceMap}, persisted by
+ * {@link #checkpoint()} and referenced from the header of the file. As for the
+ * {@link PartPairFactory}, the reference is cleared on the first change after
+ * a checkpoint.
+ * </p>
+ * File structure : <code>
+ * [freeSpacePointer:long | (blobLength:long | data) *]
+ * </code>
+ * <p>
+ * Allocations and releases are done under a lock : blobs may be written and
+ * read by several threads at the same time.
+ * </p>
+ * <p>
+ * Blobs are never written in place. While freed blobs are retained, see
+ * {@link #retainFreedBlobs()}, their space is not reused : the snapshots of
+ * the map can still read them.
+ * </p>
+ * <p>
+ * With deferred frees, see {@link #setDeferFrees(boolean)}, the space of a
+ * freed blob is only given back by {@link #releaseSealedBlobs()} : the write
+ * ahead log of the map may still refer to it.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+public class BlobStore {
+
+	public static final long BLOB_HEADER_BYTE_SIZE = 8;
+
+	private static final long POSITION_FREE_SPACE = 0;
+	private static final long POSITION_START_DATA = 8;
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final FileDriver fileDriver;
+	private final FreeSpaceMap freeSpaceMap = new FreeSpaceMap();
+	/**
+	 * Guards the free space.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private long persistedPointer;
+	private int persistedLength;
+	private boolean dirty;
+
+	private int retainCount;
+	private final List<Long> retainedBlobPointers = new ArrayList<>();
+
+	private boolean deferFrees;
+	/**
+	 * Blobs freed since the last call to {@link #sealFreedBlobs()}.
+	 */
+	private final List<Long> deferredBlobPointers = new ArrayList<>();
+	/**
+	 * Blobs sealed, waiting for {@link #releaseSealedBlobs()}.
+	 */
+	private final List<Long> sealedBlobPointers = new ArrayList<>();
+
+	public BlobStore(FileDriver fileDriver) throws IOException {
+		this.fileDriver = fileDriver;
+		if (fileDriver.length() < POSITION_START_DATA)
+			init();
+		persistedPointer = fileDriver.getLong(POSITION_FREE_SPACE);
+		if (persistedPointer != PMap.EOF_POSITION)
+			persistedLength = freeSpaceMap.read(fileDriver, persistedPointer);
+	}
+
+	private void init() throws IOException {
+		fileDriver.setLength(0);
+		fileDriver.setLong(POSITION_FREE_SPACE, PMap.EOF_POSITION);
+		freeSpaceMap.clear();
+		persistedPointer = PMap.EOF_POSITION;
+		dirty = false;
+	}
+
+	/**
+	 * Writes length bytes of in in a new blob.
+	 *
+	 * @param in
+	 * @param length
+	 * @return the blob pointer
+	 * @throws IOException
+	 */
+	public long write(InputStream in, long length) throws IOException {
+		final long blobPointer = allocate(length);
+		final byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(1, length))];
+		long position = blobPointer + BLOB_HEADER_BYTE_SIZE;
+		long remaining = length;
+		while (remaining > 0) {
+			final int n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+			if (n < 0) {
+				free(blobPointer);
+				throw new IOException("Stream ended " + remaining + " bytes before the announced length");
+			}
+			fileDriver.getAccessLock().lock();
+			try {
+				fileDriver.seek(position);
+				fileDriver.write(chunk, 0, n);
+			} finally {
+				fileDriver.getAccessLock().unlock();
+			}
+			position += n;
+			remaining -= n;
+		}
+		return blobPointer;
+	}
+
+	/**
+	 * Writes len bytes of b in a new blob.
+	 *
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @return the blob pointer
+	 * @throws IOException
+	 */
+	public long write(byte[] b, int off, int len) throws IOException {
+		final long blobPointer = allocate(len);
+		fileDriver.getAccessLock().lock();
+		try {
+			fileDriver.seek(blobPointer + BLOB_HEADER_BYTE_SIZE);
+			fileDriver.write(b, off, len);
+		} finally {
+			fileDriver.getAccessLock().unlock();
+		}
+		return blobPointer;
+	}
+
+	/**
+	 * Takes the space of a blob of length bytes, in a free extent of the
+	 * smallest size class big enough or at the end of the file.
+	 */
+	private long allocate(long length) throws IOException {
+		lock.lock();
+		try {
+			setDirty();
+			long blobPointer = freeSpaceMap.allocate(BLOB_HEADER_BYTE_SIZE + length);
+			if (blobPointer == PMap.EOF_POSITION) {
+				fileDriver.getAccessLock().lock();
+				try {
+					blobPointer = fileDriver.length();
+					fileDriver.setLength(blobPointer + BLOB_HEADER_BYTE_SIZE + length);
+				} finally {
+					fileDriver.getAccessLock().unlock();
+				}
+			}
+			fileDriver.setLong(blobPointer, length);
+			return blobPointer;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Opens the content of the blob.
+	 *
+	 * @param blobPointer
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream open(long blobPointer) throws IOException {
+		return new BlobInputStream(blobPointer + BLOB_HEADER_BYTE_SIZE, length(blobPointer));
+	}
+
+	public long length(long blobPointer) throws IOException {
+		return fileDriver.getLong(blobPointer);
+	}
+
+	/**
+	 * Defers the frees, see {@link #sealFreedBlobs()}.
+	 *
+	 * @param deferFrees
+	 */
+	public void setDeferFrees(boolean deferFrees) {
+		this.deferFrees = deferFrees;
+	}
+
+	/**
+	 * Gives the space of the blob back. Its content stays readable until the
+	 * space is allocated again.
+	 *
+	 * @param blobPointer
+	 * @throws IOException
+	 */
+	public void free(long blobPointer) throws IOException {
+		lock.lock();
+		try {
+			if (deferFrees) {
+				deferredBlobPointers.add(blobPointer);
+				return;
+			}
+			release(blobPointer);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Marks the blobs freed so far to be released by the next call to
+	 * {@link #releaseSealedBlobs()}, with deferred frees. The blobs freed
+	 * after wait for the next seal.
+	 */
+	public void sealFreedBlobs() {
+		lock.lock();
+		try {
+			sealedBlobPointers.addAll(deferredBlobPointers);
+			deferredBlobPointers.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives the space of the sealed blobs back : no record of the write ahead
+	 * log refers to them any more.
+	 *
+	 * @return true if a blob was released
+	 * @throws IOException
+	 */
+	public boolean releaseSealedBlobs() throws IOException {
+		lock.lock();
+		try {
+			if (sealedBlobPointers.isEmpty())
+				return false;
+			for (long blobPointer : sealedBlobPointers) {
+				release(blobPointer);
+			}
+			sealedBlobPointers.clear();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Must be called under the lock.
+	 */
+	private void release(long blobPointer) throws IOException {
+		if (retainCount > 0) {
+			retainedBlobPointers.add(blobPointer);
+			return;
+		}
+		setDirty();
+		freeSpaceMap.free(blobPointer, BLOB_HEADER_BYTE_SIZE + length(blobPointer));
+	}
+
+	/**
+	 * The blobs freed from now on keep their space until the matching call to
+	 * {@link #releaseFreedBlobs()}.
+	 */
+	public void retainFreedBlobs() {
+		lock.lock();
+		try {
+			retainCount++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Frees the retained blobs once no one retains them any more.
+	 *
+	 * @throws IOException
+	 */
+	public void releaseFreedBlobs() throws IOException {
+		lock.lock();
+		try {
+			if (--retainCount > 0)
+				return;
+			for (long blobPointer : retainedBlobPointers) {
+				release(blobPointer);
+			}
+			retainedBlobPointers.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Persists the free space map in a free extent or at the end of the file.
+	 *
+	 * @throws IOException
+	 */
+	public void checkpoint() throws IOException {
+		lock.lock();
+		try {
+			if (!dirty)
+				return;
+
+			if (freeSpaceMap.getExtentCount() > 0) {
+				// taking its own room may only make the map smaller
+				final int length = freeSpaceMap.byteSize();
+				long pointer = freeSpaceMap.allocate(length);
+				if (pointer == PMap.EOF_POSITION)
+					pointer = fileDriver.length();
+				freeSpaceMap.write(fileDriver, pointer, length);
+				persistedPointer = pointer;
+				persistedLength = length;
+			}
+			fileDriver.setLong(POSITION_FREE_SPACE, persistedPointer);
+			dirty = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes all the blobs.
+	 *
+	 * @throws IOException
+	 */
+	public void clear() throws IOException {
+		lock.lock();
+		try {
+			retainedBlobPointers.clear();
+			deferredBlobPointers.clear();
+			sealedBlobPointers.clear();
+			init();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long length() throws IOException {
+		return fileDriver.length();
+	}
+
+	/**
+	 * Forces the blobs written so far to the storage device.
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		fileDriver.sync();
+	}
+
+	public void close() throws IOException {
+		fileDriver.close();
+	}
+
+	/**
+	 * The persisted map is about to be outdated : it is unreferenced from the
+	 * header and its space is freed.
+	 */
+	private void setDirty() throws IOException {
+		if (dirty)
+			return;
+
+		if (persistedPointer != PMap.EOF_POSITION) {
+			fileDriver.setLong(POSITION_FREE_SPACE, PMap.EOF_POSITION);
+			freeSpaceMap.free(persistedPointer, persistedLength);
+			persistedPointer = PMap.EOF_POSITION;
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Reads a blob by chunks. Each read is positioned : several streams can be
+	 * read at the same time.
+	 */
+	private class BlobInputStream extends InputStream {
+
+		private long position;
+		private final long end;
+
+		BlobInputStream(long position, long length) {
+			this.position = position;
+			this.end = position + length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (position >= end)
+				return -1;
+			final int n = (int) Math.min(len, end - position);
+			fileDriver.getAccessLock().lock();
+			try {
+				fileDriver.seek(position);
+				fileDriver.read(b, off, n);
+			} finally {
+				fileDriver.getAccessLock().unlock();
+			}
+			position += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			final long skipped = Math.max(0, Math.min(n, end - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+	}
+
+}
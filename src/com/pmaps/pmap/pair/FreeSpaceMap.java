@@ -0,0 +1,272 @@
+package com.pmaps.pmap.pair;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.filedriver.FileDriver;
+
+/**
+ * <p>
+ * In memory map of the free extents of the pair file. Extents are indexed by
+ * position, so that neighbours are merged when freed, and sorted in size
+ * classes : class c chains the extents which length is in [2^c, 2^(c+1)[.
+ * </p>
+ * <p>
+ * An allocation checks the head of the class of its length, then takes the
+ * head of the smallest non-empty bigger class, found with a single bit scan :
+ * any extent of a bigger class is big enough. Choosing the extent never walks
+ * a chain.
+ * </p>
+ * <p>
+ * Persisted form : <code>
+ * [allocated length:int | count:int | (position:long | length:long) * count]
+ * </code>
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+class FreeSpaceMap {
+
+	private static final int HEADER_BYTE_SIZE = 8; // 4 + 4
+	private static final int EXTENT_BYTE_SIZE = 16; // 8 + 8
+	private static final int NUMBER_OF_SIZE_CLASSES = 64;
+
+	private static final class Extent {
+		final long position;
+		final long length;
+		/**
+		 * Links of the chain of the size class.
+		 */
+		Extent previous;
+		Extent next;
+
+		Extent(long position, long length) {
+			this.position = position;
+			this.length = length;
+		}
+	}
+
+	private final TreeMap<Long, Extent> extentsByPosition = new TreeMap<>();
+	private final Extent[] classHeads = new Extent[NUMBER_OF_SIZE_CLASSES];
+	/**
+	 * Bit c is set when the class c is not empty.
+	 */
+	private long nonEmptyClasses;
+	private long freeSpace;
+
+	/**
+	 * Takes length bytes from the head of the smallest size class holding an
+	 * extent big enough.
+	 *
+	 * @param length
+	 * @return the position of the allocated bytes or
+	 *         {@link PMap#EOF_POSITION} if no extent is big enough.
+	 */
+	long allocate(long length) {
+		final Extent extent = findExtent(Math.max(1, length));
+		if (extent == null)
+			return PMap.EOF_POSITION;
+
+		remove(extent);
+		if (extent.length > length)
+			add(new Extent(extent.position + length, extent.length - length));
+		return extent.position;
+	}
+
+	/**
+	 * Gives back length bytes at position, merged with the free neighbours.
+	 *
+	 * @param position
+	 * @param length
+	 */
+	void free(long position, long length) {
+		if (length <= 0)
+			return;
+
+		long start = position;
+		long end = position + length;
+
+		final Map.Entry<Long, Extent> previous = extentsByPosition.floorEntry(position);
+		if (previous != null) {
+			final Extent extent = previous.getValue();
+			if (extent.position + extent.length > position)
+				throw new IllegalStateException("Space at " + position + " is already free");
+			if (extent.position + extent.length == position) {
+				remove(extent);
+				start = extent.position;
+			}
+		}
+		final Map.Entry<Long, Extent> next = extentsByPosition.ceilingEntry(position);
+		if (next != null) {
+			final Extent extent = next.getValue();
+			if (extent.position < end)
+				throw new IllegalStateException("Space at " + extent.position + " is already free");
+			if (extent.position == end) {
+				remove(extent);
+				end = extent.position + extent.length;
+			}
+		}
+		add(new Extent(start, end - start));
+	}
+
+	/**
+	 * Returns the total of the free bytes.
+	 *
+	 * @return
+	 */
+	long getFreeSpace() {
+		return freeSpace;
+	}
+
+	int getExtentCount() {
+		return extentsByPosition.size();
+	}
+
+	void clear() {
+		extentsByPosition.clear();
+		Arrays.fill(classHeads, null);
+		nonEmptyClasses = 0;
+		freeSpace = 0;
+	}
+
+	/**
+	 * Number of bytes needed to persist this map.
+	 *
+	 * @return
+	 */
+	int byteSize() {
+		return HEADER_BYTE_SIZE + EXTENT_BYTE_SIZE * extentsByPosition.size();
+	}
+
+	/**
+	 * Writes the extents at position, in a space of allocatedLength bytes.
+	 *
+	 * @param fileDriver
+	 * @param position
+	 * @param allocatedLength
+	 * @throws IOException
+	 */
+	void write(FileDriver fileDriver, long position, int allocatedLength) throws IOException {
+		if (byteSize() > allocatedLength)
+			throw new IllegalArgumentException("Free space map needs " + byteSize() + " bytes, " + allocatedLength + " allocated");
+
+		final byte[] b = new byte[byteSize()];
+		int offset = writeInt(b, 0, allocatedLength);
+		offset = writeInt(b, offset, extentsByPosition.size());
+		for (Extent extent : extentsByPosition.values()) {
+			offset = writeLong(b, offset, extent.position);
+			offset = writeLong(b, offset, extent.length);
+		}
+		fileDriver.getAccessLock().lock();
+		try {
+			fileDriver.seek(position);
+			fileDriver.write(b);
+		} finally {
+			fileDriver.getAccessLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads the extents written at position and adds them to this map.
+	 *
+	 * @param fileDriver
+	 * @param position
+	 * @return the number of bytes allocated to the persisted map.
+	 * @throws IOException
+	 */
+	int read(FileDriver fileDriver, long position) throws IOException {
+		final int allocatedLength;
+		final byte[] b;
+		fileDriver.getAccessLock().lock();
+		try {
+			fileDriver.seek(position);
+			allocatedLength = fileDriver.readInt();
+			final int count = fileDriver.readInt();
+			if (count < 0 || HEADER_BYTE_SIZE + (long) EXTENT_BYTE_SIZE * count > allocatedLength)
+				throw new IOException("Free space map at " + position + " is corrupted");
+			b = new byte[EXTENT_BYTE_SIZE * count];
+			fileDriver.read(b);
+		} finally {
+			fileDriver.getAccessLock().unlock();
+		}
+		for (int offset = 0; offset < b.length; offset += EXTENT_BYTE_SIZE) {
+			free(readLong(b, offset), readLong(b, offset + 8));
+		}
+		return allocatedLength;
+	}
+
+	/**
+	 * Returns the head of the class of length if big enough, or the head of
+	 * the smallest non-empty bigger class, null if none.
+	 */
+	private Extent findExtent(long length) {
+		final int sizeClass = sizeClass(length);
+		// the extents of the class of length may be too small : only the head
+		// is checked.
+		final Extent head = classHeads[sizeClass];
+		if (head != null && head.length >= length)
+			return head;
+
+		if (sizeClass == NUMBER_OF_SIZE_CLASSES - 1)
+			return null;
+		final long biggerClasses = nonEmptyClasses & (-1L << (sizeClass + 1));
+		return biggerClasses == 0 ? null : classHeads[Long.numberOfTrailingZeros(biggerClasses)];
+	}
+
+	private static int sizeClass(long length) {
+		return 63 - Long.numberOfLeadingZeros(length);
+	}
+
+	private void add(Extent extent) {
+		extentsByPosition.put(extent.position, extent);
+		final int sizeClass = sizeClass(extent.length);
+		final Extent head = classHeads[sizeClass];
+		extent.previous = null;
+		extent.next = head;
+		if (head != null)
+			head.previous = extent;
+		classHeads[sizeClass] = extent;
+		nonEmptyClasses |= 1L << sizeClass;
+		freeSpace += extent.length;
+	}
+
+	private void remove(Extent extent) {
+		extentsByPosition.remove(extent.position);
+		final int sizeClass = sizeClass(extent.length);
+		if (extent.previous != null)
+			extent.previous.next = extent.next;
+		else
+			classHeads[sizeClass] = extent.next;
+		if (extent.next != null)
+			extent.next.previous = extent.previous;
+		if (classHeads[sizeClass] == null)
+			nonEmptyClasses &= ~(1L << sizeClass);
+		extent.previous = null;
+		extent.next = null;
+		freeSpace -= extent.length;
+	}
+
+	private static int writeInt(byte[] b, int offset, int i) {
+		for (int shift = 24; shift >= 0; shift -= 8)
+			b[offset++] = (byte) (i >>> shift);
+		return offset;
+	}
+
+	private static int writeLong(byte[] b, int offset, long l) {
+		for (int shift = 56; shift >= 0; shift -= 8)
+			b[offset++] = (byte) (l >>> shift);
+		return offset;
+	}
+
+	private static long readLong(byte[] b, int offset) {
+		long l = 0;
+		for (int i = 0; i < 8; i++)
+			l = (l << 8) | (b[offset + i] & 0xFF);
+		return l;
+	}
+
+}
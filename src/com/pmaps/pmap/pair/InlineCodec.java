@@ -0,0 +1,185 @@
+package com.pmaps.pmap.pair;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ * Compact encoding of the small keys and values stored in an
+ * {@link InlinePair} : a type tag followed by the raw bytes. Only null, the
+ * boxed primitives and short strings are supported.
+ * </p>
+ * <p>
+ * An Integer key with a Long value takes 5 + 9 = 14 bytes.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+final class InlineCodec {
+
+	private static final byte NULL = 0;
+	private static final byte INTEGER = 1;
+	private static final byte LONG = 2;
+	private static final byte SHORT = 3;
+	private static final byte BYTE = 4;
+	private static final byte CHARACTER = 5;
+	private static final byte BOOLEAN = 6;
+	private static final byte FLOAT = 7;
+	private static final byte DOUBLE = 8;
+	private static final byte STRING = 9;
+
+	private InlineCodec() {
+	}
+
+	/**
+	 * Returns the encoded key and value or null if one of them is not supported
+	 * or if they need more than maxLength bytes.
+	 *
+	 * @param key
+	 * @param value
+	 * @param maxLength
+	 * @return
+	 */
+	static byte[] encode(Object key, Object value, int maxLength) {
+		final int keyLength = encodedLength(key);
+		final int valueLength = encodedLength(value);
+		if (keyLength < 0 || valueLength < 0 || keyLength + valueLength > maxLength)
+			return null;
+
+		final byte[] b = new byte[keyLength + valueLength];
+		encode(key, b, 0);
+		encode(value, b, keyLength);
+		return b;
+	}
+
+	/**
+	 * Decodes the key and the value.
+	 *
+	 * @param b
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	static Object[] decode(byte[] b, int offset, int length) throws IOException {
+		final int[] position = { offset };
+		final Object key = decode(b, position);
+		final Object value = decode(b, position);
+		if (position[0] != offset + length)
+			throw new IOException("Inline data is corrupted");
+		return new Object[] { key, value };
+	}
+
+	private static int encodedLength(Object o) {
+		if (o == null)
+			return 1;
+		final Class<?> c = o.getClass();
+		if (c == Integer.class || c == Float.class)
+			return 1 + 4;
+		if (c == Long.class || c == Double.class)
+			return 1 + 8;
+		if (c == Short.class || c == Character.class)
+			return 1 + 2;
+		if (c == Byte.class || c == Boolean.class)
+			return 1 + 1;
+		if (c == String.class) {
+			final String s = (String) o;
+			// a char takes at least one byte
+			if (s.length() > Byte.MAX_VALUE)
+				return -1;
+			final int length = s.getBytes(StandardCharsets.UTF_8).length;
+			return length > Byte.MAX_VALUE ? -1 : 1 + 1 + length;
+		}
+		return -1;
+	}
+
+	private static void encode(Object o, byte[] b, int offset) {
+		if (o == null) {
+			b[offset] = NULL;
+		} else if (o instanceof Integer) {
+			b[offset] = INTEGER;
+			writeLong(b, offset + 1, (Integer) o, 4);
+		} else if (o instanceof Long) {
+			b[offset] = LONG;
+			writeLong(b, offset + 1, (Long) o, 8);
+		} else if (o instanceof Short) {
+			b[offset] = SHORT;
+			writeLong(b, offset + 1, (Short) o, 2);
+		} else if (o instanceof Byte) {
+			b[offset] = BYTE;
+			b[offset + 1] = (Byte) o;
+		} else if (o instanceof Character) {
+			b[offset] = CHARACTER;
+			writeLong(b, offset + 1, (Character) o, 2);
+		} else if (o instanceof Boolean) {
+			b[offset] = BOOLEAN;
+			b[offset + 1] = (byte) ((Boolean) o ? 1 : 0);
+		} else if (o instanceof Float) {
+			b[offset] = FLOAT;
+			writeLong(b, offset + 1, Float.floatToRawIntBits((Float) o), 4);
+		} else if (o instanceof Double) {
+			b[offset] = DOUBLE;
+			writeLong(b, offset + 1, Double.doubleToRawLongBits((Double) o), 8);
+		} else {
+			final byte[] s = ((String) o).getBytes(StandardCharsets.UTF_8);
+			b[offset] = STRING;
+			b[offset + 1] = (byte) s.length;
+			System.arraycopy(s, 0, b, offset + 2, s.length);
+		}
+	}
+
+	private static Object decode(byte[] b, int[] position) throws IOException {
+		final int p = position[0];
+		switch (b[p]) {
+		case NULL:
+			position[0] = p + 1;
+			return null;
+		case INTEGER:
+			position[0] = p + 5;
+			return (int) readLong(b, p + 1, 4);
+		case LONG:
+			position[0] = p + 9;
+			return readLong(b, p + 1, 8);
+		case SHORT:
+			position[0] = p + 3;
+			return (short) readLong(b, p + 1, 2);
+		case BYTE:
+			position[0] = p + 2;
+			return b[p + 1];
+		case CHARACTER:
+			position[0] = p + 3;
+			return (char) readLong(b, p + 1, 2);
+		case BOOLEAN:
+			position[0] = p + 2;
+			return b[p + 1] != 0;
+		case FLOAT:
+			position[0] = p + 5;
+			return Float.intBitsToFloat((int) readLong(b, p + 1, 4));
+		case DOUBLE:
+			position[0] = p + 9;
+			return Double.longBitsToDouble(readLong(b, p + 1, 8));
+		case STRING:
+			final int length = b[p + 1];
+			position[0] = p + 2 + length;
+			return new String(b, p + 2, length, StandardCharsets.UTF_8);
+		default:
+			throw new IOException("Unknown inline type " + b[p]);
+		}
+	}
+
+	private static void writeLong(byte[] b, int offset, long l, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			b[offset + i] = (byte) l;
+			l >>>= 8;
+		}
+	}
+
+	private static long readLong(byte[] b, int offset, int length) {
+		long l = 0;
+		for (int i = 0; i < length; i++)
+			l = (l << 8) | (b[offset + i] & 0xFF);
+		return l;
+	}
+
+}
@@ -0,0 +1,183 @@
+package com.pmaps.pmap.pair;
+
+import java.io.IOException;
+
+import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.filedriver.FileDriver;
+import com.pmaps.pmap.index.BTreeNode;
+
+/**
+ * <p>
+ * A small pair stored in the index file, in a slot of
+ * {@link BTreeNode#BYTE_SIZE} bytes taken from the free nodes : reading it
+ * does not touch the pair file. The slot is apart from the node which links
+ * it : reading the pair still takes one read after the node.
+ * </p>
+ * <p>
+ * Its pair pointer is tagged (see {@link #toPairPointer(long)}) so that it can
+ * be linked in a chain with the other pairs.
+ * </p>
+ * Slot structure : <code>
+ * [nextPairPointer:long | dataLength:int | data (see InlineCodec)]
+ * </code>
+ *
+ * @author Bleu
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class InlinePair<K, V> implements Pair<K, V> {
+
+	public static final int HEADER_BYTE_SIZE = 8 + 4;
+	public static final int MAX_DATA_LENGTH = BTreeNode.BYTE_SIZE - HEADER_BYTE_SIZE;
+
+	private final PMap<K, V> pMap;
+
+	/**
+	 * Tagged position of the slot.
+	 */
+	private long pairPointer;
+	private long nextPairPointer;
+	private byte[] data;
+
+	private K key;
+	private V value;
+
+	/**
+	 * <b>Read constructor.</b>
+	 *
+	 * @param pMap
+	 * @param pairPointer
+	 *            tagged pointer
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	protected InlinePair(PMap<K, V> pMap, long pairPointer) throws IOException {
+		this.pMap = pMap;
+		this.pairPointer = pairPointer;
+		final FileDriver fileDriver = pMap.getIndexFileDriver();
+		fileDriver.getAccessLock().lock();
+		try {
+			fileDriver.seek(toSlotPosition(pairPointer));
+			nextPairPointer = fileDriver.getLong();
+			final int dataLength = fileDriver.getInt();
+			if (dataLength < 0 || dataLength > MAX_DATA_LENGTH)
+				throw new IOException("Inline pair at " + toSlotPosition(pairPointer) + " is corrupted");
+			data = new byte[dataLength];
+			fileDriver.read(data);
+		} finally {
+			fileDriver.getAccessLock().unlock();
+		}
+		final Object[] decoded = InlineCodec.decode(data, 0, data.length);
+		key = (K) decoded[0];
+		value = (V) decoded[1];
+	}
+
+	/**
+	 * <b>Write constructor.</b>
+	 *
+	 * @param pMap
+	 * @param key
+	 * @param value
+	 * @param data
+	 *            key and value encoded by {@link InlineCodec}
+	 */
+	protected InlinePair(PMap<K, V> pMap, K key, V value, byte[] data) {
+		this.pMap = pMap;
+		this.pairPointer = PMap.EOF_POSITION;
+		this.nextPairPointer = PMap.EOF_POSITION;
+		this.key = key;
+		this.value = value;
+		this.data = data;
+	}
+
+	/**
+	 * Returns true if the given pair pointer references an inline pair.
+	 *
+	 * @param pairPointer
+	 * @return
+	 */
+	public static boolean isInline(long pairPointer) {
+		return pairPointer < PMap.EOF_POSITION;
+	}
+
+	/**
+	 * Pair file positions are positive and {@link PMap#EOF_POSITION} is -1 :
+	 * slots of the index file are referenced from -2 downwards.
+	 *
+	 * @param slotPosition
+	 * @return
+	 */
+	public static long toPairPointer(long slotPosition) {
+		return -2 - slotPosition;
+	}
+
+	public static long toSlotPosition(long pairPointer) {
+		return -2 - pairPointer;
+	}
+
+	/**
+	 * The slot is in the index file : the given pair file driver is not used.
+	 */
+	@Override
+	public void write(FileDriver fileDriver) throws IOException {
+		final FileDriver indexFileDriver = pMap.getIndexFileDriver();
+		indexFileDriver.getAccessLock().lock();
+		try {
+			indexFileDriver.seek(toSlotPosition(pairPointer));
+			indexFileDriver.writeLong(nextPairPointer);
+			indexFileDriver.writeInt(data.length);
+			indexFileDriver.write(data);
+		} finally {
+			indexFileDriver.getAccessLock().unlock();
+		}
+	}
+
+	/**
+	 * The slot is in the index file : the given pair file driver is not used.
+	 */
+	@Override
+	public void writeNextPairPointer(FileDriver fileDriver) throws IOException {
+		pMap.getIndexFileDriver().setLong(toSlotPosition(pairPointer), nextPairPointer);
+	}
+
+	@Override
+	public K getKey() {
+		return key;
+	}
+
+	@Override
+	public V getValue() {
+		return value;
+	}
+
+	@Override
+	public long getPairPointer() {
+		return pairPointer;
+	}
+
+	@Override
+	public void setPairPointer(long pairPointer) {
+		this.pairPointer = pairPointer;
+	}
+
+	@Override
+	public long getNextPairPointer() {
+		return nextPairPointer;
+	}
+
+	@Override
+	public void setNextPairPointer(long nextPairPointer) {
+		this.nextPairPointer = nextPairPointer;
+	}
+
+	@Override
+	public int getDataLength() {
+		return data.length;
+	}
+
+	protected PMap<K, V> getPMap() {
+		return pMap;
+	}
+
+}
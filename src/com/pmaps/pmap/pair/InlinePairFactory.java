@@ -0,0 +1,116 @@
+package com.pmaps.pmap.pair;
+
+import java.io.IOException;
+
+import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.filedriver.FileDriver;
+
+/**
+ * <p>
+ * Decorates a {@link PairFactory} : pairs which key and value are encoded by
+ * {@link InlineCodec} in at most inlineThreshold bytes are stored as
+ * {@link InlinePair}s in the index file. The other pairs are given to the
+ * decorated factory.
+ * </p>
+ * <p>
+ * Inline slots are taken from and given back to the free nodes of the index.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+public class InlinePairFactory implements PairFactory {
+
+	private final PairFactory pairFactory;
+	private final int inlineThreshold;
+
+	/**
+	 *
+	 * @param pairFactory
+	 *            factory of the pairs too big to be inlined
+	 * @param inlineThreshold
+	 *            maximum length of the encoded key and value, at most
+	 *            {@link InlinePair#MAX_DATA_LENGTH}
+	 */
+	public InlinePairFactory(PairFactory pairFactory, int inlineThreshold) {
+		if (inlineThreshold < 0 || inlineThreshold > InlinePair.MAX_DATA_LENGTH)
+			throw new IllegalArgumentException("Inline threshold must be in [0," + InlinePair.MAX_DATA_LENGTH + "]");
+		this.pairFactory = pairFactory;
+		this.inlineThreshold = inlineThreshold;
+	}
+
+	@Override
+	public <K, V> Pair<K, V> newPairForReading(PMap<K, V> pMap, long pairPointer) throws IOException {
+		if (InlinePair.isInline(pairPointer))
+			return new InlinePair<>(pMap, pairPointer);
+		return pairFactory.newPairForReading(pMap, pairPointer);
+	}
+
+	/**
+	 * Inline pairs are small : they are fully decoded.
+	 */
+	@Override
+	public <K, V> Pair<K, V> newPairForKeyReading(PMap<K, V> pMap, long pairPointer) throws IOException {
+		if (InlinePair.isInline(pairPointer))
+			return new InlinePair<>(pMap, pairPointer);
+		return pairFactory.newPairForKeyReading(pMap, pairPointer);
+	}
+
+	@Override
+	public <K, V> Pair<K, V> newPairForWriting(PMap<K, V> pMap, long pairPointer, K key, V value) throws IOException {
+		final byte[] data = InlineCodec.encode(key, value, inlineThreshold);
+		if (data != null)
+			return new InlinePair<>(pMap, key, value, data);
+		return pairFactory.newPairForWriting(pMap, pairPointer, key, value);
+	}
+
+	@Override
+	public <K, V> void registerFreePairPosition(Pair<K, V> removedPair) throws IOException {
+		if (removedPair instanceof InlinePair) {
+			final InlinePair<K, V> removedInlinePair = (InlinePair<K, V>) removedPair;
+			removedInlinePair.getPMap().getNodeDriver()
+					.registerFreeNodePosition(InlinePair.toSlotPosition(removedInlinePair.getPairPointer()));
+		} else {
+			pairFactory.registerFreePairPosition(removedPair);
+		}
+	}
+
+	@Override
+	public <K, V> void poolFreePairPosition(Pair<K, V> newPair) throws IOException {
+		if (newPair instanceof InlinePair) {
+			final InlinePair<K, V> newInlinePair = (InlinePair<K, V>) newPair;
+			final long slotPosition = newInlinePair.getPMap().getNodeDriver().pollFreeNodePosition();
+			newInlinePair.setPairPointer(InlinePair.toPairPointer(slotPosition));
+		} else {
+			pairFactory.poolFreePairPosition(newPair);
+		}
+	}
+
+	/**
+	 * An inline pair always fits in the slot of another inline pair.
+	 */
+	@Override
+	public <K, V> boolean updatePair(FileDriver pairFileDriver, Pair<K, V> oldPair, Pair<K, V> newPair) throws IOException {
+		final boolean oldInline = oldPair instanceof InlinePair;
+		if (oldInline != newPair instanceof InlinePair)
+			return false;
+		if (!oldInline)
+			return pairFactory.updatePair(pairFileDriver, oldPair, newPair);
+
+		newPair.setPairPointer(oldPair.getPairPointer());
+		newPair.setNextPairPointer(oldPair.getNextPairPointer());
+		newPair.write(pairFileDriver);
+		return true;
+	}
+
+	@Override
+	public void clearFreePairPositions() {
+		pairFactory.clearFreePairPositions();
+	}
+
+	@Override
+	public void checkpoint() throws IOException {
+		pairFactory.checkpoint();
+	}
+
+}
@@ -26,6 +26,15 @@ public interface Pair<K, V> {
 
 	public abstract void setNextPairPointer(long nextPairPointer);
 
+	/**
+	 * Rewrites only the link to the next pair : the key and value are not
+	 * serialized again.
+	 * 
+	 * @param fileDriver
+	 * @throws IOException
+	 */
+	public abstract void writeNextPairPointer(FileDriver fileDriver) throws IOException;
+
 	public abstract int getDataLength() throws IOException;
 
 }
\ No newline at end of file
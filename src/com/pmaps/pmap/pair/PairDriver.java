@@ -1,7 +1,11 @@
 package com.pmaps.pmap.pair;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.pmaps.PMapException;
 import com.pmaps.pmap.PMap;
@@ -23,11 +27,45 @@ public class PairDriver<K, V> {
 
 	}
 
+	/**
+	 * Place of a key in the chain of its hash : the pair of the key, null if
+	 * absent, and the pair before it, null if first.
+	 */
+	public static class PairLookup<Kp, Vp> {
+
+		public final Pair<Kp, Vp> previousPair;
+		public final Pair<Kp, Vp> targetPair;
+
+		public PairLookup(Pair<Kp, Vp> previousPair, Pair<Kp, Vp> targetPair) {
+			this.previousPair = previousPair;
+			this.targetPair = targetPair;
+		}
+
+	}
+
 	
 	private final PMap<K, V> pMap;
 	private final FileDriver pairFileDriver;
 	private final PairFactory pairFactory;
 
+	/**
+	 * Writers of different stripes share the free space of the files : their
+	 * allocations, links and releases are done one at a time.
+	 */
+	private final ReentrantLock allocationLock = new ReentrantLock();
+
+	/**
+	 * With shadow paging, a pair is never rewritten in place and the space of
+	 * an unlinked pair is only released by
+	 * {@link #releaseFreePairPositions()} : a crash never leaves a link to
+	 * overwritten bytes.
+	 */
+	private boolean shadowPaging;
+	/**
+	 * Pairs unlinked since the last release, under the allocation lock.
+	 */
+	private final List<Pair<K, V>> pendingFreePairs = new ArrayList<>();
+
 	public PairDriver(PMap<K, V> pMap, final FileDriver pairFileDriver, PairFactory pairFactory) {
 		this.pMap = pMap;
 		this.pairFileDriver = pairFileDriver;
@@ -35,6 +73,43 @@ public class PairDriver<K, V> {
 
 	}
 
+	public void setShadowPaging(boolean shadowPaging) {
+		this.shadowPaging = shadowPaging;
+	}
+
+	/**
+	 * Releases the space of the pairs unlinked since the last call, with
+	 * shadow paging : the files holding their unlinks must have been forced.
+	 * Must be called under the write lock of the map.
+	 * 
+	 * @throws IOException
+	 */
+	public void releaseFreePairPositions() throws IOException {
+		allocationLock.lock();
+		try {
+			for (Pair<K, V> removedPair : pendingFreePairs) {
+				pairFactory.registerFreePairPosition(removedPair);
+			}
+			pendingFreePairs.clear();
+		} finally {
+			allocationLock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets the free positions, released or not : the files have been
+	 * cleared.
+	 */
+	public void clearFreePairPositions() {
+		allocationLock.lock();
+		try {
+			pendingFreePairs.clear();
+			pairFactory.clearFreePairPositions();
+		} finally {
+			allocationLock.unlock();
+		}
+	}
+
 	public FileDriver getPairFileDriver() {
 		return pairFileDriver;
 	}
@@ -44,7 +119,8 @@ public class PairDriver<K, V> {
 	}
 
 	/**
-	 * XXX <b>Must to be called in a synchronized way !!!</b>
+	 * Must be called under the write lock of the stripe of hashCode : the
+	 * chain of hashCode is not changed by other threads.
 	 * 
 	 * @param current
 	 * @param hashCode
@@ -55,61 +131,185 @@ public class PairDriver<K, V> {
 	 * @throws IOException
 	 */
 	public Pair<K, V> addPair(BTreeNode<K, V> current, int hashCode, K key, V value) throws ClassNotFoundException, IOException {
+		return addNewPair(current, hashCode, key, pairFactory.newPairForWriting(pMap, PMap.EOF_POSITION, key, value));
+	}
+
+	/**
+	 * Builds and serializes the pair of key and value, to be added later by
+	 * {@link #setPreparedPair(BTreeNode, int, PairLookup, Pair)}. Needs no lock :
+	 * pairs may be prepared by several threads at the same time.
+	 * 
+	 * @param key
+	 * @param value
+	 * @return
+	 * @throws IOException
+	 */
+	public Pair<K, V> preparePair(K key, V value) throws IOException {
+		final Pair<K, V> newPair = pairFactory.newPairForWriting(pMap, PMap.EOF_POSITION, key, value);
+		newPair.getDataLength();
+		return newPair;
+	}
+
+	/**
+	 * Writes a pair built by {@link #preparePair(Object, Object)}. See
+	 * {@link #setPair(BTreeNode, int, PairLookup, Object, Object)}.
+	 * 
+	 * @param current
+	 * @param hashCode
+	 * @param lookup
+	 * @param newPair
+	 * @return the old {@link Pair} instance if any or null.
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	public Pair<K, V> setPreparedPair(BTreeNode<K, V> current, int hashCode, PairLookup<K, V> lookup, Pair<K, V> newPair)
+			throws ClassNotFoundException, IOException {
+		return writeNewPair(current, hashCode, lookup, newPair);
+	}
+
+	/**
+	 * Streams the length bytes of in to a new blob, and builds the pair which
+	 * refers to it as a byte array value, to be added later by
+	 * {@link #setPreparedPair(BTreeNode, int, PairLookup, Pair)}.
+	 * 
+	 * @param key
+	 * @param in
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	public BlobPair<K, V> prepareStreamPair(K key, InputStream in, long length) throws IOException {
+		if (!(pairFactory instanceof BlobPairFactory))
+			throw new PMapException("Streamed values need the blob store");
+		final BlobPairFactory blobPairFactory = (BlobPairFactory) pairFactory;
+		final BlobPair<K, V> newPair = blobPairFactory.newPairForWriting(pMap, PMap.EOF_POSITION, key, in, length);
+		newPair.getDataLength();
+		return newPair;
+	}
+
+	/**
+	 * Walks the chain of hashCode to the pair of key. Must be called under
+	 * the write lock of the stripe of hashCode for the lookup to be given to
+	 * {@link #setPair(BTreeNode, int, PairLookup, Object, Object)} or
+	 * {@link #unlinkPair(BTreeNode, int, PairLookup)}.
+	 * 
+	 * @param current
+	 * @param hashCode
+	 * @param key
+	 * @return
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	public PairLookup<K, V> findPair(BTreeNode<K, V> current, int hashCode, Object key) throws ClassNotFoundException, IOException {
 		Pair<K, V> previousPair = null;
-		Pair<K, V> targetPair = null;
 
 		Enumeration<Pair<K, V>> pairEnum = current.getPairEnumeration(hashCode);
 		while (pairEnum.hasMoreElements()) {
 			Pair<K, V> pair = pairEnum.nextElement();
-			if (pair.getKey().equals(key)) {
-				targetPair = pair;
-				break;
-			}
+			if (pair.getKey().equals(key))
+				return new PairLookup<>(previousPair, pair);
 			previousPair = pair;
 		}
+		return new PairLookup<>(previousPair, null);
+	}
 
-		Pair<K, V> newPair = pairFactory.newPairForWriting(pMap, getPairFileDriver().length(), key, value);
-		//new Pair<>(pMap, getPairFileDriver().length(), key, value);
-		poolFreePairPosition(newPair);
-		if (previousPair != null) {
-			previousPair.setNextPairPointer(newPair.getPairPointer());
+	/**
+	 * Writes the pair of key at the place found by
+	 * {@link #findPair(BTreeNode, int, Object)} : the chain is not walked
+	 * again.
+	 * 
+	 * @param current
+	 * @param hashCode
+	 * @param lookup
+	 * @param key
+	 * @param value
+	 * @return the old {@link Pair} instance if any or null.
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	public Pair<K, V> setPair(BTreeNode<K, V> current, int hashCode, PairLookup<K, V> lookup, K key, V value)
+			throws ClassNotFoundException, IOException {
+		return writeNewPair(current, hashCode, lookup, pairFactory.newPairForWriting(pMap, PMap.EOF_POSITION, key, value));
+	}
+
+	private Pair<K, V> addNewPair(BTreeNode<K, V> current, int hashCode, K key, Pair<K, V> newPair) throws ClassNotFoundException, IOException {
+		return writeNewPair(current, hashCode, findPair(current, hashCode, key), newPair);
+	}
+
+	private Pair<K, V> writeNewPair(BTreeNode<K, V> current, int hashCode, PairLookup<K, V> lookup, Pair<K, V> newPair)
+			throws ClassNotFoundException, IOException {
+		final Pair<K, V> previousPair = lookup.previousPair;
+		final Pair<K, V> targetPair = lookup.targetPair;
+
+		if (targetPair instanceof BlobPair) {
+			// once freed, the blob may be taken by a writer of another stripe
+			((BlobPair<K, V>) targetPair).loadValue();
+		}
+		// serialized out of the allocation lock
+		newPair.getDataLength();
+
+		allocationLock.lock();
+		try {
+			if (targetPair != null && !shadowPaging && pairFactory.updatePair(getPairFileDriver(), targetPair, newPair)) {
+				// written in place : the chain and the index are unchanged
+				return targetPair;
+			}
+
+			newPair.setPairPointer(getPairFileDriver().length());
+			poolFreePairPosition(newPair);
 			if (targetPair != null) {
 				newPair.setNextPairPointer(targetPair.getNextPairPointer());
 			}
-		} else {
-			current.setNextPairPointer(hashCode, newPair.getPairPointer());
-		}
+			if (previousPair != null) {
+				previousPair.setNextPairPointer(newPair.getPairPointer());
+			} else {
+				current.setNextPairPointer(hashCode, newPair.getPairPointer());
+			}
 
-		newPair.write(getPairFileDriver());
-		if (previousPair != null) {
-			previousPair.write(getPairFileDriver());
-		} else {
-			current.write(pMap.getIndexFileDriver());
+			newPair.write(getPairFileDriver());
+			if (previousPair != null) {
+				previousPair.writeNextPairPointer(getPairFileDriver());
+			} else {
+				// the other key hash of the node may be written by another
+				// stripe
+				current.writeNextPairPointer(pMap.getIndexFileDriver(), hashCode);
+			}
+
+			if (targetPair != null) {
+				// the replaced pair is no more linked
+				registerFreePairPosition(targetPair);
+			}
+		} finally {
+			allocationLock.unlock();
 		}
 
 		return targetPair;
 	}
 
 	public PairTuple<K, V> removePair(BTreeNode<K, V> current, int hashCode, Object key) throws ClassNotFoundException, IOException {
-
-		Enumeration<Pair<K, V>> pairEnum = current.getPairEnumeration(hashCode);
-
-		Pair<K, V> targetPair = null;
-		Pair<K, V> previousPair = null;
-		Pair<K, V> nextPair = null;
-
-		while (pairEnum.hasMoreElements()) {
-			Pair<K, V> pair = pairEnum.nextElement();
-			try {
-				if (pair.getKey().equals(key)) {
-					targetPair = pair;
-					break;
-				}
-			} catch (IOException | ClassNotFoundException e) {
-				throw new PMapException("Unable to read data.", e);
-			}
-			previousPair = pair;
+		final PairLookup<K, V> lookup;
+		try {
+			lookup = findPair(current, hashCode, key);
+		} catch (IOException | ClassNotFoundException e) {
+			throw new PMapException("Unable to read data.", e);
 		}
+		return unlinkPair(current, hashCode, lookup);
+	}
+
+	/**
+	 * Unlinks the pair found by {@link #findPair(BTreeNode, int, Object)} :
+	 * the chain is not walked again.
+	 * 
+	 * @param current
+	 * @param hashCode
+	 * @param lookup
+	 * @return the removed pair, and whether the node has no more pairs for
+	 *         hashCode, or null if the key was absent
+	 * @throws IOException
+	 */
+	public PairTuple<K, V> unlinkPair(BTreeNode<K, V> current, int hashCode, PairLookup<K, V> lookup) throws IOException {
+		final Pair<K, V> previousPair = lookup.previousPair;
+		final Pair<K, V> targetPair = lookup.targetPair;
 
 		if (targetPair == null)
 			// no entry found
@@ -118,19 +318,13 @@ public class PairDriver<K, V> {
 		// At this point a value exists and has to be removed /
 		// unreferenced.
 
-		if (pairEnum.hasMoreElements()) {
-			nextPair = pairEnum.nextElement();
-		}
-
-		long nextPairPointer = PMap.EOF_POSITION;
-		if (nextPair != null) {
-			nextPairPointer = nextPair.getPairPointer();
-		}
+		// no need to read the next pair : its position is known
+		final long nextPairPointer = targetPair.getNextPairPointer();
 
 		boolean pairLessNode = false;
 		if (previousPair != null) {
 			previousPair.setNextPairPointer(nextPairPointer);
-			previousPair.write(getPairFileDriver());
+			previousPair.writeNextPairPointer(getPairFileDriver());
 		} else {
 			// write into the index
 
@@ -138,11 +332,18 @@ public class PairDriver<K, V> {
 
 			if (!pairLessNode) {
 				current.setNextPairPointer(hashCode, nextPairPointer);
-				current.write(pMap.getIndexFileDriver());
+				// the other key hash of the node may be written by another
+				// stripe
+				current.writeNextPairPointer(pMap.getIndexFileDriver(), hashCode);
 			}
 		}
 
-		registerFreePairPosition(targetPair);
+		allocationLock.lock();
+		try {
+			registerFreePairPosition(targetPair);
+		} finally {
+			allocationLock.unlock();
+		}
 
 		return new PairTuple<K, V>(pairLessNode, targetPair);
 	}
@@ -150,12 +351,16 @@ public class PairDriver<K, V> {
 	/**
 	 * Registers the space occupied by this removed {@link Pair} for further needs
 	 * 
+	 * With shadow paging, it is kept until {@link #releaseFreePairPositions()}.
 	 * 
 	 * @param removedPair
 	 * @throws IOException
 	 */
 	private void registerFreePairPosition(Pair<K, V> removedPair) throws IOException {
-		 pairFactory.registerFreePairPosition(removedPair);
+		if (shadowPaging)
+			pendingFreePairs.add(removedPair);
+		else
+			pairFactory.registerFreePairPosition(removedPair);
 	}
 
 	/**
@@ -3,15 +3,55 @@ package com.pmaps.pmap.pair;
 import java.io.IOException;
 
 import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.filedriver.FileDriver;
 
 public interface PairFactory {
 
 	<K, V> Pair<K, V> newPairForReading(PMap<K, V> pMap, long pairPointer) throws IOException;
 
+	/**
+	 * Reads the pair at pairPointer but decodes its key only. The returned pair
+	 * gives its key, links and data length; its value has to be read with
+	 * {@link #newPairForReading(PMap, long)}.
+	 * 
+	 * @param pMap
+	 * @param pairPointer
+	 * @return
+	 * @throws IOException
+	 */
+	<K, V> Pair<K, V> newPairForKeyReading(PMap<K, V> pMap, long pairPointer) throws IOException;
+
 	<K, V> Pair<K, V> newPairForWriting(PMap<K, V> pMap, long pairPointer, K key, V value) throws IOException;
 
 	<K, V> void registerFreePairPosition(Pair<K, V> removedPair) throws IOException;
 
 	<K, V> void poolFreePairPosition(Pair<K, V> newPair) throws IOException;
 
+	/**
+	 * Writes newPair in the space of oldPair if it fits, keeping the link of
+	 * oldPair : the chain does not have to be changed. oldPair keeps its key
+	 * and value in memory.
+	 * 
+	 * @param pairFileDriver
+	 * @param oldPair
+	 *            a pair read from the file
+	 * @param newPair
+	 *            a pair created for writing and not written yet
+	 * @return true if newPair has been written in place of oldPair.
+	 * @throws IOException
+	 */
+	<K, V> boolean updatePair(FileDriver pairFileDriver, Pair<K, V> oldPair, Pair<K, V> newPair) throws IOException;
+
+	/**
+	 * Forgets the free positions kept in memory : the files have been cleared.
+	 */
+	void clearFreePairPositions();
+
+	/**
+	 * Persists the free positions kept in memory.
+	 * 
+	 * @throws IOException
+	 */
+	void checkpoint() throws IOException;
+
 }
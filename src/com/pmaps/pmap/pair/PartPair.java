@@ -7,9 +7,15 @@ import java.util.List;
 
 import com.pmaps.pmap.PMap;
 import com.pmaps.pmap.filedriver.FileDriver;
+import com.pmaps.pmap.serializer.ScratchBuffer;
 
 public class PartPair<K, V> implements DataStructure, Pair<K, V> {
 
+	/**
+	 * The parts of a pair are gathered there and the key decoded right away.
+	 */
+	private static final ScratchBuffer READ_BUFFER = new ScratchBuffer(512);
+
 	/**
 	 * 
 	 */
@@ -22,13 +28,24 @@ public class PartPair<K, V> implements DataStructure, Pair<K, V> {
 
 	/**
 	 * The length of the serialized data (key + value).<br>
-	 * Only valid with read constructor of once write has been called
+	 * Only valid with read constructor of once write has been called, -1
+	 * otherwise.
 	 */
 	int dataLength;
+	/**
+	 * Kept for a pair to be written, or for a read pair until its value is
+	 * decoded.
+	 */
 	byte[] serializedKeyValue;
 	long nextPairPointer;
 	long partPointer;
 
+	private boolean keyDecoded;
+	private boolean decoded;
+	/**
+	 * True when the value is not available from this instance.
+	 */
+	private boolean keyOnly;
 	private K key;
 	private V value;
 
@@ -74,6 +91,9 @@ public class PartPair<K, V> implements DataStructure, Pair<K, V> {
 		this(pMap,pairPointer, true);
 		this.key = key;
 		this.value = value;
+		this.keyDecoded = true;
+		this.decoded = true;
+		this.dataLength = -1;
 		nextPairPointer = PMap.EOF_POSITION;
 
 	}
@@ -82,9 +102,22 @@ public class PartPair<K, V> implements DataStructure, Pair<K, V> {
 	 * 
 	 */
 	public void read(FileDriver fileDriver) throws IOException {
+		read(fileDriver, true);
+	}
+
+	/**
+	 * Reads the header and the parts of this pair and decodes its key. The
+	 * value is decoded once asked for. Without decodeValue, the value is not
+	 * available from this instance.
+	 * 
+	 * @param fileDriver
+	 * @param decodeValue
+	 * @throws IOException
+	 */
+	public void read(FileDriver fileDriver, boolean decodeValue) throws IOException {
 
 		final PartPairHeader header = new PartPairHeader(fileDriver, pairPointer);
-		serializedKeyValue = new byte[header.dataLength];
+		final byte[] buffer = READ_BUFFER.get(header.dataLength);
 
 		dataLength = header.dataLength;
 		nextPairPointer = header.nextPairPointer;
@@ -93,13 +126,25 @@ public class PartPair<K, V> implements DataStructure, Pair<K, V> {
 		long nextPartPointer = header.partPointer;
 		int dataOffset = 0;
 		while (nextPartPointer != PMap.EOF_POSITION) {
-			final PartPairData partData = new PartPairData(fileDriver, nextPartPointer);
-			System.arraycopy(partData.getData(), 0, serializedKeyValue, dataOffset, partData.getPartLength());
+			final PartPairData partData = new PartPairData(fileDriver, nextPartPointer, buffer, dataOffset);
 			dataOffset += partData.getPartLength();
 			nextPartPointer = partData.getNextPartPointer();
 			addPartData(partData.getPartPointer(), partData.getPartLength());
 		}
 
+		keyOnly = !decodeValue;
+		// the pairs of a chain which key does not match cost a copy of their
+		// bytes, not the decoding of their value
+		if (decodeValue)
+			serializedKeyValue = Arrays.copyOf(buffer, dataLength);
+		// decoded before the buffer is reused
+		try {
+			setKey(this.pMap.getSerializer().unserialize(1, buffer, 0, dataLength));
+		} catch (ClassNotFoundException e) {
+			// kept to report the failure when the key is asked for
+			if (serializedKeyValue == null)
+				serializedKeyValue = Arrays.copyOf(buffer, dataLength);
+		}
 	}
 
 	/**
@@ -123,9 +168,9 @@ public class PartPair<K, V> implements DataStructure, Pair<K, V> {
 		int offset = 0;
 		for (int i=0;i<partDataSpaceList.size();i++) {
 			PartPairData part = partDataSpaceList.get(i);
-			part.setData(Arrays.copyOfRange(serialized, offset, offset += part.getPartLength()));
-			//System.arraycopy(serialized, offset, part.getData(), 0, part.getPartLength());
-			//offset += part.getPartLength();
+			// each part writes its slice of the serialized data
+			part.setData(serialized, offset);
+			offset += part.getPartLength();
 			if (i>0)
 				partDataSpaceList.get(i-1).setNextPartPointer(part.getPartPointer());
 		}
@@ -144,6 +189,12 @@ public class PartPair<K, V> implements DataStructure, Pair<K, V> {
 
 	}
 
+	@Override
+	public void writeNextPairPointer(FileDriver fileDriver) throws IOException {
+		// the link is the first field of the header
+		fileDriver.setLong(pairPointer, nextPairPointer);
+	}
+
 	/**
 	 * Should be called only with write constructor and always before
 	 * {@link #write(FileDriver)} method !
@@ -176,14 +227,16 @@ public class PartPair<K, V> implements DataStructure, Pair<K, V> {
 	}
 
 	public K getKey() throws IOException, ClassNotFoundException {
-		if (key == null)
-			getObjects();
+		if (!keyDecoded)
+			setKey(this.pMap.getSerializer().unserialize(1, serializedKeyValue));
 
 		return key;
 	}
 
 	public V getValue() throws IOException, ClassNotFoundException {
-		if (value == null)
+		if (keyOnly)
+			throw new IllegalStateException("Only the key of this pair has been read");
+		if (!decoded)
 			getObjects();
 
 		return value;
@@ -191,9 +244,18 @@ public class PartPair<K, V> implements DataStructure, Pair<K, V> {
 
 	@SuppressWarnings("unchecked")
 	private void getObjects() throws IOException, ClassNotFoundException {
-		Object[] unserialized = this.pMap.getSerializer().unserialize(2, serializedKeyValue);
+		final Object[] unserialized = this.pMap.getSerializer().unserialize(2, serializedKeyValue);
 		key = (K) unserialized[0];
 		value = (V) unserialized[1];
+		keyDecoded = true;
+		decoded = true;
+		serializedKeyValue = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void setKey(Object[] unserialized) {
+		key = (K) unserialized[0];
+		keyDecoded = true;
 	}
 
 	/**
@@ -213,7 +275,7 @@ public class PartPair<K, V> implements DataStructure, Pair<K, V> {
 	 * Compute the data length if necessary !!!
 	 */
 	public int getDataLength() throws IOException {
-		if (serializedKeyValue == null) {
+		if (dataLength < 0) {
 			// means pair was created with write constructor
 			serializedKeyValue = this.pMap.getSerializer().serialize(key, value);
 			dataLength = serializedKeyValue.length;
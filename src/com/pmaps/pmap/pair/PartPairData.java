@@ -23,16 +23,38 @@ class PartPairData implements DataStructure {
 	private long partPointer;
 	private int partLength;
 	private long nextPartPointer;
+	/**
+	 * The data of this part starts at dataOffset in this array.
+	 */
 	private byte[] data;
+	private int dataOffset;
 
 	/**
-	 * <b> Read constructor<b>
+	 * <b> Read constructor<b> <br>
+	 * Only reads the part header : length and next part pointer.
 	 * 
 	 * @param pairPointer
 	 * @throws IOException
 	 */
 	public PartPairData(FileDriver fileDriver, long partPointer) throws IOException {
+		this(fileDriver, partPointer, null, 0);
+	}
+
+	/**
+	 * <b> Read constructor<b> <br>
+	 * Reads the part header and the part data directly into destination at
+	 * destinationOffset.
+	 * 
+	 * @param fileDriver
+	 * @param partPointer
+	 * @param destination
+	 * @param destinationOffset
+	 * @throws IOException
+	 */
+	public PartPairData(FileDriver fileDriver, long partPointer, byte[] destination, int destinationOffset) throws IOException {
 		this.partPointer = partPointer;
+		this.data = destination;
+		this.dataOffset = destinationOffset;
 		this.read(fileDriver);
 	}
 
@@ -48,6 +70,7 @@ class PartPairData implements DataStructure {
 		this.partPointer = partPointer;
 		this.partLength = data.length;
 		this.data = data;
+		this.dataOffset = 0;
 		this.nextPartPointer = nextPartPointer;
 	}
 	
@@ -69,23 +92,32 @@ class PartPairData implements DataStructure {
 
 	@Override
 	public void read(FileDriver fileDriver) throws IOException {
-		synchronized (fileDriver.getAccessLock()) {
+		fileDriver.getAccessLock().lock();
+		try {
 			fileDriver.seek(partPointer);
 			partLength = fileDriver.getInt();
 			nextPartPointer = fileDriver.getLong();
-			data = new byte[partLength];
-			fileDriver.get(data);
+			if (data != null) {
+				if (partLength < 0 || dataOffset + partLength > data.length)
+					throw new IOException("Part data at " + partPointer + " does not fit in its pair");
+				fileDriver.read(data, dataOffset, partLength);
+			}
+		} finally {
+			fileDriver.getAccessLock().unlock();
 		}
 
 	}
 
 	@Override
 	public void write(FileDriver fileDriver) throws IOException {
-		synchronized (fileDriver.getAccessLock()) {
+		fileDriver.getAccessLock().lock();
+		try {
 			fileDriver.seek(partPointer);
 			fileDriver.setInt(partLength);
 			fileDriver.setLong(nextPartPointer);
-			fileDriver.set(data);
+			fileDriver.write(data, dataOffset, partLength);
+		} finally {
+			fileDriver.getAccessLock().unlock();
 		}
 
 	}
@@ -118,8 +150,25 @@ class PartPairData implements DataStructure {
 		return data;
 	}
 
+	int getDataOffset() {
+		return dataOffset;
+	}
+
 	void setData(byte[] data) {
 		this.data = data;
+		this.dataOffset = 0;
 		this.partLength = data.length;
 	}
+
+	/**
+	 * The data of this part is the partLength bytes of data starting at
+	 * dataOffset : no copy is made.
+	 * 
+	 * @param data
+	 * @param dataOffset
+	 */
+	void setData(byte[] data, int dataOffset) {
+		this.data = data;
+		this.dataOffset = dataOffset;
+	}
 }
\ No newline at end of file
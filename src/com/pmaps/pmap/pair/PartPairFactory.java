@@ -5,13 +5,55 @@ import java.io.IOException;
 import com.pmaps.pmap.PMap;
 import com.pmaps.pmap.filedriver.FileDriver;
 
+/**
+ * <p>
+ * Creates the {@link PartPair}s and recycles the space of the removed ones.
+ * </p>
+ * <p>
+ * Free space of the pair file is tracked in memory by a {@link FreeSpaceMap}
+ * : pair headers and data are allocated and freed without any disk access.
+ * The map is persisted by {@link #checkpoint()} in the pair file and
+ * referenced from {@link PMap#POSITION_FREE_SPACE}. This reference is cleared
+ * as soon as the map changes after being loaded or persisted : if the map is
+ * not persisted again (crash), the free space is lost, but never given twice.
+ * </p>
+ * <p>
+ * A new pair is not split : its data goes to a free extent of the smallest
+ * size class big enough, or is appended to the file.
+ * </p>
+ * An instance serves a single {@link PMap}.
+ *
+ * @author Bleu
+ *
+ */
 public class PartPairFactory implements PairFactory {
 
+	private PMap<?, ?> pMap;
+	private FreeSpaceMap freeSpaceMap;
+
+	/**
+	 * Space of the persisted map referenced by the header, if any.
+	 */
+	private long persistedPointer;
+	private int persistedLength;
+
+	/**
+	 * True when the map has changed since it was loaded or persisted.
+	 */
+	private boolean dirty;
+
 	@Override
 	public <K, V> Pair<K, V> newPairForReading(PMap<K, V> pMap, long pairPointer) throws IOException {
 		return new PartPair<K, V>(pMap, pairPointer);
 	}
 
+	@Override
+	public <K, V> Pair<K, V> newPairForKeyReading(PMap<K, V> pMap, long pairPointer) throws IOException {
+		final PartPair<K, V> pair = new PartPair<K, V>(pMap, pairPointer, true);
+		pair.read(pMap.getPairFileDriver(), false);
+		return pair;
+	}
+
 	@Override
 	public <K, V> Pair<K, V> newPairForWriting(PMap<K, V> pMap, long pairPointer, K key, V value) throws IOException {
 		Pair<K, V> newPair = new PartPair<>(pMap, pairPointer, key, value);
@@ -21,53 +63,37 @@ public class PartPairFactory implements PairFactory {
 	}
 
 	/**
-	 * TODO : check synchronization
+	 * Must be called under the write lock of the map.
 	 */
 	@Override
 	public <K, V> void registerFreePairPosition(Pair<K, V> removedPair) throws IOException {
 		PartPair<K, V> removedPartPair = (PartPair<K, V>) removedPair;
+		loadFreeSpace(removedPartPair.getPMap());
+		setDirty();
 
-		final FileDriver headerFileDriver = removedPartPair.getPMap().getIndexFileDriver();
-		final FileDriver pairFileDriver = removedPartPair.getPMap().getPairFileDriver();
-
-		long currentFreePairHeader = headerFileDriver.getLong(PMap.POSITION_FREE_PAIR_HEADER);
-		long currentFreePairData = headerFileDriver.getLong(PMap.POSITION_FREE_PAIR_DATA);
-
-		// this code is highly dependent of the part pair format !
-
-		// we replace in the removedPartPair the next pair pointer with the
-		// current free one :
-		pairFileDriver.setLong(removedPartPair.pairPointer, currentFreePairHeader);
-		headerFileDriver.setLong(PMap.POSITION_FREE_PAIR_HEADER, removedPartPair.pairPointer);
-
-		// we register in the removedPartPairData the next free pair data
-		long firstPartDataPointer = removedPartPair.getPartPointer();
-		long lastPartDataPointer = removedPartPair.getPartPairData(removedPartPair.getPartPairDataCount() - 1).getPartPointer();
-
-		headerFileDriver.setLong(PMap.POSITION_FREE_PAIR_DATA, firstPartDataPointer);
-		pairFileDriver.setLong(lastPartDataPointer + 4, currentFreePairData);
+		freeSpaceMap.free(removedPartPair.pairPointer, PartPairHeader.BYTE_SIZE);
+		for (int i = 0; i < removedPartPair.getPartPairDataCount(); i++) {
+			final PartPairData part = removedPartPair.getPartPairData(i);
+			freeSpaceMap.free(part.getPartPointer(), PartPairData.HEADER_BYTE_SIZE + part.getPartLength());
+		}
 
 	}
 
+	/**
+	 * Must be called under the write lock of the map.
+	 */
 	@Override
 	public <K, V> void poolFreePairPosition(Pair<K, V> newPair) throws IOException {
 		PartPair<K, V> newPartPair = (PartPair<K, V>) newPair;
+		loadFreeSpace(newPartPair.getPMap());
+		setDirty();
 
-		final FileDriver headerFileDriver = newPartPair.getPMap().getIndexFileDriver();
 		final FileDriver pairFileDriver = newPartPair.getPMap().getPairFileDriver();
 
-		final long currentFreePairHeader = headerFileDriver.getLong(PMap.POSITION_FREE_PAIR_HEADER);
-		final long currentFreePairData = headerFileDriver.getLong(PMap.POSITION_FREE_PAIR_DATA);
-
-		// this code is highly dependent of the part pair format !
-
 		// assign the header pointer !
-		if (currentFreePairHeader != PMap.EOF_POSITION) {
-			// assign the header pointer !
-			newPartPair.setPairPointer(currentFreePairHeader);
-			// set the next free header pointer
-			final long nextFreeHeaderPointer = pairFileDriver.getLong(currentFreePairHeader);
-			headerFileDriver.setLong(PMap.POSITION_FREE_PAIR_HEADER, nextFreeHeaderPointer);
+		final long headerPointer = freeSpaceMap.allocate(PartPairHeader.BYTE_SIZE);
+		if (headerPointer != PMap.EOF_POSITION) {
+			newPartPair.setPairPointer(headerPointer);
 		} else {
 			// size of the file should assume that the header will not be
 			// overwritten.
@@ -75,24 +101,116 @@ public class PartPairFactory implements PairFactory {
 				pairFileDriver.setLength(newPartPair.pairPointer + PartPairHeader.BYTE_SIZE);
 		}
 
-		// now we add the free PartPairData
-		long nextFreePairData = currentFreePairData;
-		PartPairData nextFreePartData = null;
-		while (nextFreePairData != PMap.EOF_POSITION && nextFreePartData == null) {
-			PartPairData partData = new PartPairData(pairFileDriver, nextFreePairData);
-			nextFreePartData = newPartPair.addPartData(partData.getPartPointer(), partData.getPartLength());
-			nextFreePairData = partData.getNextPartPointer();
+		// now a single free extent for the whole data, if any. Otherwise the
+		// data is appended by PartPair#write
+		final int dataLength = newPartPair.getDataLength();
+		final long partPointer = freeSpaceMap.allocate(PartPairData.HEADER_BYTE_SIZE + dataLength);
+		if (partPointer != PMap.EOF_POSITION)
+			newPartPair.addPartData(partPointer, dataLength);
+
+	}
+
+	/**
+	 * The parts of oldPair are reused in order. Their unused ends are freed.
+	 * Must be called under the write lock of the map.
+	 */
+	@Override
+	public <K, V> boolean updatePair(FileDriver pairFileDriver, Pair<K, V> oldPair, Pair<K, V> newPair) throws IOException {
+		final PartPair<K, V> oldPartPair = (PartPair<K, V>) oldPair;
+		final PartPair<K, V> newPartPair = (PartPair<K, V>) newPair;
+		if (newPartPair.getDataLength() > oldPartPair.getDataLength())
+			return false;
+
+		loadFreeSpace(oldPartPair.getPMap());
+		setDirty();
+
+		newPartPair.setPairPointer(oldPartPair.getPairPointer());
+		newPartPair.setNextPairPointer(oldPartPair.getNextPairPointer());
+		int remaining = newPartPair.getDataLength();
+		for (int i = 0; i < oldPartPair.getPartPairDataCount(); i++) {
+			final PartPairData part = oldPartPair.getPartPairData(i);
+			final int length = Math.min(part.getPartLength(), remaining);
+			if (length > 0) {
+				newPartPair.addPartData(part.getPartPointer(), length);
+				freeSpaceMap.free(part.getPartPointer() + PartPairData.HEADER_BYTE_SIZE + length, part.getPartLength() - length);
+			} else {
+				freeSpaceMap.free(part.getPartPointer(), PartPairData.HEADER_BYTE_SIZE + part.getPartLength());
+			}
+			remaining -= length;
+		}
+
+		newPartPair.write(pairFileDriver);
+		return true;
+	}
+
+	@Override
+	public void clearFreePairPositions() {
+		// reloaded from the header on next use
+		freeSpaceMap = null;
+	}
+
+	/**
+	 * Persists the free space map at the end of the pair file or in a free
+	 * extent and references it from the header.
+	 */
+	@Override
+	public void checkpoint() throws IOException {
+		if (freeSpaceMap == null || !dirty)
+			return;
+
+		final FileDriver headerFileDriver = pMap.getIndexFileDriver();
+		final FileDriver pairFileDriver = pMap.getPairFileDriver();
+
+		if (freeSpaceMap.getExtentCount() == 0) {
+			headerFileDriver.setLong(PMap.POSITION_FREE_SPACE, PMap.EOF_POSITION);
+			dirty = false;
+			return;
 		}
 
-		// we save the given information.
-		if (nextFreePartData != null) {
-			pairFileDriver.setInt(nextFreePartData.getPartPointer(), nextFreePartData.getPartLength());
-			headerFileDriver.setLong(PMap.POSITION_FREE_PAIR_DATA, nextFreePartData.getPartPointer());
-		} else {
-			// nextFreePairData must be equal to EOF
-			headerFileDriver.setLong(PMap.POSITION_FREE_PAIR_DATA, nextFreePairData);
+		// taking its own room may only make the map smaller
+		final int length = freeSpaceMap.byteSize();
+		long pointer = freeSpaceMap.allocate(length);
+		if (pointer == PMap.EOF_POSITION)
+			pointer = pairFileDriver.length();
+		freeSpaceMap.write(pairFileDriver, pointer, length);
+
+		headerFileDriver.setLong(PMap.POSITION_FREE_SPACE, pointer);
+		persistedPointer = pointer;
+		persistedLength = length;
+		dirty = false;
+	}
+
+	/**
+	 * The persisted map is about to be outdated : it is unreferenced from the
+	 * header and its space is freed.
+	 */
+	private void setDirty() throws IOException {
+		if (dirty)
+			return;
+
+		if (persistedPointer != PMap.EOF_POSITION) {
+			pMap.getIndexFileDriver().setLong(PMap.POSITION_FREE_SPACE, PMap.EOF_POSITION);
+			freeSpaceMap.free(persistedPointer, persistedLength);
+			persistedPointer = PMap.EOF_POSITION;
 		}
+		dirty = true;
+	}
 
+	/**
+	 * Reads the persisted free space map the first time a map is used.
+	 */
+	private void loadFreeSpace(PMap<?, ?> pMap) throws IOException {
+		if (this.pMap != null && this.pMap != pMap)
+			throw new IllegalStateException("A PartPairFactory can only serve a single PMap");
+		if (freeSpaceMap != null)
+			return;
+
+		this.pMap = pMap;
+		freeSpaceMap = new FreeSpaceMap();
+		dirty = false;
+		persistedPointer = pMap.getIndexFileDriver().getLong(PMap.POSITION_FREE_SPACE);
+		if (persistedPointer != PMap.EOF_POSITION)
+			persistedLength = freeSpaceMap.read(pMap.getPairFileDriver(), persistedPointer);
 	}
 
 }
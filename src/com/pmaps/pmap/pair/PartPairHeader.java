@@ -53,22 +53,28 @@ class PartPairHeader implements DataStructure {
 
 	@Override
 	public void read(FileDriver fileDriver) throws IOException {
-		synchronized (fileDriver.getAccessLock()) {
+		fileDriver.getAccessLock().lock();
+		try {
 			fileDriver.seek(headerPointer);
 			nextPairPointer = fileDriver.getLong();
 			dataLength = fileDriver.getInt();
 			partPointer = fileDriver.getLong();
+		} finally {
+			fileDriver.getAccessLock().unlock();
 		}
 	}
 
 	@Override
 	public void write(FileDriver fileDriver) throws IOException {
-		synchronized (fileDriver.getAccessLock()) {
+		fileDriver.getAccessLock().lock();
+		try {
 			fileDriver.seek(headerPointer);
 
 			fileDriver.setLong(nextPairPointer);
 			fileDriver.setInt(dataLength);
 			fileDriver.setLong(partPointer);
+		} finally {
+			fileDriver.getAccessLock().unlock();
 		}
 	}
 
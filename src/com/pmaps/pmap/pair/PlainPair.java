@@ -2,10 +2,12 @@ package com.pmaps.pmap.pair;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.Map.Entry;
 
 import com.pmaps.pmap.PMap;
 import com.pmaps.pmap.filedriver.FileDriver;
+import com.pmaps.pmap.serializer.ScratchBuffer;
 
 /**
  * This class is the equivalent of the {@link Entry} class. It represents a
@@ -18,6 +20,12 @@ import com.pmaps.pmap.filedriver.FileDriver;
  */
 public class PlainPair<K, V> implements Pair<K, V> {
 
+	/**
+	 * Serialized key/value bytes are read there and the key decoded right
+	 * away.
+	 */
+	private static final ScratchBuffer READ_BUFFER = new ScratchBuffer(512);
+
 	/**
 	 * 
 	 */
@@ -30,20 +38,32 @@ public class PlainPair<K, V> implements Pair<K, V> {
 
 	/**
 	 * The length of the serialized data (key + value).<br>
-	 * Only valid with read constructor of once write has been called
+	 * Only valid with read constructor of once write has been called, -1
+	 * otherwise.
 	 */
 	private int dataLenght;
+	/**
+	 * Kept for a pair to be written, or for a read pair until its value is
+	 * decoded.
+	 */
 	private byte[] serializedKeyValue;
 	private long nextPairPointer;
 
+	private boolean keyDecoded;
+	private boolean decoded;
+	/**
+	 * True when the value is not available from this instance.
+	 */
+	private boolean keyOnly;
 	private K key;
 	private V value;
 
 	/**
 	 * <p>
 	 * <b>Read constructor.</b> <br>
-	 * Reads the pair present at the position {@link #pairPointer}. Note that it
-	 * reads the key/value bytes for a later de-serialization.
+	 * Reads the pair present at the position {@link #pairPointer} and decodes
+	 * its key. The value is decoded once asked for, or with the key for the
+	 * last pair of its chain.
 	 * </p>
 	 * See method {@link #write(RandomAccessFile)} before changing anything
 	 * there.
@@ -53,15 +73,51 @@ public class PlainPair<K, V> implements Pair<K, V> {
 	 * @throws IOException
 	 */
 	protected PlainPair(PMap<K, V> pMap, long pairPointer) throws IOException {
+		this(pMap, pairPointer, true);
+	}
+
+	/**
+	 * <b>Read constructor.</b> <br>
+	 * Without decodeValue, only the key is decoded : the value is not
+	 * available from this instance.
+	 * 
+	 * @param pMap
+	 * @param pairPointer
+	 * @param decodeValue
+	 * @throws IOException
+	 */
+	protected PlainPair(PMap<K, V> pMap, long pairPointer, boolean decodeValue) throws IOException {
 		this.pMap = pMap;
 		this.pairPointer = pairPointer;
 		final FileDriver fileDriver = pMap.getPairFileDriver();
-		synchronized (fileDriver.getAccessLock()) {
+		final byte[] buffer;
+		fileDriver.getAccessLock().lock();
+		try {
 			fileDriver.seek(pairPointer);
 			dataLenght = fileDriver.readInt();
-			serializedKeyValue = new byte[dataLenght];
-			fileDriver.read(serializedKeyValue);
+			buffer = READ_BUFFER.get(dataLenght);
+			fileDriver.read(buffer, 0, dataLenght);
 			setNextPairPointer(fileDriver.getLong());
+		} finally {
+			fileDriver.getAccessLock().unlock();
+		}
+		this.keyOnly = !decodeValue;
+		// the last pair of a chain is nearly always the one looked for : its
+		// bytes are decoded once. The others cost a copy of their bytes, not
+		// the decoding of their value
+		final boolean lastPair = nextPairPointer == PMap.EOF_POSITION;
+		if (decodeValue && !lastPair)
+			serializedKeyValue = Arrays.copyOf(buffer, dataLenght);
+		// decoded out of the lock, before the buffer is reused
+		try {
+			if (decodeValue && lastPair)
+				setObjects(this.pMap.getSerializer().unserialize(2, buffer, 0, dataLenght));
+			else
+				setKey(this.pMap.getSerializer().unserialize(1, buffer, 0, dataLenght));
+		} catch (ClassNotFoundException e) {
+			// kept to report the failure when the key is asked for
+			if (serializedKeyValue == null)
+				serializedKeyValue = Arrays.copyOf(buffer, dataLenght);
 		}
 	}
 
@@ -78,6 +134,9 @@ public class PlainPair<K, V> implements Pair<K, V> {
 		this.pairPointer = pairPointer;
 		this.key = key;
 		this.value = value;
+		this.keyDecoded = true;
+		this.decoded = true;
+		this.dataLenght = -1;
 		setNextPairPointer(PMap.EOF_POSITION);
 
 	}
@@ -91,7 +150,8 @@ public class PlainPair<K, V> implements Pair<K, V> {
 	 */
 	@Override
 	public void write(FileDriver fileDriver) throws IOException {
-		synchronized (fileDriver.getAccessLock()) {
+		fileDriver.getAccessLock().lock();
+		try {
 			fileDriver.seek(pairPointer);
 			byte[] serialized;
 			serialized = serializedKeyValue == null ? this.pMap.getSerializer().serialize(key, value) : serializedKeyValue;
@@ -99,10 +159,18 @@ public class PlainPair<K, V> implements Pair<K, V> {
 			fileDriver.writeInt(serialized.length);
 			fileDriver.write(serialized);
 			fileDriver.writeLong(nextPairPointer);
+		} finally {
+			fileDriver.getAccessLock().unlock();
 		}
 
 	}
 
+	@Override
+	public void writeNextPairPointer(FileDriver fileDriver) throws IOException {
+		// the link is the last field of the pair
+		fileDriver.setLong(pairPointer + 4 + getDataLength(), nextPairPointer);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -110,8 +178,8 @@ public class PlainPair<K, V> implements Pair<K, V> {
 	 */
 	@Override
 	public K getKey() throws IOException, ClassNotFoundException {
-		if (key == null)
-			getObjects();
+		if (!keyDecoded)
+			setKey(this.pMap.getSerializer().unserialize(1, serializedKeyValue));
 
 		return key;
 	}
@@ -123,17 +191,31 @@ public class PlainPair<K, V> implements Pair<K, V> {
 	 */
 	@Override
 	public V getValue() throws IOException, ClassNotFoundException {
-		if (value == null)
+		if (keyOnly)
+			throw new IllegalStateException("Only the key of this pair has been read");
+		if (!decoded)
 			getObjects();
 
 		return value;
 	}
 
-	@SuppressWarnings("unchecked")
 	private void getObjects() throws IOException, ClassNotFoundException {
-		Object[] unserialized = this.pMap.getSerializer().unserialize(2, serializedKeyValue);
+		setObjects(this.pMap.getSerializer().unserialize(2, serializedKeyValue));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void setObjects(Object[] unserialized) {
 		key = (K) unserialized[0];
 		value = (V) unserialized[1];
+		keyDecoded = true;
+		decoded = true;
+		serializedKeyValue = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void setKey(Object[] unserialized) {
+		key = (K) unserialized[0];
+		keyDecoded = true;
 	}
 
 	/*
@@ -196,7 +278,7 @@ public class PlainPair<K, V> implements Pair<K, V> {
 	 */
 	@Override
 	public int getDataLength() throws IOException {
-		if (serializedKeyValue == null) {
+		if (dataLenght < 0) {
 			// means pair was created with write constructor
 			serializedKeyValue = this.pMap.getSerializer().serialize(key, value);
 			dataLenght = serializedKeyValue.length;
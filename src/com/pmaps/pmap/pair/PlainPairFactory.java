@@ -3,6 +3,7 @@ package com.pmaps.pmap.pair;
 import java.io.IOException;
 
 import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.filedriver.FileDriver;
 
 public class PlainPairFactory implements PairFactory {
 
@@ -11,6 +12,11 @@ public class PlainPairFactory implements PairFactory {
 		return new PlainPair<K, V>(pMap, pairPointer);
 	}
 
+	@Override
+	public <K, V> Pair<K, V> newPairForKeyReading(PMap<K, V> pMap, long pairPointer) throws IOException {
+		return new PlainPair<K, V>(pMap, pairPointer, false);
+	}
+
 	@Override
 	public <K, V> Pair<K, V> newPairForWriting(PMap<K, V> pMap, long pairPointer, K key, V value) {
 		return new PlainPair<K, V>(pMap, pairPointer, key, value);
@@ -28,4 +34,30 @@ public class PlainPairFactory implements PairFactory {
 
 	}
 
+	/**
+	 * A shorter record leaves unused bytes after its link.
+	 */
+	@Override
+	public <K, V> boolean updatePair(FileDriver pairFileDriver, Pair<K, V> oldPair, Pair<K, V> newPair) throws IOException {
+		if (newPair.getDataLength() > oldPair.getDataLength())
+			return false;
+
+		newPair.setPairPointer(oldPair.getPairPointer());
+		newPair.setNextPairPointer(oldPair.getNextPairPointer());
+		newPair.write(pairFileDriver);
+		return true;
+	}
+
+	@Override
+	public void clearFreePairPositions() {
+		// Blank method : not in the scope of plain pairs
+
+	}
+
+	@Override
+	public void checkpoint() {
+		// Blank method : not in the scope of plain pairs
+
+	}
+
 }
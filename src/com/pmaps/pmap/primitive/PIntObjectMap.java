@@ -0,0 +1,199 @@
+package com.pmaps.pmap.primitive;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.pmaps.PMapException;
+import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.filedriver.FileDriver;
+import com.pmaps.pmap.filedriver.RandomAccessFileDriver;
+import com.pmaps.pmap.index.BTreeNode;
+import com.pmaps.pmap.serializer.ISerializer;
+import com.pmaps.pmap.serializer.JavaSerializer;
+
+/**
+ * <p>
+ * Persisted map of int keys to objects. Keys are indexed as they are : no
+ * boxing, no hash collision, no pair chain. Only the value is serialized, in a
+ * record of the data file referenced by the index node.
+ * </p>
+ * <p>
+ * A value is rewritten in its record when it fits, otherwise a new record is
+ * appended. As in the append mode of {@link PMap}, the space of the replaced
+ * and removed records is not reused.
+ * </p>
+ * Record structure : <code>
+ * [capacity:int | dataLength:int | data:byte[capacity]]
+ * </code>
+ *
+ * @author Bleu
+ *
+ * @param <V>
+ */
+public class PIntObjectMap<V> extends PrimitiveMap {
+
+	public static final long SIGNATURE = 123456791l;
+
+	private static final int RECORD_HEADER_BYTE_SIZE = 4 + 4;
+
+	private final FileDriver dataFileDriver;
+	private final ISerializer serializer;
+
+	public PIntObjectMap(String mapName, File baseDirectory) throws IOException {
+		this(mapName, baseDirectory, new JavaSerializer(), true);
+	}
+
+	/**
+	 * Creates a map stored in the files mapName.idx and mapName.data of
+	 * baseDirectory.
+	 *
+	 * @param mapName
+	 * @param baseDirectory
+	 * @param serializer
+	 *            conversion between values and byte arrays
+	 * @param cacheIndex
+	 *            access the index through {@link java.nio.MappedByteBuffer}s
+	 * @throws IOException
+	 */
+	public PIntObjectMap(String mapName, File baseDirectory, ISerializer serializer, boolean cacheIndex) throws IOException {
+		super(checkDirectory(baseDirectory, mapName + ".idx"), cacheIndex, false, SIGNATURE);
+		this.dataFileDriver = new RandomAccessFileDriver(new File(baseDirectory, mapName + ".data"));
+		this.serializer = serializer;
+	}
+
+	private static File checkDirectory(File baseDirectory, String fileName) {
+		if (!baseDirectory.isDirectory())
+			throw new PMapException(baseDirectory.getAbsolutePath() + " is not a directory");
+		return new File(baseDirectory, fileName);
+	}
+
+	public V get(int key) {
+		readWriteLock.readLock().lock();
+		try {
+			final BTreeNode<Void, Void> index = goToIndex(key);
+			return index == null ? null : readValue(index.getNextPairPointer(key));
+		} catch (IOException | ClassNotFoundException e) {
+			throw new PMapException("Unable to read data.", e);
+		} finally {
+			readWriteLock.readLock().unlock();
+		}
+	}
+
+	public boolean containsKey(int key) {
+		readWriteLock.readLock().lock();
+		try {
+			return goToIndex(key) != null;
+		} finally {
+			readWriteLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the previous value or null.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public V put(int key, V value) {
+		readWriteLock.writeLock().lock();
+		try {
+			final byte[] data = serializer.serialize(value);
+			final BTreeNode<Void, Void> index = goToIndex(key);
+			if (index == null) {
+				putPointer(key, appendRecord(data));
+				return null;
+			}
+
+			final long recordPointer = index.getNextPairPointer(key);
+			final V oldValue = readValue(recordPointer);
+			if (data.length <= dataFileDriver.getInt(recordPointer))
+				writeRecordData(recordPointer, data);
+			else
+				putPointer(key, appendRecord(data));
+			return oldValue;
+		} catch (IOException | ClassNotFoundException e) {
+			throw new PMapException("Unable to write data", e);
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the removed value or null.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public V remove(int key) {
+		readWriteLock.writeLock().lock();
+		try {
+			final BTreeNode<Void, Void> index = goToIndex(key);
+			if (index == null)
+				return null;
+			final V oldValue = readValue(index.getNextPairPointer(key));
+			removeKey(key);
+			return oldValue;
+		} catch (IOException | ClassNotFoundException e) {
+			throw new PMapException("Unable to remove data.", e);
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private V readValue(long recordPointer) throws IOException, ClassNotFoundException {
+		final byte[] data;
+		dataFileDriver.getAccessLock().lock();
+		try {
+			dataFileDriver.seek(recordPointer + 4);
+			data = new byte[dataFileDriver.readInt()];
+			dataFileDriver.read(data);
+		} finally {
+			dataFileDriver.getAccessLock().unlock();
+		}
+		return (V) serializer.unserialize(1, data)[0];
+	}
+
+	private long appendRecord(byte[] data) throws IOException {
+		dataFileDriver.getAccessLock().lock();
+		try {
+			final long recordPointer = dataFileDriver.length();
+			dataFileDriver.seek(recordPointer);
+			dataFileDriver.writeInt(data.length);
+			dataFileDriver.writeInt(data.length);
+			dataFileDriver.write(data);
+			return recordPointer;
+		} finally {
+			dataFileDriver.getAccessLock().unlock();
+		}
+	}
+
+	private void writeRecordData(long recordPointer, byte[] data) throws IOException {
+		dataFileDriver.getAccessLock().lock();
+		try {
+			dataFileDriver.seek(recordPointer + 4);
+			dataFileDriver.writeInt(data.length);
+			dataFileDriver.write(data);
+		} finally {
+			dataFileDriver.getAccessLock().unlock();
+		}
+	}
+
+	@Override
+	protected void clearValues() throws IOException {
+		dataFileDriver.setLength(0);
+	}
+
+	@Override
+	public long fileSize() throws IOException {
+		return super.fileSize() + dataFileDriver.length();
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		dataFileDriver.close();
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.pmaps.pmap.primitive;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.pmaps.PMapException;
+import com.pmaps.pmap.index.BTreeNode;
+
+/**
+ * <p>
+ * Persisted map of long keys to long values. Keys are indexed as longs and
+ * each value is stored in the index node, in place of the pair pointer : there
+ * is no pair file, no serializer and no boxing. An entry takes at most one
+ * node of {@link BTreeNode#LONG_KEY_BYTE_SIZE} bytes.
+ * </p>
+ * <p>
+ * Absent keys are reported with the no entry value given to the constructor,
+ * 0 by default. Use {@link #containsKey(long)} to tell them apart.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+public class PLongLongMap extends PrimitiveMap {
+
+	public static final long SIGNATURE = 123456790l;
+
+	private final long noEntryValue;
+
+	public PLongLongMap(File file) throws IOException {
+		this(file, true, 0);
+	}
+
+	/**
+	 *
+	 * @param file
+	 *            a plain file where the index and values are stored.
+	 * @param cacheIndex
+	 *            access the file through {@link java.nio.MappedByteBuffer}s
+	 * @param noEntryValue
+	 *            value returned for absent keys
+	 * @throws IOException
+	 */
+	public PLongLongMap(File file, boolean cacheIndex, long noEntryValue) throws IOException {
+		super(file, cacheIndex, true, SIGNATURE);
+		this.noEntryValue = noEntryValue;
+	}
+
+	public long getNoEntryValue() {
+		return noEntryValue;
+	}
+
+	public long get(long key) {
+		readWriteLock.readLock().lock();
+		try {
+			final BTreeNode<Void, Void> index = goToIndex(key);
+			return index == null ? noEntryValue : index.getNextPairPointer(key);
+		} finally {
+			readWriteLock.readLock().unlock();
+		}
+	}
+
+	public boolean containsKey(long key) {
+		readWriteLock.readLock().lock();
+		try {
+			return goToIndex(key) != null;
+		} finally {
+			readWriteLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the previous value or the no entry value.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public long put(long key, long value) {
+		readWriteLock.writeLock().lock();
+		try {
+			// a previous value may be EOF_POSITION too : the size tells
+			// whether the key is new
+			final int oldSize = size();
+			final long oldValue = putPointer(key, value);
+			return size() == oldSize ? oldValue : noEntryValue;
+		} catch (IOException e) {
+			throw new PMapException("Unable to write data", e);
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the removed value or the no entry value.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public long remove(long key) {
+		readWriteLock.writeLock().lock();
+		try {
+			final BTreeNode<Void, Void> index = goToIndex(key);
+			if (index == null)
+				return noEntryValue;
+			final long oldValue = index.getNextPairPointer(key);
+			removeKey(key);
+			return oldValue;
+		} catch (IOException e) {
+			throw new PMapException("Unable to remove data.", e);
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+	}
+
+}
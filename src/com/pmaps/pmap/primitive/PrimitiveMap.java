@@ -0,0 +1,157 @@
+package com.pmaps.pmap.primitive;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.pmaps.PMapException;
+import com.pmaps.pmap.PMap;
+import com.pmaps.pmap.filedriver.FileDriver;
+import com.pmaps.pmap.filedriver.RandomAccessCachedFileDriver;
+import com.pmaps.pmap.filedriver.RandomAccessFileDriver;
+import com.pmaps.pmap.index.BTreeNode;
+import com.pmaps.pmap.index.BTreeNodeDriver;
+
+/**
+ * <p>
+ * Base of the maps which keys are primitives. The key itself is indexed in the
+ * B-Tree, in place of the hash of a {@link PMap} : there is no collision, thus
+ * no pair chain. The pair pointer of the node references the value, or is the
+ * value.
+ * </p>
+ * <p>
+ * The index file has the header of a {@link PMap} with its own signature.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+abstract class PrimitiveMap {
+
+	protected final FileDriver indexFileDriver;
+	protected final BTreeNodeDriver<Void, Void> nodeDriver;
+	protected final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+
+	private final long signature;
+	private int size;
+
+	protected PrimitiveMap(File indexFile, boolean cacheIndex, boolean longKeys, long signature) throws IOException {
+		if (indexFile.isDirectory())
+			throw new PMapException(indexFile.getAbsolutePath() + " is a directory");
+		if (!indexFile.exists()) {
+			indexFile.createNewFile();
+			FileDriver rafTmp = new RandomAccessFileDriver(indexFile, "rws");
+			PMap.initHeader(rafTmp, signature);
+			rafTmp.close();
+		}
+		this.signature = signature;
+
+		final int nodeByteSize = longKeys ? BTreeNode.LONG_KEY_BYTE_SIZE : BTreeNode.BYTE_SIZE;
+		this.indexFileDriver = cacheIndex ? new RandomAccessCachedFileDriver(indexFile, nodeByteSize) : new RandomAccessFileDriver(indexFile);
+		if (indexFileDriver.getLong(PMap.POSITION_PMAP_SIGNATURE) != signature)
+			throw new PMapException("Header signature has not been found. The file may be corrupted");
+		this.nodeDriver = new BTreeNodeDriver<>(indexFileDriver, longKeys);
+		this.size = indexFileDriver.getInt(PMap.POSITION_SIZE);
+	}
+
+	/**
+	 * Returns the node holding key or null.
+	 *
+	 * @param key
+	 * @return
+	 */
+	protected BTreeNode<Void, Void> goToIndex(long key) {
+		return nodeDriver.goToIndex(key);
+	}
+
+	/**
+	 * Registers pointer for key. Returns the previous pointer or
+	 * {@link PMap#EOF_POSITION} if key is new, in which case the size is
+	 * incremented. Must be called under the write lock.
+	 *
+	 * @param key
+	 * @param pointer
+	 * @return
+	 * @throws IOException
+	 */
+	protected long putPointer(long key, long pointer) throws IOException {
+		final LinkedList<Long> treePathPositions = nodeDriver.findEntryPositions(key);
+		final long lastNodePosition = treePathPositions.pollLast();
+		if (lastNodePosition == PMap.EOF_POSITION) {
+			nodeDriver.registerNewEntry(treePathPositions, key, pointer, null, null);
+			setSize(size + 1);
+			return PMap.EOF_POSITION;
+		}
+
+		final BTreeNode<Void, Void> current = new BTreeNode<>(nodeDriver, lastNodePosition);
+		final long oldPointer = current.getNextPairPointer(key);
+		current.setNextPairPointer(key, pointer);
+		current.write(indexFileDriver);
+		return oldPointer;
+	}
+
+	/**
+	 * Removes key. Returns true if it was present. Must be called under the
+	 * write lock.
+	 *
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	protected boolean removeKey(long key) throws IOException {
+		final LinkedList<Long> treePathPositions = nodeDriver.findEntryPositions(key);
+		if (treePathPositions.getLast() == PMap.EOF_POSITION)
+			return false;
+		nodeDriver.removeHashEntry(treePathPositions, key);
+		setSize(size - 1);
+		return true;
+	}
+
+	private void setSize(int newSize) throws IOException {
+		size = newSize;
+		indexFileDriver.setInt(PMap.POSITION_SIZE, newSize);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Removes all the entries.
+	 */
+	public void clear() {
+		readWriteLock.writeLock().lock();
+		try {
+			PMap.initHeader(indexFileDriver, signature);
+			size = 0;
+			clearValues();
+		} catch (IOException e) {
+			throw new PMapException("Unable to clear the persisted file", e);
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Called by {@link #clear()} once the index is empty.
+	 *
+	 * @throws IOException
+	 */
+	protected void clearValues() throws IOException {
+	}
+
+	public long fileSize() throws IOException {
+		return indexFileDriver.length();
+	}
+
+	public void close() throws IOException {
+		indexFileDriver.close();
+	}
+
+}
@@ -0,0 +1,222 @@
+package com.pmaps.pmap.serializer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * Decorates an {@link ISerializer} with a deflate compression primed with a
+ * shared dictionary. Small records do not compress well on their own but they
+ * share a lot with each other (class descriptors, field names, common
+ * values...) : a dictionary trained on existing records (see
+ * {@link DictionaryTrainer}) brings this shared content to every record.
+ * </p>
+ * <p>
+ * Serialized form : <code>
+ * [dictionaryId:byte | rawLength:int | deflated bytes]
+ * </code> or <code>[0:byte | raw bytes]</code> when no dictionary is set or
+ * when compression does not make the record smaller.
+ * </p>
+ * <p>
+ * Dictionaries are never replaced : records compressed with an older
+ * dictionary remain readable as long as the dictionary is registered.
+ * </p>
+ * <p>
+ * Deflaters, inflaters and work buffers are kept per thread and reset from one
+ * record to another.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+public class DictionarySerializer implements ISerializer {
+
+	public static final int NO_DICTIONARY = 0;
+	public static final int MAX_DICTIONARY_ID = Byte.MAX_VALUE;
+
+	private static final int COMPRESSED_HEADER_SIZE = 1 + 4;
+
+	private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+	private static final ScratchBuffer DEFLATE_BUFFER = new ScratchBuffer(1024);
+	private static final ScratchBuffer INFLATE_BUFFER = new ScratchBuffer(1024);
+
+	private final ISerializer serializer;
+	private final byte[][] dictionaries;
+	private volatile int currentDictionaryId;
+
+	public DictionarySerializer(ISerializer serializer) {
+		this.serializer = serializer;
+		this.dictionaries = new byte[MAX_DICTIONARY_ID + 1][];
+		this.currentDictionaryId = NO_DICTIONARY;
+	}
+
+	/**
+	 * Returns the decorated serializer.
+	 *
+	 * @return
+	 */
+	public ISerializer getSerializer() {
+		return serializer;
+	}
+
+	public int getCurrentDictionaryId() {
+		return currentDictionaryId;
+	}
+
+	/**
+	 * Registers a dictionary so that records compressed with it can be read.
+	 *
+	 * @param dictionaryId
+	 * @param dictionary
+	 * @param current
+	 *            if true, new records are compressed with this dictionary.
+	 */
+	public synchronized void registerDictionary(int dictionaryId, byte[] dictionary, boolean current) {
+		if (dictionaryId <= NO_DICTIONARY || dictionaryId > MAX_DICTIONARY_ID)
+			throw new IllegalArgumentException("Dictionary id must be in ]0," + MAX_DICTIONARY_ID + "]");
+		dictionaries[dictionaryId] = dictionary;
+		if (current)
+			currentDictionaryId = dictionaryId;
+	}
+
+	/**
+	 * Forgets all the dictionaries. Records are no more compressed.
+	 */
+	public synchronized void clearDictionaries() {
+		Arrays.fill(dictionaries, null);
+		currentDictionaryId = NO_DICTIONARY;
+	}
+
+	@Override
+	public byte[] serialize(Object... serials) throws IOException {
+		return serializeWithHeader(0, serials);
+	}
+
+	@Override
+	public byte[] serializeWithHeader(int headerLength, Object... serials) throws IOException {
+		// the raw record already has the room for the uncompressed form
+		final byte[] b = serializer.serializeWithHeader(headerLength + 1, serials);
+
+		final int dictionaryId = currentDictionaryId;
+		if (dictionaryId != NO_DICTIONARY) {
+			final byte[] compressed = compress(dictionaryId, headerLength, b);
+			if (compressed != null)
+				return compressed;
+		}
+
+		b[headerLength] = NO_DICTIONARY;
+		return b;
+	}
+
+	@Override
+	public Object[] unserialize(int numberOfObjects, byte[] b) throws IOException, ClassNotFoundException {
+		return unserialize(numberOfObjects, b, 0, b.length);
+	}
+
+	@Override
+	public Object[] unserialize(int numberOfObjects, byte[] b, int offset, int length) throws IOException, ClassNotFoundException {
+		final int dictionaryId = b[offset];
+		if (dictionaryId == NO_DICTIONARY)
+			return serializer.unserialize(numberOfObjects, b, offset + 1, length - 1);
+
+		final int rawLength = readInt(b, offset + 1);
+		final byte[] raw = INFLATE_BUFFER.get(rawLength);
+		decompress(dictionaryId, b, offset, length, raw, rawLength);
+		return serializer.unserialize(numberOfObjects, raw, 0, rawLength);
+	}
+
+	/**
+	 * Streamed records are not compressed.
+	 */
+	@Override
+	public void serializeTo(OutputStream out, Object... serials) throws IOException {
+		out.write(NO_DICTIONARY);
+		serializer.serializeTo(out, serials);
+	}
+
+	@Override
+	public Object[] unserializeFrom(int numberOfObjects, InputStream in) throws IOException, ClassNotFoundException {
+		final int dictionaryId = in.read();
+		if (dictionaryId < 0)
+			throw new EOFException();
+		if (dictionaryId == NO_DICTIONARY)
+			return serializer.unserializeFrom(numberOfObjects, in);
+
+		final byte[] b = in.readAllBytes();
+		final byte[] record = new byte[1 + b.length];
+		record[0] = (byte) dictionaryId;
+		System.arraycopy(b, 0, record, 1, b.length);
+		return unserialize(numberOfObjects, record);
+	}
+
+	/**
+	 * Compresses the raw record found after headerLength + 1 bytes of b.
+	 * Returns null if the compressed record is not smaller than the raw one.
+	 */
+	private byte[] compress(int dictionaryId, int headerLength, byte[] b) {
+		final int rawOffset = headerLength + 1;
+		final int rawLength = b.length - rawOffset;
+		final Deflater deflater = DEFLATERS.get();
+		deflater.reset();
+		deflater.setDictionary(dictionaries[dictionaryId]);
+		deflater.setInput(b, rawOffset, rawLength);
+		deflater.finish();
+
+		// no need to go further than the size of the raw record
+		final int maxLength = rawLength + 1;
+		final byte[] buffer = DEFLATE_BUFFER.get(maxLength);
+		int length = COMPRESSED_HEADER_SIZE;
+		while (!deflater.finished() && length < maxLength) {
+			length += deflater.deflate(buffer, length, maxLength - length);
+		}
+		if (!deflater.finished() || length >= maxLength)
+			return null;
+
+		final byte[] compressed = new byte[headerLength + length];
+		compressed[headerLength] = (byte) dictionaryId;
+		writeInt(compressed, headerLength + 1, rawLength);
+		System.arraycopy(buffer, COMPRESSED_HEADER_SIZE, compressed, headerLength + COMPRESSED_HEADER_SIZE, length - COMPRESSED_HEADER_SIZE);
+		return compressed;
+	}
+
+	private void decompress(int dictionaryId, byte[] b, int offset, int length, byte[] raw, int rawLength) throws IOException {
+		final byte[] dictionary = dictionaries[dictionaryId];
+		if (dictionary == null)
+			throw new IOException("Dictionary " + dictionaryId + " is not registered");
+
+		final Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		try {
+			inflater.setDictionary(dictionary);
+			inflater.setInput(b, offset + COMPRESSED_HEADER_SIZE, length - COMPRESSED_HEADER_SIZE);
+			int inflatedLength = 0;
+			while (inflatedLength < rawLength) {
+				final int inflated = inflater.inflate(raw, inflatedLength, rawLength - inflatedLength);
+				if (inflated == 0 && (inflater.needsInput() || inflater.finished()))
+					throw new IOException("Truncated compressed record");
+				inflatedLength += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Unable to decompress the record", e);
+		}
+	}
+
+	private static void writeInt(byte[] b, int offset, int i) {
+		b[offset] = (byte) (i >>> 24);
+		b[offset + 1] = (byte) (i >>> 16);
+		b[offset + 2] = (byte) (i >>> 8);
+		b[offset + 3] = (byte) i;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.pmaps.pmap.serializer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * <p>
+ * Builds a shared compression dictionary out of a list of sample records.
+ * </p>
+ * <p>
+ * Every 8 bytes gram of the samples is counted once per sample it appears in.
+ * Samples are then cut into overlapping segments scored with the frequency of
+ * the grams they contain and the best segments are greedily kept until the
+ * dictionary is full. Grams of a kept segment no longer count for the other
+ * segments so that the dictionary does not repeat itself.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+public final class DictionaryTrainer {
+
+	/**
+	 * Deflate can not look further than 32K bytes back.
+	 */
+	public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	private static final int GRAM_LENGTH = 8;
+	private static final int SEGMENT_LENGTH = 64;
+
+	private static class Segment {
+		final byte[] sample;
+		final int offset;
+		final int length;
+		int score;
+
+		Segment(byte[] sample, int offset, int length) {
+			this.sample = sample;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private DictionaryTrainer() {
+	}
+
+	/**
+	 * Trains a dictionary of at most dictionarySize bytes. The returned array
+	 * may be empty if the samples do not share anything.
+	 *
+	 * @param samples
+	 * @param dictionarySize
+	 * @return
+	 */
+	public static byte[] train(List<byte[]> samples, int dictionarySize) {
+		dictionarySize = Math.min(dictionarySize, MAX_DICTIONARY_SIZE);
+
+		// 1 - count in how many samples each gram is present
+		final Map<Long, Integer> frequencies = new HashMap<>();
+		final Set<Long> sampleGrams = new HashSet<>();
+		for (byte[] sample : samples) {
+			sampleGrams.clear();
+			for (int i = 0; i + GRAM_LENGTH <= sample.length; i++) {
+				final long gram = gram(sample, i);
+				if (sampleGrams.add(gram))
+					frequencies.merge(gram, 1, Integer::sum);
+			}
+		}
+
+		// 2 - score the segments and keep the best ones
+		final PriorityQueue<Segment> queue = new PriorityQueue<>((s1, s2) -> Integer.compare(s2.score, s1.score));
+		for (byte[] sample : samples) {
+			for (int offset = 0; offset + GRAM_LENGTH <= sample.length; offset += SEGMENT_LENGTH / 2) {
+				final Segment segment = new Segment(sample, offset, Math.min(SEGMENT_LENGTH, sample.length - offset));
+				segment.score = score(segment, frequencies);
+				if (segment.score > 0)
+					queue.add(segment);
+			}
+		}
+
+		final List<Segment> selected = new ArrayList<>();
+		int selectedLength = 0;
+		while (!queue.isEmpty() && selectedLength < dictionarySize) {
+			final Segment segment = queue.poll();
+			// grams may have been consumed since the segment was queued
+			final int score = score(segment, frequencies);
+			if (score <= 0)
+				continue;
+			if (!queue.isEmpty() && score < queue.peek().score) {
+				segment.score = score;
+				queue.add(segment);
+				continue;
+			}
+			for (int i = segment.offset; i + GRAM_LENGTH <= segment.offset + segment.length; i++) {
+				frequencies.remove(gram(segment.sample, i));
+			}
+			selected.add(segment);
+			selectedLength += segment.length;
+		}
+
+		// 3 - deflate reaches the end of the dictionary with the shortest
+		// distances : best segments go last.
+		final byte[] dictionary = new byte[Math.min(selectedLength, dictionarySize)];
+		int position = dictionary.length;
+		for (Segment segment : selected) {
+			final int length = Math.min(segment.length, position);
+			position -= length;
+			System.arraycopy(segment.sample, segment.offset + segment.length - length, dictionary, position, length);
+			if (position == 0)
+				break;
+		}
+		return dictionary;
+	}
+
+	private static int score(Segment segment, Map<Long, Integer> frequencies) {
+		int score = 0;
+		for (int i = segment.offset; i + GRAM_LENGTH <= segment.offset + segment.length; i++) {
+			final Integer frequency = frequencies.get(gram(segment.sample, i));
+			// a gram present in a single sample is not worth anything
+			if (frequency != null && frequency > 1)
+				score += frequency - 1;
+		}
+		return score;
+	}
+
+	private static long gram(byte[] b, int offset) {
+		long gram = 0;
+		for (int i = 0; i < GRAM_LENGTH; i++) {
+			gram = (gram << 8) | (b[offset + i] & 0xFF);
+		}
+		return gram;
+	}
+
+}
@@ -1,10 +1,73 @@
 package com.pmaps.pmap.serializer;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 public interface ISerializer {
-	
+
 	byte[] serialize(Object... serials) throws IOException;
 
 	Object[] unserialize(int numberOfObjects, byte[] b) throws IOException, ClassNotFoundException;
-}
\ No newline at end of file
+
+	/**
+	 * Serializes the objects into an array which first headerLength bytes are
+	 * left free for the caller. Saves a copy to decorating serializers.
+	 *
+	 * @param headerLength
+	 * @param serials
+	 * @return
+	 * @throws IOException
+	 */
+	default byte[] serializeWithHeader(int headerLength, Object... serials) throws IOException {
+		final byte[] b = serialize(serials);
+		final byte[] withHeader = new byte[headerLength + b.length];
+		System.arraycopy(b, 0, withHeader, headerLength, b.length);
+		return withHeader;
+	}
+
+	/**
+	 * Unserializes the objects from the length bytes of b starting at offset.
+	 * b is not referenced once the method returns : it can be a reused
+	 * buffer.
+	 *
+	 * @param numberOfObjects
+	 * @param b
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	default Object[] unserialize(int numberOfObjects, byte[] b, int offset, int length) throws IOException, ClassNotFoundException {
+		return unserialize(numberOfObjects, Arrays.copyOfRange(b, offset, offset + length));
+	}
+
+	/**
+	 * Serializes the objects to out, which is not closed. Serializers which
+	 * support it write without building the whole record in memory.
+	 *
+	 * @param out
+	 * @param serials
+	 * @throws IOException
+	 */
+	default void serializeTo(OutputStream out, Object... serials) throws IOException {
+		out.write(serialize(serials));
+	}
+
+	/**
+	 * Unserializes the objects written by
+	 * {@link #serializeTo(OutputStream, Object...)} from in, which is not
+	 * closed.
+	 *
+	 * @param numberOfObjects
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	default Object[] unserializeFrom(int numberOfObjects, InputStream in) throws IOException, ClassNotFoundException {
+		return unserialize(numberOfObjects, in.readAllBytes());
+	}
+}
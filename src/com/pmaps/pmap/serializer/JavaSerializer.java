@@ -1,48 +1,278 @@
 package com.pmaps.pmap.serializer;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 
 /**
- * Manage the serialization of the objects. 
+ * Manage the serialization of the objects.
  * Direct serializer for Object that extends the {@link Serializable} interface
- * 
+ *
+ * <p>
+ * Object streams are expensive to create : each thread keeps one
+ * {@link ObjectOutputStream} and one {@link ObjectInputStream} and reuses them
+ * from one record to another. Each record is still a complete serialization
+ * stream (header, reset marker, objects) that can be read on its own. Both
+ * streams are reset once a record is done : their handle tables do not keep
+ * the objects of the last record alive.
+ * </p>
+ *
  * @author bleu
- * 
+ *
  */
 public class JavaSerializer implements ISerializer {
 
+	/**
+	 * Magic number and version written by {@link ObjectOutputStream} at the
+	 * beginning of a stream.
+	 */
+	private static final int STREAM_HEADER_LENGTH = 4;
+
+	/**
+	 * Read by a decoder after a record, behind a reset marker, to drop its
+	 * handles.
+	 */
+	private static final byte[] NULL_RECORD = { ObjectStreamConstants.TC_NULL };
+
+	/**
+	 * Encoders and decoders are marked busy while in use : a nested call
+	 * (custom writeObject using a PMap...) gets an instance of its own, which
+	 * is not kept. They stay in their thread local : nothing is allocated to
+	 * give them back.
+	 */
+	private static final ThreadLocal<Encoder> ENCODERS = new ThreadLocal<>();
+	private static final ThreadLocal<Decoder> DECODERS = new ThreadLocal<>();
+
 	public byte[] serialize(Object... serials) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		return serializeWithHeader(0, serials);
+	}
+
+	@Override
+	public byte[] serializeWithHeader(int headerLength, Object... serials) throws IOException {
+		Encoder encoder = ENCODERS.get();
+		if (encoder == null || encoder.busy) {
+			final boolean nested = encoder != null;
+			encoder = new Encoder();
+			if (!nested)
+				ENCODERS.set(encoder);
+		}
+
+		encoder.busy = true;
+		boolean done = false;
 		try {
-			for (Object serial : serials) {
-				oos.writeObject(serial);
-			}
+			final byte[] b = encoder.encode(headerLength, serials);
+			done = encoder.isReusable();
+			return b;
 		} finally {
-			oos.close();
+			encoder.busy = false;
+			// an encoder which failed is not kept : its stream may be broken
+			if (!done && ENCODERS.get() == encoder)
+				ENCODERS.remove();
 		}
-		return baos.toByteArray();
 	}
 
 	public Object[] unserialize(int numberOfObjects, byte[] b) throws IOException, ClassNotFoundException {
-		Serializable[] serials = new Serializable[numberOfObjects];
-		ByteArrayInputStream bais = new ByteArrayInputStream(b);
-		ObjectInputStream ois = new ObjectInputStream(bais);
+		return unserialize(numberOfObjects, b, 0, b.length);
+	}
+
+	@Override
+	public Object[] unserialize(int numberOfObjects, byte[] b, int offset, int length) throws IOException, ClassNotFoundException {
+		Decoder decoder = DECODERS.get();
+		if (decoder == null || decoder.busy) {
+			final boolean nested = decoder != null;
+			decoder = new Decoder();
+			if (!nested)
+				DECODERS.set(decoder);
+		}
+
+		decoder.busy = true;
+		boolean done = false;
 		try {
-			for (int i = 0; i < serials.length; i++) {
-				serials[i] = (Serializable) ois.readObject();
-			}
+			final Object[] serials = decoder.decode(numberOfObjects, b, offset, length);
+			done = true;
+			return serials;
 		} finally {
-			ois.close();
-			bais.close();
+			decoder.busy = false;
+			// a decoder which failed is not kept : its stream may be broken
+			if (!done && DECODERS.get() == decoder)
+				DECODERS.remove();
+		}
+	}
+
+	/**
+	 * A stream of its own : nothing is pooled for records which may be huge.
+	 */
+	@Override
+	public void serializeTo(OutputStream out, Object... serials) throws IOException {
+		final ObjectOutputStream oos = new ObjectOutputStream(out);
+		for (Object serial : serials) {
+			oos.writeObject(serial);
+		}
+		oos.flush();
+	}
+
+	@Override
+	public Object[] unserializeFrom(int numberOfObjects, InputStream in) throws IOException, ClassNotFoundException {
+		final ObjectInputStream ois = new ObjectInputStream(in);
+		final Serializable[] serials = new Serializable[numberOfObjects];
+		for (int i = 0; i < serials.length; i++) {
+			serials[i] = (Serializable) ois.readObject();
 		}
 		return serials;
+	}
+
+	private static class Encoder {
+
+		private boolean busy;
+		private final RecordOutputStream out;
+		private final ObjectOutputStream oos;
+		private final int streamHeaderLength;
+
+		Encoder() throws IOException {
+			out = new RecordOutputStream();
+			oos = new ObjectOutputStream(out);
+			oos.flush();
+			streamHeaderLength = out.size();
+		}
+
+		byte[] encode(int headerLength, Object... serials) throws IOException {
+			// keeps the stream header written by the constructor
+			out.truncate(streamHeaderLength);
+			// the reset marker of the record
+			oos.reset();
+			for (Object serial : serials) {
+				oos.writeObject(serial);
+			}
+			oos.flush();
+			final byte[] b = out.toByteArray(headerLength);
+			// forgets the objects of this record, the marker is truncated by
+			// the next one
+			oos.reset();
+			oos.flush();
+			return b;
+		}
+
+		boolean isReusable() {
+			return out.capacity() <= ScratchBuffer.MAX_RETAINED_SIZE;
+		}
+	}
 
+	private static class Decoder {
+
+		private boolean busy;
+		private final RecordInputStream in;
+		private ObjectInputStream ois;
+
+		Decoder() {
+			in = new RecordInputStream();
+		}
+
+		Object[] decode(int numberOfObjects, byte[] b, int offset, int length) throws IOException, ClassNotFoundException {
+			if (ois == null) {
+				in.set(RecordInputStream.NO_PREFIX, b, offset, length);
+				// reads the stream header
+				ois = new ObjectInputStream(in);
+			} else {
+				if (length < STREAM_HEADER_LENGTH || (b[offset] & 0xFF) != (ObjectStreamConstants.STREAM_MAGIC >>> 8 & 0xFF)
+						|| (b[offset + 1] & 0xFF) != (ObjectStreamConstants.STREAM_MAGIC & 0xFF))
+					throw new StreamCorruptedException("Invalid stream header");
+				// a reset marker takes the place of the stream header : the
+				// handles of the previous record are dropped.
+				in.set(ObjectStreamConstants.TC_RESET, b, offset + STREAM_HEADER_LENGTH, length - STREAM_HEADER_LENGTH);
+			}
+
+			final Serializable[] serials = new Serializable[numberOfObjects];
+			try {
+				for (int i = 0; i < serials.length; i++) {
+					serials[i] = (Serializable) ois.readObject();
+				}
+				// forgets the objects of this record
+				in.set(ObjectStreamConstants.TC_RESET, NULL_RECORD, 0, NULL_RECORD.length);
+				ois.readObject();
+			} finally {
+				in.release();
+			}
+			return serials;
+		}
+	}
+
+	private static class RecordOutputStream extends ByteArrayOutputStream {
+
+		RecordOutputStream() {
+			super(256);
+		}
+
+		void truncate(int length) {
+			count = length;
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+
+		byte[] toByteArray(int headerLength) {
+			final byte[] b = new byte[headerLength + count];
+			System.arraycopy(buf, 0, b, headerLength, count);
+			return b;
+		}
+	}
+
+	private static class RecordInputStream extends InputStream {
+
+		static final int NO_PREFIX = -1;
+
+		private int prefix = NO_PREFIX;
+		private byte[] b;
+		private int position;
+		private int end;
+
+		void set(int prefix, byte[] b, int offset, int length) {
+			this.prefix = prefix;
+			this.b = b;
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		void release() {
+			set(NO_PREFIX, null, 0, 0);
+		}
+
+		@Override
+		public int read() {
+			if (prefix != NO_PREFIX) {
+				final int p = prefix;
+				prefix = NO_PREFIX;
+				return p;
+			}
+			return position < end ? b[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] dst, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (prefix != NO_PREFIX) {
+				dst[off] = (byte) read();
+				return 1;
+			}
+			if (position >= end)
+				return -1;
+			final int n = Math.min(len, end - position);
+			System.arraycopy(b, position, dst, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (prefix != NO_PREFIX ? 1 : 0) + end - position;
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,47 @@
+package com.pmaps.pmap.serializer;
+
+/**
+ * <p>
+ * Per-thread byte array reused from one call to another, so that reading or
+ * encoding a record does not produce garbage.
+ * </p>
+ * <p>
+ * The array returned by {@link #get(int)} belongs to the calling thread until
+ * its next call to {@link #get(int)} on the same instance : callers must be
+ * done with it before that. Arrays bigger than {@link #MAX_RETAINED_SIZE} are
+ * not kept so that a single huge record does not pin its memory forever.
+ * </p>
+ *
+ * @author Bleu
+ *
+ */
+public final class ScratchBuffer {
+
+	public static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+	private final ThreadLocal<byte[]> buffers;
+
+	public ScratchBuffer(final int initialSize) {
+		this.buffers = ThreadLocal.withInitial(() -> new byte[initialSize]);
+	}
+
+	/**
+	 * Returns an array of at least minLength bytes. Content is undefined.
+	 *
+	 * @param minLength
+	 * @return
+	 */
+	public byte[] get(int minLength) {
+		byte[] buffer = buffers.get();
+		if (buffer.length >= minLength)
+			return buffer;
+
+		if (minLength > MAX_RETAINED_SIZE)
+			return new byte[minLength];
+
+		buffer = new byte[Math.min(MAX_RETAINED_SIZE, Math.max(minLength, buffer.length * 2))];
+		buffers.set(buffer);
+		return buffer;
+	}
+
+}
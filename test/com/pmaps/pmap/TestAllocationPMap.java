@@ -0,0 +1,246 @@
+package com.pmaps.pmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import com.pmaps.pmap.serializer.ISerializer;
+import com.pmaps.pmap.serializer.JavaSerializer;
+
+/**
+ * Measures the bytes allocated by the read and write paths.
+ *
+ * @author Bleu
+ *
+ */
+public class TestAllocationPMap {
+
+	private static final File tempDir = new File("./tmp/");
+
+	private static final int NBR = 20000;
+
+	/**
+	 * Creates new object streams for each record.
+	 */
+	static class NaiveSerializer implements ISerializer {
+
+		@Override
+		public byte[] serialize(Object... serials) throws IOException {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+				for (Object serial : serials)
+					oos.writeObject(serial);
+			}
+			return baos.toByteArray();
+		}
+
+		@Override
+		public Object[] unserialize(int numberOfObjects, byte[] b) throws IOException, ClassNotFoundException {
+			final Object[] serials = new Object[numberOfObjects];
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(b))) {
+				for (int i = 0; i < numberOfObjects; i++)
+					serials[i] = ois.readObject();
+			}
+			return serials;
+		}
+
+	}
+
+	private static com.sun.management.ThreadMXBean threadMXBean() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assumptions.assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "Allocation counters not available");
+		final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		Assumptions.assumeTrue(sunBean.isThreadAllocatedMemorySupported(), "Allocation counters not available");
+		sunBean.setThreadAllocatedMemoryEnabled(true);
+		return sunBean;
+	}
+
+	private static long allocatedBytes(com.sun.management.ThreadMXBean bean) {
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static long serializationAllocation(ISerializer serializer) throws IOException, ClassNotFoundException {
+		final com.sun.management.ThreadMXBean bean = threadMXBean();
+		// warm up
+		for (int i = 0; i < 1000; i++)
+			serializer.unserialize(2, serializer.serialize("key-" + i, "value-" + i));
+
+		final long start = allocatedBytes(bean);
+		for (int i = 0; i < NBR; i++) {
+			final Object[] o = serializer.unserialize(2, serializer.serialize("key-" + i, "value-" + i));
+			if (!o[0].equals("key-" + i))
+				Assertions.fail("Unexpected key " + o[0]);
+		}
+		return (allocatedBytes(bean) - start) / NBR;
+	}
+
+	@Test
+	public void testSerializerAllocation() throws IOException, ClassNotFoundException {
+		final long naive = serializationAllocation(new NaiveSerializer());
+		final long pooled = serializationAllocation(new JavaSerializer());
+		System.out.println("Bytes allocated per record : naive " + naive + ", pooled " + pooled);
+		Assertions.assertTrue(pooled * 2 < naive);
+	}
+
+	@Test
+	public void testPooledSerializerRoundTrip() throws IOException, ClassNotFoundException {
+		final ISerializer serializer = new JavaSerializer();
+		final Map<String, Integer> map = new HashMap<>();
+		map.put("a", 1);
+		final Object[][] records = { { "s", 1 }, { null, 2L }, { map, map }, { new int[] { 1, 2 }, "s" }, { "s", null } };
+		// each record must be readable on its own, in any order
+		final byte[][] serialized = new byte[records.length][];
+		for (int i = 0; i < records.length; i++)
+			serialized[i] = serializer.serialize(records[i]);
+		for (int i = records.length - 1; i >= 0; i--) {
+			final Object[] o = serializer.unserialize(2, serialized[i]);
+			if (records[i][0] instanceof int[])
+				Assertions.assertArrayEquals((int[]) records[i][0], (int[]) o[0]);
+			else
+				Assertions.assertEquals(records[i][0], o[0]);
+			Assertions.assertEquals(records[i][1], o[1]);
+		}
+		final Object[] shared = serializer.unserialize(2, serialized[2]);
+		Assertions.assertSame(shared[0], shared[1]);
+	}
+
+	/**
+	 * Writes Integer and String objects without any stream or descriptor : the
+	 * bytes it allocates are the record and the objects read, so that a
+	 * measure of the maps is their own allocation.
+	 */
+	static class CompactSerializer implements ISerializer {
+
+		private static final byte INTEGER = 'I';
+		private static final byte STRING = 'S';
+
+		@Override
+		public byte[] serialize(Object... serials) throws IOException {
+			return serializeWithHeader(0, serials);
+		}
+
+		@Override
+		public byte[] serializeWithHeader(int headerLength, Object... serials) throws IOException {
+			int length = headerLength;
+			for (Object serial : serials)
+				length += serial instanceof Integer ? 5 : 3 + ((String) serial).length();
+			final byte[] b = new byte[length];
+			int p = headerLength;
+			for (Object serial : serials) {
+				if (serial instanceof Integer) {
+					final int i = (Integer) serial;
+					b[p++] = INTEGER;
+					b[p++] = (byte) (i >>> 24);
+					b[p++] = (byte) (i >>> 16);
+					b[p++] = (byte) (i >>> 8);
+					b[p++] = (byte) i;
+				} else {
+					final String s = (String) serial;
+					b[p++] = STRING;
+					b[p++] = (byte) (s.length() >>> 8);
+					b[p++] = (byte) s.length();
+					for (int k = 0; k < s.length(); k++)
+						b[p++] = (byte) s.charAt(k);
+				}
+			}
+			return b;
+		}
+
+		@Override
+		public Object[] unserialize(int numberOfObjects, byte[] b) throws IOException {
+			return unserialize(numberOfObjects, b, 0, b.length);
+		}
+
+		@Override
+		public Object[] unserialize(int numberOfObjects, byte[] b, int offset, int length) throws IOException {
+			final Object[] serials = new Object[numberOfObjects];
+			int p = offset;
+			for (int i = 0; i < numberOfObjects; i++) {
+				if (b[p] == INTEGER) {
+					serials[i] = (b[p + 1] & 0xFF) << 24 | (b[p + 2] & 0xFF) << 16 | (b[p + 3] & 0xFF) << 8 | (b[p + 4] & 0xFF);
+					p += 5;
+				} else {
+					final int l = (b[p + 1] & 0xFF) << 8 | (b[p + 2] & 0xFF);
+					serials[i] = new String(b, p + 3, l, StandardCharsets.ISO_8859_1);
+					p += 3 + l;
+				}
+			}
+			return serials;
+		}
+
+	}
+
+	/**
+	 * Returns the bytes allocated by a put of a new key, by a put replacing a
+	 * value and by a get.
+	 */
+	private static long[] pMapAllocation(String name, ISerializer serializer) throws IOException {
+		final com.sun.management.ThreadMXBean bean = threadMXBean();
+		if (!tempDir.exists()) tempDir.mkdirs();
+		final File file = new File(tempDir, name);
+		final PMap<Integer, String> pMap = new PMap<>(file, serializer);
+		try {
+			pMap.clear();
+			final String[] values = new String[NBR];
+			for (int i = 0; i < NBR; i++)
+				values[i] = "value-" + i;
+
+			long start = allocatedBytes(bean);
+			for (int i = 0; i < NBR; i++)
+				pMap.put(i, values[i]);
+			final long insert = (allocatedBytes(bean) - start) / NBR;
+
+			start = allocatedBytes(bean);
+			for (int i = 0; i < NBR; i++)
+				pMap.put(i, values[NBR - 1 - i]);
+			final long update = (allocatedBytes(bean) - start) / NBR;
+
+			start = allocatedBytes(bean);
+			for (int i = 0; i < NBR; i++)
+				if (pMap.get(i) == null)
+					Assertions.fail("Missing key " + i);
+			final long get = (allocatedBytes(bean) - start) / NBR;
+			System.out.println(name + " : bytes allocated per insert " + insert + ", per update " + update + ", per get " + get);
+			return new long[] { insert, update, get };
+		} finally {
+			pMap.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * The allocation of the map itself : the node of the key, the pair read
+	 * and its record. A new key also reads the path to its node.
+	 */
+	@Test
+	public void testPMapAllocation() throws IOException {
+		final long[] bytes = pMapAllocation("Alloc-Compact-PMap", new CompactSerializer());
+		Assertions.assertTrue(bytes[0] <= 2048, "insert allocates " + bytes[0] + " bytes");
+		Assertions.assertTrue(bytes[1] <= 768, "update allocates " + bytes[1] + " bytes");
+		Assertions.assertTrue(bytes[2] <= 256, "get allocates " + bytes[2] + " bytes");
+	}
+
+	/**
+	 * {@link JavaSerializer} adds the class descriptors of the stream format,
+	 * read again for each record.
+	 */
+	@Test
+	public void testPMapJavaSerializerAllocation() throws IOException {
+		final long[] bytes = pMapAllocation("Alloc-Java-PMap", new JavaSerializer());
+		Assertions.assertTrue(bytes[0] <= 3072, "insert allocates " + bytes[0] + " bytes");
+		Assertions.assertTrue(bytes[1] <= 3072, "update allocates " + bytes[1] + " bytes");
+		Assertions.assertTrue(bytes[2] <= 3072, "get allocates " + bytes[2] + " bytes");
+	}
+
+}
@@ -1,11 +1,18 @@
 package com.pmaps.pmap;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -15,21 +22,31 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.junit.runners.Parameterized;
 
+import com.pmaps.PMapException;
 import com.pmaps.object.SKey;
 import com.pmaps.object.SValue;
+import com.pmaps.pmap.filedriver.ChecksumFileDriver;
+import com.pmaps.pmap.filedriver.CorruptedFileException;
+import com.pmaps.pmap.serializer.DictionarySerializer;
 import com.pmaps.pmap.serializer.JavaSerializer;
 
 public class TestPMap {
@@ -90,6 +107,10 @@ public class TestPMap {
 				new PMapCacheAppendMultipleDataFileConstructor());
 	}
 
+	private static Stream<PMapConstructor> createCompactConstructors() {
+		return Stream.of(new PMapCacheCompactSingleDataFileConstructor(), new PMapCacheCompactMultipleDataFileConstructor());
+	}
+
 	static interface PMapConstructor {
 		<K extends Serializable, V extends Serializable> PMap<K, V> getInstance(String pMapName) throws IOException;
 	}
@@ -653,8 +674,44 @@ public class TestPMap {
 		pMap = constructor.getInstance("PMap.size.bin");
 		Assertions.assertEquals(5, pMap.size(), "Persisted size is not 5 ");
 
+		// opened again before a checkpoint, as after a crash : counted
+		pMap.put("DD", "DDD");
+		Assertions.assertEquals(6, pMap.mappingCount());
+		final PMap<String, String> reopened = constructor.getInstance("PMap.size.bin");
+		Assertions.assertEquals(6, reopened.size(), "Counted size is not 6 ");
+		reopened.close();
+
+		pMap.close();
+
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { true, false })
+	public void testEmptiedSizeAfterCrash(boolean cacheIndex) throws IOException {
+		final PMapOptions options = new PMapOptions().setCacheIndex(cacheIndex);
+		final String name = "E-" + cacheIndex + "-PMap.EmptiedSize.bin";
+		final String crashedName = "C-" + cacheIndex + "-PMap.EmptiedSize.bin";
+		tempDir.mkdirs();
+		PMap<Integer, String> pMap = new PMap<>(name, tempDir, options);
+		pMap.clear();
+		pMap.put(1, "value");
 		pMap.close();
 
+		// emptied after the last checkpoint, then crashed : the size is
+		// counted on a map without tree
+		pMap = new PMap<>(name, tempDir, options);
+		pMap.remove(1);
+		for (String extension : new String[] { ".idx", ".data" }) {
+			Files.copy(new File(tempDir, name + extension).toPath(), new File(tempDir, crashedName + extension).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		pMap.close();
+		final PMap<Integer, String> crashed = new PMap<>(crashedName, tempDir, options);
+		Assertions.assertEquals(0, crashed.size());
+		Assertions.assertNull(crashed.get(1));
+		crashed.put(2, "value");
+		Assertions.assertEquals("value", crashed.get(2));
+		crashed.close();
 	}
 
 	@ParameterizedTest
@@ -674,6 +731,958 @@ public class TestPMap {
 
 	}
 
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testDictionaryCompression(PMapConstructor constructor) throws IOException {
+		PMap<String, String> pMap = constructor.getInstance("PMap.Dictionary.bin");
+		pMap.clear();
+
+		for (int i = 0; i < 200; i++) {
+			pMap.put("key" + i, dictionaryRecord(i));
+		}
+		long fileSize = pMap.fileSize();
+		for (int i = 200; i < 400; i++) {
+			pMap.put("key" + i, dictionaryRecord(i));
+		}
+		final long rawGrowth = pMap.fileSize() - fileSize;
+
+		Assertions.assertTrue(pMap.trainDictionary(100), "A dictionary should have been trained");
+		// concurrent trainings store distinct dictionaries
+		final PMap<String, String> trained = pMap;
+		final CompletableFuture<Boolean> training = CompletableFuture.supplyAsync(() -> trained.trainDictionary(100));
+		Assertions.assertTrue(pMap.trainDictionary(100));
+		Assertions.assertTrue(training.join());
+		Assertions.assertEquals(3, ((DictionarySerializer) pMap.getSerializer()).getCurrentDictionaryId());
+
+		fileSize = pMap.fileSize();
+		for (int i = 400; i < 600; i++) {
+			pMap.put("key" + i, dictionaryRecord(i));
+		}
+		final long compressedGrowth = pMap.fileSize() - fileSize;
+		System.out.println("Raw growth : " + rawGrowth + ", compressed growth : " + compressedGrowth);
+		Assertions.assertTrue(compressedGrowth < rawGrowth, "Records written with the dictionary should be smaller");
+
+		pMap.close();
+
+		// dictionary must be reloaded with the map
+		pMap = constructor.getInstance("PMap.Dictionary.bin");
+		for (int i = 0; i < 600; i++) {
+			Assertions.assertEquals(dictionaryRecord(i), pMap.get("key" + i));
+		}
+		pMap.close();
+	}
+
+	@ParameterizedTest
+	@MethodSource("createCompactConstructors")
+	public void testFreeSpaceReuse(PMapConstructor constructor) throws IOException {
+		PMap<String, String> pMap = constructor.getInstance("PMap.FreeSpace.bin");
+		pMap.clear();
+		final Random r = new Random(1);
+		final Map<String, String> expected = new HashMap<>();
+
+		for (int i = 0; i < 500; i++) {
+			pMap.put("key" + i, freeSpaceValue(r.nextInt(2000), i));
+		}
+		final long fileSize = pMap.fileSize();
+
+		// removed values are replaced by smaller ones : their space is reused
+		for (int i = 0; i < 500; i++) {
+			pMap.remove("key" + i);
+			final String value = freeSpaceValue(r.nextInt(1000), i);
+			pMap.put("other" + i, value);
+			expected.put("other" + i, value);
+		}
+		final long growth = pMap.fileSize() - fileSize;
+		System.out.println("File size : " + fileSize + ", growth : " + growth);
+		Assertions.assertTrue(growth < fileSize / 10, "Free space should have been reused");
+		pMap.close();
+
+		// free lists are reloaded with the map
+		pMap = constructor.getInstance("PMap.FreeSpace.bin");
+		for (int i = 0; i < 250; i++) {
+			pMap.remove("other" + i);
+			expected.remove("other" + i);
+			final String value = freeSpaceValue(r.nextInt(500), i);
+			pMap.put("again" + i, value);
+			expected.put("again" + i, value);
+		}
+		Assertions.assertTrue(pMap.fileSize() - fileSize < fileSize / 10, "Free space should have been reused");
+		Assertions.assertEquals(expected.size(), pMap.size());
+		for (Entry<String, String> entry : expected.entrySet()) {
+			Assertions.assertEquals(entry.getValue(), pMap.get(entry.getKey()));
+		}
+		pMap.close();
+	}
+
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testInPlaceUpdate(PMapConstructor constructor) throws IOException {
+		final PMap<Integer, Long> pMap = constructor.getInstance("PMap.InPlace.bin");
+		pMap.clear();
+
+		for (int i = 0; i < 1000; i++) {
+			pMap.put(i, 0L);
+		}
+		final long fileSize = pMap.fileSize();
+
+		// counters have a fixed size : they are rewritten in place
+		for (int round = 1; round <= 5; round++) {
+			for (int i = 0; i < 1000; i++) {
+				Assertions.assertEquals(Long.valueOf(round - 1), pMap.put(i, (long) round));
+			}
+		}
+		Assertions.assertEquals(fileSize, pMap.fileSize());
+		Assertions.assertEquals(1000, pMap.size());
+		for (int i = 0; i < 1000; i++) {
+			Assertions.assertEquals(Long.valueOf(5), pMap.get(i));
+		}
+		pMap.close();
+
+		// values growing and shrinking
+		final PMap<Integer, String> sPMap = constructor.getInstance("PMap.InPlaceString.bin");
+		sPMap.clear();
+		for (int i = 0; i < 200; i++) {
+			sPMap.put(i, freeSpaceValue(100, i));
+		}
+		for (int i = 0; i < 200; i++) {
+			sPMap.put(i, freeSpaceValue(i % 2 == 0 ? 50 : 300, i));
+		}
+		for (int i = 0; i < 200; i++) {
+			Assertions.assertEquals(freeSpaceValue(i % 2 == 0 ? 50 : 300, i), sPMap.get(i));
+		}
+		sPMap.close();
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { true, false })
+	public void testInlineSmallValues(boolean appendData) throws IOException {
+		final PMapOptions options = new PMapOptions().setAppendData(appendData).setInlineThreshold(16);
+		PMap<Integer, Long> pMap = new PMap<>("I-" + appendData + "-PMap.Inline.bin", tempDir, options);
+		pMap.clear();
+
+		for (int i = 0; i < 1000; i++) {
+			Assertions.assertNull(pMap.put(i, (long) i));
+		}
+		for (int i = 0; i < 1000; i += 2) {
+			Assertions.assertEquals(Long.valueOf(i), pMap.put(i, -i * 3L));
+		}
+		for (int i = 0; i < 1000; i += 3) {
+			pMap.remove(i);
+		}
+		// integers and longs never reach the pair file
+		Assertions.assertEquals(0, pMap.getPairFileDriver().length());
+		pMap.close();
+
+		pMap = new PMap<>("I-" + appendData + "-PMap.Inline.bin", tempDir, options);
+		Assertions.assertEquals(1000 - 334, pMap.size());
+		for (int i = 0; i < 1000; i++) {
+			Assertions.assertEquals(i % 3 == 0 ? null : Long.valueOf(i % 2 == 0 ? -i * 3L : i), pMap.get(i));
+		}
+		pMap.close();
+
+		// inline and stored pairs in the same chain : "Aa" and "BB" share
+		// their hash code
+		final PMap<String, String> sPMap = new PMap<>("I-" + appendData + "-PMap.InlineMixed.bin", tempDir, options);
+		sPMap.clear();
+		sPMap.put("Aa", "small");
+		sPMap.put("BB", freeSpaceValue(100, 1));
+		Assertions.assertEquals("small", sPMap.get("Aa"));
+		Assertions.assertEquals(freeSpaceValue(100, 1), sPMap.get("BB"));
+		Assertions.assertEquals("small", sPMap.put("Aa", freeSpaceValue(100, 2)));
+		Assertions.assertEquals(freeSpaceValue(100, 1), sPMap.put("BB", "tiny"));
+		Assertions.assertEquals(freeSpaceValue(100, 2), sPMap.get("Aa"));
+		Assertions.assertEquals("tiny", sPMap.get("BB"));
+		Assertions.assertEquals("tiny", sPMap.remove("BB"));
+		Assertions.assertNull(sPMap.get("BB"));
+		Assertions.assertEquals(freeSpaceValue(100, 2), sPMap.get("Aa"));
+		Assertions.assertEquals(1, sPMap.size());
+		sPMap.close();
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { true, false })
+	public void testBlobValues(boolean appendData) throws IOException {
+		final PMapOptions options = new PMapOptions().setAppendData(appendData).setBlobThreshold(4096);
+		final String name = "B-" + appendData + "-PMap.Blob.bin";
+		PMap<Integer, byte[]> pMap = new PMap<>(name, tempDir, options);
+		pMap.clear();
+
+		for (int i = 0; i < 20; i++) {
+			pMap.put(i, blobValue(i % 2 == 0 ? 100 : 300000, i));
+		}
+		// large values are not in the pair file
+		Assertions.assertTrue(pMap.getPairFileDriver().length() < 20 * 4096);
+		for (int i = 0; i < 20; i++) {
+			Assertions.assertArrayEquals(blobValue(i % 2 == 0 ? 100 : 300000, i), pMap.get(i));
+		}
+
+		// the space of a replaced blob is taken by the next one
+		final long blobSize = pMap.getBlobStore().length();
+		for (int i = 1; i < 20; i += 2) {
+			Assertions.assertArrayEquals(blobValue(300000, i), pMap.put(i, blobValue(300000, -i)));
+		}
+		for (int i = 1; i < 20; i += 2) {
+			Assertions.assertArrayEquals(blobValue(300000, -i), pMap.put(i, blobValue(300000, i)));
+		}
+		Assertions.assertTrue(pMap.getBlobStore().length() <= blobSize + 300000 + 64);
+
+		// small value replacing a blob and the other way around
+		Assertions.assertArrayEquals(blobValue(300000, 1), pMap.put(1, blobValue(10, 1)));
+		Assertions.assertArrayEquals(blobValue(100, 0), pMap.put(0, blobValue(500000, 0)));
+		Assertions.assertArrayEquals(blobValue(300000, 3), pMap.remove(3));
+		pMap.close();
+
+		pMap = new PMap<>(name, tempDir, options);
+		Assertions.assertEquals(19, pMap.size());
+		Assertions.assertArrayEquals(blobValue(500000, 0), pMap.get(0));
+		Assertions.assertArrayEquals(blobValue(10, 1), pMap.get(1));
+		Assertions.assertNull(pMap.get(3));
+		for (int i = 4; i < 20; i++) {
+			Assertions.assertArrayEquals(blobValue(i % 2 == 0 ? 100 : 300000, i), pMap.get(i));
+		}
+		pMap.close();
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { true, false })
+	public void testStreamValues(boolean blobStore) throws IOException, ClassNotFoundException {
+		final PMapOptions options = new PMapOptions().setAppendData(false).setBlobThreshold(blobStore ? 4096 : 0);
+		final String name = "T-" + blobStore + "-PMap.Stream.bin";
+		PMap<Integer, Object> pMap = new PMap<>(name, tempDir, options);
+		pMap.clear();
+		if (!blobStore) {
+			Assertions.assertThrows(PMapException.class, () -> pMap.putStream(1, new ByteArrayInputStream(new byte[10]), 10));
+			Assertions.assertEquals(0, pMap.size());
+			pMap.close();
+			return;
+		}
+
+		final int length = 3000000;
+		pMap.putStream(1, new ByteArrayInputStream(blobValue(length, 1)), length);
+		pMap.put(2, "text");
+		pMap.put(3, blobValue(10, 3));
+		pMap.put(4, blobValue(10000, 4));
+		Assertions.assertEquals(4, pMap.size());
+
+		Assertions.assertThrows(PMapException.class, () -> pMap.putStream(5, new ByteArrayInputStream(new byte[10]), 20000));
+		Assertions.assertEquals(4, pMap.size());
+		pMap.close();
+
+		final PMap<Integer, Object> reopened = new PMap<>(name, tempDir, options);
+		try (InputStream in = reopened.openValue(1)) {
+			Assertions.assertArrayEquals(blobValue(length, 1), in.readAllBytes());
+		}
+		Assertions.assertArrayEquals(blobValue(length, 1), (byte[]) reopened.get(1));
+		Assertions.assertThrows(PMapException.class, () -> reopened.openValue(2));
+		try (InputStream in = reopened.openValue(3)) {
+			Assertions.assertArrayEquals(blobValue(10, 3), in.readAllBytes());
+		}
+		try (InputStream in = reopened.openValue(4)) {
+			Assertions.assertArrayEquals(blobValue(10000, 4), in.readAllBytes());
+		}
+		Assertions.assertNull(reopened.openValue(5));
+
+		// a streamed value replaced by a smaller one
+		reopened.putStream(1, new ByteArrayInputStream(blobValue(5000, -1)), 5000);
+		Assertions.assertArrayEquals(blobValue(5000, -1), (byte[]) reopened.get(1));
+		reopened.close();
+	}
+
+	@ParameterizedTest
+	@EnumSource(WriteAheadLog.SyncMode.class)
+	public void testWriteAheadLog(WriteAheadLog.SyncMode syncMode) throws IOException {
+		final PMapOptions options = new PMapOptions().setAppendData(false).setWriteAheadLog(syncMode, 10);
+		final String name = "W-" + syncMode + "-PMap.Wal.bin";
+		final File walFile = new File(tempDir, name + ".wal");
+		tempDir.mkdirs();
+		PMap<Integer, String> pMap = new PMap<>(name, tempDir, options);
+		pMap.clear();
+		pMap.checkpoint();
+		Assertions.assertEquals(WriteAheadLog.HEADER_BYTE_SIZE, walFile.length());
+
+		for (int i = 0; i < 1000; i++) {
+			pMap.put(i, "value " + i);
+		}
+		for (int i = 0; i < 1000; i += 10) {
+			pMap.remove(i);
+		}
+		pMap.merge(1, "!", String::concat);
+		pMap.writeBatch().put(1000, "batch").remove(2).apply();
+		Assertions.assertTrue(walFile.length() > WriteAheadLog.HEADER_BYTE_SIZE + 1100 * WriteAheadLog.RECORD_HEADER_BYTE_SIZE);
+
+		// the files are forced, the log emptied
+		pMap.checkpoint();
+		Assertions.assertEquals(WriteAheadLog.HEADER_BYTE_SIZE, walFile.length());
+		pMap.put(2, "again");
+		pMap.close();
+
+		pMap = new PMap<>(name, tempDir, options);
+		Assertions.assertEquals(901, pMap.size());
+		Assertions.assertEquals("value 1!", pMap.get(1));
+		Assertions.assertEquals("again", pMap.get(2));
+		Assertions.assertNull(pMap.get(10));
+		Assertions.assertEquals("batch", pMap.get(1000));
+		pMap.close();
+	}
+
+	@ParameterizedTest
+	@EnumSource(WriteAheadLog.SyncMode.class)
+	public void testWriteAheadLogInterrupt(WriteAheadLog.SyncMode syncMode) throws IOException, InterruptedException {
+		final PMapOptions options = new PMapOptions().setAppendData(false).setWriteAheadLog(syncMode, 10);
+		final String name = "I-" + syncMode + "-PMap.Wal.bin";
+		tempDir.mkdirs();
+		PMap<Integer, String> pMap = new PMap<>(name, tempDir, options);
+		pMap.clear();
+
+		// a writer interrupted while it appends to or forces the log
+		final AtomicInteger written = new AtomicInteger();
+		final AtomicReference<PMapException> writerFailure = new AtomicReference<>();
+		final PMap<Integer, String> writtenMap = pMap;
+		final Thread writer = new Thread(() -> {
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					writtenMap.put(written.get(), "value " + written.get());
+				} catch (PMapException e) {
+					// given up on the interrupt, which is cleared
+					if (!(e.getCause() instanceof InterruptedException))
+						writerFailure.set(e);
+					return;
+				}
+				written.incrementAndGet();
+			}
+		});
+		writer.start();
+		Thread.sleep(50);
+		writer.interrupt();
+		writer.join();
+		Assertions.assertNull(writerFailure.get());
+
+		// the log is still written by the others
+		pMap.put(-1, "after");
+		pMap.close();
+		pMap = new PMap<>(name, tempDir, options);
+		Assertions.assertEquals("after", pMap.get(-1));
+		for (int i = 0; i < written.get(); i++) {
+			Assertions.assertEquals("value " + i, pMap.get(i));
+		}
+		pMap.close();
+	}
+
+	@ParameterizedTest
+	@EnumSource(WriteAheadLog.SyncMode.class)
+	public void testWriteAheadLogReplay(WriteAheadLog.SyncMode syncMode) throws IOException {
+		final PMapOptions options = new PMapOptions().setAppendData(false).setWriteAheadLog(syncMode, 10);
+		final String name = "R-" + syncMode + "-PMap.Replay.bin";
+		final String crashedName = "C-" + syncMode + "-PMap.Replay.bin";
+		tempDir.mkdirs();
+		final PMap<Integer, String> pMap = new PMap<>(name, tempDir, options);
+		pMap.clear();
+		for (int i = 0; i < 2000; i++) {
+			pMap.put(i, "value " + i);
+		}
+		pMap.checkpoint();
+		// the files as forced by the checkpoint
+		for (String extension : new String[] { ".idx", ".data" }) {
+			Files.copy(new File(tempDir, name + extension).toPath(), new File(tempDir, crashedName + extension).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		for (int i = 0; i < 2000; i += 3) {
+			pMap.remove(i);
+		}
+		for (int i = 2000; i < 2500; i++) {
+			pMap.put(i, "value " + i);
+		}
+		pMap.merge(1, "!", String::concat);
+		pMap.writeBatch().put(3, "batch").remove(4).apply();
+		// the log as written before the crash, ended by a partly written
+		// record
+		final File crashedLog = new File(tempDir, crashedName + ".wal");
+		Files.copy(new File(tempDir, name + ".wal").toPath(), crashedLog.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.write(crashedLog.toPath(), new byte[] { 0, 0, 1, 0, 0, 0 }, StandardOpenOption.APPEND);
+
+		final PMap<Integer, String> recovered = new PMap<>(crashedName, tempDir, options);
+		Assertions.assertEquals(WriteAheadLog.HEADER_BYTE_SIZE, crashedLog.length());
+		Assertions.assertEquals(pMap.size(), recovered.size());
+		for (int i = 0; i < 2500; i++) {
+			Assertions.assertEquals(pMap.get(i), recovered.get(i));
+		}
+		recovered.put(2500, "after");
+		recovered.close();
+		pMap.close();
+
+		final PMap<Integer, String> reopened = new PMap<>(crashedName, tempDir, options);
+		Assertions.assertEquals("after", reopened.get(2500));
+		Assertions.assertEquals("value 1!", reopened.get(1));
+		reopened.close();
+	}
+
+	@ParameterizedTest
+	@EnumSource(WriteAheadLog.SyncMode.class)
+	public void testWriteAheadLogSize(WriteAheadLog.SyncMode syncMode) throws IOException, ClassNotFoundException {
+		final PMapOptions options = new PMapOptions().setAppendData(false).setWriteAheadLog(syncMode, 10);
+		final String name = "S-" + syncMode + "-PMap.Replay.bin";
+		final String crashedName = "D-" + syncMode + "-PMap.Replay.bin";
+		tempDir.mkdirs();
+		final PMap<Integer, String> pMap = new PMap<>(name, tempDir, options);
+		pMap.clear();
+		for (int i = 0; i < 1000; i++) {
+			pMap.put(i, "value " + i);
+		}
+		pMap.checkpoint();
+		for (int i = 0; i < 1500; i += 2) {
+			pMap.put(i, "again " + i);
+		}
+		for (int i = 0; i < 2000; i += 3) {
+			pMap.remove(i);
+		}
+		pMap.putIfAbsent(3, "absent");
+		pMap.compute(5, (key, value) -> null);
+		pMap.writeBatch().put(2000, "batch").put(1, "batch").remove(7).remove(3000).apply();
+		// the files and the log as written before the crash : the writes
+		// reached the files, the header size was not
+		for (String extension : new String[] { ".idx", ".data", ".wal" }) {
+			Files.copy(new File(tempDir, name + extension).toPath(), new File(tempDir, crashedName + extension).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		// the size follows from the logged deltas, without a pair read
+		final WriteAheadLog log = new WriteAheadLog(new File(tempDir, crashedName + ".wal"), options.getSerializer(), syncMode, 10,
+				WriteAheadLog.UNKNOWN_SIZE);
+		log.replay(new WriteAheadLog.Replayer() {
+
+			@Override
+			public void put(Object key, Object value) {
+			}
+
+			@Override
+			public void remove(Object key) {
+			}
+
+			@Override
+			public void putBlob(Object key, long blobPointer) {
+			}
+
+			@Override
+			public void clear() {
+			}
+		});
+		Assertions.assertEquals(pMap.size(), log.getReplayedSize());
+		log.close();
+
+		final PMap<Integer, String> recovered = new PMap<>(crashedName, tempDir, options);
+		Assertions.assertEquals(pMap.size(), recovered.size());
+		Assertions.assertEquals(pMap.mappingCount(), recovered.mappingCount());
+		recovered.clear();
+		Assertions.assertEquals(0, recovered.size());
+		recovered.close();
+		pMap.close();
+	}
+
+	@ParameterizedTest
+	@EnumSource(WriteAheadLog.SyncMode.class)
+	public void testWriteAheadLogStream(WriteAheadLog.SyncMode syncMode) throws IOException {
+		final PMapOptions options = new PMapOptions().setAppendData(false).setBlobThreshold(4096).setWriteAheadLog(syncMode, 10);
+		final String name = "R-" + syncMode + "-PMap.StreamReplay.bin";
+		final String crashedName = "C-" + syncMode + "-PMap.StreamReplay.bin";
+		tempDir.mkdirs();
+		final PMap<Integer, byte[]> pMap = new PMap<>(name, tempDir, options);
+		pMap.clear();
+		pMap.put(0, blobValue(10, 0));
+		pMap.checkpoint();
+		// the files as forced by the checkpoint
+		for (String extension : new String[] { ".idx", ".data" }) {
+			Files.copy(new File(tempDir, name + extension).toPath(), new File(tempDir, crashedName + extension).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		pMap.put(1, blobValue(10000, 1));
+		pMap.putStream(1, new ByteArrayInputStream(blobValue(20000, -1)), 20000);
+		pMap.put(2, blobValue(10, 2));
+		// the blob of the first stream is freed, its space must not be reused
+		// while the log refers to it
+		pMap.putStream(3, new ByteArrayInputStream(blobValue(20000, -3)), 20000);
+		pMap.put(3, blobValue(10, 3));
+		pMap.putStream(4, new ByteArrayInputStream(blobValue(20000, -4)), 20000);
+		pMap.putStream(3, new ByteArrayInputStream(blobValue(30000, -3)), 30000);
+		// the blobs are forced before they are logged
+		for (String extension : new String[] { ".blob", ".wal" }) {
+			Files.copy(new File(tempDir, name + extension).toPath(), new File(tempDir, crashedName + extension).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		// the files as written before the crash : the log is replayed on the
+		// streamed values already there
+		final String writtenName = "W-" + syncMode + "-PMap.StreamReplay.bin";
+		for (String extension : new String[] { ".idx", ".data", ".blob", ".wal" }) {
+			Files.copy(new File(tempDir, name + extension).toPath(), new File(tempDir, writtenName + extension).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		pMap.close();
+
+		for (String recoveredName : new String[] { crashedName, writtenName }) {
+			PMap<Integer, byte[]> recovered = new PMap<>(recoveredName, tempDir, options);
+			Assertions.assertEquals(5, recovered.size());
+			// the new blobs do not overwrite the replayed ones
+			recovered.putStream(5, new ByteArrayInputStream(blobValue(20000, -5)), 20000);
+			recovered.close();
+
+			recovered = new PMap<>(recoveredName, tempDir, options);
+			Assertions.assertArrayEquals(blobValue(10, 0), recovered.get(0));
+			Assertions.assertArrayEquals(blobValue(20000, -1), recovered.get(1));
+			Assertions.assertArrayEquals(blobValue(10, 2), recovered.get(2));
+			Assertions.assertArrayEquals(blobValue(30000, -3), recovered.get(3));
+			Assertions.assertArrayEquals(blobValue(20000, -4), recovered.get(4));
+			Assertions.assertArrayEquals(blobValue(20000, -5), recovered.get(5));
+			Assertions.assertEquals(6, recovered.size());
+			recovered.close();
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { true, false })
+	public void testChecksums(boolean cacheIndex) throws IOException {
+		final PMapOptions options = new PMapOptions().setCacheIndex(cacheIndex).setChecksums(true);
+		final String name = "K-" + cacheIndex + "-PMap.Checksums.bin";
+		tempDir.mkdirs();
+		PMap<Integer, String> pMap = new PMap<>(name, tempDir, options);
+		pMap.clear();
+		for (int i = 0; i < 3000; i++) {
+			pMap.put(i, "value " + i);
+		}
+		pMap.close();
+		for (List<ChecksumFileDriver.DamagedRegion> damagedRegions : PMap.scan(name, tempDir, options).values()) {
+			Assertions.assertTrue(damagedRegions.isEmpty());
+		}
+
+		// the pages written again are checksummed again
+		pMap = new PMap<>(name, tempDir, options);
+		for (int i = 0; i < 3000; i += 3) {
+			pMap.remove(i);
+		}
+		for (int i = 1; i < 3000; i += 3) {
+			pMap.put(i, "again " + i);
+		}
+		pMap.close();
+		Assertions.assertEquals(Arrays.asList(name + ".idx", name + ".data"), new ArrayList<>(PMap.scan(name, tempDir, options).keySet()));
+		for (List<ChecksumFileDriver.DamagedRegion> damagedRegions : PMap.scan(name, tempDir, options).values()) {
+			Assertions.assertTrue(damagedRegions.isEmpty());
+		}
+
+		// a byte damaged in the middle of the pair file
+		final File pairFile = new File(tempDir, name + ".data");
+		final long damagedPosition = pairFile.length() / 2;
+		try (RandomAccessFile raf = new RandomAccessFile(pairFile, "rw")) {
+			raf.seek(damagedPosition);
+			final int b = raf.read();
+			raf.seek(damagedPosition);
+			raf.write(b ^ 0xFF);
+		}
+		final Map<String, List<ChecksumFileDriver.DamagedRegion>> scan = PMap.scan(name, tempDir, options);
+		Assertions.assertTrue(scan.get(name + ".idx").isEmpty());
+		Assertions.assertEquals(1, scan.get(name + ".data").size());
+		final ChecksumFileDriver.DamagedRegion damagedRegion = scan.get(name + ".data").get(0);
+		Assertions.assertTrue(damagedRegion.getPosition() <= damagedPosition);
+		Assertions.assertTrue(damagedPosition < damagedRegion.getPosition() + damagedRegion.getLength());
+
+		// reported when the page is first read, the other pages are readable
+		pMap = new PMap<>(name, tempDir, options);
+		int damagedCount = 0;
+		for (int i = 0; i < 3000; i++) {
+			try {
+				Assertions.assertEquals(i % 3 == 0 ? null : (i % 3 == 1 ? "again " : "value ") + i, pMap.get(i));
+			} catch (PMapException e) {
+				Throwable cause = e;
+				while (cause != null && !(cause instanceof CorruptedFileException))
+					cause = cause.getCause();
+				Assertions.assertNotNull(cause, e.toString());
+				damagedCount++;
+			}
+		}
+		Assertions.assertTrue(damagedCount > 0);
+		Assertions.assertTrue(damagedCount < 3000);
+		pMap.close();
+		// the damaged page keeps its checksum
+		Assertions.assertEquals(1, PMap.scan(name, tempDir, options).get(name + ".data").size());
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { true, false })
+	public void testShadowPaging(boolean appendData) throws IOException {
+		final PMapOptions options = new PMapOptions().setAppendData(appendData).setShadowPaging(true);
+		final String name = "S-" + appendData + "-PMap.Shadow.bin";
+		final String crashedName = "C-" + appendData + "-PMap.Shadow.bin";
+		tempDir.mkdirs();
+		final PMap<Integer, String> pMap = new PMap<>(name, tempDir, options);
+		pMap.clear();
+		final Map<Integer, String> map = new HashMap<>();
+		for (int i = 0; i < 1000; i++) {
+			pMap.put(i, "value " + i);
+			map.put(i, "value " + i);
+		}
+		// neither rewritten in place nor written in the space of the pair
+		// replaced before, until the next commit
+		long dataLength = pMap.getPairFileDriver().length();
+		for (int i = 0; i < 2; i++) {
+			pMap.put(i, "VALUE " + i);
+			map.put(i, "VALUE " + i);
+			Assertions.assertTrue(pMap.getPairFileDriver().length() > dataLength);
+			dataLength = pMap.getPairFileDriver().length();
+		}
+		final WriteBatch<Integer, String> batch = pMap.writeBatch();
+		for (int i = 0; i < 3000; i++) {
+			if (i % 3 == 0) {
+				batch.remove(i);
+				map.remove(i);
+			} else {
+				batch.put(i, "batch " + i);
+				map.put(i, "batch " + i);
+			}
+		}
+		batch.apply();
+		pMap.merge(1, "!", String::concat);
+		map.merge(1, "!", String::concat);
+		Assertions.assertFalse(pMap.getNodeDriver().isUncommitted());
+		Assertions.assertEquals(pMap.getNodeDriver().getTopIndexPosition(), pMap.getNodeDriver().getCommittedTopIndexPosition());
+
+		// the files as forced by the last commit, without any checkpoint
+		for (String extension : new String[] { ".idx", ".data" }) {
+			Files.copy(new File(tempDir, name + extension).toPath(), new File(tempDir, crashedName + extension).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		final PMap<Integer, String> crashed = new PMap<>(crashedName, tempDir, options);
+		for (int i = 0; i < 3000; i++) {
+			Assertions.assertEquals(map.get(i), crashed.get(i));
+		}
+		Assertions.assertEquals(map, new HashMap<>(crashed));
+		crashed.close();
+
+		for (int i = 0; i < 3000; i += 2) {
+			pMap.remove(i);
+			map.remove(i);
+		}
+		pMap.close();
+		final PMap<Integer, String> reopened = new PMap<>(name, tempDir, options);
+		Assertions.assertEquals(map.size(), reopened.size());
+		Assertions.assertEquals(map, new HashMap<>(reopened));
+		reopened.close();
+
+		// values streamed to the blob store, under new and known hashes
+		final PMapOptions blobOptions = new PMapOptions().setAppendData(appendData).setShadowPaging(true).setBlobThreshold(4096);
+		final String blobName = "B-" + appendData + "-PMap.Shadow.bin";
+		final String crashedBlobName = "D-" + appendData + "-PMap.Shadow.bin";
+		final PMap<Integer, Object> streamed = new PMap<>(blobName, tempDir, blobOptions);
+		streamed.clear();
+		for (int i = 0; i < 100; i++) {
+			streamed.putStream(i, new ByteArrayInputStream(blobValue(5000, i)), 5000);
+		}
+		for (int i = 0; i < 100; i += 2) {
+			streamed.putStream(i, new ByteArrayInputStream(blobValue(6000, -i)), 6000);
+		}
+		Assertions.assertFalse(streamed.getNodeDriver().isUncommitted());
+		Assertions.assertEquals(100, streamed.size());
+		for (int i = 0; i < 100; i++) {
+			Assertions.assertTrue(streamed.containsKey(i));
+			Assertions.assertArrayEquals(i % 2 == 0 ? blobValue(6000, -i) : blobValue(5000, i), (byte[]) streamed.get(i));
+		}
+		for (String extension : new String[] { ".idx", ".data", ".blob" }) {
+			Files.copy(new File(tempDir, blobName + extension).toPath(), new File(tempDir, crashedBlobName + extension).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		final PMap<Integer, Object> crashedStreamed = new PMap<>(crashedBlobName, tempDir, blobOptions);
+		for (int i = 0; i < 100; i++) {
+			Assertions.assertTrue(crashedStreamed.containsKey(i));
+			Assertions.assertArrayEquals(i % 2 == 0 ? blobValue(6000, -i) : blobValue(5000, i), (byte[]) crashedStreamed.get(i));
+		}
+		crashedStreamed.close();
+		streamed.close();
+	}
+
+	@ParameterizedTest
+	@ValueSource(longs = { 0, 1 << 20 })
+	public void testBackgroundCheckpoint(long maxBytesPerSecond) throws IOException, InterruptedException {
+		final PMapOptions options = new PMapOptions().setAppendData(false)
+				.setWriteAheadLog(WriteAheadLog.SyncMode.GROUP, 0).setBackgroundCheckpoint(50, maxBytesPerSecond);
+		final String name = "B-" + maxBytesPerSecond + "-PMap.Checkpoint.bin";
+		final String crashedName = "C-" + maxBytesPerSecond + "-PMap.Checkpoint.bin";
+		tempDir.mkdirs();
+		final PMap<Integer, String> pMap = new PMap<>(name, tempDir, options);
+		pMap.clear();
+		for (int i = 0; i < 3000; i++) {
+			pMap.put(i, "value " + i);
+		}
+		final File log = new File(tempDir, name + ".wal");
+		final File previousLog = new File(tempDir, name + ".wal.prev");
+		// emptied by the checkpointer, without any explicit checkpoint
+		for (int wait = 0; wait < 200 && (log.length() > WriteAheadLog.HEADER_BYTE_SIZE || previousLog.exists()); wait++) {
+			Thread.sleep(50);
+		}
+		Assertions.assertEquals(WriteAheadLog.HEADER_BYTE_SIZE, log.length());
+		Assertions.assertFalse(previousLog.exists());
+		Assertions.assertNull(pMap.getBackgroundCheckpointFailure());
+
+		for (int i = 0; i < 3000; i += 2) {
+			pMap.remove(i);
+		}
+		// the files and the log as found after a crash
+		for (String extension : new String[] { ".idx", ".data", ".wal" }) {
+			Files.copy(new File(tempDir, name + extension).toPath(), new File(tempDir, crashedName + extension).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.deleteIfExists(new File(tempDir, crashedName + ".wal.prev").toPath());
+		if (previousLog.exists())
+			Files.copy(previousLog.toPath(), new File(tempDir, crashedName + ".wal.prev").toPath());
+		pMap.close();
+
+		final PMap<Integer, String> recovered = new PMap<>(crashedName, tempDir, options);
+		Assertions.assertEquals(1500, recovered.size());
+		for (int i = 0; i < 3000; i++) {
+			Assertions.assertEquals(i % 2 == 0 ? null : "value " + i, recovered.get(i));
+		}
+		recovered.close();
+	}
+
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testWriteBatch(PMapConstructor constructor) throws IOException {
+		final PMap<String, String> pMap = constructor.getInstance("PMap.WriteBatch.bin");
+		pMap.clear();
+		final Map<String, String> map = new HashMap<>();
+
+		for (int i = 0; i < 500; i++) {
+			pMap.put("key " + i, "value " + i);
+			map.put("key " + i, "value " + i);
+		}
+
+		final WriteBatch<String, String> batch = pMap.writeBatch();
+		for (int i = 0; i < 1000; i++) {
+			if (i % 4 == 0) {
+				batch.remove("key " + i);
+				map.remove("key " + i);
+			} else {
+				batch.put("key " + i, "batch " + i);
+				map.put("key " + i, "batch " + i);
+			}
+		}
+		// colliding hashes and several mutations of a key, kept in order
+		batch.put("Aa", "1").put("BB", "2").remove("Aa").put("BB", "3").put("key 0", "again");
+		map.put("BB", "3");
+		map.put("key 0", "again");
+		Assertions.assertEquals(1005, batch.size());
+		batch.apply();
+		Assertions.assertEquals(0, batch.size());
+
+		Assertions.assertEquals(map.size(), pMap.size());
+		for (Entry<String, String> entry : map.entrySet()) {
+			Assertions.assertEquals(entry.getValue(), pMap.get(entry.getKey()));
+		}
+		Assertions.assertNull(pMap.get("Aa"));
+		Assertions.assertNull(pMap.get("key 4"));
+	}
+
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testPutAll(PMapConstructor constructor) throws IOException {
+		final PMap<String, String> pMap = constructor.getInstance("PMap.PutAll.bin");
+		pMap.clear();
+		for (int i = 0; i < 1000; i += 2) {
+			pMap.put("key " + i, "old " + i);
+		}
+
+		final Map<String, String> map = new HashMap<>();
+		for (int i = 0; i < 3000; i++) {
+			map.put("key " + i, "value " + i);
+		}
+		// colliding hashes
+		map.put("Aa", "Aa");
+		map.put("BB", "BB");
+		pMap.putAll(map);
+
+		Assertions.assertEquals(map.size(), pMap.size());
+		for (Entry<String, String> entry : map.entrySet()) {
+			Assertions.assertEquals(entry.getValue(), pMap.get(entry.getKey()));
+		}
+
+		// below the parallel threshold
+		pMap.putAll(Map.of("key 1", "small", "new", "small"));
+		Assertions.assertEquals(map.size() + 1, pMap.size());
+		Assertions.assertEquals("small", pMap.get("key 1"));
+		Assertions.assertEquals("small", pMap.get("new"));
+	}
+
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testComputeAndMerge(PMapConstructor constructor) throws IOException, InterruptedException, ExecutionException {
+		final PMap<String, Integer> pMap = constructor.getInstance("PMap.ComputeAndMerge.bin");
+		pMap.clear();
+
+		Assertions.assertNull(pMap.putIfAbsent("Aa", 1));
+		Assertions.assertEquals(1, pMap.putIfAbsent("Aa", 2));
+		// colliding hash
+		Assertions.assertEquals(3, pMap.computeIfAbsent("BB", key -> 3));
+		Assertions.assertEquals(3, pMap.computeIfAbsent("BB", key -> 4));
+		Assertions.assertNull(pMap.computeIfAbsent("none", key -> null));
+		Assertions.assertNull(pMap.computeIfPresent("none", (key, value) -> 5));
+		Assertions.assertEquals(11, pMap.computeIfPresent("Aa", (key, value) -> value + 10));
+		Assertions.assertEquals(13, pMap.compute("BB", (key, value) -> value + 10));
+		Assertions.assertEquals(2, pMap.size());
+
+		// null results remove, the last pair of a hash with its node
+		Assertions.assertNull(pMap.compute("Aa", (key, value) -> null));
+		Assertions.assertNull(pMap.merge("BB", 1, (value, increment) -> null));
+		Assertions.assertEquals(0, pMap.size());
+		Assertions.assertNull(pMap.get("BB"));
+		Assertions.assertThrows(IllegalStateException.class, () -> pMap.compute("Aa", (key, value) -> {
+			throw new IllegalStateException();
+		}));
+		Assertions.assertEquals(0, pMap.size());
+
+		// a function using the map fails instead of waiting for itself, for a
+		// new and for a known key hash
+		Assertions.assertThrows(IllegalStateException.class, () -> pMap.computeIfAbsent("Aa", key -> pMap.put("BB", 2)));
+		pMap.put("Aa", 1);
+		Assertions.assertThrows(IllegalStateException.class, () -> pMap.compute("Aa", (key, value) -> pMap.put("other", value)));
+		Assertions.assertThrows(IllegalStateException.class, () -> pMap.merge("Aa", 1, (value, increment) -> pMap.size() + pMap.get("Aa")));
+		Assertions.assertEquals(1, pMap.get("Aa"));
+		Assertions.assertNull(pMap.remove("other"));
+		Assertions.assertNull(pMap.remove("BB"));
+		Assertions.assertEquals(1, pMap.remove("Aa"));
+
+		// keys of a same hash created, updated and removed concurrently
+		final String[] collidingKeys = { "AaAa", "AaBB", "BBAa", "BBBB" };
+		final List<Future<Void>> cycles = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			cycles.add(executorService.submit(() -> {
+				for (int round = 0; round < 100; round++) {
+					for (String key : collidingKeys) {
+						pMap.compute(key, (k, value) -> value == null ? Integer.valueOf(1) : value == 3 ? null : Integer.valueOf(value + 1));
+					}
+				}
+				return null;
+			}));
+		}
+		for (Future<Void> future : cycles) {
+			future.get();
+		}
+		// 800 steps of a cycle of 4 for each key
+		Assertions.assertEquals(0, pMap.size());
+		for (String key : collidingKeys) {
+			Assertions.assertNull(pMap.get(key));
+		}
+
+		// counters incremented concurrently are not lost
+		final int counterCount = 50;
+		final List<Future<Void>> futures = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			futures.add(executorService.submit(() -> {
+				for (int round = 0; round < 100; round++) {
+					for (int i = 0; i < counterCount; i++) {
+						pMap.merge("counter " + i, 1, Integer::sum);
+					}
+				}
+				return null;
+			}));
+		}
+		for (Future<Void> future : futures) {
+			future.get();
+		}
+		Assertions.assertEquals(counterCount, pMap.size());
+		for (int i = 0; i < counterCount; i++) {
+			Assertions.assertEquals(800, pMap.get("counter " + i));
+		}
+	}
+
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testPMapWriter(PMapConstructor constructor) throws IOException, InterruptedException, ExecutionException {
+		final PMap<Integer, String> pMap = constructor.getInstance("PMap.Writer.bin");
+		pMap.clear();
+
+		final int keyCount = 4000;
+		final PMapWriter<Integer, String> writer = new PMapWriter<>(pMap, 100);
+		final List<Future<List<CompletableFuture<String>>>> submitters = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			final int thread = t;
+			submitters.add(executorService.submit(() -> {
+				final List<CompletableFuture<String>> futures = new ArrayList<>();
+				for (int i = thread; i < keyCount; i += 8) {
+					futures.add(writer.putAsync(i, "first " + i));
+					futures.add(writer.putAsync(i, "second " + i));
+					if (i % 5 == 0)
+						futures.add(writer.removeAsync(i));
+				}
+				return futures;
+			}));
+		}
+		for (int t = 0; t < 8; t++) {
+			final List<CompletableFuture<String>> futures = submitters.get(t).get();
+			int f = 0;
+			for (int i = t; i < keyCount; i += 8) {
+				// the mutations of a key are applied in order
+				Assertions.assertNull(futures.get(f++).get());
+				Assertions.assertEquals("first " + i, futures.get(f++).get());
+				if (i % 5 == 0)
+					Assertions.assertEquals("second " + i, futures.get(f++).get());
+			}
+		}
+		writer.close();
+		Assertions.assertThrows(IllegalStateException.class, () -> writer.putAsync(0, "closed"));
+
+		Assertions.assertEquals(keyCount - keyCount / 5, pMap.size());
+		for (int i = 0; i < keyCount; i++) {
+			Assertions.assertEquals(i % 5 == 0 ? null : "second " + i, pMap.get(i));
+		}
+	}
+
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testValueHandle(PMapConstructor constructor) throws IOException {
+		PMap<String, String> pMap = constructor.getInstance("PMap.ValueHandle.bin");
+		pMap.clear();
+
+		for (int i = 0; i < 1000; i++) {
+			pMap.put("key" + i, "value " + i);
+		}
+		// same hash code : a chain of pairs
+		pMap.put("Aa", "first");
+		pMap.put("BB", "second");
+
+		for (int i = 0; i < 1000; i += 7) {
+			final ValueHandle<String, String> handle = pMap.getHandle("key" + i);
+			Assertions.assertEquals("key" + i, handle.getKey());
+			Assertions.assertTrue(handle.getDataLength() > 0);
+			Assertions.assertEquals("value " + i, handle.getValue());
+		}
+		Assertions.assertEquals("first", pMap.getHandle("Aa").getValue());
+		Assertions.assertEquals("second", pMap.getHandle("BB").getValue());
+		Assertions.assertNull(pMap.getHandle("key1000"));
+
+		final ValueHandle<String, String> handle = pMap.getHandle("key1");
+		Assertions.assertTrue(handle.isValid());
+		pMap.put("key2", "changed");
+		Assertions.assertFalse(handle.isValid());
+		Assertions.assertThrows(ConcurrentModificationException.class, () -> handle.getValue());
+		Assertions.assertEquals("value 1", pMap.getHandle("key1").getValue());
+		pMap.close();
+	}
+
+	private static byte[] blobValue(int length, int i) {
+		final byte[] b = new byte[length];
+		new Random(i).nextBytes(b);
+		return b;
+	}
+
+	private static String freeSpaceValue(int length, int i) {
+		final StringBuilder sb = new StringBuilder().append(i).append(':');
+		while (sb.length() < length)
+			sb.append((char) ('a' + sb.length() % 26));
+		return sb.toString();
+	}
+
+	private static String dictionaryRecord(int i) {
+		return "{\"id\":" + i + ",\"status\":\"ACTIVE\",\"country\":\"FRANCE\",\"currency\":\"EUR\",\"comment\":\"no comment for customer "
+				+ (i * 7) + "\"}";
+	}
+
 	@ParameterizedTest
 	@MethodSource("createConstructors")
 	public void testReadConcurrent(PMapConstructor constructor)
@@ -843,13 +1852,57 @@ public class TestPMap {
 		key = iter.next();
 		System.out.println(key + " : " + pMap.get(key));
 
+		// the iteration goes on in its snapshot
 		pMap.put(4, "D");
+		iter.next();
+		Assertions.assertFalse(iter.hasNext());
 
+		iter = pMap.keySet().iterator();
 		iter.next();
+		pMap.clear();
+		final Iterator<Integer> clearedIter = iter;
+		Assertions.assertThrows(ConcurrentModificationException.class, () -> clearedIter.next());
+	}
 
-		Assertions.fail("No ConcurrentModificationException has been thrown.");
-		// exception should be thrown!
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testIteratorSnapshot(PMapConstructor constructor) throws IOException, InterruptedException, ExecutionException {
+		final PMap<Integer, String> pMap = constructor.getInstance("PMap.IteratorSnapshot.bin");
+		pMap.clear();
 
+		final int keyCount = 3000;
+		for (int i = 0; i < keyCount; i++) {
+			pMap.put(i, freeSpaceValue(20, i));
+		}
+
+		final Iterator<Entry<Integer, String>> iter = pMap.entrySet().iterator();
+		final Map<Integer, String> seen = new HashMap<>();
+		Entry<Integer, String> entry = iter.next();
+		seen.put(entry.getKey(), entry.getValue());
+
+		// overwrites, removes and inserts while the iteration goes on
+		final Future<Void> writer = executorService.submit(() -> {
+			for (int i = 0; i < keyCount; i++) {
+				if (i % 3 == 0)
+					pMap.remove(i);
+				else
+					pMap.put(i, freeSpaceValue(10 + i % 200, -i));
+				pMap.put(keyCount + i, "new " + i);
+			}
+			return null;
+		});
+		while (iter.hasNext()) {
+			entry = iter.next();
+			Assertions.assertNull(seen.put(entry.getKey(), entry.getValue()));
+		}
+		writer.get();
+
+		Assertions.assertEquals(keyCount, seen.size());
+		for (int i = 0; i < keyCount; i++) {
+			Assertions.assertEquals(freeSpaceValue(20, i), seen.get(i));
+		}
+		Assertions.assertEquals(2 * keyCount - (keyCount + 2) / 3, pMap.size());
+		Assertions.assertEquals(freeSpaceValue(10 + 1, -1), pMap.get(1));
 	}
 
 	@ParameterizedTest
@@ -890,6 +1943,202 @@ public class TestPMap {
 
 	}
 
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testConcurrentOverwrite(PMapConstructor constructor) throws IOException, InterruptedException, ExecutionException {
+		final PMap<Integer, String> pMap = constructor.getInstance("PMap.ConcurrentOverwrite.bin");
+		pMap.clear();
+
+		final int keyCount = 2000;
+		for (int i = 0; i < keyCount; i++) {
+			pMap.put(i, freeSpaceValue(20, i));
+		}
+
+		// keys already indexed : the writers only lock their stripe
+		final List<Future<Void>> futures = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			final int thread = t;
+			futures.add(executorService.submit(() -> {
+				for (int round = 0; round < 5; round++) {
+					for (int i = thread; i < keyCount; i += 8) {
+						Assertions.assertNotNull(pMap.put(i, freeSpaceValue(10 + (i + round * 37) % 200, i)));
+						Assertions.assertNotNull(pMap.get((i + 1) % keyCount));
+					}
+				}
+				return null;
+			}));
+		}
+		for (Future<Void> future : futures) {
+			future.get();
+		}
+
+		Assertions.assertEquals(keyCount, pMap.size());
+		for (int i = 0; i < keyCount; i++) {
+			Assertions.assertEquals(freeSpaceValue(10 + (i + 4 * 37) % 200, i), pMap.get(i));
+		}
+	}
+
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testReadDuringInsert(PMapConstructor constructor) throws IOException, InterruptedException, ExecutionException {
+		final PMap<Integer, String> pMap = constructor.getInstance("PMap.ReadDuringInsert.bin");
+		pMap.clear();
+
+		final int keyCount = 2000;
+		for (int i = 0; i < keyCount; i++) {
+			pMap.put(i, "value " + i);
+		}
+
+		// the inserts split the nodes under the optimistic gets
+		final List<Future<Void>> futures = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int thread = t;
+			futures.add(executorService.submit(() -> {
+				for (int i = keyCount + thread; i < 5 * keyCount; i += 4) {
+					Assertions.assertNull(pMap.put(i, "value " + i));
+				}
+				return null;
+			}));
+			futures.add(executorService.submit(() -> {
+				for (int round = 0; round < 10; round++) {
+					for (int i = thread; i < keyCount; i += 4) {
+						Assertions.assertEquals("value " + i, pMap.get(i));
+					}
+					Assertions.assertNull(pMap.get(-1 - thread));
+				}
+				return null;
+			}));
+		}
+		for (Future<Void> future : futures) {
+			future.get();
+		}
+
+		Assertions.assertEquals(5 * keyCount, pMap.size());
+		for (int i = 0; i < 5 * keyCount; i++) {
+			Assertions.assertEquals("value " + i, pMap.get(i));
+		}
+	}
+
+	/**
+	 * Thousands of tasks blocking on the map at once. Run on virtual threads
+	 * when the JVM has them, on a large pool of platform threads otherwise.
+	 */
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testManyBlockingTasks(PMapConstructor constructor) throws IOException, InterruptedException, ExecutionException {
+		final PMap<Integer, String> pMap = constructor.getInstance("PMap.ManyBlockingTasks.bin");
+		pMap.clear();
+
+		ExecutorService taskExecutor;
+		try {
+			taskExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			taskExecutor = Executors.newFixedThreadPool(256);
+		}
+
+		// writers cancelled while the others run : their interrupts must not
+		// break the files for the others
+		final int cancelledCount = 16;
+		final CountDownLatch cancelledStarted = new CountDownLatch(cancelledCount);
+		final CountDownLatch cancelledEnded = new CountDownLatch(cancelledCount);
+		final List<Future<Void>> cancelled = new ArrayList<>(cancelledCount);
+		for (int t = 0; t < cancelledCount; t++) {
+			final int key = -1 - t;
+			cancelled.add(taskExecutor.submit(() -> {
+				try {
+					cancelledStarted.countDown();
+					for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+						pMap.put(key, "cancelled " + i);
+						pMap.get(key);
+					}
+				} finally {
+					cancelledEnded.countDown();
+				}
+				return null;
+			}));
+		}
+		cancelledStarted.await();
+
+		final int taskCount = 5000;
+		final List<Future<Void>> futures = new ArrayList<>(taskCount);
+		for (int t = 0; t < taskCount; t++) {
+			final int task = t;
+			futures.add(taskExecutor.submit(() -> {
+				for (int i = task; i < 4 * taskCount; i += taskCount) {
+					Assertions.assertNull(pMap.put(i, "value " + i));
+					Assertions.assertEquals("value " + i, pMap.get(i));
+				}
+				Assertions.assertEquals("value " + task, pMap.remove(task));
+				return null;
+			}));
+		}
+		for (Future<Void> future : cancelled) {
+			future.cancel(true);
+		}
+		for (Future<Void> future : futures) {
+			future.get();
+		}
+		cancelledEnded.await();
+		taskExecutor.shutdown();
+
+		for (int t = 0; t < cancelledCount; t++) {
+			final String value = pMap.remove(-1 - t);
+			Assertions.assertTrue(value == null || value.startsWith("cancelled "), value);
+		}
+
+		Assertions.assertEquals(3 * taskCount, pMap.size());
+		for (int i = 0; i < 4 * taskCount; i++) {
+			Assertions.assertEquals(i < taskCount ? null : "value " + i, pMap.get(i));
+		}
+	}
+
+	@ParameterizedTest
+	@MethodSource("createConstructors")
+	public void testInterruptedRead(PMapConstructor constructor) throws IOException, InterruptedException {
+		final PMap<Integer, String> pMap = constructor.getInstance("PMap.InterruptedRead.bin");
+		pMap.clear();
+		for (int i = 0; i < 1000; i++) {
+			pMap.put(i, "value " + i);
+		}
+
+		// interrupted before the read : the read is done, or given up
+		Thread.currentThread().interrupt();
+		try {
+			Assertions.assertEquals("value 1", pMap.get(1));
+		} catch (PMapException e) {
+			Assertions.assertTrue(e.getCause() instanceof InterruptedException, e.toString());
+		}
+		Thread.interrupted();
+
+		// interrupted while reading
+		final AtomicReference<PMapException> readerFailure = new AtomicReference<>();
+		final Thread reader = new Thread(() -> {
+			for (int i = 0; !Thread.currentThread().isInterrupted(); i = (i + 1) % 1000) {
+				try {
+					pMap.get(i);
+				} catch (PMapException e) {
+					// given up on the interrupt, which is cleared
+					if (!(e.getCause() instanceof InterruptedException))
+						readerFailure.set(e);
+					return;
+				}
+			}
+		});
+		reader.start();
+		Thread.sleep(50);
+		reader.interrupt();
+		reader.join();
+		Assertions.assertNull(readerFailure.get());
+
+		// the files are still readable, by any thread
+		for (int i = 0; i < 1000; i++) {
+			Assertions.assertEquals("value " + i, pMap.get(i));
+		}
+		final CompletableFuture<String> other = CompletableFuture.supplyAsync(() -> pMap.get(999));
+		Assertions.assertEquals("value 999", other.join());
+		pMap.close();
+	}
+
 	@ParameterizedTest
 	@MethodSource("createConstructors")
 	public void testConccurrentReadWriteRemove(PMapConstructor constructor) throws IOException, InterruptedException {
@@ -0,0 +1,107 @@
+package com.pmaps.pmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.pmaps.pmap.primitive.PIntObjectMap;
+import com.pmaps.pmap.primitive.PLongLongMap;
+import com.pmaps.pmap.serializer.JavaSerializer;
+
+/**
+ * Checks the primitive maps against a {@link HashMap}.
+ *
+ * @author Bleu
+ *
+ */
+public class TestPrimitiveMaps {
+
+	private static final File tempDir = new File("./tmp/");
+
+	private static final int NBR = 20000;
+
+	@ParameterizedTest
+	@ValueSource(booleans = { true, false })
+	public void testLongLongMap(boolean cacheIndex) throws IOException {
+		tempDir.mkdirs();
+		final File file = new File(tempDir, "P-" + cacheIndex + "-PLongLongMap.bin");
+		PLongLongMap pMap = new PLongLongMap(file, cacheIndex, Long.MIN_VALUE);
+		pMap.clear();
+
+		final Map<Long, Long> map = new HashMap<>();
+		final Random random = new Random(42);
+		for (int i = 0; i < NBR; i++) {
+			final long key = i < 10 ? Long.MAX_VALUE - i : random.nextLong();
+			// -1 is also the end of file pointer
+			final long value = i % 100 == 0 ? -1 : random.nextLong();
+			final Long expected = map.put(key, value);
+			Assertions.assertEquals(expected == null ? Long.MIN_VALUE : expected, pMap.put(key, value));
+		}
+		Assertions.assertEquals(map.size(), pMap.size());
+
+		int i = 0;
+		for (Map.Entry<Long, Long> entry : map.entrySet()) {
+			if (i++ % 3 == 0)
+				Assertions.assertEquals((long) entry.getValue(), pMap.remove(entry.getKey()));
+			else
+				Assertions.assertEquals((long) entry.getValue(), pMap.put(entry.getKey(), entry.getValue() + 1));
+		}
+		Assertions.assertEquals(Long.MIN_VALUE, pMap.remove(12345));
+		pMap.close();
+
+		pMap = new PLongLongMap(file, cacheIndex, Long.MIN_VALUE);
+		Assertions.assertEquals(map.size() - (map.size() + 2) / 3, pMap.size());
+		i = 0;
+		for (Map.Entry<Long, Long> entry : map.entrySet()) {
+			if (i++ % 3 == 0) {
+				Assertions.assertFalse(pMap.containsKey(entry.getKey()));
+				Assertions.assertEquals(Long.MIN_VALUE, pMap.get(entry.getKey()));
+			} else {
+				Assertions.assertEquals(entry.getValue() + 1, pMap.get(entry.getKey()));
+			}
+		}
+		pMap.close();
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { true, false })
+	public void testIntObjectMap(boolean cacheIndex) throws IOException {
+		tempDir.mkdirs();
+		final String name = "P-" + cacheIndex + "-PIntObjectMap.bin";
+		PIntObjectMap<String> pMap = new PIntObjectMap<>(name, tempDir, new JavaSerializer(), cacheIndex);
+		pMap.clear();
+
+		for (int i = -NBR / 2; i < NBR / 2; i++) {
+			Assertions.assertNull(pMap.put(i, "value " + i));
+		}
+		final long fileSize = pMap.fileSize();
+		// shorter values are rewritten in place
+		for (int i = -NBR / 2; i < NBR / 2; i++) {
+			Assertions.assertEquals("value " + i, pMap.put(i, "v" + i));
+		}
+		Assertions.assertEquals(fileSize, pMap.fileSize());
+		for (int i = -NBR / 2; i < NBR / 2; i += 2) {
+			Assertions.assertEquals("v" + i, pMap.put(i, "a longer value " + i));
+		}
+		for (int i = -NBR / 2; i < NBR / 2; i += 5) {
+			Assertions.assertNotNull(pMap.remove(i));
+		}
+		Assertions.assertNull(pMap.remove(NBR));
+		pMap.close();
+
+		pMap = new PIntObjectMap<>(name, tempDir, new JavaSerializer(), cacheIndex);
+		Assertions.assertEquals(NBR - NBR / 5, pMap.size());
+		for (int i = -NBR / 2; i < NBR / 2; i++) {
+			final String expected = i % 5 == 0 ? null : i % 2 == 0 ? "a longer value " + i : "v" + i;
+			Assertions.assertEquals(expected, pMap.get(i));
+		}
+		pMap.close();
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.pmaps.pmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.pmaps.PMapException;
+
+/**
+ * Checks the {@link ShardedPMap} against a {@link HashMap}.
+ *
+ * @author Bleu
+ *
+ */
+public class TestShardedPMap {
+
+	private static final File tempDir = new File("./tmp/");
+
+	private static final int NBR = 20000;
+
+	@Test
+	public void testShardedPMap() throws IOException {
+		final File[] directories = { new File(tempDir, "shards-a"), new File(tempDir, "shards-b") };
+		for (File directory : directories) {
+			directory.mkdirs();
+		}
+		ShardedPMap<Integer, String> pMap = new ShardedPMap<>("Sharded", directories, 4, new PMapOptions());
+		pMap.clear();
+
+		final Map<Integer, String> map = new HashMap<>();
+		for (int i = 0; i < NBR; i++) {
+			map.put(i, "value " + i);
+		}
+		pMap.putAll(map);
+		Assertions.assertEquals(NBR, pMap.size());
+		for (int i = 0; i < pMap.getShardCount(); i++) {
+			// the keys are spread over the shards
+			Assertions.assertTrue(pMap.getShard(i).size() > NBR / 8);
+		}
+
+		for (int i = 0; i < NBR; i += 3) {
+			Assertions.assertEquals("value " + i, pMap.remove(i));
+			map.remove(i);
+		}
+		Assertions.assertNull(pMap.put(NBR, "last"));
+		map.put(NBR, "last");
+
+		final Map<Integer, String> parallelRead = pMap.entrySet().parallelStream()
+				.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+		Assertions.assertEquals(map, parallelRead);
+		pMap.close();
+
+		// the count is checked in both directions
+		Assertions.assertThrows(PMapException.class, () -> new ShardedPMap<>("Sharded", directories, 3, new PMapOptions()));
+		Assertions.assertThrows(PMapException.class, () -> new ShardedPMap<>("Sharded", directories, 5, new PMapOptions()));
+		Assertions.assertThrows(PMapException.class, () -> new ShardedPMap<>("Sharded", directories, 1, new PMapOptions()));
+		Assertions.assertFalse(new File(directories[0], "Sharded-4.idx").exists());
+		pMap = new ShardedPMap<>("Sharded", directories, 4, new PMapOptions());
+		Assertions.assertEquals(map.size(), pMap.size());
+		for (Map.Entry<Integer, String> entry : map.entrySet()) {
+			Assertions.assertEquals(entry.getValue(), pMap.get(entry.getKey()));
+		}
+		Assertions.assertFalse(pMap.containsKey(0));
+		pMap.close();
+	}
+
+}